@@ -14,6 +14,7 @@ repositories {
 dependencies {
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
     implementation("com.h2database:h2:2.1.214") // using the same version as Prof in class
 }
 
@@ -24,9 +25,105 @@ application {
 
 javafx {
     version = "21.0.4"
-    modules = listOf("javafx.controls", "javafx.fxml", "javafx.graphics", "javafx.media", "javafx.web", "javafx.swing")
+    modules = listOf("javafx.controls")
+}
+
+// The stylesheet lives next to the classes that load it
+sourceSets {
+    main {
+        resources {
+            srcDir("src/main/java")
+            include("**/*.css")
+        }
+    }
+}
+
+// Report every lint category, so new warnings show up in the build
+tasks.withType<JavaCompile> {
+    options.compilerArgs.add("-Xlint:all")
 }
 
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+    // Tests drive the sweeper themselves, have no file to compact and need no slow query log
+    systemProperty("docop.sweepIntervalSeconds", "0")
+    systemProperty("docop.maintenance", "false")
+    systemProperty("docop.slowQuery.thresholdMillis", "-1")
+}
+// Runs the H2 storage configuration matrix, e.g. gradle storageBenchmark -PbenchArgs="--ops=50000 --csv=build/storage.csv"
+tasks.register<JavaExec>("storageBenchmark") {
+    group = "verification"
+    description = "Benchmarks the H2 backend under a matrix of storage settings."
+    classpath = sourceSets["test"].runtimeClasspath
+    mainClass.set("main.StorageBenchmark")
+    args = (project.findProperty("benchArgs") as String?)?.split(" ")?.filter { it.isNotBlank() } ?: emptyList()
+}
+
+// Fast launch profile: a runtime image with only the JDK and JavaFX modules the application uses, and a
+// class-data-sharing archive recorded from a scripted login-and-dashboard run. H2 is an automatic module, which
+// jlink cannot link, so it stays on the module path next to the application jar.
+val runtimeImage = layout.buildDirectory.dir("runtime")
+val cdsArchiveFile = layout.buildDirectory.file("app-cds.jsa")
+val runtimeModules = "javafx.controls,java.sql,java.naming,java.management,jdk.httpserver"
+val jdkHome: String = System.getProperty("java.home")
+
+fun javafxJars() = configurations.runtimeClasspath.get().filter { it.name.startsWith("javafx") }
+fun appModulePath() = (tasks.jar.get().outputs.files + configurations.runtimeClasspath.get().filter { !it.name.startsWith("javafx") }).asPath
+fun imageJava() = runtimeImage.get().file("bin/java").asFile.path
+fun fastLaunchArgs() = listOf("--module-path", appModulePath(), "--add-modules", "com.h2database", "-m", "main/main.Main")
+
+val jlinkRuntime by tasks.registering(Exec::class) {
+    group = "distribution"
+    description = "Links a runtime image with only the JDK and JavaFX modules the application uses."
+    inputs.files(configurations.runtimeClasspath)
+    outputs.dir(runtimeImage)
+    doFirst { delete(runtimeImage) }
+    executable = "$jdkHome/bin/jlink"
+    argumentProviders.add(CommandLineArgumentProvider {
+        listOf("--module-path", (javafxJars() + files("$jdkHome/jmods")).asPath,
+                "--add-modules", runtimeModules,
+                "--strip-debug", "--no-header-files", "--no-man-pages", "--compress=2",
+                "--generate-cds-archive",
+                "--output", runtimeImage.get().asFile.path)
+    })
+}
+
+val cdsArchive by tasks.registering(Exec::class) {
+    group = "distribution"
+    description = "Records a class-data-sharing archive from a scripted login-and-dashboard training run."
+    dependsOn(jlinkRuntime, tasks.jar)
+    inputs.files(tasks.jar)
+    outputs.file(cdsArchiveFile)
+    argumentProviders.add(CommandLineArgumentProvider {
+        listOf("-XX:ArchiveClassesAtExit=" + cdsArchiveFile.get().asFile.path,
+                "-Ddocop.store=h2mem", "-Ddocop.slowQuery.thresholdMillis=-1", "-Ddocop.maintenance=false") +
+                fastLaunchArgs() + "--training-run"
+    })
+    doFirst { executable = imageJava() }
+}
+
+tasks.register<Exec>("runFast") {
+    group = "application"
+    description = "Runs the application on the trimmed runtime image with the class-data-sharing archive."
+    dependsOn(cdsArchive)
+    argumentProviders.add(CommandLineArgumentProvider {
+        listOf("-XX:SharedArchiveFile=" + cdsArchiveFile.get().asFile.path) + fastLaunchArgs()
+    })
+    doFirst { executable = imageJava() }
+}
+
+// Compares cold start and peak RSS on the full JDK, the runtime image, and the image with the archive
+tasks.register<JavaExec>("startupBenchmark") {
+    group = "verification"
+    description = "Measures cold start time and peak RSS of each launch profile."
+    dependsOn(cdsArchive)
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("main.StartupBenchmark")
+    argumentProviders.add(CommandLineArgumentProvider {
+        listOf("--module-path=" + (tasks.jar.get().outputs.files + configurations.runtimeClasspath.get()).asPath,
+                "--app-module-path=" + appModulePath(),
+                "--image=" + runtimeImage.get().asFile.path,
+                "--archive=" + cdsArchiveFile.get().asFile.path) +
+                ((project.findProperty("startupArgs") as String?)?.split(" ")?.filter { it.isNotBlank() } ?: emptyList())
+    })
+}
@@ -0,0 +1,458 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>AuthIndex class is an optional off-heap index of the credentials needed to authenticate a user.</p>
+ * <p>For every username it holds the 32-byte password hash, the account setup and one-time password flags,
+ * the one-time password expiry and a bitmask of the user's roles. The data lives in direct {@link ByteBuffer}s
+ * laid out as an open-addressing hash table with linear probing, so the index creates no heap objects per
+ * user and a login can be checked without a JDBC call.</p>
+ * <p>The {@link DatabaseHelper} builds the index from the users table on connect and refreshes a user's slot
+ * after every write to their credentials or roles. It is enabled with the {@code docop.authIndex} system
+ * property.</p>
+ * <p>Refreshes after two concurrent writes to a user may finish in either order. Each refresh therefore starts
+ * with {@link #beginRefresh(String)}, after its write has committed and before it reads the row, and passes the
+ * generation it gets to the put or remove. A later refresh of the user bumps the generation, so the earlier one,
+ * which may have read the older row, is dropped. As in {@link UserCache}, generations are kept in stripes indexed
+ * by the username's hash.</p>
+ */
+public class AuthIndex {
+
+    /** The outcome of checking a login against the index, in the same order as {@link LoginManager#login}. */
+    public enum Result {
+        /** No user with that username. */
+        UNKNOWN_USER,
+        /** The user has no password hash. */
+        NO_PASSWORD,
+        /** The user has not completed account setup. */
+        SETUP_INCOMPLETE,
+        /** A one-time password is set, has not expired and matches. */
+        OTP_ACCEPTED,
+        /** A one-time password is set and has not expired, but does not match. */
+        OTP_MISMATCH,
+        /** A one-time password is set but has expired. */
+        OTP_EXPIRED,
+        /** The password does not match. */
+        PASSWORD_MISMATCH,
+        /** The password matches but the user does not hold the requested role. */
+        ROLE_MISSING,
+        /** The password matches and the user holds the requested role. */
+        SUCCESS
+    }
+
+    // Slot layout (64 bytes per slot)
+    private static final int SLOT_SIZE = 64;
+    private static final int FINGERPRINT = 0;    // long, 0 = empty, 1 = deleted
+    private static final int KEY_OFFSET = 8;     // int, offset of the username chars in the key arena
+    private static final int KEY_LENGTH = 12;    // short, length of the username in chars
+    private static final int FLAGS = 14;         // byte
+    private static final int ROLES = 15;         // byte, Role bitmask
+    private static final int OTP_EXPIRY = 16;    // long, epoch second, Long.MIN_VALUE if unset
+    private static final int HASH = 24;          // 32 bytes, SHA-256 password hash
+    private static final int HASH_LENGTH = 32;
+
+    private static final long EMPTY = 0L;
+    private static final long DELETED = 1L;
+
+    private static final byte FLAG_HAS_HASH = 1;
+    private static final byte FLAG_SETUP_COMPLETE = 2;
+    private static final byte FLAG_OTP = 4;
+
+    /** The number of generation stripes; a power of two. */
+    private static final int GENERATION_STRIPES = 1024;
+
+    /** The hash table slots. */
+    private ByteBuffer slots;
+
+    /** The number of slots; always a power of two. */
+    private int capacity;
+
+    /** The usernames stored as UTF-16 chars, appended as users are added. */
+    private ByteBuffer keys;
+
+    /** The number of live users and deleted slots. */
+    private int size;
+    private int deleted;
+
+    /** The generation of each stripe of usernames, bumped whenever a refresh of a user in the stripe begins. */
+    private final long[] generations = new long[GENERATION_STRIPES];
+
+    /** Readers check logins concurrently; writers take the lock exclusively. */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Constructor for AuthIndex.
+     *
+     * @param expectedUsers The number of users to size the table for.
+     */
+    public AuthIndex(int expectedUsers) {
+        int initialCapacity = 1024;
+        while (initialCapacity < expectedUsers * 2) {
+            initialCapacity <<= 1;
+        }
+        this.capacity = initialCapacity;
+        this.slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        this.keys = ByteBuffer.allocateDirect(Math.max(expectedUsers, 1024) * 32);
+    }
+
+    /**
+     * Starts refreshing a user's credentials, dropping the put or remove of any refresh begun before. Called after
+     * a write to the user's row has committed and before the row is read again.
+     *
+     * @param username The username of the user.
+     * @return The generation to pass to {@link #put(String, byte[], boolean, boolean, long, int, long)} or
+     *         {@link #remove(String, long)}.
+     */
+    public long beginRefresh(String username) {
+        lock.writeLock().lock();
+        try {
+            return ++generations[stripe(username)];
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds or replaces the credentials of a user read by a refresh, unless a later refresh of the user has begun.
+     *
+     * @param username The username of the user.
+     * @param passwordHash The 32-byte password hash, or null if the user has no password.
+     * @param setupComplete Whether the user has completed account setup.
+     * @param oneTimePassword Whether the password is a one-time password.
+     * @param otpExpiryEpochSecond The one-time password expiry in epoch seconds, or Long.MIN_VALUE if unset.
+     * @param rolesMask The bitmask of the user's roles (see {@link Role#bit()}).
+     * @param generation The generation returned by {@link #beginRefresh(String)} before the credentials were read.
+     * @return True if the credentials were stored.
+     */
+    public boolean put(String username, byte[] passwordHash, boolean setupComplete, boolean oneTimePassword,
+                       long otpExpiryEpochSecond, int rolesMask, long generation) {
+        if (username == null) {
+            return false;
+        }
+        lock.writeLock().lock();
+        try {
+            if (generation != generations[stripe(username)]) {
+                return false;
+            }
+            put(username, passwordHash, setupComplete, oneTimePassword, otpExpiryEpochSecond, rolesMask);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a user that a refresh found gone, unless a later refresh of the user has begun.
+     *
+     * @param username The username of the user.
+     * @param generation The generation returned by {@link #beginRefresh(String)} before the row was read.
+     * @return True if the user was removed or was not in the index.
+     */
+    public boolean remove(String username, long generation) {
+        lock.writeLock().lock();
+        try {
+            if (generation != generations[stripe(username)]) {
+                return false;
+            }
+            remove(username);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds or replaces the credentials of a user.
+     *
+     * @param username The username of the user.
+     * @param passwordHash The 32-byte password hash, or null if the user has no password.
+     * @param setupComplete Whether the user has completed account setup.
+     * @param oneTimePassword Whether the password is a one-time password.
+     * @param otpExpiryEpochSecond The one-time password expiry in epoch seconds, or Long.MIN_VALUE if unset.
+     * @param rolesMask The bitmask of the user's roles (see {@link Role#bit()}).
+     */
+    public void put(String username, byte[] passwordHash, boolean setupComplete, boolean oneTimePassword,
+                    long otpExpiryEpochSecond, int rolesMask) {
+        if (username == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            int slot = find(username);
+            if (slot < 0) {
+                if ((size + deleted + 1) * 2 > capacity) {
+                    resize(size + 1 > capacity / 4 ? capacity * 2 : capacity);
+                }
+                slot = insertionSlot(username);
+                int base = slot * SLOT_SIZE;
+                if (slots.getLong(base + FINGERPRINT) == DELETED) {
+                    deleted--;
+                }
+                slots.putLong(base + FINGERPRINT, fingerprint(username));
+                slots.putInt(base + KEY_OFFSET, appendKey(username));
+                slots.putShort(base + KEY_LENGTH, (short) username.length());
+                size++;
+            }
+
+            int base = slot * SLOT_SIZE;
+            byte flags = 0;
+            if (passwordHash != null && passwordHash.length == HASH_LENGTH) {
+                flags |= FLAG_HAS_HASH;
+                for (int i = 0; i < HASH_LENGTH; i++) {
+                    slots.put(base + HASH + i, passwordHash[i]);
+                }
+            }
+            if (setupComplete) flags |= FLAG_SETUP_COMPLETE;
+            if (oneTimePassword) flags |= FLAG_OTP;
+            slots.put(base + FLAGS, flags);
+            slots.put(base + ROLES, (byte) rolesMask);
+            slots.putLong(base + OTP_EXPIRY, otpExpiryEpochSecond);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a user from the index.
+     *
+     * @param username The username of the user.
+     */
+    public void remove(String username) {
+        lock.writeLock().lock();
+        try {
+            int slot = find(username);
+            if (slot >= 0) {
+                slots.putLong(slot * SLOT_SIZE + FINGERPRINT, DELETED);
+                size--;
+                deleted++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every user from the index.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < capacity; i++) {
+                slots.putLong(i * SLOT_SIZE + FINGERPRINT, EMPTY);
+            }
+            keys.clear();
+            size = 0;
+            deleted = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Checks a login against the index, following the same steps as {@link LoginManager#login}.
+     *
+     * @param username The username of the user attempting to log in.
+     * @param enteredHash The SHA-256 hash of the password the user entered.
+     * @param role The role the user is attempting to log in with.
+     * @param nowEpochSecond The current time in epoch seconds, used for one-time password expiry.
+     * @return The outcome of the check.
+     */
+    public Result check(String username, byte[] enteredHash, String role, long nowEpochSecond) {
+        lock.readLock().lock();
+        try {
+            int slot = find(username);
+            if (slot < 0) {
+                return Result.UNKNOWN_USER;
+            }
+            int base = slot * SLOT_SIZE;
+            byte flags = slots.get(base + FLAGS);
+            if ((flags & FLAG_HAS_HASH) == 0) {
+
+                // An expired one-time password cleared by the sweeper keeps its flag but loses its hash
+                return (flags & FLAG_OTP) != 0 ? Result.OTP_EXPIRED : Result.NO_PASSWORD;
+            }
+            if ((flags & FLAG_SETUP_COMPLETE) == 0) {
+                return Result.SETUP_INCOMPLETE;
+            }
+            boolean matches = hashMatches(base, enteredHash);
+            if ((flags & FLAG_OTP) != 0) {
+                long expiry = slots.getLong(base + OTP_EXPIRY);
+                if (expiry == Long.MIN_VALUE || nowEpochSecond > expiry) {
+                    return Result.OTP_EXPIRED;
+                }
+                return matches ? Result.OTP_ACCEPTED : Result.OTP_MISMATCH;
+            }
+            if (!matches) {
+                return Result.PASSWORD_MISMATCH;
+            }
+            Role requested = Role.fromLabel(role);
+            if (requested == null || (slots.get(base + ROLES) & requested.bit()) == 0) {
+                return Result.ROLE_MISSING;
+            }
+            return Result.SUCCESS;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Retrieves the number of users in the index.
+     *
+     * @return The number of users.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Retrieves the number of off-heap bytes reserved by the index.
+     *
+     * @return The reserved bytes.
+     */
+    public long offHeapBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) slots.capacity() + keys.capacity();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Compares the stored hash with the entered one in constant time
+    private boolean hashMatches(int base, byte[] enteredHash) {
+        if (enteredHash == null || enteredHash.length != HASH_LENGTH) {
+            return false;
+        }
+        int diff = 0;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            diff |= slots.get(base + HASH + i) ^ enteredHash[i];
+        }
+        return diff == 0;
+    }
+
+    // Returns the slot holding the username, or -1 if it is not in the index
+    private int find(String username) {
+        if (username == null) {
+            return -1;
+        }
+        long fingerprint = fingerprint(username);
+        int mask = capacity - 1;
+        for (int slot = (int) fingerprint & mask, probes = 0; probes < capacity; slot = (slot + 1) & mask, probes++) {
+            long stored = slots.getLong(slot * SLOT_SIZE + FINGERPRINT);
+            if (stored == EMPTY) {
+                return -1;
+            }
+            if (stored == fingerprint && keyEquals(slot * SLOT_SIZE, username)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // Returns the first empty or deleted slot along the username's probe sequence
+    private int insertionSlot(String username) {
+        int mask = capacity - 1;
+        int slot = (int) fingerprint(username) & mask;
+        while (true) {
+            long stored = slots.getLong(slot * SLOT_SIZE + FINGERPRINT);
+            if (stored == EMPTY || stored == DELETED) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    // Compares the username stored for a slot with the given one, char by char
+    private boolean keyEquals(int base, String username) {
+        int length = slots.getShort(base + KEY_LENGTH);
+        if (length != username.length()) {
+            return false;
+        }
+        int offset = slots.getInt(base + KEY_OFFSET);
+        for (int i = 0; i < length; i++) {
+            if (keys.getChar(offset + i * 2) != username.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Appends a username to the key arena, growing it if needed, and returns its offset
+    private int appendKey(String username) {
+        int needed = username.length() * 2;
+        if (keys.remaining() < needed) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(keys.capacity() * 2, keys.position() + needed));
+            keys.flip();
+            grown.put(keys);
+            keys = grown;
+        }
+        int offset = keys.position();
+        for (int i = 0; i < username.length(); i++) {
+            keys.putChar(username.charAt(i));
+        }
+        return offset;
+    }
+
+    // Rehashes every live slot into a fresh table, dropping deleted slots and unused key bytes
+    private void resize(int newCapacity) {
+        ByteBuffer oldSlots = slots;
+        ByteBuffer oldKeys = keys;
+        int oldCapacity = capacity;
+
+        capacity = newCapacity;
+        slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        keys = ByteBuffer.allocateDirect(Math.max(oldKeys.position(), 1024));
+        deleted = 0;
+
+        int mask = capacity - 1;
+        for (int old = 0; old < oldCapacity; old++) {
+            int oldBase = old * SLOT_SIZE;
+            long fingerprint = oldSlots.getLong(oldBase + FINGERPRINT);
+            if (fingerprint == EMPTY || fingerprint == DELETED) {
+                continue;
+            }
+            int slot = (int) fingerprint & mask;
+            while (slots.getLong(slot * SLOT_SIZE + FINGERPRINT) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            int base = slot * SLOT_SIZE;
+
+            // Copy the fixed-size part of the slot and move the key into the new arena
+            for (int i = 0; i < SLOT_SIZE; i++) {
+                slots.put(base + i, oldSlots.get(oldBase + i));
+            }
+            int length = oldSlots.getShort(oldBase + KEY_LENGTH);
+            int oldOffset = oldSlots.getInt(oldBase + KEY_OFFSET);
+            slots.putInt(base + KEY_OFFSET, keys.position());
+            for (int i = 0; i < length; i++) {
+                keys.putChar(oldKeys.getChar(oldOffset + i * 2));
+            }
+        }
+    }
+
+    // Maps a username to its generation stripe
+    private static int stripe(String username) {
+        int hash = username == null ? 0 : username.hashCode();
+        return (hash ^ (hash >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+
+    // 64-bit hash of the username that never collides with the EMPTY and DELETED markers
+    private static long fingerprint(String username) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < username.length(); i++) {
+            h ^= username.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (h == EMPTY || h == DELETED) ? h + 2 : h;
+    }
+}
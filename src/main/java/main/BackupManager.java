@@ -0,0 +1,364 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>BackupManager class streams the users table to and from a compressed backup file.</p>
+ * <p>A backup reads a consistent snapshot (one repeatable-read transaction) a page at a time in user id order, so
+ * memory use does not depend on the number of users and logins keep being served while it runs. Rows are written
+ * as typed binary values into a gzip stream, and the compressed output can be throttled to a maximum rate so the
+ * backup does not starve the application of disk bandwidth. The file is written under a temporary name and moved
+ * into place only once complete.</p>
+ * <p>A restore reads the file back as a stream and inserts the rows with JDBC batches. It is run by
+ * {@link DatabaseHelper#restore(Path)} as a single write, so it replaces the users atomically.</p>
+ * <p>File layout (inside the gzip stream): the magic {@code DOCOPBAK}, the format version, the backup time, the
+ * column names, then for each row the byte 1 followed by one tagged value per column, then the byte 0 and the
+ * row count.</p>
+ */
+public final class BackupManager {
+
+    /** Identifies a backup file. */
+    private static final String MAGIC = "DOCOPBAK";
+
+    /** The version of the file layout. */
+    private static final int FORMAT_VERSION = 1;
+
+    /** Rows read per page while backing up, and inserted per JDBC batch while restoring. */
+    private static final int PAGE_SIZE = 1000;
+
+    /** Rows between progress messages. */
+    private static final int PROGRESS_INTERVAL = 100_000;
+
+    // Value tags
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte BYTES = 2;
+    private static final byte BOOLEAN = 3;
+    private static final byte INT = 4;
+    private static final byte LONG = 5;
+    private static final byte TIMESTAMP = 6;
+
+    // Row markers
+    private static final byte ROW = 1;
+    private static final byte END = 0;
+
+    private BackupManager() {
+    }
+
+    /**
+     * <p>Result class reports what a backup or restore did and how fast.</p>
+     */
+    public static final class Result {
+        private final Path file;
+        private final long rows;
+        private final long bytes;
+        private final long nanos;
+
+        private Result(Path file, long rows, long bytes, long nanos) {
+            this.file = file;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /** @return The backup file. */
+        public Path getFile() {
+            return file;
+        }
+
+        /** @return The number of users written or restored. */
+        public long getRows() {
+            return rows;
+        }
+
+        /** @return The size of the backup file in bytes. */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /** @return The time taken in milliseconds. */
+        public long getMillis() {
+            return nanos / 1_000_000;
+        }
+
+        /** @return The throughput in rows per second. */
+        public double getRowsPerSecond() {
+            return nanos == 0 ? 0 : rows * 1e9 / nanos;
+        }
+
+        /** @return The throughput in compressed megabytes per second. */
+        public double getMegabytesPerSecond() {
+            return nanos == 0 ? 0 : bytes * 1e9 / nanos / (1024 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d users, %.1f MB in %.1f s (%.0f users/s, %.1f MB/s) - %s",
+                    rows, bytes / (1024.0 * 1024), nanos / 1e9, getRowsPerSecond(), getMegabytesPerSecond(), file);
+        }
+    }
+
+    /**
+     * Writes a consistent snapshot of the users table to a backup file.
+     *
+     * @param conn A connection dedicated to the backup; its auto-commit and isolation are changed.
+     * @param file The backup file to create or replace.
+     * @param maxBytesPerSecond The maximum rate the compressed file is written at, or 0 for no limit.
+     * @return What was written.
+     * @throws SQLException If the users cannot be read.
+     * @throws IOException If the file cannot be written.
+     */
+    public static Result backup(Connection conn, Path file, long maxBytesPerSecond) throws SQLException, IOException {
+        long start = System.nanoTime();
+        String[] columns = DatabaseHelper.USER_COLUMNS.split(",\\s*");
+        Path partial = file.resolveSibling(file.getFileName() + ".partial");
+        if (file.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+        }
+
+        // Every page is read in the same transaction, so the backup sees the table as of its first read
+        conn.setAutoCommit(false);
+        conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+        long rows = 0;
+        ThrottledOutputStream throttled = new ThrottledOutputStream(Files.newOutputStream(partial), maxBytesPerSecond);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(throttled, 64 * 1024), 64 * 1024))) {
+            out.writeUTF(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(columns.length);
+            for (String column : columns) {
+                out.writeUTF(column);
+            }
+
+            String page = "SELECT " + DatabaseHelper.USER_COLUMNS + " FROM users WHERE user_id > ? ORDER BY user_id FETCH FIRST ? ROWS ONLY";
+            try (PreparedStatement pstmt = conn.prepareStatement(page)) {
+                int lastUserId = Integer.MIN_VALUE;
+                while (true) {
+                    pstmt.setInt(1, lastUserId);
+                    pstmt.setInt(2, PAGE_SIZE);
+                    ResultSet resultSet = pstmt.executeQuery();
+                    int pageRows = 0;
+                    while (resultSet.next()) {
+                        out.writeByte(ROW);
+                        for (int i = 1; i <= columns.length; i++) {
+                            writeValue(out, resultSet.getObject(i));
+                        }
+                        lastUserId = resultSet.getInt("user_id");
+                        pageRows++;
+                        if (++rows % PROGRESS_INTERVAL == 0) {
+                            System.out.println("Backup progress: " + rows + " users");
+                        }
+                    }
+                    if (pageRows < PAGE_SIZE) {
+                        break;
+                    }
+                }
+            }
+            out.writeByte(END);
+            out.writeLong(rows);
+        } catch (SQLException | IOException | RuntimeException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        } finally {
+            conn.rollback();
+            conn.setAutoCommit(true);
+        }
+
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Result result = new Result(file, rows, Files.size(file), System.nanoTime() - start);
+        System.out.println("Backup complete: " + result);
+        return result;
+    }
+
+    /**
+     * Replaces the users with the contents of a backup file. Must be run inside a transaction, as the existing users
+     * are deleted first.
+     *
+     * @param conn The connection running the restore.
+     * @param file The backup file.
+     * @return What was restored.
+     * @throws SQLException If the users cannot be written.
+     * @throws IOException If the file cannot be read or is not a valid backup.
+     */
+    static Result restore(Connection conn, Path file) throws SQLException, IOException {
+        long start = System.nanoTime();
+        long rows = 0;
+        try (InputStream raw = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(raw, 64 * 1024), 64 * 1024))) {
+            if (!MAGIC.equals(in.readUTF())) {
+                throw new IOException(file + " is not a backup file");
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported backup format version " + version);
+            }
+            long createdAt = in.readLong();
+            String[] columns = new String[in.readInt()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = in.readUTF();
+                if (!columns[i].matches("[a-z_]+")) {
+                    throw new IOException("Invalid column name in backup file: " + columns[i]);
+                }
+            }
+            System.out.println("Restoring backup taken at " + new Timestamp(createdAt) + " from " + file);
+
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("DELETE FROM users");
+            }
+
+            // Insert by the column names in the file, so backups survive columns being added later
+            StringBuilder insert = new StringBuilder("INSERT INTO users (").append(String.join(", ", columns)).append(") VALUES (");
+            for (int i = 0; i < columns.length; i++) {
+                insert.append(i == 0 ? "?" : ", ?");
+            }
+            insert.append(')');
+
+            try (PreparedStatement pstmt = conn.prepareStatement(insert.toString())) {
+                int batched = 0;
+                byte marker;
+                while ((marker = in.readByte()) == ROW) {
+                    for (int i = 1; i <= columns.length; i++) {
+                        pstmt.setObject(i, readValue(in));
+                    }
+                    pstmt.addBatch();
+                    rows++;
+                    if (++batched == PAGE_SIZE) {
+                        pstmt.executeBatch();
+                        batched = 0;
+                    }
+                    if (rows % PROGRESS_INTERVAL == 0) {
+                        System.out.println("Restore progress: " + rows + " users");
+                    }
+                }
+                if (marker != END) {
+                    throw new IOException("Corrupt backup file " + file);
+                }
+                if (batched > 0) {
+                    pstmt.executeBatch();
+                }
+            }
+
+            long expectedRows = in.readLong();
+            if (expectedRows != rows) {
+                throw new IOException("Backup file " + file + " holds " + rows + " users, expected " + expectedRows);
+            }
+        }
+
+        Result result = new Result(file, rows, Files.size(file), System.nanoTime() - start);
+        System.out.println("Restore complete: " + result);
+        return result;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Timestamp) {
+            Timestamp timestamp = (Timestamp) value;
+            out.writeByte(TIMESTAMP);
+            out.writeLong(timestamp.getTime());
+            out.writeInt(timestamp.getNanos());
+        } else {
+            out.writeByte(STRING);
+            out.writeUTF(value.toString());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return in.readUTF();
+            case BYTES:
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            case BOOLEAN:
+                return in.readBoolean();
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case TIMESTAMP:
+                Timestamp timestamp = new Timestamp(in.readLong());
+                timestamp.setNanos(in.readInt());
+                return timestamp;
+            default:
+                throw new IOException("Corrupt backup value tag " + tag);
+        }
+    }
+
+    // Limits the rate bytes are written at by sleeping whenever the writer gets ahead of the budget
+    private static final class ThrottledOutputStream extends FilterOutputStream {
+        private final long maxBytesPerSecond;
+        private final long start = System.nanoTime();
+        private long written;
+
+        private ThrottledOutputStream(OutputStream out, long maxBytesPerSecond) {
+            super(out);
+            this.maxBytesPerSecond = maxBytesPerSecond;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            throttle(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            throttle(len);
+        }
+
+        private void throttle(int bytes) throws IOException {
+            written += bytes;
+            if (maxBytesPerSecond <= 0) {
+                return;
+            }
+            long aheadNanos = (long) (written * 1e9 / maxBytesPerSecond) - (System.nanoTime() - start);
+            if (aheadNanos > 1_000_000) {
+                try {
+                    Thread.sleep(aheadNanos / 1_000_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Backup interrupted", e);
+                }
+            }
+        }
+    }
+}
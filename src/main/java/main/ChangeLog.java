@@ -0,0 +1,590 @@
+package main;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>ChangeLog class reads the log of user changes kept in the {@code user_changes} table and delivers it to
+ * subscribers.</p>
+ * <p>Every mutation made by {@link DatabaseHelper} appends a compact record (sequence number, user id, operation and
+ * a bitmask of the changed fields) in the same transaction as the change itself, so a change is logged if and only
+ * if it was committed. Writers may run concurrently, but before appending, each transaction takes the lock on the
+ * single row of {@code user_changes_tail} and holds it until it commits. Sequence numbers are therefore allocated
+ * in commit order, and a reader that has seen sequence {@code n} will never later find a smaller one; a rolled back
+ * transaction only leaves a gap. Only the end of each transaction, from its first record to its commit, is
+ * serialized this way.</p>
+ * <p>The log is read on a connection of its own that never runs a write, so readers only see committed
+ * records.</p>
+ * <p>A subscriber receives the changes after a given sequence number in batches, on its own thread. A batch counts
+ * as delivered only when the listener returns normally; if it throws, the same batch is offered again, so delivery
+ * is at-least-once and listeners should be idempotent. A subscriber that stores the last sequence it processed can
+ * resume from it after a restart. Old records are pruned by {@link DatabaseHelper#pruneChangeLog(long)}, which also
+ * records how far it has pruned. A position before that point, or beyond the end of the log, is a gap: the
+ * subscriber has missed changes and has to reload everything it derives from the log. {@link #subscribe} refuses
+ * such a position with a {@link GapException}, and a subscription that falls behind the pruning while running
+ * reports it through {@link Listener#onGap(GapException)}.</p>
+ */
+public class ChangeLog implements AutoCloseable {
+
+    /** The kinds of change recorded. */
+    public enum Op {
+        /** A user or invite row was created. */
+        INSERT,
+        /** A user or invite row was updated. */
+        UPDATE,
+        /** A user or invite row was deleted. */
+        DELETE,
+        /** Every user was deleted at once; subscribers should drop everything they hold. */
+        CLEAR
+    }
+
+    /** Field bit: the password hash, one-time password flag or its expiration. */
+    public static final int CREDENTIALS = 1;
+
+    /** Field bit: the user's roles. */
+    public static final int ROLES = 1 << 1;
+
+    /** Field bit: the user's names, email or account setup flag. */
+    public static final int PROFILE = 1 << 2;
+
+    /** Field bit: the invite code, role or expiration, or the username set when an invite is redeemed. */
+    public static final int INVITE = 1 << 3;
+
+    /** Every field bit. */
+    public static final int ALL_FIELDS = CREDENTIALS | ROLES | PROFILE | INVITE;
+
+    /** How long a subscription waits for a signal before checking the log anyway, in milliseconds. */
+    private static final long IDLE_POLL_MILLIS = 1000;
+
+    /** How long a subscription waits before offering a failed batch again, in milliseconds. */
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    /**
+     * <p>Change class is one record of the log.</p>
+     */
+    public static final class Change {
+        private final long sequence;
+        private final int userId;
+        private final String username;
+        private final Op op;
+        private final int fields;
+        private final LocalDateTime changedAt;
+
+        private Change(long sequence, int userId, String username, Op op, int fields, LocalDateTime changedAt) {
+            this.sequence = sequence;
+            this.userId = userId;
+            this.username = username;
+            this.op = op;
+            this.fields = fields;
+            this.changedAt = changedAt;
+        }
+
+        /** @return The sequence number of the change. */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /** @return The database id of the user, or 0 for {@link Op#CLEAR}. */
+        public int getUserId() {
+            return userId;
+        }
+
+        /** @return The username at the time of the change; null for an unredeemed invite or {@link Op#CLEAR}. */
+        public String getUsername() {
+            return username;
+        }
+
+        /** @return The kind of change. */
+        public Op getOp() {
+            return op;
+        }
+
+        /** @return The changed fields as a bitmask of the field bits of {@link ChangeLog}. */
+        public int getFields() {
+            return fields;
+        }
+
+        /**
+         * Checks whether a field was changed.
+         *
+         * @param field One of the field bits of {@link ChangeLog}.
+         * @return True if the field was changed.
+         */
+        public boolean changed(int field) {
+            return (fields & field) != 0;
+        }
+
+        /** @return The time the change was committed. */
+        public LocalDateTime getChangedAt() {
+            return changedAt;
+        }
+
+        @Override
+        public String toString() {
+            return "Change{" + sequence + " " + op + " " + (username != null ? username : "#" + userId)
+                    + " fields=" + Integer.toBinaryString(fields) + "}";
+        }
+    }
+
+    /**
+     * <p>Listener interface receives batches of changes.</p>
+     */
+    @FunctionalInterface
+    public interface Listener {
+
+        /**
+         * Processes a batch of changes, in sequence order.
+         *
+         * @param changes The changes; never empty.
+         * @throws Exception If the batch could not be processed; it is offered again later.
+         */
+        void onChanges(List<Change> changes) throws Exception;
+
+        /**
+         * Called when changes after the subscriber's position were pruned before they could be delivered. The
+         * subscriber reloads everything it derives from the log and returns the position it reloaded at.
+         *
+         * @param gap The position and how far the log has been pruned.
+         * @return The sequence number the reloaded state corresponds to; delivery resumes after it.
+         * @throws GapException If the subscriber cannot recover, which is the default; the subscription then stops.
+         * @throws Exception If the reload failed; it is attempted again later.
+         */
+        default long onGap(GapException gap) throws Exception {
+            throw gap;
+        }
+    }
+
+    /**
+     * <p>GapException class reports that the changes after a position can no longer be read in full, because they
+     * were pruned or the position is beyond the end of the log, e.g. because it was taken from another database.</p>
+     */
+    public static final class GapException extends SQLException {
+        private static final long serialVersionUID = 1L;
+        private final long afterSequence;
+        private final long prunedThrough;
+        private final long latestSequence;
+
+        private GapException(long afterSequence, long prunedThrough, long latestSequence) {
+            super("Change log has a gap after sequence " + afterSequence + ": pruned through " + prunedThrough
+                    + ", latest " + latestSequence);
+            this.afterSequence = afterSequence;
+            this.prunedThrough = prunedThrough;
+            this.latestSequence = latestSequence;
+        }
+
+        /** @return The position the changes were missed after. */
+        public long getAfterSequence() {
+            return afterSequence;
+        }
+
+        /** @return The highest sequence number pruned from the log. */
+        public long getPrunedThrough() {
+            return prunedThrough;
+        }
+
+        /** @return The newest sequence number in the log when the gap was found. */
+        public long getLatestSequence() {
+            return latestSequence;
+        }
+    }
+
+    /**
+     * <p>Subscription class is one subscriber's position in the log and the thread delivering to it.</p>
+     */
+    public final class Subscription implements AutoCloseable {
+        private final Listener listener;
+        private final int batchSize;
+        private final Thread thread;
+        private volatile long position;
+        private volatile boolean closed;
+
+        private Subscription(long afterSequence, int batchSize, Listener listener) {
+            this.position = afterSequence;
+            this.batchSize = Math.max(1, batchSize);
+            this.listener = listener;
+            this.thread = new Thread(this::run, "change-subscriber-" + subscriberIds.incrementAndGet());
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * Retrieves the sequence number of the last change delivered successfully.
+         *
+         * @return The sequence number to resume from.
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * Stops delivering changes. A batch being processed is allowed to finish.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            subscriptions.remove(this);
+            signal();
+            if (Thread.currentThread() != thread) {
+                try {
+                    thread.join(RETRY_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        // Delivery thread: reads the next batch after the position and hands it to the listener until closed
+        private void run() {
+            while (!closed) {
+                long seenSignals = signals.get();
+                List<Change> batch;
+                try {
+                    batch = read(position, batchSize);
+                } catch (SQLException e) {
+                    if (closed) {
+                        return;
+                    }
+                    System.err.println("Error reading change log: " + e.getMessage());
+                    pause(RETRY_DELAY_MILLIS);
+                    continue;
+                }
+
+                // A missing sequence number is usually a rolled back transaction; it is a gap only if it was pruned
+                if (batch.isEmpty() || batch.get(0).getSequence() > position + 1) {
+                    long prunedThrough;
+                    try {
+                        prunedThrough = getPrunedSequence();
+                    } catch (SQLException e) {
+                        if (closed) {
+                            return;
+                        }
+                        System.err.println("Error reading change log: " + e.getMessage());
+                        pause(RETRY_DELAY_MILLIS);
+                        continue;
+                    }
+                    if (prunedThrough > position) {
+                        if (!recover(new GapException(position, prunedThrough, batch.isEmpty() ? prunedThrough
+                                : batch.get(batch.size() - 1).getSequence()))) {
+                            return;
+                        }
+                        continue;
+                    }
+                }
+
+                if (batch.isEmpty()) {
+                    awaitSignal(seenSignals);
+                    continue;
+                }
+
+                try {
+                    listener.onChanges(batch);
+                    position = batch.get(batch.size() - 1).getSequence();
+                } catch (Exception e) {
+
+                    // Keep the position so the same batch is offered again
+                    System.err.println("Change listener failed at sequence " + batch.get(0).getSequence() + ": " + e.getMessage());
+                    pause(RETRY_DELAY_MILLIS);
+                }
+            }
+        }
+
+        // Lets the listener reload after a gap; returns false, having stopped the subscription, if it declines
+        private boolean recover(GapException gap) {
+            try {
+                position = listener.onGap(gap);
+            } catch (GapException e) {
+                System.err.println("Change subscription stopped: " + e.getMessage());
+                closed = true;
+                subscriptions.remove(this);
+                return false;
+            } catch (Exception e) {
+
+                // The gap is found again on the next read, so the reload is retried
+                System.err.println("Change listener failed to reload after a gap: " + e.getMessage());
+                pause(RETRY_DELAY_MILLIS);
+            }
+            return true;
+        }
+    }
+
+    /** The connection changes are read on; guarded by itself, as every subscription reads on it. */
+    private final Connection connection;
+
+    /** The active subscriptions. */
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /** Incremented on every signal, so a subscription can tell whether it missed one. */
+    private final AtomicLong signals = new AtomicLong();
+
+    /** Numbers the subscription threads. */
+    private final AtomicInteger subscriberIds = new AtomicInteger();
+
+    /**
+     * Constructor for ChangeLog.
+     *
+     * @param connection The connection to read the log on. It must not be used for writes, or uncommitted
+     *                   records would be read; it stays owned by the caller.
+     */
+    public ChangeLog(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Appends a change of the users matching a column, as part of the caller's transaction. For a deletion call it
+     * before deleting the row, as the user id and username are copied from the row.
+     *
+     * @param conn The connection running the mutation.
+     * @param op The kind of change.
+     * @param fields The changed fields.
+     * @param keyColumn The users column identifying the row: username, user_id or invite_code.
+     * @param key The value of that column.
+     * @return The number of changes appended; 0 if no row matched.
+     * @throws SQLException If the change cannot be appended.
+     */
+    static int record(Connection conn, Op op, int fields, String keyColumn, Object key) throws SQLException {
+        if (!keyColumn.equals("username") && !keyColumn.equals("user_id") && !keyColumn.equals("invite_code")) {
+            throw new IllegalArgumentException("Unsupported key column: " + keyColumn);
+        }
+
+        // Lock the rows about to be deleted before the tail, so the deletion never waits on another writer
+        // while holding the tail
+        if (op == Op.DELETE) {
+            try (PreparedStatement pstmt = conn.prepareStatement("SELECT user_id FROM users WHERE " + keyColumn + " = ? FOR UPDATE")) {
+                pstmt.setObject(1, key);
+                pstmt.executeQuery().close();
+            }
+        }
+        lockTail(conn);
+        String insert = "INSERT INTO user_changes (user_id, username, op, fields) "
+                + "SELECT user_id, username, CAST(? AS VARCHAR(16)), CAST(? AS INT) FROM users WHERE " + keyColumn + " = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(insert)) {
+            pstmt.setString(1, op.name());
+            pstmt.setInt(2, fields);
+            pstmt.setObject(3, key);
+            return pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Appends one change per user as a single JDBC batch, as part of the caller's transaction. Used when the
+     * caller already knows the changed rows, e.g. after deleting them.
+     *
+     * @param conn The connection running the mutation.
+     * @param op The kind of change.
+     * @param fields The changed fields.
+     * @param userIds The ids of the changed users.
+     * @param usernames The usernames of the changed users in the same order, or null if they have none.
+     * @throws SQLException If the changes cannot be appended.
+     */
+    static void recordAll(Connection conn, Op op, int fields, List<Integer> userIds, List<String> usernames) throws SQLException {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        lockTail(conn);
+        String insert = "INSERT INTO user_changes (user_id, username, op, fields) VALUES (?, ?, ?, ?)";
+        try (PreparedStatement pstmt = conn.prepareStatement(insert)) {
+            for (int i = 0; i < userIds.size(); i++) {
+                pstmt.setInt(1, userIds.get(i));
+                pstmt.setString(2, usernames == null ? null : usernames.get(i));
+                pstmt.setString(3, op.name());
+                pstmt.setInt(4, fields);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        }
+    }
+
+    /**
+     * Appends a {@link Op#CLEAR} change, as part of the caller's transaction.
+     *
+     * @param conn The connection running the mutation.
+     * @throws SQLException If the change cannot be appended.
+     */
+    static void recordClear(Connection conn) throws SQLException {
+        lockTail(conn);
+        try (PreparedStatement pstmt = conn.prepareStatement("INSERT INTO user_changes (op, fields) VALUES (?, ?)")) {
+            pstmt.setString(1, Op.CLEAR.name());
+            pstmt.setInt(2, ALL_FIELDS);
+            pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Takes the lock that orders the appends of concurrent transactions, as part of the caller's transaction. Every
+     * statement appending to {@code user_changes} outside this class must call it first.
+     *
+     * @param conn The connection running the mutation.
+     * @throws SQLException If the lock cannot be taken within the lock timeout.
+     */
+    static void lockTail(Connection conn) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement("UPDATE user_changes_tail SET appends = appends + 1 WHERE id = 1")) {
+            if (pstmt.executeUpdate() != 1) {
+                throw new SQLException("The user_changes_tail table has no row");
+            }
+        }
+    }
+
+    /**
+     * Reads the changes after a sequence number.
+     *
+     * @param afterSequence The last sequence number already seen; 0 to read from the start.
+     * @param limit The maximum number of changes to read.
+     * @return The changes in sequence order.
+     * @throws SQLException If the log cannot be read.
+     */
+    public List<Change> read(long afterSequence, int limit) throws SQLException {
+        String query = "SELECT seq, user_id, username, op, fields, changed_at FROM user_changes "
+                + "WHERE seq > ? ORDER BY seq FETCH FIRST ? ROWS ONLY";
+        List<Change> changes = new ArrayList<>();
+        synchronized (connection) {
+            try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+                pstmt.setLong(1, afterSequence);
+                pstmt.setInt(2, limit);
+                ResultSet resultSet = pstmt.executeQuery();
+                while (resultSet.next()) {
+                    Timestamp changedAt = resultSet.getTimestamp("changed_at");
+                    changes.add(new Change(resultSet.getLong("seq"), resultSet.getInt("user_id"), resultSet.getString("username"),
+                            Op.valueOf(resultSet.getString("op")), resultSet.getInt("fields"),
+                            changedAt == null ? null : changedAt.toLocalDateTime()));
+                }
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Retrieves the sequence number of the newest change, e.g. to subscribe to future changes only. It is not
+     * reset by pruning, even when every record has been pruned.
+     *
+     * @return The newest sequence number, or 0 if nothing was ever logged.
+     * @throws SQLException If the log cannot be read.
+     */
+    public long getLatestSequence() throws SQLException {
+        synchronized (connection) {
+            try (Statement stmt = connection.createStatement()) {
+                ResultSet resultSet = stmt.executeQuery("SELECT GREATEST((SELECT COALESCE(MAX(seq), 0) FROM user_changes), "
+                        + "(SELECT pruned_through FROM user_changes_tail WHERE id = 1))");
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Retrieves the highest sequence number pruned from the log. Changes up to it can no longer be read.
+     *
+     * @return The sequence number, or 0 if nothing was pruned.
+     * @throws SQLException If the log cannot be read.
+     */
+    public long getPrunedSequence() throws SQLException {
+        synchronized (connection) {
+            try (Statement stmt = connection.createStatement()) {
+                ResultSet resultSet = stmt.executeQuery("SELECT pruned_through FROM user_changes_tail WHERE id = 1");
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Checks whether a subscriber at a position has missed changes: some after it were pruned, or it is beyond the
+     * end of the log. Such a subscriber has to reload everything it derives from the log.
+     *
+     * @param afterSequence The last sequence number the subscriber processed.
+     * @return The gap, or null if every change after the position can still be read.
+     * @throws SQLException If the log cannot be read.
+     */
+    public GapException findGap(long afterSequence) throws SQLException {
+        long prunedThrough = getPrunedSequence();
+        long latest = getLatestSequence();
+        if (afterSequence < prunedThrough || afterSequence > latest) {
+            return new GapException(afterSequence, prunedThrough, latest);
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves the sequence number of the oldest change still in the log. Sequence numbers have gaps, so use
+     * {@link #findGap(long)} to tell whether a subscriber has missed changes.
+     *
+     * @return The oldest sequence number, or 0 if the log is empty.
+     * @throws SQLException If the log cannot be read.
+     */
+    public long getOldestSequence() throws SQLException {
+        synchronized (connection) {
+            try (Statement stmt = connection.createStatement()) {
+                ResultSet resultSet = stmt.executeQuery("SELECT COALESCE(MIN(seq), 0) FROM user_changes");
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Subscribes to the changes after a sequence number.
+     *
+     * @param afterSequence The last sequence number already processed; 0 for every change ever logged.
+     * @param batchSize The maximum number of changes per batch.
+     * @param listener The listener receiving the batches on the subscription's thread.
+     * @return The subscription; close it to stop delivery.
+     * @throws GapException If changes after the position were pruned, or the position is beyond the end of the log.
+     * @throws SQLException If the log cannot be read.
+     */
+    public Subscription subscribe(long afterSequence, int batchSize, Listener listener) throws SQLException {
+        GapException gap = findGap(afterSequence);
+        if (gap != null) {
+            throw gap;
+        }
+        Subscription subscription = new Subscription(afterSequence, batchSize, listener);
+        subscriptions.add(subscription);
+        subscription.thread.start();
+        return subscription;
+    }
+
+    /**
+     * Wakes the subscriptions after changes have been committed. Called by the user store after every write.
+     */
+    public void signal() {
+        synchronized (signals) {
+            signals.incrementAndGet();
+            signals.notifyAll();
+        }
+    }
+
+    /**
+     * Closes every subscription.
+     */
+    @Override
+    public void close() {
+        for (Subscription subscription : subscriptions) {
+            subscription.close();
+        }
+    }
+
+    // Waits until a signal arrives after the one already seen, or the idle poll interval passes
+    private void awaitSignal(long seenSignals) {
+        synchronized (signals) {
+            if (signals.get() == seenSignals) {
+                try {
+                    signals.wait(IDLE_POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
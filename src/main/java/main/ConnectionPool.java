@@ -0,0 +1,235 @@
+package main;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>ConnectionPool class keeps a bounded set of JDBC connections to one database.</p>
+ * <p>A caller borrows a connection for one query or transaction and closes it when done, which hands it back to
+ * the pool instead of closing it. A connection, and every statement made on it, is therefore used by one thread
+ * at a time. Connections are opened lazily, up to the size of the pool; callers beyond that wait for one to be
+ * returned, and fail after a timeout rather than queueing without bound.</p>
+ * <p>A connection returned in the middle of a transaction is rolled back and put back in auto-commit mode. One
+ * that has been closed underneath the pool is dropped, and a new one is opened in its place on demand.</p>
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    /**
+     * <p>Setup interface prepares each connection once, when it is opened.</p>
+     */
+    @FunctionalInterface
+    public interface Setup {
+
+        /**
+         * Prepares a newly opened connection, e.g. sets session options or wraps it to time its statements.
+         *
+         * @param connection The new connection.
+         * @return The connection to pool, either the given one or a wrapper around it.
+         * @throws SQLException If the connection cannot be prepared; it is then closed.
+         */
+        Connection apply(Connection connection) throws SQLException;
+    }
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int size;
+    private final long timeoutMillis;
+    private final Setup setup;
+
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+    private volatile boolean closed;
+
+    // Metrics
+    private final AtomicInteger openCount = new AtomicInteger();
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+
+    /**
+     * Constructor for ConnectionPool.
+     *
+     * @param url The JDBC URL of the database.
+     * @param user The user to connect as.
+     * @param password The user's password.
+     * @param size The maximum number of connections open at once.
+     * @param timeoutMillis How long a caller waits for a connection before failing.
+     * @param setup Applied to each connection once, when it is opened.
+     */
+    public ConnectionPool(String url, String user, String password, int size, long timeoutMillis, Setup setup) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.size = Math.max(1, size);
+        this.timeoutMillis = timeoutMillis;
+        this.setup = setup;
+        this.permits = new Semaphore(this.size, true);
+    }
+
+    /**
+     * Borrows a connection, opening one if none is idle. Closing the returned connection hands it back.
+     *
+     * @return A connection for the calling thread's exclusive use until it is closed.
+     * @throws SQLException If the pool is closed, no connection became free in time, or one cannot be opened.
+     */
+    public Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        if (!permits.tryAcquire()) {
+            waitCount.incrementAndGet();
+            try {
+                if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new SQLException("Timed out after " + timeoutMillis + " ms waiting for a database connection");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection", e);
+            }
+        }
+        try {
+            Connection connection = idle.pollFirst();
+            if (connection == null) {
+                connection = open();
+            }
+            borrowCount.incrementAndGet();
+            return lease(connection);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /** @return The maximum number of connections open at once. */
+    public int getSize() {
+        return size;
+    }
+
+    /** @return The number of connections currently open, borrowed or idle. */
+    public int getOpenCount() {
+        return openCount.get();
+    }
+
+    /** @return The number of connections currently borrowed. */
+    public int getBorrowedCount() {
+        return size - permits.availablePermits();
+    }
+
+    /** @return The number of borrows so far. */
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    /** @return The number of borrows that had to wait for a connection to be returned. */
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /**
+     * Closes the idle connections; connections still borrowed are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            discard(connection);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool{size=" + size + ", open=" + openCount.get() + ", borrowed=" + getBorrowedCount()
+                + ", borrows=" + borrowCount.get() + ", waits=" + waitCount.get() + "}";
+    }
+
+    // Opens and prepares a new connection, closing it if it cannot be prepared
+    private Connection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, user, password);
+        try {
+            Connection prepared = setup.apply(connection);
+            openCount.incrementAndGet();
+            return prepared;
+        } catch (SQLException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    // Wraps a pooled connection so that closing it returns it to the pool; it is unusable once returned
+    private Connection lease(Connection connection) {
+        AtomicBoolean returned = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            if (returned.compareAndSet(false, true)) {
+                                giveBack(connection);
+                            }
+                            return null;
+                        case "isClosed":
+                            if (returned.get()) {
+                                return true;
+                            }
+                            break;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "PooledConnection{" + connection + "}";
+                        default:
+                            if (returned.get()) {
+                                throw new SQLException("Connection has been returned to the pool");
+                            }
+                    }
+                    try {
+                        return method.invoke(connection, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    // Resets a returned connection and makes it idle again, or closes it if it has failed or the pool is closed
+    private void giveBack(Connection connection) {
+        try {
+            if (closed || connection.isClosed()) {
+                discard(connection);
+                return;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            idle.offerFirst(connection);
+
+            // The pool may have been closed while the connection was being reset
+            if (closed && idle.remove(connection)) {
+                discard(connection);
+            }
+        } catch (SQLException e) {
+            discard(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void discard(Connection connection) {
+        openCount.decrementAndGet();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            System.err.println("Error closing pooled connection: " + e.getMessage());
+        }
+    }
+}
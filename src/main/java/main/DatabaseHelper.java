@@ -1,5 +1,9 @@
 package main;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -7,10 +11,23 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
 
 /*******
  *  <p>Database Helper</p>
@@ -19,25 +36,211 @@ import java.util.Arrays;
  *  <p>The class also contains methods for user registration, login, and password management.</p>
  *
  *  <p>The class is designed to work with the H2 Database Engine, an in-memory database system.</p>
+ *  <p>The database URL is configurable, so the same class serves as the file-backed and the in-memory H2
+ *  implementation of {@link UserStore}.</p>
  */
-public class DatabaseHelper {
+public class DatabaseHelper implements UserStore {
 
-    /* Default Contructor*/
+    /* Default Contructor, uses the file-backed database in the working directory unless docop.dbUrl is set*/
     public DatabaseHelper() {
+        this(System.getProperty("docop.dbUrl", DB_URL));
     }
 
-    // JDBC driver name and database URL
+    /*
+     *  Constructor that connects to the given H2 database
+     *
+     * @param dbUrl	The JDBC URL of the database
+     */
+    public DatabaseHelper(String dbUrl) {
+        this.dbUrl = dbUrl;
+    }
+
+    /*
+     *  Method to create a helper for a file-backed H2 database
+     *
+     * @param path			The path of the database file, without the .mv.db extension
+     * @param cacheSizeKb	The H2 page cache size in KB, or 0 to use the H2 default
+     *
+     * @return DatabaseHelper	The helper for the database
+     */
+    public static DatabaseHelper fileBacked(String path, int cacheSizeKb) {
+        String url = "jdbc:h2:file:" + path;
+        if (cacheSizeKb > 0) {
+            url += ";CACHE_SIZE=" + cacheSizeKb;
+        }
+        return new DatabaseHelper(url);
+    }
+
+    /*
+     *  Method to create a helper for a private in-memory H2 database that lives until the JVM exits
+     *
+     * @param name	The name of the in-memory database
+     *
+     * @return DatabaseHelper	The helper for the database
+     */
+    public static DatabaseHelper inMemory(String name) {
+        return new DatabaseHelper("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+    }
+
+    // JDBC driver name and default database URL
     static final String JDBC_DRIVER = "org.h2.Driver";
-    static final String DB_URL = "jdbc:h2:C:\\Users\\sriuj\\git\\DocOp/cse360database";
+    static final String DB_URL = "jdbc:h2:./cse360database";
+
+    // The URL of the database this helper connects to
+    private final String dbUrl;
 
     // Database credentials (use defaults for H2)
     static final String USER = "sa";
     static final String PASS = "";
 
-    // Connection and statement objects
+    // The stored columns of the users table, i.e. all but the generated ones, as copied by backups and the standby
+    static final String USER_COLUMNS = "user_id, username, email, password_hash, one_time_password, password_expiration, "
+            + "role, first_name, middle_name, last_name, preferred_name, account_setup_complete, invite_code, invite_role, "
+            + "invite_expires_at, created_by_admin_id, created_at, updated_at, version";
+
+    // Rate limit for writing backups, in bytes per second of compressed output (0 for no limit)
+    static final long BACKUP_MAX_BYTES_PER_SECOND = Long.getLong("docop.backupMaxBytesPerSecond", 32L * 1024 * 1024);
+
+    // Attempts made by a compare-and-set update before reporting a conflict, and the SQLState it reports
+    static final int MAX_UPDATE_ATTEMPTS = 5;
+    static final String SERIALIZATION_FAILURE = "40001";
+
+    // SQLState of a UNIQUE constraint violation, e.g. a taken username
+    static final String UNIQUE_VIOLATION = "23505";
+
+    // Bounds for the user profile and role cache
+    static final int USER_CACHE_SIZE = 1000;
+    static final long USER_CACHE_TTL_MILLIS = 5 * 60 * 1000;
+
+    // Connection and statement objects; the main connection is kept for schema setup, maintenance and shutdown,
+    // while queries and transactions borrow a connection of their own from the pool
     private Connection connection = null;
     private Statement statement = null;
 
+    // Connections borrowed for one query or transaction each, so concurrent callers never share one
+    static final int POOL_SIZE = Integer.getInteger("docop.poolSize", Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    static final long POOL_TIMEOUT_MILLIS = Long.getLong("docop.poolTimeoutMillis", 30_000);
+    private ConnectionPool pool = null;
+
+    // How long a transaction waits for a row lock held by another, e.g. for its turn to append to the change log
+    static final long LOCK_TIMEOUT_MILLIS = Long.getLong("docop.lockTimeoutMillis", 10_000);
+
+    // Read-through cache of user profiles and roles, invalidated on every write to a user
+    private final UserCache userCache = new UserCache(USER_CACHE_SIZE, USER_CACHE_TTL_MILLIS);
+
+    // Optional off-heap credential index used by LoginManager to authenticate without a query
+    static final boolean AUTH_INDEX_ENABLED = Boolean.getBoolean("docop.authIndex");
+    private volatile AuthIndex authIndex = null;
+
+    // Filters that reject unknown usernames and invite codes without a query; built once connected. Writes that add
+    // or delete rows hold the read lock from before their transaction until they have updated the filters, and a
+    // rebuild holds the write lock from its scan of the users table until it has swapped in the new filters, so a
+    // rebuild neither loses a concurrent add nor sees a concurrent delete whose removal then hits the new filters.
+    private volatile NegativeLookupFilter usernameFilter = null;
+    private volatile NegativeLookupFilter inviteFilter = null;
+    private final ReentrantReadWriteLock filterLock = new ReentrantReadWriteLock();
+
+    // Optional single-writer queue that commits user mutations in groups; off unless docop.writeQueue is set
+    static final boolean WRITE_QUEUE_ENABLED = Boolean.getBoolean("docop.writeQueue");
+    static final long WRITE_QUEUE_MAX_DELAY_MICROS = Long.getLong("docop.writeQueue.maxDelayMicros", 1000);
+    static final int WRITE_QUEUE_MAX_BATCH = Integer.getInteger("docop.writeQueue.maxBatch", 256);
+    static final boolean WRITE_QUEUE_SYNC = Boolean.parseBoolean(System.getProperty("docop.writeQueue.sync", "true"));
+    private GroupCommitWriter writeQueue = null;
+
+    // Lifetime of new invites, and the background sweeper clearing expired one-time passwords and invites
+    static final int INVITE_TTL_DAYS = Integer.getInteger("docop.inviteTtlDays", 7);
+    static final long SWEEP_INTERVAL_SECONDS = Long.getLong("docop.sweepIntervalSeconds", 60);
+    static final int SWEEP_BATCH_SIZE = 500;
+    private ScheduledExecutorService sweeper = null;
+
+    // Prefix index over usernames and names used for typeahead suggestions on the admin screens
+    private final TypeaheadIndex typeaheadIndex = new TypeaheadIndex();
+
+    // Log of committed user changes, appended by every mutation; records older than the retention are pruned
+    static final long CHANGE_LOG_RETENTION_HOURS = Long.getLong("docop.changeLogRetentionHours", 7 * 24);
+    private volatile ChangeLog changeLog = null;
+    private Connection changeLogConnection = null;
+
+    // Optional warm standby kept up to date from the change log; off unless docop.standbyPath or docop.standbyUrl is set
+    static final String STANDBY_URL = System.getProperty("docop.standbyUrl",
+            System.getProperty("docop.standbyPath") == null ? null : StandbyReplicator.fileUrl(System.getProperty("docop.standbyPath")));
+    private StandbyReplicator standbyReplicator = null;
+
+    // Background compaction of the database file when its fill rate drops, run only after a quiet period with no
+    // writes; off for in-memory databases or when docop.maintenance is false
+    static final boolean MAINTENANCE_ENABLED = Boolean.parseBoolean(System.getProperty("docop.maintenance", "true"));
+    static final long MAINTENANCE_INTERVAL_SECONDS = Long.getLong("docop.maintenance.intervalSeconds", 300);
+    static final int MAINTENANCE_MIN_FILL_RATE = Integer.getInteger("docop.maintenance.minFillRate", 60);
+    static final long MAINTENANCE_IDLE_SECONDS = Long.getLong("docop.maintenance.idleSeconds", 30);
+    static final long MAINTENANCE_MAX_MILLIS = Long.getLong("docop.maintenance.maxMillis", 2000);
+    static final long MAINTENANCE_MAX_BYTES_PER_SECOND = Long.getLong("docop.maintenance.maxBytesPerSecond", 16L * 1024 * 1024);
+    private MaintenanceScheduler maintenance = null;
+    private volatile long lastWriteNanos = System.nanoTime();
+
+    // Log of statements slower than the threshold, with their plans, in a rotating file; a negative threshold turns it off
+    static final long SLOW_QUERY_THRESHOLD_MILLIS = Long.getLong("docop.slowQuery.thresholdMillis", 250);
+    static final String SLOW_QUERY_FILE = System.getProperty("docop.slowQuery.file", "slow-queries.log");
+    static final int SLOW_QUERY_MAX_PER_MINUTE = Integer.getInteger("docop.slowQuery.maxPerMinute", 60);
+    static final long SLOW_QUERY_MAX_FILE_BYTES = Long.getLong("docop.slowQuery.maxFileBytes", 10L * 1024 * 1024);
+    static final int SLOW_QUERY_FILES = Integer.getInteger("docop.slowQuery.files", 5);
+    private SlowQueryLog slowQueryLog = null;
+
+    // Where this helper logs slow statements and ships its changes; per instance, so each shard of a
+    // ShardedUserStore gets its own file and standby
+    private Path slowQueryFile = Paths.get(SLOW_QUERY_FILE);
+    private String standbyUrl = STANDBY_URL;
+    private int poolSize = POOL_SIZE;
+    private long lockTimeoutMillis = LOCK_TIMEOUT_MILLIS;
+
+    // Whether the steps of each request are traced on standard output; on unless docop.verbose is false. The
+    // headless service turns it off, as every trace line takes the lock of System.out
+    private final boolean verbose = Boolean.parseBoolean(System.getProperty("docop.verbose", "true"));
+
+    /*
+     *  Method to set the file slow statements are logged to, before connecting
+     *
+     * @param slowQueryFile	The log file; rotated files get the suffixes .1, .2 and so on
+     */
+    void setSlowQueryFile(Path slowQueryFile) {
+        this.slowQueryFile = slowQueryFile;
+    }
+
+    /*
+     *  Method to set the database the warm standby is kept in, before connecting
+     *
+     * @param standbyUrl	The JDBC URL of the standby, or null for no standby
+     */
+    void setStandbyUrl(String standbyUrl) {
+        this.standbyUrl = standbyUrl;
+    }
+
+    /*
+     *  Method to set the most connections queries and transactions may hold at once, before connecting
+     *
+     * @param poolSize	The size of the connection pool
+     */
+    void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /*
+     *  Method to set how long a pooled connection waits for a row lock, before connecting
+     *
+     * @param lockTimeoutMillis	The lock timeout in milliseconds
+     */
+    void setLockTimeoutMillis(long lockTimeoutMillis) {
+        this.lockTimeoutMillis = lockTimeoutMillis;
+    }
+
+    /*
+     *  Method to get the user cache, mainly to read its hit-rate metrics
+     *
+     * @return UserCache	The cache of user profiles and roles
+     */
+    public UserCache getUserCache() {
+        return userCache;
+    }
+
     /* ConnectToDatabase Function to connect to the database*/
     public void connectToDatabase() throws SQLException {
         try {
@@ -45,7 +248,23 @@ public class DatabaseHelper {
             Class.forName(JDBC_DRIVER);  // This line loads the H2 driver
             System.out.println("Connecting to database...");
 
-            connection = DriverManager.getConnection(DB_URL, USER, PASS);
+            connection = DriverManager.getConnection(dbUrl, USER, PASS);
+
+            // Time every statement on the connection and log the slow ones
+            if (SLOW_QUERY_THRESHOLD_MILLIS >= 0 && connection != null) {
+                slowQueryLog = new SlowQueryLog(dbUrl, slowQueryFile, SLOW_QUERY_THRESHOLD_MILLIS,
+                        SLOW_QUERY_MAX_PER_MINUTE, SLOW_QUERY_MAX_FILE_BYTES, SLOW_QUERY_FILES);
+                slowQueryLog.start();
+                connection = slowQueryLog.wrap(connection);
+            }
+            SlowQueryLog timer = slowQueryLog;
+            long lockTimeout = lockTimeoutMillis;
+            pool = new ConnectionPool(dbUrl, USER, PASS, poolSize, POOL_TIMEOUT_MILLIS, pooled -> {
+                try (Statement stmt = pooled.createStatement()) {
+                    stmt.execute("SET LOCK_TIMEOUT " + lockTimeout);
+                }
+                return timer != null ? timer.wrap(pooled) : pooled;
+            });
 
             // Ensure that the connection is successful
             if (connection != null) {
@@ -58,7 +277,50 @@ public class DatabaseHelper {
 
                     //create tables if they don't exist
                     System.out.println("Statement initialized successfully!");
-                    createTables();
+                    createTables(statement);
+
+                    // Read the change log on a connection that never writes, so only committed changes are seen
+                    changeLogConnection = DriverManager.getConnection(dbUrl, USER, PASS);
+                    changeLog = new ChangeLog(changeLogConnection);
+
+                    // Load existing usernames and invite codes into the negative lookup filters
+                    rebuildLookupFilters();
+
+                    // Start the group-commit writer on its own connection if it is enabled
+                    if (WRITE_QUEUE_ENABLED) {
+                        Connection writerConnection = DriverManager.getConnection(dbUrl, USER, PASS);
+                        writeQueue = new GroupCommitWriter(slowQueryLog != null ? slowQueryLog.wrap(writerConnection) : writerConnection,
+                                WRITE_QUEUE_MAX_DELAY_MICROS, WRITE_QUEUE_MAX_BATCH, WRITE_QUEUE_SYNC);
+                        System.out.println("Write queue started (max delay " + WRITE_QUEUE_MAX_DELAY_MICROS
+                                + "us, max batch " + WRITE_QUEUE_MAX_BATCH + ")");
+                    }
+
+                    // Periodically clear expired one-time passwords and remove expired invites
+                    if (SWEEP_INTERVAL_SECONDS > 0) {
+                        startSweeper();
+                    }
+
+                    // Ship committed changes to the warm standby if one is configured
+                    if (standbyUrl != null) {
+                        standbyReplicator = new StandbyReplicator(changeLog, dbUrl, standbyUrl);
+                        standbyReplicator.start();
+                    }
+
+                    // Compact the database file in idle windows once it has filled with dead space
+                    if (MAINTENANCE_ENABLED && MAINTENANCE_INTERVAL_SECONDS > 0 && !dbUrl.startsWith("jdbc:h2:mem:")) {
+                        maintenance = new MaintenanceScheduler(connection, () -> lastWriteNanos, MAINTENANCE_INTERVAL_SECONDS,
+                                MAINTENANCE_MIN_FILL_RATE, MAINTENANCE_IDLE_SECONDS, MAINTENANCE_MAX_MILLIS,
+                                MAINTENANCE_MAX_BYTES_PER_SECOND);
+                        maintenance.start();
+                    }
+
+                    // Load usernames and names into the typeahead index
+                    rebuildTypeaheadIndex();
+
+                    // Load the credentials of every user into the off-heap index if it is enabled
+                    if (AUTH_INDEX_ENABLED) {
+                        rebuildAuthIndex();
+                    }
 
                 } else {
 
@@ -86,12 +348,31 @@ public class DatabaseHelper {
     /*
      *  Database Structure
      *  Table: users
-     *  Columns: user_id (INT), username (VARCHAR), email (VARCHAR), password_hash (BINARY), one_time_password (BOOLEAN), password_expiration (DATETIME), role (VARCHAR), first_name (VARCHAR), middle_name (VARCHAR), last_name (VARCHAR), preferred_name (VARCHAR), account_setup_complete (BOOLEAN), invite_code (VARCHAR), invite_role (ENUM), invite_expires_at (DATETIME), created_by_admin_id (INT), created_at (TIMESTAMP), updated_at (TIMESTAMP)
+     *  Columns: user_id (INT), username (VARCHAR), email (VARCHAR), password_hash (BINARY), one_time_password (BOOLEAN), password_expiration (DATETIME), role (VARCHAR), first_name (VARCHAR), middle_name (VARCHAR), last_name (VARCHAR), preferred_name (VARCHAR), account_setup_complete (BOOLEAN), invite_code (VARCHAR), invite_role (VARCHAR), invite_expires_at (DATETIME), created_by_admin_id (INT), created_at (TIMESTAMP), updated_at (TIMESTAMP)
      *
      *  Table: password_reset_tokens
      *  Columns: token_id (INT), user_id (INT), token (VARCHAR), expires_at (DATETIME), used (BOOLEAN)
+     *  The token column holds the SHA-256 hash of the token in hex; the token itself is never stored.
+     *
+     *  Table: user_changes
+     *  Columns: seq (BIGINT), user_id (INT), username (VARCHAR), op (VARCHAR), fields (INT), changed_at (TIMESTAMP)
+     *  Append-only log of committed user changes, read through ChangeLog. It has no foreign key, as the
+     *  changes of a deleted user must outlive the user.
+     *
+     *  Table: user_changes_tail
+     *  Columns: id (INT), appends (BIGINT), pruned_through (BIGINT)
+     *  A single row, locked by each transaction before it appends to user_changes and held until it commits, so
+     *  that change sequence numbers are allocated in commit order; see ChangeLog. It also records how far the log
+     *  has been pruned, so a reader can tell changes it missed from gaps left by rolled back transactions.
+     *
+     *  Schema changes made after the first release are applied by the migrations below, so they also reach
+     *  databases created by older versions. Lower-cased copies of the name and email columns are generated
+     *  columns so that case-insensitive prefix searches on the admin user list can use an index. The version column
+     *  is incremented by every update to a user's roles or profile and is used for compare-and-set updates.
+     *  Invite codes are matched ignoring case and surrounding spaces through the generated invite_code_norm
+     *  column, so that the lookup is an index seek rather than a scan of every user.
      */
-    private void createTables() throws SQLException {
+    static void createTables(Statement statement) throws SQLException {
 
         // SQL for creating the users table
         String createUserTable = "CREATE TABLE IF NOT EXISTS users ("
@@ -108,14 +389,14 @@ public class DatabaseHelper {
                 + "preferred_name VARCHAR(255), "             									// Preferred name (optional)
                 + "account_setup_complete BOOLEAN DEFAULT FALSE, " 								// Account setup completion flag
                 + "invite_code VARCHAR(255), "                									// Invite code (if used)
-                + "invite_role ENUM('Student', 'Instructor', 'Admin'), " 						// Role assigned by the invite code
+                + "invite_role VARCHAR(255), "                									// Roles assigned by the invite code
                 + "invite_expires_at DATETIME, "              									// Expiration date for the invite code
-                + "created_by_admin_id INT, "                 									// Admin who created the invite (optional, references another user)
+                + "created_by_admin_id INT, "                 									// Admin who created the invite (optional, references another user of this database)
                 + "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " 							// Timestamp for user creation (OPTIONAL)
                 + "updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP" 	// Auto-updating timestamp for changes (OPTIONAL)
                 + ")";
 
-        // SQL for creating the password_reset_tokens table OPTIONAL FOR FURTHER OPTIMIZATION
+        // SQL for creating the password_reset_tokens table
         String createPasswordResetTokensTable = "CREATE TABLE IF NOT EXISTS password_reset_tokens ("
                 + "token_id INT PRIMARY KEY AUTO_INCREMENT, "  // Primary Key
                 + "user_id INT NOT NULL, "                    // Foreign Key referencing users
@@ -125,11 +406,661 @@ public class DatabaseHelper {
                 + "FOREIGN KEY (user_id) REFERENCES users(user_id) ON DELETE CASCADE" // Foreign Key constraint
                 + ")";
 
+        // SQL for creating the user_changes table
+        String createUserChangesTable = "CREATE TABLE IF NOT EXISTS user_changes ("
+                + "seq BIGINT PRIMARY KEY AUTO_INCREMENT, "      // Sequence number of the change
+                + "user_id INT, "                               // Changed user, NULL when every user was cleared
+                + "username VARCHAR(255), "                     // Username at the time of the change
+                + "op VARCHAR(16) NOT NULL, "                   // INSERT, UPDATE, DELETE or CLEAR
+                + "fields INT NOT NULL, "                       // Bitmask of the changed fields, see ChangeLog
+                + "changed_at TIMESTAMP DEFAULT LOCALTIMESTAMP" // Time of the change
+                + ")";
+
+        // SQL for creating the user_changes_tail table
+        String createUserChangesTailTable = "CREATE TABLE IF NOT EXISTS user_changes_tail ("
+                + "id INT PRIMARY KEY, "                        // Always 1
+                + "appends BIGINT NOT NULL, "                   // Transactions that appended changes
+                + "pruned_through BIGINT DEFAULT 0 NOT NULL"    // Highest sequence number pruned from user_changes
+                + ")";
+
         // Execute the SQL to create the users table
         statement.execute(createUserTable);
 
         // Execute the SQL to create the password_reset_tokens table
         statement.execute(createPasswordResetTokensTable);
+
+        // Execute the SQL to create the user_changes table
+        statement.execute(createUserChangesTable);
+
+        // Execute the SQL to create the user_changes_tail table and its single row
+        statement.execute(createUserChangesTailTable);
+        statement.execute("INSERT INTO user_changes_tail (id, appends) SELECT 1, 0 "
+                + "WHERE NOT EXISTS (SELECT 1 FROM user_changes_tail WHERE id = 1)");
+
+        // Apply the schema migrations; each one is idempotent
+        String[] migrations = {
+                "ALTER TABLE users ADD COLUMN IF NOT EXISTS first_name_lc VARCHAR(255) GENERATED ALWAYS AS (LOWER(first_name))",
+                "ALTER TABLE users ADD COLUMN IF NOT EXISTS last_name_lc VARCHAR(255) GENERATED ALWAYS AS (LOWER(last_name))",
+                "ALTER TABLE users ADD COLUMN IF NOT EXISTS preferred_name_lc VARCHAR(255) GENERATED ALWAYS AS (LOWER(preferred_name))",
+                "ALTER TABLE users ADD COLUMN IF NOT EXISTS email_lc VARCHAR(255) GENERATED ALWAYS AS (LOWER(email))",
+                "ALTER TABLE users ADD COLUMN IF NOT EXISTS version BIGINT DEFAULT 0 NOT NULL",
+                "CREATE INDEX IF NOT EXISTS idx_users_first_name_lc ON users(first_name_lc)",
+                "CREATE INDEX IF NOT EXISTS idx_users_last_name_lc ON users(last_name_lc)",
+                "CREATE INDEX IF NOT EXISTS idx_users_preferred_name_lc ON users(preferred_name_lc)",
+                "CREATE INDEX IF NOT EXISTS idx_users_email_lc ON users(email_lc)",
+                "CREATE INDEX IF NOT EXISTS idx_users_created_at ON users(created_at)",
+                "CREATE INDEX IF NOT EXISTS idx_users_password_expiration ON users(password_expiration)",
+                "CREATE INDEX IF NOT EXISTS idx_users_invite_expires_at ON users(invite_expires_at)",
+                "CREATE INDEX IF NOT EXISTS idx_password_reset_tokens_expires_at ON password_reset_tokens(expires_at)",
+                "ALTER TABLE users ADD COLUMN IF NOT EXISTS invite_code_norm VARCHAR(255) GENERATED ALWAYS AS (LOWER(TRIM(invite_code)))",
+                "CREATE INDEX IF NOT EXISTS idx_users_invite_code_norm ON users(invite_code_norm)",
+                "CREATE INDEX IF NOT EXISTS idx_users_invite_code ON users(invite_code)",
+                "CREATE INDEX IF NOT EXISTS idx_user_changes_changed_at ON user_changes(changed_at)",
+                // An invite may grant several roles, stored comma separated like the role column
+                "ALTER TABLE users ALTER COLUMN invite_role SET DATA TYPE VARCHAR(255)"
+        };
+        for (String migration : migrations) {
+            statement.execute(migration);
+        }
+    }
+
+    /*
+     *  Method to rebuild the username and invite code lookup filters from the users table. Writes that add or
+     *  delete rows wait for the rebuild to finish, so none of their changes to the filters is lost.
+     *
+     * @throws SQLException	Throws an SQLException if the users table cannot be read
+     */
+    public void rebuildLookupFilters() throws SQLException {
+        filterLock.writeLock().lock();
+        try {
+            buildLookupFilters();
+        } finally {
+            filterLock.writeLock().unlock();
+        }
+    }
+
+    // Builds new lookup filters from the users table and swaps them in; called with the filter write lock held
+    private void buildLookupFilters() throws SQLException {
+
+        // Size the filters from the current number of rows so the false-positive rate stays low
+        int rows = 0;
+        try (Connection conn = pool.borrow(); Statement stmt = conn.createStatement();
+             ResultSet resultSet = stmt.executeQuery("SELECT COUNT(*) AS count FROM users")) {
+            if (resultSet.next()) {
+                rows = resultSet.getInt("count");
+            }
+        }
+
+        NegativeLookupFilter usernames = new NegativeLookupFilter(rows * 2);
+        NegativeLookupFilter invites = new NegativeLookupFilter(rows * 2);
+
+        // Stream every username and invite code into the new filters
+        try (Connection conn = pool.borrow(); Statement stmt = conn.createStatement();
+             ResultSet resultSet = stmt.executeQuery("SELECT username, invite_code FROM users")) {
+            while (resultSet.next()) {
+                usernames.add(resultSet.getString("username"));
+                invites.add(normalizeInviteCode(resultSet.getString("invite_code")));
+            }
+        }
+
+        usernameFilter = usernames;
+        inviteFilter = invites;
+        System.out.println("Lookup filters built: " + usernames.size() + " usernames, " + invites.size() + " invite codes");
+    }
+
+    // Normalizes an invite code the same way as the generated invite_code_norm column (LOWER(TRIM(...)))
+    static String normalizeInviteCode(String inviteCode) {
+        if (inviteCode == null) {
+            return null;
+        }
+        int start = 0;
+        int end = inviteCode.length();
+        while (start < end && inviteCode.charAt(start) == ' ') start++;
+        while (end > start && inviteCode.charAt(end - 1) == ' ') end--;
+        return inviteCode.substring(start, end).toLowerCase(Locale.ROOT);
+    }
+
+    // Runs a mutation that adds or deletes rows, then brings the lookup filters up to date through updateFilters.
+    // The filter read lock is held throughout, so a rebuild of the filters runs either before the mutation, and the
+    // update goes to the new filters, or after the update, and its scan reads the committed rows. A rebuild the
+    // update calls for runs once the lock is released.
+    private void executeFilteredWrite(String username, GroupCommitWriter.Work work, Runnable updateFilters) throws SQLException {
+        boolean rebuild;
+        filterLock.readLock().lock();
+        try {
+            executeWrite(username, work);
+            updateFilters.run();
+            NegativeLookupFilter usernames = usernameFilter;
+            NegativeLookupFilter invites = inviteFilter;
+            rebuild = (usernames != null && usernames.needsRebuild()) || (invites != null && invites.needsRebuild());
+        } finally {
+            filterLock.readLock().unlock();
+        }
+        if (rebuild) {
+            try {
+                rebuildLookupFilters();
+            } catch (SQLException e) {
+                System.err.println("Error rebuilding lookup filters: " + e.getMessage());
+            }
+        }
+    }
+
+    // Records a username and an invite code, either of which may be null, of a committed row in the lookup
+    // filters; called by executeFilteredWrite
+    private void addToFilters(String username, String inviteCode) {
+        NegativeLookupFilter usernames = usernameFilter;
+        NegativeLookupFilter invites = inviteFilter;
+        if (usernames != null && username != null) {
+            usernames.add(username);
+        }
+        if (invites != null && inviteCode != null) {
+            invites.add(normalizeInviteCode(inviteCode));
+        }
+    }
+
+    // Forgets a username and an invite code, either of which may be null, of a deleted row; called by
+    // executeFilteredWrite. Only values of a row the delete actually removed may be passed: removing a value that
+    // was never added would decrement the counters of the values it collides with.
+    private void removeFromFilters(String username, String inviteCode) {
+        NegativeLookupFilter usernames = usernameFilter;
+        NegativeLookupFilter invites = inviteFilter;
+        if (usernames != null && username != null) {
+            usernames.remove(username);
+        }
+        if (invites != null && inviteCode != null) {
+            invites.remove(normalizeInviteCode(inviteCode));
+        }
+    }
+
+    /*
+     *  Method to get the off-heap authentication index
+     *
+     * @return AuthIndex	The index, or null if it is not enabled
+     */
+    public AuthIndex getAuthIndex() {
+        return authIndex;
+    }
+
+    /*
+     *  Method to rebuild the off-heap authentication index from the users table
+     *
+     * @throws SQLException	Throws an SQLException if the users table cannot be read
+     */
+    public void rebuildAuthIndex() throws SQLException {
+
+        int rows = 0;
+        try (Connection conn = pool.borrow(); Statement stmt = conn.createStatement();
+             ResultSet resultSet = stmt.executeQuery("SELECT COUNT(*) AS count FROM users")) {
+            if (resultSet.next()) {
+                rows = resultSet.getInt("count");
+            }
+        }
+
+        AuthIndex index = new AuthIndex(rows);
+        String query = "SELECT username, password_hash, account_setup_complete, one_time_password, password_expiration, role "
+                + "FROM users WHERE username IS NOT NULL";
+        try (Connection conn = pool.borrow(); Statement stmt = conn.createStatement();
+             ResultSet resultSet = stmt.executeQuery(query)) {
+            // No refresh has begun on the new index yet, so every stripe is at generation 0
+            while (resultSet.next()) {
+                putAuthIndexRow(index, resultSet, 0);
+            }
+        }
+
+        authIndex = index;
+        System.out.println("Auth index built: " + index.size() + " users, " + index.offHeapBytes() + " bytes off-heap");
+    }
+
+    // Copies the credential columns of the current row into the index, unless a refresh after the given generation began
+    private static void putAuthIndexRow(AuthIndex index, ResultSet resultSet, long generation) throws SQLException {
+        Timestamp expiration = resultSet.getTimestamp("password_expiration");
+        index.put(resultSet.getString("username"),
+                resultSet.getBytes("password_hash"),
+                resultSet.getBoolean("account_setup_complete"),
+                resultSet.getBoolean("one_time_password"),
+                expiration == null ? Long.MIN_VALUE : expiration.toInstant().getEpochSecond(),
+                Role.maskOf(resultSet.getString("role")),
+                generation);
+    }
+
+    // Reloads a user's credentials into the auth index, or removes them if the user no longer exists. The refresh
+    // is dropped if the refresh after a later write to the user began meanwhile, as it may have read an older row.
+    private void refreshAuthIndex(String username) {
+        AuthIndex index = authIndex;
+        if (index == null || username == null) {
+            return;
+        }
+
+        String query = "SELECT username, password_hash, account_setup_complete, one_time_password, password_expiration, role "
+                + "FROM users WHERE username = ?";
+        long generation = index.beginRefresh(username);
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setString(1, username);
+            ResultSet resultSet = pstmt.executeQuery();
+            if (resultSet.next()) {
+                putAuthIndexRow(index, resultSet, generation);
+            } else {
+                index.remove(username, generation);
+            }
+        } catch (SQLException e) {
+
+            // Drop the entry so a stale credential can never be accepted
+            index.remove(username);
+            System.err.println("Error refreshing auth index for " + username + ": " + e.getMessage());
+        }
+    }
+
+    /*
+     *  Method to rebuild the typeahead index from the users table
+     *
+     * @throws SQLException	Throws an SQLException if the users table cannot be read
+     */
+    public void rebuildTypeaheadIndex() throws SQLException {
+        typeaheadIndex.clear();
+        String query = "SELECT username, preferred_name, last_name FROM users WHERE username IS NOT NULL";
+        try (Connection conn = pool.borrow(); Statement stmt = conn.createStatement();
+             ResultSet resultSet = stmt.executeQuery(query)) {
+            while (resultSet.next()) {
+                typeaheadIndex.put(resultSet.getString("username"),
+                        resultSet.getString("preferred_name"), resultSet.getString("last_name"));
+            }
+        }
+        System.out.println("Typeahead index built: " + typeaheadIndex.size() + " users");
+    }
+
+    /*
+     *  Method to suggest users whose username, preferred name or last name starts with the text typed so far
+     *
+     * @param prefix	The text typed so far
+     * @param limit		The maximum number of suggestions
+     *
+     * @return List<String>	Returns up to limit usernames, served from memory
+     */
+    public List<String> suggestUsernames(String prefix, int limit) {
+        return typeaheadIndex.suggest(prefix, limit);
+    }
+
+    // Reloads a user's names into the typeahead index, or removes them if the user no longer exists
+    private void refreshTypeaheadIndex(String username) {
+        if (username == null) {
+            return;
+        }
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement("SELECT preferred_name, last_name FROM users WHERE username = ?")) {
+            pstmt.setString(1, username);
+            ResultSet resultSet = pstmt.executeQuery();
+            if (resultSet.next()) {
+                typeaheadIndex.put(username, resultSet.getString("preferred_name"), resultSet.getString("last_name"));
+            } else {
+                typeaheadIndex.remove(username);
+            }
+        } catch (SQLException e) {
+            System.err.println("Error refreshing typeahead index for " + username + ": " + e.getMessage());
+        }
+    }
+
+    /*
+     *  Method to clear expired one-time passwords and delete expired, unredeemed invites, a batch at a time.
+     *  Expired one-time passwords keep their flag so the user is told the password expired rather than that it is wrong.
+     *
+     * @return int	Returns the number of rows cleared or deleted
+     *
+     * @throws SQLException	Throws an SQLException if the sweep fails
+     */
+    public int sweepExpiredCredentials() throws SQLException {
+        int swept = 0;
+
+        // Clear the hash and expiry of one-time passwords past their expiration; the index bounds each batch
+        String expiredOtps = "SELECT user_id, username FROM users WHERE password_expiration < LOCALTIMESTAMP "
+                + "AND one_time_password = TRUE ORDER BY password_expiration FETCH FIRST ? ROWS ONLY";
+        String clearOtp = "UPDATE users SET password_hash = NULL, password_expiration = NULL, version = version + 1 "
+                + "WHERE user_id = ? AND password_expiration < LOCALTIMESTAMP";
+        while (true) {
+            List<Integer> ids = new ArrayList<>();
+            List<String> usernames = new ArrayList<>();
+            selectBatch(expiredOtps, ids, usernames);
+            if (ids.isEmpty()) {
+                break;
+            }
+            executeWrite(null, conn -> {
+                int[] cleared = executeBatch(conn, clearOtp, ids);
+                List<Integer> changedIds = new ArrayList<>();
+                List<String> changedUsernames = new ArrayList<>();
+                for (int i = 0; i < ids.size(); i++) {
+                    if (cleared[i] > 0) {
+                        changedIds.add(ids.get(i));
+                        changedUsernames.add(usernames.get(i));
+                    }
+                }
+                ChangeLog.recordAll(conn, ChangeLog.Op.UPDATE, ChangeLog.CREDENTIALS, changedIds, changedUsernames);
+            });
+            for (String username : usernames) {
+                afterUserWrite(username);
+            }
+            swept += ids.size();
+            if (ids.size() < SWEEP_BATCH_SIZE) {
+                break;
+            }
+        }
+
+        // Delete invites nobody redeemed before they expired
+        String expiredInvites = "SELECT user_id, invite_code FROM users WHERE invite_expires_at < LOCALTIMESTAMP "
+                + "AND username IS NULL ORDER BY invite_expires_at FETCH FIRST ? ROWS ONLY";
+        String deleteInvite = "DELETE FROM users WHERE user_id = ? AND username IS NULL";
+        while (true) {
+            List<Integer> ids = new ArrayList<>();
+            List<String> inviteCodes = new ArrayList<>();
+            selectBatch(expiredInvites, ids, inviteCodes);
+            if (ids.isEmpty()) {
+                break;
+            }
+            int[][] deleted = new int[1][];
+            executeFilteredWrite(null, conn -> {
+                deleted[0] = executeBatch(conn, deleteInvite, ids);
+                List<Integer> deletedIds = new ArrayList<>();
+                for (int i = 0; i < ids.size(); i++) {
+                    if (deleted[0][i] > 0) {
+                        deletedIds.add(ids.get(i));
+                    }
+                }
+                ChangeLog.recordAll(conn, ChangeLog.Op.DELETE, ChangeLog.ALL_FIELDS, deletedIds, null);
+            }, () -> {
+                for (int i = 0; i < ids.size(); i++) {
+                    if (deleted[0][i] > 0) {
+                        removeFromFilters(null, inviteCodes.get(i));
+                    }
+                }
+            });
+            swept += ids.size();
+            if (ids.size() < SWEEP_BATCH_SIZE) {
+                break;
+            }
+        }
+
+        // Purge expired reset tokens, used or not
+        String purgeTokens = "DELETE FROM password_reset_tokens WHERE token_id IN ("
+                + "SELECT token_id FROM password_reset_tokens WHERE expires_at < LOCALTIMESTAMP FETCH FIRST ? ROWS ONLY)";
+        while (true) {
+            int[] purged = {0};
+            executeWrite(null, conn -> {
+                try (PreparedStatement pstmt = conn.prepareStatement(purgeTokens)) {
+                    pstmt.setInt(1, SWEEP_BATCH_SIZE);
+                    purged[0] = pstmt.executeUpdate();
+                }
+            });
+            swept += purged[0];
+            if (purged[0] < SWEEP_BATCH_SIZE) {
+                break;
+            }
+        }
+
+        if (swept > 0) {
+            System.out.println("Expiry sweep cleared " + swept + " expired one-time passwords, invites and reset tokens");
+        }
+        return swept;
+    }
+
+    // Reads one batch of (user_id, text) pairs from a query taking the batch size as its only parameter
+    private void selectBatch(String query, List<Integer> ids, List<String> values) throws SQLException {
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setInt(1, SWEEP_BATCH_SIZE);
+            ResultSet resultSet = pstmt.executeQuery();
+            while (resultSet.next()) {
+                ids.add(resultSet.getInt(1));
+                values.add(resultSet.getString(2));
+            }
+        }
+    }
+
+    // Runs a statement taking a user id once per id as a single JDBC batch
+    private static int[] executeBatch(Connection conn, String sql, List<Integer> ids) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            for (int id : ids) {
+                pstmt.setInt(1, id);
+                pstmt.addBatch();
+            }
+            return pstmt.executeBatch();
+        }
+    }
+
+    // Starts the daemon thread running the expiry sweep
+    private void startSweeper() {
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "expiry-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(() -> {
+            try {
+                sweepExpiredCredentials();
+                pruneChangeLog(CHANGE_LOG_RETENTION_HOURS);
+            } catch (SQLException e) {
+                System.err.println("Expiry sweep failed: " + e.getMessage());
+            }
+        }, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /*
+     *  Method to get the group-commit writer, mainly to read its metrics
+     *
+     * @return GroupCommitWriter	The writer, or null if the write queue is not enabled
+     */
+    public GroupCommitWriter getWriteQueue() {
+        return writeQueue;
+    }
+
+    /*
+     *  Method to get the log of user changes, to read it or subscribe to it
+     *
+     * @return ChangeLog	The change log, or null before the database is connected
+     */
+    public ChangeLog getChangeLog() {
+        return changeLog;
+    }
+
+    /*
+     *  Method to write a consistent backup of the users to a compressed file while the application keeps running.
+     *  The backup reads on its own connection, so logins and writes are not blocked.
+     *
+     * @param file	The backup file to create or replace
+     *
+     * @return BackupManager.Result	Returns the number of users written, the file size and the throughput
+     */
+    public BackupManager.Result backup(Path file) throws SQLException, IOException {
+        try (Connection backupConnection = DriverManager.getConnection(dbUrl, USER, PASS)) {
+            return BackupManager.backup(backupConnection, file, BACKUP_MAX_BYTES_PER_SECOND);
+        }
+    }
+
+    /*
+     *  Method to replace every user with the contents of a backup file, as a single write.
+     *  The change log records the replacement, so subscribers and the standby follow it.
+     *
+     * @param file	The backup file
+     *
+     * @return BackupManager.Result	Returns the number of users restored and the throughput
+     */
+    public BackupManager.Result restore(Path file) throws SQLException, IOException {
+        BackupManager.Result[] result = {null};
+        try {
+            executeWrite(null, conn -> {
+                try {
+                    result[0] = BackupManager.restore(conn, file);
+                } catch (IOException e) {
+                    throw new SQLException("Restore failed: " + e.getMessage(), e);
+                }
+                ChangeLog.recordClear(conn);
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.executeUpdate("INSERT INTO user_changes (user_id, username, op, fields) SELECT user_id, username, '"
+                            + ChangeLog.Op.INSERT.name() + "', " + ChangeLog.ALL_FIELDS + " FROM users ORDER BY user_id");
+                }
+            });
+        } catch (SQLException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+
+        // New users get ids above the restored ones; then reload everything kept in memory
+        try (Connection conn = pool.borrow(); Statement stmt = conn.createStatement()) {
+            restartUserIds(stmt);
+        }
+        userCache.invalidateAll();
+        rebuildLookupFilters();
+        rebuildTypeaheadIndex();
+        if (authIndex != null) {
+            rebuildAuthIndex();
+        }
+        return result[0];
+    }
+
+    // Restarts the user id sequence after the highest id in the table, after rows were inserted with explicit ids
+    static void restartUserIds(Statement stmt) throws SQLException {
+        long nextUserId = 1;
+        try (ResultSet resultSet = stmt.executeQuery("SELECT COALESCE(MAX(user_id), 0) + 1 FROM users")) {
+            if (resultSet.next()) {
+                nextUserId = resultSet.getLong(1);
+            }
+        }
+        stmt.execute("ALTER TABLE users ALTER COLUMN user_id RESTART WITH " + nextUserId);
+    }
+
+    /*
+     *  Method to get the warm standby replicator, to read its lag or promote the standby
+     *
+     * @return StandbyReplicator	The replicator, or null if no standby is configured
+     */
+    public StandbyReplicator getStandbyReplicator() {
+        return standbyReplicator;
+    }
+
+    /*
+     *  Method to get the maintenance scheduler, to read the space it has reclaimed or compact the file on demand
+     *
+     * @return MaintenanceScheduler	The scheduler, or null if maintenance is off
+     */
+    public MaintenanceScheduler getMaintenance() {
+        return maintenance;
+    }
+
+    /*
+     *  Method to get the slow query log, to read how many slow statements it has recorded
+     *
+     * @return SlowQueryLog	The log, or null if it is off
+     */
+    public SlowQueryLog getSlowQueryLog() {
+        return slowQueryLog;
+    }
+
+    /*
+     *  Method to get the connection pool, to read how busy it is
+     *
+     * @return ConnectionPool	The pool, or null if not connected
+     */
+    public ConnectionPool getConnectionPool() {
+        return pool;
+    }
+
+    /*
+     *  Method to delete change log records older than the retention, a batch at a time. The highest sequence
+     *  number deleted is recorded with each batch, so subscribers can tell that they missed changes.
+     *
+     * @param retentionHours	How many hours of changes to keep
+     *
+     * @return int	Returns the number of records deleted
+     */
+    public int pruneChangeLog(long retentionHours) throws SQLException {
+        String last = "SELECT MAX(seq) FROM (SELECT seq FROM user_changes "
+                + "WHERE changed_at < DATEADD(HOUR, ?, LOCALTIMESTAMP) ORDER BY seq FETCH FIRST ? ROWS ONLY) AS batch";
+        int pruned = 0;
+        while (true) {
+            int[] deleted = {0};
+            executeWrite(null, conn -> {
+                long through;
+                try (PreparedStatement pstmt = conn.prepareStatement(last)) {
+                    pstmt.setLong(1, -retentionHours);
+                    pstmt.setInt(2, SWEEP_BATCH_SIZE);
+                    ResultSet resultSet = pstmt.executeQuery();
+                    through = resultSet.next() ? resultSet.getLong(1) : 0;
+                }
+                if (through <= 0) {
+                    return;
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement("DELETE FROM user_changes WHERE seq <= ?")) {
+                    pstmt.setLong(1, through);
+                    deleted[0] = pstmt.executeUpdate();
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(
+                        "UPDATE user_changes_tail SET pruned_through = ? WHERE id = 1 AND pruned_through < ?")) {
+                    pstmt.setLong(1, through);
+                    pstmt.setLong(2, through);
+                    pstmt.executeUpdate();
+                }
+            });
+            pruned += deleted[0];
+            if (deleted[0] < SWEEP_BATCH_SIZE) {
+                return pruned;
+            }
+        }
+    }
+
+    // Runs a mutation as one transaction, through the group-commit writer if it is enabled, then refreshes the
+    // user's cached data and wakes the change log subscribers. With the writer this blocks until the group
+    // containing the mutation has been committed. Without it the mutation runs on a pooled connection of its own,
+    // concurrently with other mutations; row locks and compare-and-set updates keep them apart, and the change
+    // log's tail lock keeps their change records in commit order.
+    private void executeWrite(String username, GroupCommitWriter.Work work) throws SQLException {
+        GroupCommitWriter writer = writeQueue;
+        if (writer == null) {
+            try (Connection conn = pool.borrow()) {
+                conn.setAutoCommit(false);
+                try {
+                    work.apply(conn);
+                    conn.commit();
+                } catch (SQLException | RuntimeException e) {
+                    conn.rollback();
+                    throw e;
+                }
+            }
+        } else {
+            try {
+                writer.submit(work).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for write to commit", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException) {
+                    throw (SQLException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new SQLException(cause);
+            }
+        }
+        lastWriteNanos = System.nanoTime();
+        if (username != null) {
+            afterUserWrite(username);
+        }
+        ChangeLog log = changeLog;
+        if (log != null) {
+            log.signal();
+        }
+    }
+
+    // Prints one step of a request unless tracing is off
+    private void trace(String message) {
+        if (verbose) {
+            System.out.println(message);
+        }
+    }
+
+    // Brings the in-memory copies of a user's data up to date after a write to their row
+    private void afterUserWrite(String username) {
+        userCache.invalidate(username);
+        refreshAuthIndex(username);
+        refreshTypeaheadIndex(username);
     }
 
     /*login method that checks if the user exists in the database and if the user exists then checks if the password and role are correct if correct then return true else return false
@@ -143,11 +1074,11 @@ public class DatabaseHelper {
     public boolean login(String username, String password, String role) throws SQLException {
 
         // SQL query to check if the user exists in the database
-        String query = "SELECT * FROM users WHERE username = ? AND password_hash = ? AND role = ?";
-        System.out.println("Executing login query for username: " + username);
+        String query = "SELECT 1 FROM users WHERE username = ? AND password_hash = ? AND role = ?";
+        trace("Executing login query for username: " + username);
 
         // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(query)) {
 
             // Set the parameters for the query
             pstmt.setString(1, username);
@@ -159,7 +1090,7 @@ public class DatabaseHelper {
 
             // Return true if the result set has any rows, indicating a successful login
             boolean result = resultSet.next();
-            System.out.println("Login query result for user " + username + ": " + result);
+            trace("Login query result for user " + username + ": " + result);
             return result;
         }
     }
@@ -177,22 +1108,25 @@ public class DatabaseHelper {
     public void register(String username, byte[] passwordHash, String role) throws SQLException {
 
         // SQL query to insert the user into the database
-        System.out.println("Registering user with username: " + username);
-        System.out.println("Hashed password during registration: " + Arrays.toString(passwordHash));
+        trace("Registering user with username: " + username);
         String insertUser = "INSERT INTO users (username, password_hash, role) VALUES (?, ?, ?)";
 
         // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(insertUser)) {
-
-            pstmt.setString(1, username);
-            pstmt.setBytes(2, passwordHash);
-            pstmt.setString(3, role);
-            pstmt.executeUpdate();
-            System.out.println("User registered successfully with username: " + username);
+        try {
+            executeFilteredWrite(username, conn -> {
+                try (PreparedStatement pstmt = conn.prepareStatement(insertUser)) {
+                    pstmt.setString(1, username);
+                    pstmt.setBytes(2, passwordHash);
+                    pstmt.setString(3, role);
+                    pstmt.executeUpdate();
+                }
+                ChangeLog.record(conn, ChangeLog.Op.INSERT, ChangeLog.CREDENTIALS | ChangeLog.ROLES, "username", username);
+            }, () -> addToFilters(username, null));
+            trace("User registered successfully with username: " + username);
 
         } catch (SQLException e) {
             e.printStackTrace();
-            System.out.println("Error during user registration: " + e.getMessage());
+            trace("Error during user registration: " + e.getMessage());
         }
     }
 
@@ -206,18 +1140,25 @@ public class DatabaseHelper {
      */
     public boolean doesUserExist(String username) throws SQLException {
 
+        // Reject usernames the filter has definitely never seen without querying the database
+        NegativeLookupFilter filter = usernameFilter;
+        if (filter != null && !filter.mightContain(username)) {
+            trace("Does user exist result: false (filtered)");
+            return false;
+        }
+
         // SQL query to check if the user exists in the database
-        String query = "SELECT * FROM users WHERE username = ?";
-        System.out.println("Executing query to check if user exists for username: " + username);
+        String query = "SELECT 1 FROM users WHERE username = ?";
+        trace("Executing query to check if user exists for username: " + username);
 
         // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(query)) {
 
             // Set the parameters for the query
             pstmt.setString(1, username);
             ResultSet resultSet = pstmt.executeQuery();
             boolean exists = resultSet.next();
-            System.out.println("Does user exist result: " + exists);
+            trace("Does user exist result: " + exists);
             return exists;
         }
     }
@@ -233,11 +1174,18 @@ public class DatabaseHelper {
      */
     public boolean doesInviteExist(String inviteCode) throws SQLException {
 
+        // Reject invite codes the filter has definitely never seen without querying the database
+        NegativeLookupFilter filter = inviteFilter;
+        if (filter != null && !filter.mightContain(normalizeInviteCode(inviteCode))) {
+            return false;
+        }
+
         // SQL query to check if the invite code exists in the database
-        String query = "SELECT * FROM users WHERE LOWER(TRIM(invite_code)) = LOWER(TRIM(?))";
+        String query = "SELECT 1 FROM users WHERE invite_code_norm = LOWER(TRIM(?)) "
+                + "AND (invite_expires_at IS NULL OR invite_expires_at >= LOCALTIMESTAMP)";
 
         // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(query)) {
             pstmt.setString(1, inviteCode);
             ResultSet resultSet = pstmt.executeQuery();
             return resultSet.next();
@@ -254,12 +1202,12 @@ public class DatabaseHelper {
      */
     public String getRoleFromInvite(String inviteCode) throws SQLException {
 
-        // SQL query to get the role from the invite code in the database
-        String query = "SELECT invite_role FROM users WHERE invite_code = ?";
-        System.out.println("Fetching role from invite code: " + inviteCode);
+        // SQL query to get the role from the invite code in the database, matched like doesInviteExist
+        String query = "SELECT invite_role FROM users WHERE invite_code_norm = LOWER(TRIM(?))";
+        trace("Fetching role from invite code: " + inviteCode);
 
         // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(query)) {
             pstmt.setString(1, inviteCode);
             ResultSet resultSet = pstmt.executeQuery();
 
@@ -268,13 +1216,13 @@ public class DatabaseHelper {
 
                 // Get the role from the result set
                 String role = resultSet.getString("invite_role");
-                System.out.println("Role fetched for invite code: " + inviteCode + " is: " + role);
+                trace("Role fetched for invite code: " + inviteCode + " is: " + role);
                 return role;
 
             } else {
 
                 // Return an empty string if no role is found
-                System.out.println("No role found for invite code: " + inviteCode);
+                trace("No role found for invite code: " + inviteCode);
                 return "";
             }
         }
@@ -290,47 +1238,24 @@ public class DatabaseHelper {
      */
     public void addRoleToUser(String username, String newRole) throws SQLException {
 
-        // SQL query to get the role from the invite code in the database
-        String query = "SELECT role FROM users WHERE username = ?";
-
-        // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
-
-            //Set the parameters for the query
-            pstmt.setString(1, username);
-            ResultSet resultSet = pstmt.executeQuery();
-
-            // Check if the result set has any rows
-            if (resultSet.next()) {
-                String currentRoles = resultSet.getString("role");
+        // Append the role with a compare-and-set on the row version, so a concurrent change is retried, not lost
+        executeWrite(username, conn -> {
+            boolean updated = updateRoles(conn, username, currentRoles -> {
 
                 // Check if the new role is already assigned
                 if (currentRoles == null || currentRoles.isEmpty()) {
-
-                    currentRoles = newRole;
-
+                    return newRole;
                 } else if (!currentRoles.contains(newRole)) {
-
-                    currentRoles += "," + newRole;
-
-                } else {
-
-                    System.out.println("User already has the role " + newRole);
-                    return;  // Role is already assigned, so we can return early
+                    return currentRoles + "," + newRole;
                 }
-
-                // Update the user's roles in the database
-                String updateQuery = "UPDATE users SET role = ? WHERE username = ?";
-                try (PreparedStatement updatePstmt = connection.prepareStatement(updateQuery)) {
-                    updatePstmt.setString(1, currentRoles);
-                    updatePstmt.setString(2, username);
-                    updatePstmt.executeUpdate();
-                    System.out.println("Role " + newRole + " successfully added to user " + username);
-                }
-            } else {
-                System.out.println("User " + username + " not found.");
+                trace("User already has the role " + newRole);
+                return null;  // Role is already assigned, so there is nothing to write
+            });
+            if (updated) {
+                ChangeLog.record(conn, ChangeLog.Op.UPDATE, ChangeLog.ROLES, "username", username);
+                trace("Role " + newRole + " successfully added to user " + username);
             }
-        }
+        });
     }
 
 
@@ -345,59 +1270,71 @@ public class DatabaseHelper {
      */
     public void removeRoleFromUser(String username, String roleToRemove) throws SQLException {
 
-        // SQL query to remove the role from the user in the database
-        String query = "SELECT role FROM users WHERE username = ?";
-
-        // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
-
-            // Set the parameters for the
-            pstmt.setString(1, username);
-            ResultSet resultSet = pstmt.executeQuery();
-
-            // Check if the result set has any rows
-            if (resultSet.next()) {
-                String currentRoles = resultSet.getString("role");
+        // Remove the role with a compare-and-set on the row version, so a concurrent change is retried, not lost
+        executeWrite(username, conn -> {
+            boolean updated = updateRoles(conn, username, currentRoles -> {
 
                 // Check if the role to remove is assigned to the user
-                if (currentRoles != null && currentRoles.contains(roleToRemove)) {
-                    String[] rolesArray = currentRoles.split(",");
-                    StringBuilder updatedRoles = new StringBuilder();
-
-                    // Loop through the roles and add all roles except the one to remove
-                    for (String role : rolesArray) {
-
-                        if (!role.equals(roleToRemove)) {
-
-                            if (updatedRoles.length() > 0) {
-                                updatedRoles.append(",");
-
-                            }
+                if (currentRoles == null || !currentRoles.contains(roleToRemove)) {
+                    trace("Role " + roleToRemove + " is not assigned to user " + username);
+                    return null;
+                }
 
-                            updatedRoles.append(role);
+                // Loop through the roles and keep all roles except the one to remove (may be empty after removal)
+                StringBuilder updatedRoles = new StringBuilder();
+                for (String role : currentRoles.split(",")) {
+                    if (!role.equals(roleToRemove)) {
+                        if (updatedRoles.length() > 0) {
+                            updatedRoles.append(",");
                         }
+                        updatedRoles.append(role);
                     }
+                }
+                return updatedRoles.toString();
+            });
+            if (updated) {
+                ChangeLog.record(conn, ChangeLog.Op.UPDATE, ChangeLog.ROLES, "username", username);
+                trace("Role " + roleToRemove + " successfully removed from user " + username);
+            }
+        });
+    }
 
-                    // Update the user's roles in the database (may be empty after removal)
-                    String updateQuery = "UPDATE users SET role = ? WHERE username = ?";
-
-                    // Prepare the statement and set the parameters
-                    try (PreparedStatement updatePstmt = connection.prepareStatement(updateQuery)) {
-
-                        // Set the parameters for the query
-                        updatePstmt.setString(1, updatedRoles.toString());
-                        updatePstmt.setString(2, username);
-                        updatePstmt.executeUpdate();
-                        System.out.println("Role " + roleToRemove + " successfully removed from user " + username);
-                    }
-
-                } else {
+    // Reads a user's roles and version, computes the new roles and writes them only if the version is unchanged.
+    // On a conflict the read is repeated, up to MAX_UPDATE_ATTEMPTS times. The change returns null to write nothing.
+    private boolean updateRoles(Connection conn, String username, UnaryOperator<String> change) throws SQLException {
+        String query = "SELECT role, version FROM users WHERE username = ?";
+        String updateQuery = "UPDATE users SET role = ?, version = version + 1 WHERE username = ? AND version = ?";
+
+        for (int attempt = 1; attempt <= MAX_UPDATE_ATTEMPTS; attempt++) {
+            String currentRoles;
+            long version;
+            try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+                pstmt.setString(1, username);
+                ResultSet resultSet = pstmt.executeQuery();
+                if (!resultSet.next()) {
+                    trace("User " + username + " not found.");
+                    return false;
+                }
+                currentRoles = resultSet.getString("role");
+                version = resultSet.getLong("version");
+            }
 
-                    System.out.println("Role " + roleToRemove + " is not assigned to user " + username);
+            String updatedRoles = change.apply(currentRoles);
+            if (updatedRoles == null) {
+                return false;
+            }
 
+            try (PreparedStatement updatePstmt = conn.prepareStatement(updateQuery)) {
+                updatePstmt.setString(1, updatedRoles);
+                updatePstmt.setString(2, username);
+                updatePstmt.setLong(3, version);
+                if (updatePstmt.executeUpdate() > 0) {
+                    return true;
                 }
             }
+            trace("Roles of user " + username + " changed concurrently, retrying (attempt " + attempt + ")");
         }
+        throw new SQLException("Update of user " + username + " kept conflicting with concurrent changes", SERIALIZATION_FAILURE);
     }
 
 
@@ -410,11 +1347,18 @@ public class DatabaseHelper {
      */
     public String[] getRolesForUser(String username) throws SQLException {
 
-        // SQL query to get the roles for the user in the database
+        // Serve the roles from the cache if they were loaded recently
+        String[] cachedRoles = userCache.getRoles(username);
+        if (cachedRoles != null) {
+            return cachedRoles;
+        }
+
+        // SQL query to get the roles for the user in the database; a write committed after this point drops the put
+        long generation = userCache.generation(username);
         String query = "SELECT role FROM users WHERE username = ?";
 
         // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(query)) {
 
             // Set the parameters for the
             pstmt.setString(1, username);
@@ -425,7 +1369,9 @@ public class DatabaseHelper {
 
                 // Get the roles from the result set
                 String roles = resultSet.getString("role");
-                return (roles != null && !roles.isEmpty()) ? roles.split(",") : new String[] {}; // Split roles by commas
+                String[] rolesArray = (roles != null && !roles.isEmpty()) ? roles.split(",") : new String[] {}; // Split roles by commas
+                userCache.putRoles(username, rolesArray, generation);
+                return rolesArray;
             }
         }
 
@@ -447,17 +1393,20 @@ public class DatabaseHelper {
         if (statement == null) {
 
             // Check if the statement is initialized
-            System.out.println("Statement is not initialized, database connection might have failed.");
+            trace("Statement is not initialized, database connection might have failed.");
             return true;
         }
 
         // Execute the query to count the number of users in the database
+        // Use a statement of its own so concurrent callers do not close each other's result sets
         String query = "SELECT COUNT(*) AS count FROM users";
-        ResultSet resultSet = statement.executeQuery(query);
+        try (Connection conn = pool.borrow(); Statement stmt = conn.createStatement();
+             ResultSet resultSet = stmt.executeQuery(query)) {
 
-        if (resultSet.next()) {
+            if (resultSet.next()) {
 
-            return resultSet.getInt("count") == 0;
+                return resultSet.getInt("count") == 0;
+            }
         }
         return true;
     }
@@ -473,18 +1422,18 @@ public class DatabaseHelper {
     public boolean isPasswordCorrect(String username, String password) throws SQLException, NoSuchAlgorithmException {
 
         // SQL query to get the password hash for the user
-        System.out.println("Validating password for username: " + username);
+        trace("Validating password for username: " + username);
         byte[] storedHash = getPasswordHash(username);
 
         // Check if the password hash is found
         if (storedHash != null) {
             boolean correct = PasswordManager.verifyPassword(password, storedHash);
-            System.out.println("Password validation result for username " + username + ": " + correct);
+            trace("Password validation result for username " + username + ": " + correct);
             return correct;
         }
 
         //print error message if password hash not found and return false
-        System.out.println("Password hash not found for username: " + username);
+        trace("Password hash not found for username: " + username);
         return false;
     }
 
@@ -500,11 +1449,11 @@ public class DatabaseHelper {
     public boolean isRoleCorrect(String username, String role) throws SQLException {
 
         // SQL query to check if the role is correct for the user
-        String query = "SELECT * FROM users WHERE username = ? AND role = ?";
-        System.out.println("Validating role for username: " + username);
+        String query = "SELECT 1 FROM users WHERE username = ? AND role = ?";
+        trace("Validating role for username: " + username);
 
         // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(query)) {
 
             // Set the parameters for the query
             pstmt.setString(1, username);
@@ -513,7 +1462,7 @@ public class DatabaseHelper {
             // Execute the query and check if the result
             ResultSet resultSet = pstmt.executeQuery();
             boolean correct = resultSet.next();
-            System.out.println("Role is correct: " + correct);
+            trace("Role is correct: " + correct);
             return correct;
         }
     }
@@ -530,10 +1479,10 @@ public class DatabaseHelper {
 
         // SQL query to check if the account setup is complete for the user
         String query = "SELECT account_setup_complete FROM users WHERE username = ?";
-        System.out.println("Checking if account setup is complete for username: " + username);
+        trace("Checking if account setup is complete for username: " + username);
 
         // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(query)) {
 
             // Set the parameters for the
             pstmt.setString(1, username);
@@ -544,7 +1493,7 @@ public class DatabaseHelper {
 
                 // Get the account setup completion flag from the result set
                 boolean complete = resultSet.getBoolean("account_setup_complete");
-                System.out.println("Account setup complete: " + complete);
+                trace("Account setup complete: " + complete);
                 return complete;
             }
 
@@ -567,33 +1516,41 @@ public class DatabaseHelper {
     public void setupUserDetails(String username, String firstName, String middleName, String lastName, String preferredName, String email) throws SQLException {
 
         // Debugging statement to display user details
-        System.out.println("Setting up user details for username: " + username);
-        System.out.println("First Name: " + firstName + ", Middle Name: " + middleName + ", Last Name: " + lastName + ", Preferred Name: " + preferredName + ", Email: " + email);
+        trace("Setting up user details for username: " + username);
+        trace("First Name: " + firstName + ", Middle Name: " + middleName + ", Last Name: " + lastName + ", Preferred Name: " + preferredName + ", Email: " + email);
 
         // SQL query to update the user details in the database
-        String query = "UPDATE users SET first_name = ?, middle_name = ?, last_name = ?, preferred_name = ?, email = ?, account_setup_complete = TRUE WHERE username = ?";
+        String query = "UPDATE users SET first_name = ?, middle_name = ?, last_name = ?, preferred_name = ?, email = ?, account_setup_complete = TRUE, version = version + 1 WHERE username = ?";
 
         // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
-            pstmt.setString(1, firstName);
-            pstmt.setString(2, middleName);
-            pstmt.setString(3, lastName);
-            pstmt.setString(4, preferredName);
-            pstmt.setString(5, email);
-            pstmt.setString(6, username);
-
-            // Execute the query and check the number of rows affected
-            int rowsAffected = pstmt.executeUpdate();
-            System.out.println("Rows affected by update: " + rowsAffected);
+        try {
+            int[] rowsAffected = {0};
+            executeWrite(username, conn -> {
+                try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+                    pstmt.setString(1, firstName);
+                    pstmt.setString(2, middleName);
+                    pstmt.setString(3, lastName);
+                    pstmt.setString(4, preferredName);
+                    pstmt.setString(5, email);
+                    pstmt.setString(6, username);
+
+                    // Execute the query and check the number of rows affected
+                    rowsAffected[0] = pstmt.executeUpdate();
+                }
+                if (rowsAffected[0] > 0) {
+                    ChangeLog.record(conn, ChangeLog.Op.UPDATE, ChangeLog.PROFILE, "username", username);
+                }
+            });
+            trace("Rows affected by update: " + rowsAffected[0]);
 
             // Print success message if the user details are updated successfully
-            if (rowsAffected > 0) {
+            if (rowsAffected[0] > 0) {
 
-                System.out.println("User details updated successfully for username: " + username);
+                trace("User details updated successfully for username: " + username);
 
             } else {
 
-                System.out.println("Failed to update user details for username: " + username);
+                trace("Failed to update user details for username: " + username);
             }
 
         } catch (SQLException e) {
@@ -617,7 +1574,7 @@ public class DatabaseHelper {
     public String resetUser(String username, String password, String expirationDate) throws SQLException {
         try {
             // Debugging statement to display input expiration date
-            System.out.println("Original expiration date: " + expirationDate);
+            trace("Original expiration date: " + expirationDate);
 
             // Convert the expirationDate from MM/DD/YYYY to YYYY-MM-DD
             DateTimeFormatter inputFormatter = DateTimeFormatter.ofPattern("MM/dd/yyyy");
@@ -628,21 +1585,25 @@ public class DatabaseHelper {
             String formattedDate = date.format(outputFormatter);
 
             // Debugging statement to display formatted expiration date
-            System.out.println("Formatted expiration date: " + formattedDate);
+            trace("Formatted expiration date: " + formattedDate);
 
             // Hash the password before storing it using the PasswordManager class method hashPassword
             byte[] hashedPassword = PasswordManager.hashPassword(password);
 
             // SQL query to update the user password and set the one-time password flag and expiration
-            String query = "UPDATE users SET password_hash = ?, one_time_password = TRUE, password_expiration = ? WHERE username = ?";
-            try (PreparedStatement pstmt = connection.prepareStatement(query)) {
-
-                pstmt.setBytes(1, hashedPassword);
-                pstmt.setString(2, formattedDate);
-                pstmt.setString(3, username);
-                pstmt.executeUpdate();
-                return "Password reset successfully";
-            }
+            String query = "UPDATE users SET password_hash = ?, one_time_password = TRUE, password_expiration = ?, version = version + 1 WHERE username = ?";
+            executeWrite(username, conn -> {
+                try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+
+                    pstmt.setBytes(1, hashedPassword);
+                    pstmt.setTimestamp(2, Timestamp.valueOf(date.atStartOfDay()));
+                    pstmt.setString(3, username);
+                    if (pstmt.executeUpdate() > 0) {
+                        ChangeLog.record(conn, ChangeLog.Op.UPDATE, ChangeLog.CREDENTIALS, "username", username);
+                    }
+                }
+            });
+            return "Password reset successfully";
 
         } catch (DateTimeParseException e) {
 
@@ -661,12 +1622,75 @@ public class DatabaseHelper {
      *  Method to close Connection to the database
      */
     public void closeConnection() {
+
+        // Stop shipping changes to the standby; it resumes from its recorded position on the next start
+        if (standbyReplicator != null) {
+            System.out.println("Closing standby replication: " + standbyReplicator);
+            standbyReplicator.close();
+            standbyReplicator = null;
+        }
+
+        // Stop delivering changes before the connection they are read on goes away
+        if (changeLog != null) {
+            changeLog.close();
+            changeLog = null;
+        }
+        try {
+            if (changeLogConnection != null) changeLogConnection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        changeLogConnection = null;
+
+        // Stop the sweeper so it does not run against a closed connection
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+
+        // Stop compacting; if online compaction was unavailable, compact the file as the database shuts down
+        boolean compactOnClose = false;
+        if (maintenance != null) {
+            System.out.println("Closing maintenance: " + maintenance);
+            maintenance.close();
+            compactOnClose = maintenance.isCompactOnClose();
+            maintenance = null;
+        }
+
+        // Commit any queued writes before the main connection goes away
+        if (writeQueue != null) {
+            System.out.println("Closing write queue: " + writeQueue);
+            writeQueue.close();
+            writeQueue = null;
+        }
+
+        // Close the idle pooled connections before the database may be shut down
+        if (pool != null) {
+            System.out.println("Closing connection pool: " + pool);
+            pool.close();
+            pool = null;
+        }
+        try {
+            if (compactOnClose && statement != null) {
+                System.out.println("Compacting database file on shutdown...");
+                statement.execute("SHUTDOWN COMPACT");
+            }
+        } catch (SQLException e) {
+            System.err.println("Shutdown compaction failed: " + e.getMessage());
+        }
         try {
             if (statement != null) statement.close();
             if (connection != null) connection.close();
         } catch (SQLException e) {
             e.printStackTrace();
         }
+
+        // Write the slow statements still queued
+        if (slowQueryLog != null) {
+            System.out.println("Closing slow query log: " + slowQueryLog);
+            slowQueryLog.close();
+            slowQueryLog = null;
+        }
     }
 
     /*
@@ -677,7 +1701,18 @@ public class DatabaseHelper {
      */
     public void clearDatabase() throws SQLException {
         String query = "DELETE FROM users";
-        statement.execute(query);
+        executeWrite(null, conn -> {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute(query);
+            }
+            ChangeLog.recordClear(conn);
+        });
+        userCache.invalidateAll();
+        rebuildLookupFilters();
+        typeaheadIndex.clear();
+        if (authIndex != null) {
+            authIndex.clear();
+        }
     }
 
     /*
@@ -719,59 +1754,74 @@ public class DatabaseHelper {
      */
     public void createInvite(String inviteCode, String inviteRole) throws SQLException {
 
-        // First, check if the invite already exists
-        String checkInvite = "SELECT invite_role FROM users WHERE invite_code = ?";
+        // Invites have no username yet, so there is nothing cached to refresh
+        boolean[] inserted = {false};
+        executeFilteredWrite(null, conn -> {
 
-        // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(checkInvite)) {
+            // First, check if the invite already exists
+            String checkInvite = "SELECT user_id, invite_role FROM users WHERE invite_code_norm = LOWER(TRIM(?))";
 
-            // Set the parameters for the
-            pstmt.setString(1, inviteCode);
-            ResultSet resultSet = pstmt.executeQuery();
+            // Prepare the statement and set the parameters
+            try (PreparedStatement pstmt = conn.prepareStatement(checkInvite)) {
 
-            // Check if the result set has any rows
-            if (resultSet.next()) {
+                // Set the parameters for the
+                pstmt.setString(1, inviteCode);
+                ResultSet resultSet = pstmt.executeQuery();
 
-                String currentRoles = resultSet.getString("invite_role");
+                // Check if the result set has any rows
+                if (resultSet.next()) {
 
-                // If the role already exists, return without making changes
-                if (currentRoles != null && currentRoles.contains(inviteRole)) {
-                    System.out.println("Role " + inviteRole + " already exists for invite code: " + inviteCode); // Debugging statement
-                    return;
-                }
+                    int userId = resultSet.getInt("user_id");
+                    String currentRoles = resultSet.getString("invite_role");
 
-                // If the role does not exist, append the new role to the existing ones
-                String updatedRoles = currentRoles == null ? inviteRole : currentRoles + "," + inviteRole;
+                    // If the role already exists, return without making changes
+                    if (currentRoles != null && currentRoles.contains(inviteRole)) {
+                        trace("Role " + inviteRole + " already exists for invite code: " + inviteCode); // Debugging statement
+                        return;
+                    }
 
-                // Update the invite with the new roles
-                String updateInvite = "UPDATE users SET invite_role = ?, role = ? WHERE invite_code = ?";
+                    // If the role does not exist, append the new role to the existing ones
+                    String updatedRoles = currentRoles == null ? inviteRole : currentRoles + "," + inviteRole;
 
-                try (PreparedStatement updatePstmt = connection.prepareStatement(updateInvite)) {
+                    // Update the invite with the new roles
+                    String updateInvite = "UPDATE users SET invite_role = ?, role = ?, version = version + 1 WHERE user_id = ?";
 
-                    // Set the parameters for the query
-                    updatePstmt.setString(1, updatedRoles);
-                    updatePstmt.setString(2, updatedRoles); // Ensure that the role column is also updated
-                    updatePstmt.setString(3, inviteCode);
-                    updatePstmt.executeUpdate();
-                    System.out.println("Updated roles for invite code: " + inviteCode + " with role: " + inviteRole); // Debugging statement
+                    try (PreparedStatement updatePstmt = conn.prepareStatement(updateInvite)) {
 
-                }
+                        // Set the parameters for the query
+                        updatePstmt.setString(1, updatedRoles);
+                        updatePstmt.setString(2, updatedRoles); // Ensure that the role column is also updated
+                        updatePstmt.setInt(3, userId);
+                        updatePstmt.executeUpdate();
+                        ChangeLog.record(conn, ChangeLog.Op.UPDATE, ChangeLog.INVITE | ChangeLog.ROLES, "user_id", userId);
+                        trace("Updated roles for invite code: " + inviteCode + " with role: " + inviteRole); // Debugging statement
 
-            } else {
+                    }
+
+                } else {
 
-                // If no invite exists, create a new one with invite_role and role populated
-                String insertInvite = "INSERT INTO users (invite_code, invite_role, role) VALUES (?, ?, ?)";
+                    // If no invite exists, create a new one with invite_role and role populated
+                    String insertInvite = "INSERT INTO users (invite_code, invite_role, role, invite_expires_at) "
+                            + "VALUES (?, ?, ?, DATEADD(DAY, ?, LOCALTIMESTAMP))";
 
-                // Prepare the statement and set the parameters
-                try (PreparedStatement insertPstmt = connection.prepareStatement(insertInvite)) {
-                    insertPstmt.setString(1, inviteCode);
-                    insertPstmt.setString(2, inviteRole);
-                    insertPstmt.setString(3, inviteRole); // Ensure that the role is also inserted
-                    insertPstmt.executeUpdate();
-                    System.out.println("Invite created successfully with invite code: " + inviteCode + " and role: " + inviteRole); // Debugging statement
+                    // Prepare the statement and set the parameters
+                    try (PreparedStatement insertPstmt = conn.prepareStatement(insertInvite)) {
+                        insertPstmt.setString(1, inviteCode);
+                        insertPstmt.setString(2, inviteRole);
+                        insertPstmt.setString(3, inviteRole); // Ensure that the role is also inserted
+                        insertPstmt.setInt(4, INVITE_TTL_DAYS); // Unredeemed invites are removed by the sweeper after this
+                        insertPstmt.executeUpdate();
+                        ChangeLog.record(conn, ChangeLog.Op.INSERT, ChangeLog.INVITE | ChangeLog.ROLES, "invite_code", inviteCode);
+                        inserted[0] = true;
+                        trace("Invite created successfully with invite code: " + inviteCode + " and role: " + inviteRole); // Debugging statement
+                    }
                 }
             }
-        }
+        }, () -> {
+            if (inserted[0]) {
+                addToFilters(null, inviteCode);
+            }
+        });
     }
 
 
@@ -784,12 +1834,19 @@ public class DatabaseHelper {
      */
     public String[] getUserDetails(String currentUsername) {
 
+        // Serve the details from the cache if they were loaded recently
+        String[] cachedDetails = userCache.getDetails(currentUsername);
+        if (cachedDetails != null) {
+            return cachedDetails;
+        }
+
         //get user details method to get user details using the current username
         String[] userDetails = new String[5];
+        long generation = userCache.generation(currentUsername);
         String query = "SELECT first_name, middle_name, last_name, preferred_name, email FROM users WHERE username = ?";
 
         // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(query)) {
 
             // Set the parameters for the query
             pstmt.setString(1, currentUsername);
@@ -802,6 +1859,7 @@ public class DatabaseHelper {
                 userDetails[2] = resultSet.getString("last_name");
                 userDetails[3] = resultSet.getString("preferred_name");
                 userDetails[4] = resultSet.getString("email");
+                userCache.putDetails(currentUsername, userDetails, generation);
             }
 
 
@@ -815,43 +1873,58 @@ public class DatabaseHelper {
     }
 
     /*
-     *  Method to update the user details using the current username and the new
-     * details
-     *
-     * @param currentUsername The username of the user
-     *
-     * @param firstName The first name of the user
-     *
-     * @param middleName The middle name of the user
-     *
-     * @param lastName The last name of the user
+     *  Method to update the user details only if nobody has changed the user since the given version was read
      *
-     * @param preferredName The preferred name of the user
-     *
-     * @param email The email of the user
+     * @param currentUsername	The username of the user
+     * @param firstName			The first name of the user
+     * @param middleName		The middle name of the user
+     * @param lastName			The last name of the user
+     * @param preferredName		The preferred name of the user
+     * @param email				The email of the user
+     * @param expectedVersion	The version returned by getUserVersion when the details were loaded
      *
+     * @return boolean	Returns true if the details were updated, false if the user was changed or deleted meanwhile
      */
-    public void updateUserDetails(String currentUsername, String firstName, String middleName, String lastName,
-                                  String preferredName, String email) {
-
-        // update user details method to update user details using the current username
-        String query = "UPDATE users SET first_name = ?, middle_name = ?, last_name = ?, preferred_name = ?, email = ? WHERE username = ?";
-
-        // Prepare the statement and set the
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
-
-            // Set the parameters for the query
-            pstmt.setString(1, firstName);
-            pstmt.setString(2, middleName);
-            pstmt.setString(3, lastName);
-            pstmt.setString(4, preferredName);
-            pstmt.setString(5, email);
-            pstmt.setString(6, currentUsername);
-            pstmt.executeUpdate();
+    public boolean updateUserDetails(String currentUsername, String firstName, String middleName, String lastName,
+                                     String preferredName, String email, long expectedVersion) throws SQLException {
+
+        String query = "UPDATE users SET first_name = ?, middle_name = ?, last_name = ?, preferred_name = ?, email = ?, "
+                + "version = version + 1 WHERE username = ? AND version = ?";
+        int[] rowsAffected = {0};
+        executeWrite(currentUsername, conn -> {
+            try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+                pstmt.setString(1, firstName);
+                pstmt.setString(2, middleName);
+                pstmt.setString(3, lastName);
+                pstmt.setString(4, preferredName);
+                pstmt.setString(5, email);
+                pstmt.setString(6, currentUsername);
+                pstmt.setLong(7, expectedVersion);
+                rowsAffected[0] = pstmt.executeUpdate();
+            }
+            if (rowsAffected[0] > 0) {
+                ChangeLog.record(conn, ChangeLog.Op.UPDATE, ChangeLog.PROFILE, "username", currentUsername);
+            }
+        });
 
-        } catch (SQLException e) {
+        if (rowsAffected[0] == 0) {
+            trace("User details of " + currentUsername + " were changed by someone else, update rejected");
+        }
+        return rowsAffected[0] > 0;
+    }
 
-            e.printStackTrace();
+    /*
+     *  Method to get the version of a user's row, to pass to the compare-and-set updateUserDetails
+     *
+     * @param username	The username of the user
+     *
+     * @return long	Returns the version, or -1 if the user does not exist
+     */
+    public long getUserVersion(String username) throws SQLException {
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement("SELECT version FROM users WHERE username = ?")) {
+            pstmt.setString(1, username);
+            ResultSet resultSet = pstmt.executeQuery();
+            return resultSet.next() ? resultSet.getLong("version") : -1;
         }
     }
 
@@ -866,7 +1939,7 @@ public class DatabaseHelper {
         String query = "SELECT username, first_name, middle_name, last_name, role FROM users";
 
         // Prepare the statement and set
-        try (Statement stmt = connection.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+        try (Connection conn = pool.borrow(); Statement stmt = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
              ResultSet resultSet = stmt.executeQuery(query)) {
 
             // Move to the last row to get the count of rows
@@ -894,6 +1967,252 @@ public class DatabaseHelper {
     }
 
 
+    /*
+     *  Method to get one page of the user accounts matching a query, filtered and sorted by the database
+     *
+     * @param query	The filters, sort order and page to load
+     *
+     * @return String [][]	Returns a 2D array of user accounts in the same layout as getAllUserAccounts
+     */
+    public String[][] findUserAccounts(UserQuery query) throws SQLException {
+
+        List<Object> params = new ArrayList<>();
+        String sql = pageQuery("username, first_name, middle_name, last_name, role", query, params);
+
+        // Prepare the statement, bind the filter values and read the page
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            bindParams(pstmt, params);
+            ResultSet resultSet = pstmt.executeQuery();
+
+            List<String[]> userAccounts = new ArrayList<>();
+            while (resultSet.next()) {
+                userAccounts.add(new String[] {
+                        resultSet.getString("username"),
+                        resultSet.getString("first_name"),
+                        resultSet.getString("middle_name"),
+                        resultSet.getString("last_name"),
+                        resultSet.getString("role")
+                });
+            }
+            return userAccounts.toArray(new String[0][]);
+        }
+    }
+
+    /*
+     *  Method to get one page of the user accounts matching a query in the compact form shown by the admin table
+     *
+     * @param query	The filters, sort order and page to load
+     *
+     * @return UserSummaryTable	Returns the matching accounts, read straight from the result set into columns
+     */
+    public UserSummaryTable findUserSummaries(UserQuery query) throws SQLException {
+
+        List<Object> params = new ArrayList<>();
+        String sql = pageQuery("user_id, username, first_name, last_name, role", query, params);
+
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            bindParams(pstmt, params);
+            ResultSet resultSet = pstmt.executeQuery();
+
+            UserSummaryTable.Builder summaries = new UserSummaryTable.Builder(query.getLimit());
+            while (resultSet.next()) {
+                summaries.add(resultSet.getInt("user_id"),
+                        resultSet.getString("username"),
+                        resultSet.getString("first_name"),
+                        resultSet.getString("last_name"),
+                        resultSet.getString("role"));
+            }
+            return summaries.build();
+        }
+    }
+
+    /*
+     *  Method to count the user accounts matching a query, ignoring its sort order and page
+     *
+     * @param query	The filters to apply
+     *
+     * @return int	Returns the number of matching accounts
+     */
+    public int countUserAccounts(UserQuery query) throws SQLException {
+
+        List<Object> params = new ArrayList<>();
+        String sql = "SELECT COUNT(*) AS count FROM users" + whereClause(query, params);
+
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            bindParams(pstmt, params);
+            ResultSet resultSet = pstmt.executeQuery();
+            return resultSet.next() ? resultSet.getInt("count") : 0;
+        }
+    }
+
+    /*
+     *  Method to get one page of the user accounts matching a query together with the value each row is sorted on, so
+     *  ShardedUserStore can merge the pages of several databases into one
+     *
+     * @param query	The filters, sort order and page to load
+     *
+     * @return List<Object[]>	Returns rows of the sort value, user_id, username, first, middle and last names and roles
+     */
+    List<Object[]> findUserRowsWithSortValue(UserQuery query) throws SQLException {
+
+        List<Object> params = new ArrayList<>();
+        String sql = pageQuery(sortColumn(query.getSortBy()) + ", user_id, username, first_name, middle_name, last_name, role", query, params);
+
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            bindParams(pstmt, params);
+            ResultSet resultSet = pstmt.executeQuery();
+
+            List<Object[]> rows = new ArrayList<>();
+            while (resultSet.next()) {
+                Object[] row = new Object[7];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = resultSet.getObject(i + 1);
+                }
+                rows.add(row);
+            }
+            return rows;
+        }
+    }
+
+    /*
+     *  Method to stream every account matching a query's filters to a CSV or JSON Lines stream, in the query's sort
+     *  order. Rows are read on a dedicated connection with a lazily executed, forward-only cursor and written as they
+     *  are read, so memory use does not grow with the number of users. Invites that have not been redeemed are skipped.
+     *
+     * @param query		The filters and sort order; the page is ignored
+     * @param exporter	The format, columns, compression and progress callback
+     * @param out		The stream to write to; it is not closed
+     *
+     * @return long	Returns the number of accounts written
+     */
+    public long exportUsers(UserQuery query, RosterExporter exporter, OutputStream out) throws SQLException, IOException {
+        return readExportRows(query, exporter, resultSet -> {
+            long rows = exporter.write(resultSet, out);
+            System.out.println("Exported " + rows + " users with " + exporter);
+            return rows;
+        });
+    }
+
+    // Reads the rows of an export from the open result set
+    @FunctionalInterface
+    interface ExportReader<T> {
+        T read(ResultSet resultSet) throws SQLException, IOException;
+    }
+
+    /*
+     *  Method to run the export of a query on a dedicated connection with a lazily executed, forward-only cursor, and
+     *  hand the open result set to a reader. Each row holds the exported columns followed by the value the rows are
+     *  sorted on, so ShardedUserStore can merge the exports of several databases into one sorted stream.
+     *
+     * @param query		The filters and sort order; the page is ignored
+     * @param exporter	The columns to read
+     * @param reader	Reads the rows while the cursor is open
+     *
+     * @return T	Returns what the reader returned
+     */
+    <T> T readExportRows(UserQuery query, RosterExporter exporter, ExportReader<T> reader) throws SQLException, IOException {
+        List<Object> params = new ArrayList<>();
+        String direction = query.isAscending() ? " ASC" : " DESC";
+        String sortColumn = sortColumn(query.getSortBy());
+        String sql = "SELECT " + exporter.selectList() + ", " + sortColumn + " FROM users"
+                + whereClause(query, params) + " AND username IS NOT NULL"
+                + " ORDER BY " + sortColumn + direction + ", user_id" + direction;
+
+        try (Connection exportConnection = DriverManager.getConnection(dbUrl, USER, PASS)) {
+
+            // Let H2 produce rows as the cursor advances instead of materializing the result first
+            try (Statement stmt = exportConnection.createStatement()) {
+                stmt.execute("SET LAZY_QUERY_EXECUTION TRUE");
+            }
+            try (PreparedStatement pstmt = exportConnection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                pstmt.setFetchSize(1000);
+                bindParams(pstmt, params);
+                try (ResultSet resultSet = pstmt.executeQuery()) {
+                    return reader.read(resultSet);
+                }
+            }
+        }
+    }
+
+    // Builds the statement selecting one sorted page of a user query, collecting the values to bind in order
+    private static String pageQuery(String columns, UserQuery query, List<Object> params) {
+        String direction = query.isAscending() ? " ASC" : " DESC";
+        String sql = "SELECT " + columns + " FROM users"
+                + whereClause(query, params)
+                + " ORDER BY " + sortColumn(query.getSortBy()) + direction + ", user_id" + direction
+                + " OFFSET ? ROWS FETCH NEXT ? ROWS ONLY";
+        params.add(query.getOffset());
+        params.add(query.getLimit());
+        return sql;
+    }
+
+    // Builds the WHERE clause for a user query, collecting the values to bind in order
+    private static String whereClause(UserQuery query, List<Object> params) {
+        StringBuilder where = new StringBuilder(" WHERE 1 = 1");
+
+        // Username prefix is a range scan on the unique username index
+        if (query.getUsernamePrefix() != null) {
+            where.append(" AND username LIKE ? ESCAPE '\\'");
+            params.add(likePrefix(query.getUsernamePrefix()));
+        }
+
+        // Name prefix is a union of range scans on the lower-cased name indexes
+        if (query.getNamePrefix() != null) {
+            String pattern = likePrefix(query.getNamePrefix().toLowerCase(Locale.ROOT));
+            where.append(" AND user_id IN ("
+                    + "SELECT user_id FROM users WHERE first_name_lc LIKE ? ESCAPE '\\' UNION "
+                    + "SELECT user_id FROM users WHERE last_name_lc LIKE ? ESCAPE '\\' UNION "
+                    + "SELECT user_id FROM users WHERE preferred_name_lc LIKE ? ESCAPE '\\')");
+            params.add(pattern);
+            params.add(pattern);
+            params.add(pattern);
+        }
+
+        if (query.getEmailPrefix() != null) {
+            where.append(" AND email_lc LIKE ? ESCAPE '\\'");
+            params.add(likePrefix(query.getEmailPrefix().toLowerCase(Locale.ROOT)));
+        }
+
+        // Roles are a short comma-separated list, so the role filter is checked on the rows the other filters select
+        if (query.getRole() != null) {
+            where.append(" AND (',' || role || ',') LIKE ?");
+            params.add("%," + query.getRole().getLabel() + ",%");
+        }
+
+        if (query.getCreatedFrom() != null) {
+            where.append(" AND created_at >= ?");
+            params.add(Timestamp.valueOf(query.getCreatedFrom()));
+        }
+        if (query.getCreatedTo() != null) {
+            where.append(" AND created_at < ?");
+            params.add(Timestamp.valueOf(query.getCreatedTo()));
+        }
+        return where.toString();
+    }
+
+    // Maps a sort column to the indexed database column it sorts on
+    private static String sortColumn(UserQuery.SortColumn column) {
+        switch (column) {
+            case FIRST_NAME: return "first_name_lc";
+            case LAST_NAME: return "last_name_lc";
+            case EMAIL: return "email_lc";
+            case CREATED_AT: return "created_at";
+            default: return "username";
+        }
+    }
+
+    // Escapes LIKE wildcards in user input and appends the prefix wildcard
+    private static String likePrefix(String prefix) {
+        return prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+    }
+
+    // Binds positional parameters collected while building a query
+    private static void bindParams(PreparedStatement pstmt, List<Object> params) throws SQLException {
+        for (int i = 0; i < params.size(); i++) {
+            pstmt.setObject(i + 1, params.get(i));
+        }
+    }
+
     /*
      *  Method to delete a user account using the username
      *
@@ -902,15 +2221,27 @@ public class DatabaseHelper {
      */
     public void deleteUser(String username) {
         String query = "DELETE FROM users WHERE username = ?";
-        System.out.println("Attempting to delete user with username: " + username); // Debugging statement
+        trace("Attempting to delete user with username: " + username); // Debugging statement
 
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
-            pstmt.setString(1, username);
-            int rowsAffected = pstmt.executeUpdate(); // Capture how many rows were affected
-            if (rowsAffected > 0) {
-                System.out.println("User deleted successfully: " + username); // Debugging statement
+        try {
+            int[] rowsAffected = {0};
+            executeFilteredWrite(username, conn -> {
+
+                // Record the deletion first, while the row can still be read
+                ChangeLog.record(conn, ChangeLog.Op.DELETE, ChangeLog.ALL_FIELDS, "username", username);
+                try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+                    pstmt.setString(1, username);
+                    rowsAffected[0] = pstmt.executeUpdate(); // Capture how many rows were affected
+                }
+            }, () -> {
+                if (rowsAffected[0] > 0) {
+                    removeFromFilters(username, null);
+                }
+            });
+            if (rowsAffected[0] > 0) {
+                trace("User deleted successfully: " + username); // Debugging statement
             } else {
-                System.out.println("No user found with username: " + username); // Debugging statement
+                trace("No user found with username: " + username); // Debugging statement
             }
         } catch (SQLException e) {
             System.err.println("Error deleting user: " + e.getMessage()); // Debugging statement for errors
@@ -920,32 +2251,282 @@ public class DatabaseHelper {
 
 
     /*
-     *  Method to update the user account using the invitecode username password hash and role to update the user account
+     *  Method to list the key of every row of the users table: the username of a user, or the invite code of an
+     *  invite nobody has redeemed yet. ShardedUserStore places rows by these keys.
+     *
+     * @return List<String[]>	Returns pairs of the key column ("username" or "invite_code") and the key
+     */
+    List<String[]> listRowKeys() throws SQLException {
+        List<String[]> keys = new ArrayList<>();
+        try (Connection conn = pool.borrow(); Statement stmt = conn.createStatement();
+             ResultSet resultSet = stmt.executeQuery("SELECT username, invite_code FROM users")) {
+            while (resultSet.next()) {
+                String username = resultSet.getString("username");
+                String inviteCode = resultSet.getString("invite_code");
+                if (username != null) {
+                    keys.add(new String[] {"username", username});
+                } else if (inviteCode != null) {
+                    keys.add(new String[] {"invite_code", inviteCode});
+                }
+            }
+        }
+        return keys;
+    }
+
+    /*
+     *  Method to move one row of the users table, with the user's password reset tokens, to another database. Used by
+     *  ShardedUserStore when shards are rebalanced. The row is inserted into the target before it is deleted here, so
+     *  an interrupted move leaves a copy in both databases rather than in neither; moving it again finds the copy in
+     *  the target and only deletes the row here. The target assigns a new user_id, and created_by_admin_id is cleared
+     *  as it refers to a user of this database.
+     *
+     * @param keyColumn	"username" to move a user, or "invite_code" to move an invite
+     * @param key		The username or invite code
+     * @param target	The database to move the row to
+     *
+     * @return boolean	Returns true if a row was moved, false if there was no such row here
+     */
+    boolean moveUserRow(String keyColumn, String key, DatabaseHelper target) throws SQLException {
+        if (!keyColumn.equals("username") && !keyColumn.equals("invite_code")) {
+            throw new IllegalArgumentException("Unsupported key column: " + keyColumn);
+        }
+        String storedColumns = USER_COLUMNS.substring("user_id, ".length());
+        int columnCount = storedColumns.split(",").length;
+
+        // Read the row and the user's reset tokens
+        int userId;
+        Object[] row = new Object[columnCount];
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement("SELECT user_id, " + storedColumns + " FROM users WHERE " + keyColumn + " = ?")) {
+            pstmt.setString(1, key);
+            ResultSet resultSet = pstmt.executeQuery();
+            if (!resultSet.next()) {
+                return false;
+            }
+            userId = resultSet.getInt(1);
+            for (int i = 0; i < columnCount; i++) {
+                row[i] = resultSet.getObject(i + 2);
+            }
+        }
+        List<String> columns = Arrays.asList(storedColumns.split(", "));
+        row[columns.indexOf("created_by_admin_id")] = null;
+        String inviteCode = (String) row[columns.indexOf("invite_code")];
+        List<Object[]> tokens = new ArrayList<>();
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement("SELECT token, expires_at, used FROM password_reset_tokens WHERE user_id = ?")) {
+            pstmt.setInt(1, userId);
+            ResultSet resultSet = pstmt.executeQuery();
+            while (resultSet.next()) {
+                tokens.add(new Object[] {resultSet.getString(1), resultSet.getObject(2), resultSet.getBoolean(3)});
+            }
+        }
+
+        // Insert the copy unless an earlier, interrupted move already did
+        String username = keyColumn.equals("username") ? key : null;
+        String placeholders = String.join(", ", Collections.nCopies(columnCount, "?"));
+        boolean[] inserted = {false};
+        target.executeFilteredWrite(username, conn -> {
+            try (PreparedStatement exists = conn.prepareStatement("SELECT 1 FROM users WHERE " + keyColumn + " = ?")) {
+                exists.setString(1, key);
+                if (exists.executeQuery().next()) {
+                    return;
+                }
+            }
+            int newUserId;
+            try (PreparedStatement insert = conn.prepareStatement("INSERT INTO users (" + storedColumns + ") VALUES (" + placeholders + ")",
+                    Statement.RETURN_GENERATED_KEYS)) {
+                for (int i = 0; i < columnCount; i++) {
+                    insert.setObject(i + 1, row[i]);
+                }
+                insert.executeUpdate();
+                ResultSet generatedKeys = insert.getGeneratedKeys();
+                generatedKeys.next();
+                newUserId = generatedKeys.getInt(1);
+            }
+            try (PreparedStatement insert = conn.prepareStatement("INSERT INTO password_reset_tokens (user_id, token, expires_at, used) VALUES (?, ?, ?, ?)")) {
+                for (Object[] token : tokens) {
+                    insert.setInt(1, newUserId);
+                    insert.setString(2, (String) token[0]);
+                    insert.setObject(3, token[1]);
+                    insert.setBoolean(4, (Boolean) token[2]);
+                    insert.addBatch();
+                }
+                if (!tokens.isEmpty()) {
+                    insert.executeBatch();
+                }
+            }
+            ChangeLog.record(conn, ChangeLog.Op.INSERT, ChangeLog.ALL_FIELDS, keyColumn, key);
+            inserted[0] = true;
+        }, () -> {
+            if (inserted[0]) {
+                target.addToFilters(username, inviteCode);
+            }
+        });
+
+        // Delete the row here; its reset tokens go with it
+        int[] deleted = {0};
+        executeFilteredWrite(username, conn -> {
+            ChangeLog.record(conn, ChangeLog.Op.DELETE, ChangeLog.ALL_FIELDS, keyColumn, key);
+            try (PreparedStatement pstmt = conn.prepareStatement("DELETE FROM users WHERE " + keyColumn + " = ?")) {
+                pstmt.setString(1, key);
+                deleted[0] = pstmt.executeUpdate();
+            }
+        }, () -> {
+            if (deleted[0] > 0) {
+                removeFromFilters(username, inviteCode);
+            }
+        });
+        return true;
+    }
+
+    /*
+     *  Method to read an invite nobody has redeemed yet and that has not expired. Used by ShardedUserStore to copy
+     *  the invite to the shard of the user redeeming it.
+     *
+     * @param inviteCode	The invite code
+     *
+     * @return Map<String, Object>	Returns the stored columns of the invite's row by name, or null if there is no such invite
+     */
+    Map<String, Object> readInvite(String inviteCode) throws SQLException {
+        String storedColumns = USER_COLUMNS.substring("user_id, ".length());
+        String query = "SELECT " + storedColumns + " FROM users WHERE invite_code_norm = LOWER(TRIM(?)) AND username IS NULL "
+                + "AND (invite_expires_at IS NULL OR invite_expires_at >= LOCALTIMESTAMP)";
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setString(1, inviteCode);
+            ResultSet resultSet = pstmt.executeQuery();
+            if (!resultSet.next()) {
+                return null;
+            }
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (String column : storedColumns.split(", ")) {
+                row.put(column, resultSet.getObject(column));
+            }
+            return row;
+        }
+    }
+
+    /*
+     *  Method to insert a user row read from another database, e.g. by readInvite. This database assigns the user_id.
+     *
+     * @param row	The stored columns of the row by name; it must hold a username
+     *
+     * @return boolean	Returns true if the row was inserted, false if the username is already taken here
+     */
+    boolean insertUserRow(Map<String, Object> row) throws SQLException {
+        String username = (String) row.get("username");
+        String placeholders = String.join(", ", Collections.nCopies(row.size(), "?"));
+        String insert = "INSERT INTO users (" + String.join(", ", row.keySet()) + ") VALUES (" + placeholders + ")";
+        try {
+            executeFilteredWrite(username, conn -> {
+                try (PreparedStatement pstmt = conn.prepareStatement(insert)) {
+                    int index = 1;
+                    for (Object value : row.values()) {
+                        pstmt.setObject(index++, value);
+                    }
+                    pstmt.executeUpdate();
+                }
+                ChangeLog.record(conn, ChangeLog.Op.INSERT, ChangeLog.ALL_FIELDS, "username", username);
+            }, () -> addToFilters(username, (String) row.get("invite_code")));
+        } catch (SQLException e) {
+            if (UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                trace("Username " + username + " is already taken");
+                return false;
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    /*
+     *  Method to delete an invite nobody has redeemed yet and that has not expired, as the last step of redeeming it
+     *  on another shard
+     *
+     * @param inviteCode	The invite code
+     *
+     * @return boolean	Returns true if the invite was deleted, false if it was redeemed, deleted or expired meanwhile
+     */
+    boolean consumeInvite(String inviteCode) throws SQLException {
+        String select = "SELECT user_id FROM users WHERE invite_code_norm = LOWER(TRIM(?)) AND username IS NULL "
+                + "AND (invite_expires_at IS NULL OR invite_expires_at >= LOCALTIMESTAMP) FOR UPDATE";
+        boolean[] consumed = {false};
+        executeFilteredWrite(null, conn -> {
+            int userId;
+            try (PreparedStatement pstmt = conn.prepareStatement(select)) {
+                pstmt.setString(1, inviteCode);
+                ResultSet resultSet = pstmt.executeQuery();
+                if (!resultSet.next()) {
+                    return;
+                }
+                userId = resultSet.getInt("user_id");
+            }
+            ChangeLog.record(conn, ChangeLog.Op.DELETE, ChangeLog.ALL_FIELDS, "user_id", userId);
+            try (PreparedStatement pstmt = conn.prepareStatement("DELETE FROM users WHERE user_id = ?")) {
+                pstmt.setInt(1, userId);
+                consumed[0] = pstmt.executeUpdate() > 0;
+            }
+        }, () -> {
+            if (consumed[0]) {
+                removeFromFilters(null, inviteCode);
+            }
+        });
+        return consumed[0];
+    }
+
+    /*
+     *  Method to find the user an email address belongs to
+     *
+     * @param email	The email address, matched exactly as the UNIQUE constraint on the column does
+     *
+     * @return String	Returns the username, or null if no user has the email
+     */
+    String findUsernameByEmail(String email) throws SQLException {
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement("SELECT username FROM users WHERE email = ?")) {
+            pstmt.setString(1, email);
+            ResultSet resultSet = pstmt.executeQuery();
+            return resultSet.next() ? resultSet.getString("username") : null;
+        }
+    }
+
+    /*
+     *  Method to update the user account using the invitecode username password hash and role to update the user account.
+     *  Only an invite nobody has redeemed yet is updated, so a used invite code cannot take over the account created with it.
      *
-     * @param inviteCode	The invite code to update the user account
+     * @param inviteCode	The invite code to update the user account, matched like doesInviteExist
      * @param username		The username of the user
      * @param passwordHash	The hashed password of the user
      * @param role			The role of the user
      *
-     * @return boolean	Returns true if the user account is updated successfully, otherwise returns false
+     * @return boolean	Returns true if the user account is updated successfully, false if the invite is unknown, used or expired or the username is taken
      */
     public boolean updateUserFromInviteCode(String inviteCode, String username, byte[] passwordHash, String role) throws SQLException {
 
         // SQL query to update the user account using the invite code
-        String query = "UPDATE users SET username = ?, password_hash = ?, role = ? WHERE invite_code = ?";
+        String query = "UPDATE users SET username = ?, password_hash = ?, role = ?, version = version + 1 "
+                + "WHERE invite_code_norm = LOWER(TRIM(?)) AND username IS NULL "
+                + "AND (invite_expires_at IS NULL OR invite_expires_at >= LOCALTIMESTAMP)";
 
         // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try {
+            int[] affectedRows = {0};
+            executeFilteredWrite(username, conn -> {
+                try (PreparedStatement pstmt = conn.prepareStatement(query)) {
 
-            // Set the parameters for the query
-            pstmt.setString(1, username);
-            pstmt.setBytes(2, passwordHash);
-            pstmt.setString(3, role);
-            pstmt.setString(4, inviteCode);
+                    // Set the parameters for the query
+                    pstmt.setString(1, username);
+                    pstmt.setBytes(2, passwordHash);
+                    pstmt.setString(3, role);
+                    pstmt.setString(4, inviteCode);
 
-            // Execute the query and check if the user account is updated successfully
-            int affectedRows = pstmt.executeUpdate();
-            return affectedRows > 0;
+                    // Execute the query and check if the user account is updated successfully
+                    affectedRows[0] = pstmt.executeUpdate();
+                }
+                if (affectedRows[0] > 0) {
+                    ChangeLog.record(conn, ChangeLog.Op.UPDATE, ChangeLog.CREDENTIALS | ChangeLog.ROLES | ChangeLog.INVITE, "username", username);
+                }
+            }, () -> {
+                if (affectedRows[0] > 0) {
+                    addToFilters(username, null);
+                }
+            });
+            return affectedRows[0] > 0;
 
         } catch (SQLException e) {
 
@@ -965,11 +2546,11 @@ public class DatabaseHelper {
     public byte[] getPasswordHash(String username) throws SQLException {
 
         // SQL query to get the password hash for the user
-        System.out.println("Fetching password hash for username: " + username);
+        trace("Fetching password hash for username: " + username);
         String query = "SELECT password_hash FROM users WHERE username = ?";
 
         // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(query)) {
 
             // Set the parameters for the query
             pstmt.setString(1, username);
@@ -980,12 +2561,12 @@ public class DatabaseHelper {
 
                 // Get the password hash from the result set
                 byte[] passwordHash = resultSet.getBytes("password_hash");
-                System.out.println("Retrieved password hash for user " + username + ": " + Arrays.toString(passwordHash));
+                trace("Retrieved password hash for user " + username);
                 return passwordHash;  // Get the binary password hash
 
             } else {
 
-                System.out.println("User " + username + " not found.");
+                trace("User " + username + " not found.");
             }
         }
         return null;
@@ -1004,7 +2585,7 @@ public class DatabaseHelper {
 
         try {
             // Debugging statement to display input expiration date
-            System.out.println("Original expiration date: " + expirationDateTime);
+            trace("Original expiration date: " + expirationDateTime);
 
             // Convert the expirationDateTime from MM/DD/YYYY to YYYY-MM-DD
             DateTimeFormatter inputFormatter = DateTimeFormatter.ofPattern("MM/dd/yyyy");
@@ -1015,21 +2596,26 @@ public class DatabaseHelper {
             String formattedDate = date.format(outputFormatter);
 
             // Debugging statement to display formatted expiration date
-            System.out.println("Formatted expiration date: " + formattedDate);
+            trace("Formatted expiration date: " + formattedDate);
 
             // SQL query to update the user password and set the one-time password flag and expiration
-            String query = "UPDATE users SET password_hash = ?, one_time_password = TRUE, password_expiration = ? WHERE username = ?";
+            String query = "UPDATE users SET password_hash = ?, one_time_password = TRUE, password_expiration = ?, version = version + 1 WHERE username = ?";
 
             // Prepare the statement and set the parameters
-            try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+            executeWrite(username, conn -> {
+                try (PreparedStatement pstmt = conn.prepareStatement(query)) {
 
-                // Set the parameters for the query
-                pstmt.setBytes(1, oneTimePasswordHash);
-                pstmt.setString(2, formattedDate); // Use formatted date
-                pstmt.setString(3, username);
-                int rowsAffected = pstmt.executeUpdate();
-                System.out.println("Rows affected during OTP setup: " + rowsAffected); // Debugging statement
-            }
+                    // Set the parameters for the query
+                    pstmt.setBytes(1, oneTimePasswordHash);
+                    pstmt.setTimestamp(2, Timestamp.valueOf(date.atStartOfDay())); // Expires at the start of the formatted date
+                    pstmt.setString(3, username);
+                    int rowsAffected = pstmt.executeUpdate();
+                    trace("Rows affected during OTP setup: " + rowsAffected); // Debugging statement
+                    if (rowsAffected > 0) {
+                        ChangeLog.record(conn, ChangeLog.Op.UPDATE, ChangeLog.CREDENTIALS, "username", username);
+                    }
+                }
+            });
 
         } catch (DateTimeParseException e) {
 
@@ -1039,21 +2625,118 @@ public class DatabaseHelper {
 
 
     /*
-     *  Method to check if the one-time password is valid for the user using the username and the current date and time
+     *  Method to store a password reset token for the user; any unused token the user already has stops working.
+     *  Only the token table is written, so issuing a token does not touch the user's row.
+     *
+     * @param username		The username of the user
+     * @param tokenHash		The hash of the token from PasswordManager.hashToken
+     * @param ttlMinutes	How long the token stays valid, in minutes
+     *
+     * @return boolean	Returns true if the token was stored, false if the user does not exist
+     */
+    public boolean createPasswordResetToken(String username, String tokenHash, int ttlMinutes) throws SQLException {
+        boolean[] created = {false};
+        executeWrite(null, conn -> {
+            int userId;
+            try (PreparedStatement pstmt = conn.prepareStatement("SELECT user_id FROM users WHERE username = ?")) {
+                pstmt.setString(1, username);
+                ResultSet resultSet = pstmt.executeQuery();
+                if (!resultSet.next()) {
+                    trace("Cannot create reset token, no user found with username: " + username);
+                    return;
+                }
+                userId = resultSet.getInt("user_id");
+            }
+
+            // Retire the user's earlier tokens so only the newest one works
+            String retire = "UPDATE password_reset_tokens SET used = TRUE WHERE user_id = ? AND used = FALSE";
+            try (PreparedStatement pstmt = conn.prepareStatement(retire)) {
+                pstmt.setInt(1, userId);
+                pstmt.executeUpdate();
+            }
+
+            String insert = "INSERT INTO password_reset_tokens (user_id, token, expires_at) VALUES (?, ?, DATEADD(MINUTE, ?, LOCALTIMESTAMP))";
+            try (PreparedStatement pstmt = conn.prepareStatement(insert)) {
+                pstmt.setInt(1, userId);
+                pstmt.setString(2, tokenHash);
+                pstmt.setInt(3, ttlMinutes);
+                pstmt.executeUpdate();
+            }
+            created[0] = true;
+            trace("Password reset token created for user: " + username);
+        });
+        return created[0];
+    }
+
+    /*
+     *  Method to consume a password reset token and set the new password of its user.
+     *  The token is claimed with a single conditional UPDATE, so of several concurrent attempts only one succeeds.
+     *
+     * @param tokenHash			The hash of the token from PasswordManager.hashToken
+     * @param newPasswordHash	The hashed new password
+     *
+     * @return String	Returns the username whose password was reset, or null if the token is unknown, used or expired
+     */
+    public String consumePasswordResetToken(String tokenHash, byte[] newPasswordHash) throws SQLException {
+        String[] username = {null};
+        executeWrite(null, conn -> {
+
+            // Claim the token; the unique index on token makes this a single lookup
+            String claim = "UPDATE password_reset_tokens SET used = TRUE WHERE token = ? AND used = FALSE AND expires_at >= LOCALTIMESTAMP";
+            try (PreparedStatement pstmt = conn.prepareStatement(claim)) {
+                pstmt.setString(1, tokenHash);
+                if (pstmt.executeUpdate() == 0) {
+                    trace("Password reset token is invalid, used or expired");
+                    return;
+                }
+            }
+
+            String owner = "SELECT u.user_id, u.username FROM password_reset_tokens t JOIN users u ON u.user_id = t.user_id WHERE t.token = ?";
+            int userId;
+            try (PreparedStatement pstmt = conn.prepareStatement(owner)) {
+                pstmt.setString(1, tokenHash);
+                ResultSet resultSet = pstmt.executeQuery();
+                if (!resultSet.next()) {
+                    return;
+                }
+                userId = resultSet.getInt("user_id");
+                username[0] = resultSet.getString("username");
+            }
+
+            // Set the new password; any one-time password set by an admin is no longer needed
+            String update = "UPDATE users SET password_hash = ?, one_time_password = FALSE, password_expiration = NULL, version = version + 1 WHERE user_id = ?";
+            try (PreparedStatement pstmt = conn.prepareStatement(update)) {
+                pstmt.setBytes(1, newPasswordHash);
+                pstmt.setInt(2, userId);
+                pstmt.executeUpdate();
+            }
+            ChangeLog.record(conn, ChangeLog.Op.UPDATE, ChangeLog.CREDENTIALS, "user_id", userId);
+            trace("Password reset with token for user: " + username[0]);
+        });
+
+        if (username[0] != null) {
+            afterUserWrite(username[0]);
+        }
+        return username[0];
+    }
+
+    /*
+     *  Method to check if the one-time password is valid for the user, i.e. set and not yet expired
      *
      * @param username	The username of the user
-     * @param currentDateTime	The current date and time
      *
      * @return boolean	Returns true if the one-time password is valid, otherwise returns false
      *
      */
-    public boolean isOneTimePasswordValid(String username, String currentDateTime) throws SQLException {
+    public boolean isOneTimePasswordValid(String username) throws SQLException {
 
-        // SQL query to check if the one-time
-        String query = "SELECT one_time_password, password_expiration FROM users WHERE username = ?";
+        // SQL query to check if the one-time password is set and not expired, comparing timestamps in the database
+        String query = "SELECT one_time_password, password_expiration, "
+                + "(one_time_password = TRUE AND password_expiration >= LOCALTIMESTAMP) AS otp_valid "
+                + "FROM users WHERE username = ?";
 
         // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(query)) {
 
             // Set the parameters for the query
             pstmt.setString(1, username);
@@ -1064,20 +2747,19 @@ public class DatabaseHelper {
 
                 // Get the one-time password flag and the expiration date from the result set
                 boolean isOneTimePassword = resultSet.getBoolean("one_time_password");
-                String expirationDateTime = resultSet.getString("password_expiration");
+                Timestamp expiration = resultSet.getTimestamp("password_expiration");
 
-                System.out.println("One-time password set: " + isOneTimePassword + ", Expiration date: " + expirationDateTime);
-                System.out.println("Current date and time: " + currentDateTime);
+                trace("One-time password set: " + isOneTimePassword + ", Expiration date: " + expiration);
 
-                // Compare currentDateTime with expirationDateTime
-                if (isOneTimePassword && currentDateTime.compareTo(expirationDateTime) <= 0) {
+                // The expiry check was done by the query; a cleared expiration counts as expired
+                if (resultSet.getBoolean("otp_valid")) {
 
-                    System.out.println("One-time password is valid and within expiration date.");
+                    trace("One-time password is valid and within expiration date.");
                     return true;
 
                 } else {
 
-                    System.out.println("One-time password is invalid or expired.");
+                    trace("One-time password is invalid or expired.");
                     return false;
                 }
             }
@@ -1100,18 +2782,23 @@ public class DatabaseHelper {
     public void updatePasswordAfterOtp(String username, byte[] newPasswordHash) throws SQLException {
 
         // SQL query to update the password after OTP validation
-        String query = "UPDATE users SET password_hash = ?, one_time_password = FALSE, password_expiration = NULL WHERE username = ?";
-        System.out.println("Updating password after OTP validation for user: " + username); // Debugging statement
+        String query = "UPDATE users SET password_hash = ?, one_time_password = FALSE, password_expiration = NULL, version = version + 1 WHERE username = ?";
+        trace("Updating password after OTP validation for user: " + username); // Debugging statement
 
         // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        executeWrite(username, conn -> {
+            try (PreparedStatement pstmt = conn.prepareStatement(query)) {
 
-            // Set the parameters for the query
-            pstmt.setBytes(1, newPasswordHash);
-            pstmt.setString(2, username);
-            int rowsAffected = pstmt.executeUpdate();
-            System.out.println("Password updated, rows affected: " + rowsAffected); // Debugging statement
-        }
+                // Set the parameters for the query
+                pstmt.setBytes(1, newPasswordHash);
+                pstmt.setString(2, username);
+                int rowsAffected = pstmt.executeUpdate();
+                trace("Password updated, rows affected: " + rowsAffected); // Debugging statement
+                if (rowsAffected > 0) {
+                    ChangeLog.record(conn, ChangeLog.Op.UPDATE, ChangeLog.CREDENTIALS, "username", username);
+                }
+            }
+        });
     }
 
     /*
@@ -1129,7 +2816,7 @@ public class DatabaseHelper {
         String query = "SELECT one_time_password FROM users WHERE username = ?";
 
         // Prepare the statement and set the parameters
-        try (PreparedStatement pstmt = connection.prepareStatement(query)) {
+        try (Connection conn = pool.borrow(); PreparedStatement pstmt = conn.prepareStatement(query)) {
 
             // Set the parameters for the query
             pstmt.setString(1, username);
@@ -1138,7 +2825,7 @@ public class DatabaseHelper {
             // Check if the result set has any rows
             if (resultSet.next()) {
                 boolean isOneTimePassword = resultSet.getBoolean("one_time_password");
-                System.out.println("Is one-time password set for user " + username + ": " + isOneTimePassword);
+                trace("Is one-time password set for user " + username + ": " + isOneTimePassword);
                 return isOneTimePassword;
             }
         }
@@ -0,0 +1,296 @@
+package main;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>GroupCommitWriter class applies database writes on a single thread and commits them in groups.</p>
+ * <p>Writers submit their statements as a {@link Work} item and receive a future. The writer thread takes the first
+ * queued item, keeps collecting items for a short latency budget (or until the group is full), runs them all in
+ * one transaction on its own connection and commits once. Each caller's future completes only after that commit,
+ * so many concurrent writes share the cost of one commit instead of paying for one each, and never contend for
+ * the database's write lock.</p>
+ * <p>Each item runs inside a savepoint: an item that fails is rolled back on its own and only its future fails,
+ * while the rest of the group still commits.</p>
+ */
+public class GroupCommitWriter implements AutoCloseable {
+
+    /**
+     * <p>Work interface is one write, run by the writer thread on the writer's connection.</p>
+     */
+    @FunctionalInterface
+    public interface Work {
+
+        /**
+         * Runs the write's statements. Must not commit or roll back.
+         *
+         * @param connection The writer's connection, inside the group's transaction.
+         * @throws SQLException If the write fails; only this write is rolled back.
+         */
+        void apply(Connection connection) throws SQLException;
+    }
+
+    // A submitted write and the future completed once it has been committed
+    private static final class Pending {
+        private final Work work;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Pending(Work work) {
+            this.work = work;
+        }
+    }
+
+    /** The connection all writes run on; auto-commit is off. */
+    private final Connection connection;
+
+    /** Writes waiting for the writer thread. */
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+
+    /** How long the writer waits for more writes after the first one of a group arrives. */
+    private final long maxDelayNanos;
+
+    /** The maximum number of writes in one group. */
+    private final int maxBatch;
+
+    /** Whether to force committed data to disk before completing the writes of a group. */
+    private final boolean sync;
+
+    /** The writer thread. */
+    private final Thread writer;
+
+    /** Guards submission against a concurrent close. */
+    private final Object submitLock = new Object();
+
+    /** Set once close has been called; no writes are accepted afterwards. */
+    private volatile boolean closed;
+
+    // Metrics
+    private final AtomicLong groups = new AtomicLong();
+    private final AtomicLong committedWrites = new AtomicLong();
+    private final AtomicLong failedWrites = new AtomicLong();
+    private final AtomicLong unsyncedGroups = new AtomicLong();
+
+    /**
+     * Constructor for GroupCommitWriter. Starts the writer thread.
+     *
+     * @param connection A connection dedicated to the writer; it is closed by {@link #close()}.
+     * @param maxDelayMicros How long to wait for more writes after the first one of a group, in microseconds.
+     * @param maxBatch The maximum number of writes in one group.
+     * @param sync True to force committed data to disk (H2 CHECKPOINT SYNC) before completing a group. A failed
+     *             sync does not fail the group's writes, which are committed; it is counted by
+     *             {@link #getUnsyncedGroupCount()}.
+     * @throws SQLException If auto-commit cannot be turned off.
+     */
+    public GroupCommitWriter(Connection connection, long maxDelayMicros, int maxBatch, boolean sync) throws SQLException {
+        this.connection = connection;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxDelayMicros));
+        this.maxBatch = Math.max(1, maxBatch);
+        this.sync = sync;
+        connection.setAutoCommit(false);
+        this.writer = new Thread(this::run, "group-commit-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues a write.
+     *
+     * @param work The write to run.
+     * @return A future completed once the write has been committed, or completed exceptionally if it failed.
+     */
+    public CompletableFuture<Void> submit(Work work) {
+        Pending pending = new Pending(work);
+        synchronized (submitLock) {
+            if (closed) {
+                pending.done.completeExceptionally(new SQLException("Write queue is closed"));
+            } else {
+                queue.add(pending);
+            }
+        }
+        return pending.done;
+    }
+
+    /**
+     * Retrieves the number of groups committed.
+     *
+     * @return The number of commits.
+     */
+    public long getGroupCount() {
+        return groups.get();
+    }
+
+    /**
+     * Retrieves the number of writes committed.
+     *
+     * @return The number of writes.
+     */
+    public long getCommittedWriteCount() {
+        return committedWrites.get();
+    }
+
+    /**
+     * Retrieves the number of writes that failed.
+     *
+     * @return The number of failed writes.
+     */
+    public long getFailedWriteCount() {
+        return failedWrites.get();
+    }
+
+    /**
+     * Retrieves the number of committed groups whose sync to disk failed, so they are not known to be durable.
+     *
+     * @return The number of groups.
+     */
+    public long getUnsyncedGroupCount() {
+        return unsyncedGroups.get();
+    }
+
+    /**
+     * Stops accepting writes, commits the ones already queued and closes the connection.
+     */
+    @Override
+    public void close() {
+        synchronized (submitLock) {
+            closed = true;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            System.err.println("Error closing write queue connection: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        long groupCount = groups.get();
+        return "GroupCommitWriter{groups=" + groupCount + ", writes=" + committedWrites.get()
+                + ", failed=" + failedWrites.get() + ", unsynced=" + unsyncedGroups.get()
+                + ", avgGroup=" + (groupCount == 0 ? 0 : committedWrites.get() / groupCount) + "}";
+    }
+
+    // Writer thread: collects a group of writes and commits it, until closed and drained
+    private void run() {
+        List<Pending> group = new ArrayList<>(maxBatch);
+        try {
+            while (true) {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed && queue.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                group.add(first);
+
+                // Wait a little for more writes so they can share the commit
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (group.size() < maxBatch) {
+                    long remaining = deadline - System.nanoTime();
+                    Pending next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                }
+
+                commitGroup(group);
+                group.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            SQLException stopped = new SQLException("Write queue stopped");
+            for (Pending pending : group) {
+                pending.done.completeExceptionally(stopped);
+            }
+            Pending pending;
+            while ((pending = queue.poll()) != null) {
+                pending.done.completeExceptionally(stopped);
+            }
+        }
+    }
+
+    // Runs every write of a group in one transaction and commits it once
+    private void commitGroup(List<Pending> group) {
+        List<Pending> applied = new ArrayList<>(group.size());
+        for (Pending pending : group) {
+            Savepoint savepoint = null;
+            try {
+                savepoint = connection.setSavepoint();
+                pending.work.apply(connection);
+                applied.add(pending);
+            } catch (SQLException | RuntimeException e) {
+                rollbackTo(savepoint);
+                failedWrites.incrementAndGet();
+                pending.done.completeExceptionally(e);
+            }
+        }
+
+        if (applied.isEmpty()) {
+            rollbackAll();
+            return;
+        }
+
+        try {
+            connection.commit();
+        } catch (SQLException e) {
+
+            // Nothing in the group was committed, so every write in it fails
+            System.err.println("Group commit failed: " + e.getMessage());
+            rollbackAll();
+            failedWrites.addAndGet(applied.size());
+            for (Pending pending : applied) {
+                pending.done.completeExceptionally(e);
+            }
+            return;
+        }
+
+        // The group is committed whatever happens to the sync, so a failed sync is only reported
+        if (sync) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CHECKPOINT SYNC");
+            } catch (SQLException e) {
+                System.err.println("Group of " + applied.size() + " writes committed but not known to be durable: " + e.getMessage());
+                unsyncedGroups.incrementAndGet();
+            }
+        }
+
+        groups.incrementAndGet();
+        committedWrites.addAndGet(applied.size());
+        for (Pending pending : applied) {
+            pending.done.complete(null);
+        }
+    }
+
+    private void rollbackTo(Savepoint savepoint) {
+        try {
+            if (savepoint != null) {
+                connection.rollback(savepoint);
+            }
+        } catch (SQLException e) {
+            System.err.println("Error rolling back write: " + e.getMessage());
+        }
+    }
+
+    private void rollbackAll() {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            System.err.println("Error rolling back group: " + e.getMessage());
+        }
+    }
+}
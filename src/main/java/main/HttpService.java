@@ -0,0 +1,644 @@
+package main;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>HttpService class runs the application without a UI, exposing the authentication and admin operations as
+ * JSON endpoints on the JDK's built-in HTTP server.</p>
+ * <p>Endpoints (all bodies are flat JSON objects):</p>
+ * <ul>
+ *     <li>{@code POST /api/login} {username, password, role} - returns the login result and, on success, a session token.</li>
+ *     <li>{@code POST /api/register} {username, password, role} - allowed for the first admin or with an admin token.</li>
+ *     <li>{@code POST /api/invites/redeem} {inviteCode, username, password} - 404 for an unknown or expired invite,
+ *     409 if it has been redeemed already or the username is taken.</li>
+ *     <li>{@code POST /api/admin/otp-reset} {username, oneTimePassword, expirationDate} - admin token required.</li>
+ *     <li>{@code POST /api/admin/reset-token} {username} - issues a single-use password reset token; admin token required.</li>
+ *     <li>{@code POST /api/password-reset} {token, password} - sets a new password with a reset token.</li>
+ *     <li>{@code POST /api/otp-login} {username, oneTimePassword, role, password} - logs in with a one-time password
+ *     and sets the new password in the same request.</li>
+ *     <li>{@code GET /api/admin/export?format=csv|jsonl&columns=&gzip=&username=&name=&email=&role=&sort=&order=} -
+ *     streams the matching users as CSV or JSON Lines; admin token required.</li>
+ *     <li>{@code POST /api/admin/backup} - writes a backup of the users to {@code docop.backupDir}; admin token required.</li>
+ *     <li>{@code GET /api/admin/users?username=&name=&email=&role=&sort=&order=&offset=&limit=} - one page of
+ *     the matching users, total in {@code X-Total-Count}; admin token required.</li>
+ *     <li>{@code GET /metrics} - request counts and latencies per endpoint, connection pool use, the standby's
+ *     replication lag, slow statement counts and the space reclaimed by compaction; admin token required.</li>
+ * </ul>
+ * <p>Request bodies larger than {@link #MAX_BODY_BYTES} are rejected with 413. Requests are not traced on standard
+ * output unless {@code docop.verbose} is set.</p>
+ * <p>Requests run on virtual threads when the JVM supports them. The number of requests in flight is bounded;
+ * requests over the bound are rejected immediately with 503 rather than queued. Each request borrows database
+ * connections from the store's pool, so requests do not share a connection. Stopping the service waits for
+ * in-flight requests to drain before closing the store.</p>
+ * <p>A request that fails after its response has started, such as an export that fails midway, is aborted by
+ * closing the connection, so the client sees a broken transfer rather than a complete but truncated body.</p>
+ */
+public class HttpService {
+
+    /** Default port of the service. */
+    public static final int DEFAULT_PORT = 8080;
+
+    /** Default maximum number of requests processed at once. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 2048;
+
+    /** Seconds to wait for in-flight requests when stopping. */
+    private static final int DRAIN_SECONDS = 5;
+
+    /** Largest request body accepted, in bytes; larger requests are rejected with 413. */
+    static final int MAX_BODY_BYTES = 64 * 1024;
+
+    /** Request counters and latency for one endpoint. */
+    private static final class EndpointStats {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+    }
+
+    private final UserStore store;
+    private final LoginManager loginManager;
+    private final SessionRegistry sessions;
+    private final int port;
+    private final Semaphore inFlight;
+
+    private final Map<String, EndpointStats> stats = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Constructor for HttpService.
+     *
+     * @param store The connected user store to serve.
+     * @param port The port to listen on.
+     * @param maxInFlight The maximum number of requests processed at once.
+     */
+    public HttpService(UserStore store, int port, int maxInFlight) {
+        this.store = store;
+        this.loginManager = new LoginManager(store, false);
+        this.sessions = new SessionRegistry();
+        this.port = port;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Starts listening for requests.
+     *
+     * @throws IOException If the port cannot be bound.
+     */
+    public synchronized void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        executor = newRequestExecutor();
+        server.setExecutor(executor);
+
+        route("/api/login", "POST", this::login);
+        route("/api/register", "POST", this::register);
+        route("/api/invites/redeem", "POST", this::redeemInvite);
+        route("/api/admin/otp-reset", "POST", this::resetOtp);
+        route("/api/admin/reset-token", "POST", this::issueResetToken);
+        route("/api/password-reset", "POST", this::resetWithToken);
+        route("/api/otp-login", "POST", this::loginWithOtp);
+        route("/api/admin/users", "GET", this::listUsers);
+        route("/api/admin/backup", "POST", this::backup);
+        route("/api/admin/export", "GET", this::exportUsers);
+        route("/metrics", "GET", this::metrics);
+
+        server.start();
+        System.out.println("HTTP service listening on port " + server.getAddress().getPort());
+    }
+
+    /**
+     * Returns the port the service listens on, e.g. the one picked when it was created with port 0.
+     *
+     * @return The bound port, or -1 if the service is not running.
+     */
+    public synchronized int getPort() {
+        return server == null ? -1 : server.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting requests, waits for in-flight requests to finish and closes the store.
+     */
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        System.out.println("Stopping HTTP service...");
+        server.stop(DRAIN_SECONDS);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(DRAIN_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sessions.close();
+        store.closeConnection();
+        server = null;
+        System.out.println("HTTP service stopped");
+    }
+
+    /**
+     * Starts the service from the command line: {@code --headless [--port=N] [--max-in-flight=N]}.
+     *
+     * @param args command-line arguments
+     * @throws Exception If the store cannot be opened or the port cannot be bound.
+     */
+    public static void launch(String[] args) throws Exception {
+        int port = Integer.getInteger("docop.httpPort", DEFAULT_PORT);
+        int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--max-in-flight=")) {
+                maxInFlight = Integer.parseInt(arg.substring("--max-in-flight=".length()));
+            }
+        }
+
+        // Tracing every request step would serialize the requests on System.out
+        if (System.getProperty("docop.verbose") == null) {
+            System.setProperty("docop.verbose", "false");
+        }
+        UserStore store = UserStores.fromSystemProperties();
+        store.connectToDatabase();
+        HttpService service = new HttpService(store, port, maxInFlight);
+        Runtime.getRuntime().addShutdownHook(new Thread(service::stop, "http-shutdown"));
+        service.start();
+    }
+
+    /**
+     * Entry point for running the service directly, without loading the JavaFX application class.
+     *
+     * @param args command-line arguments, as for {@link #launch(String[])}
+     * @throws Exception If the store cannot be opened or the port cannot be bound.
+     */
+    public static void main(String[] args) throws Exception {
+        launch(args);
+    }
+
+    // Handler body for one endpoint; IllegalArgumentException is reported to the client as a 400
+    private interface Endpoint {
+        Response handle(HttpExchange exchange) throws Exception;
+    }
+
+    // Thrown when a request body exceeds MAX_BODY_BYTES; reported to the client as a 413
+    private static final class BodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private BodyTooLargeException() {
+            super("Request body exceeds " + MAX_BODY_BYTES + " bytes");
+        }
+    }
+
+    // A response status and JSON body
+    private static final class Response {
+        private final int status;
+        private final String body;
+
+        private Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    // Registers an endpoint wrapped with method checks, backpressure, metrics and error handling
+    private void route(String path, String method, Endpoint endpoint) {
+        EndpointStats endpointStats = stats.computeIfAbsent(path, key -> new EndpointStats());
+        HttpHandler handler = exchange -> {
+            if (!inFlight.tryAcquire()) {
+                rejected.increment();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 503, "{\"error\":\"Server busy\"}");
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+                    respond(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                    return;
+                }
+                Response response = endpoint.handle(exchange);
+
+                // A null response means the endpoint streamed its own body
+                if (response != null) {
+                    respond(exchange, response.status, response.body);
+                }
+            } catch (BodyTooLargeException e) {
+                endpointStats.errors.increment();
+                fail(exchange, 413, "{\"error\":" + Json.quote(e.getMessage()) + "}", e);
+            } catch (IllegalArgumentException e) {
+                endpointStats.errors.increment();
+                fail(exchange, 400, "{\"error\":" + Json.quote(e.getMessage()) + "}", e);
+            } catch (Exception e) {
+                endpointStats.errors.increment();
+                e.printStackTrace();
+                fail(exchange, 500, "{\"error\":\"Internal error\"}", e);
+            } finally {
+                endpointStats.requests.increment();
+                endpointStats.totalNanos.add(System.nanoTime() - start);
+                inFlight.release();
+            }
+        };
+        server.createContext(path, handler);
+    }
+
+    private Response login(HttpExchange exchange) throws Exception {
+        Map<String, String> body = readBody(exchange);
+        String username = required(body, "username");
+        String role = required(body, "role");
+        String result = loginManager.login(username, required(body, "password"), role);
+
+        if (!result.equals("Login successful")) {
+            int status = result.equals("Database error") ? 500 : 401;
+            return new Response(status, "{\"result\":" + Json.quote(result) + "}");
+        }
+        Session session = sessions.create(username, Role.fromLabel(role), Role.setOf(store.getRolesForUser(username)));
+        if (session == null) {
+            return new Response(503, "{\"error\":\"Too many active sessions\"}");
+        }
+        return new Response(200, "{\"result\":" + Json.quote(result) + ",\"token\":" + Json.quote(session.getToken()) + "}");
+    }
+
+    private Response register(HttpExchange exchange) throws Exception {
+        Map<String, String> body = readBody(exchange);
+        if (!store.isDatabaseEmpty() && !isAdmin(exchange)) {
+            return forbidden();
+        }
+        String password = required(body, "password");
+        String passwordError = PasswordEvaluator.evaluatePassword(password);
+        if (!passwordError.isEmpty()) {
+            throw new IllegalArgumentException(passwordError);
+        }
+        String result = loginManager.register(required(body, "username"), password, required(body, "role"));
+        return new Response(result.equals("Registration successful") ? 200 : 409, "{\"result\":" + Json.quote(result) + "}");
+    }
+
+    private Response redeemInvite(HttpExchange exchange) throws Exception {
+        Map<String, String> body = readBody(exchange);
+        String password = required(body, "password");
+        String passwordError = PasswordEvaluator.evaluatePassword(password);
+        if (!passwordError.isEmpty()) {
+            throw new IllegalArgumentException(passwordError);
+        }
+        String result = loginManager.registerInvite(required(body, "inviteCode"), required(body, "username"), password);
+        int status;
+        switch (result) {
+            case "Registration successful":
+                status = 200;
+                break;
+            case "Invalid invite code":
+                status = 404;
+                break;
+            case "Database error":
+                status = 500;
+                break;
+            default:
+                // The invite was redeemed already or the username is taken
+                status = 409;
+        }
+        return new Response(status, "{\"result\":" + Json.quote(result) + "}");
+    }
+
+    private Response resetOtp(HttpExchange exchange) throws Exception {
+        if (!isAdmin(exchange)) {
+            return forbidden();
+        }
+        Map<String, String> body = readBody(exchange);
+        String expirationDate = required(body, "expirationDate");
+        String dateError = DateRecognizer.checkForValidDate(expirationDate);
+        if (!dateError.isEmpty()) {
+            throw new IllegalArgumentException("Invalid expiration date: " + dateError);
+        }
+        String result = loginManager.resetUserWithOtp(required(body, "username"), required(body, "oneTimePassword"), expirationDate);
+        return new Response(result.equals("Database error") ? 500 : 200, "{\"result\":" + Json.quote(result) + "}");
+    }
+
+    private Response issueResetToken(HttpExchange exchange) throws Exception {
+        if (!isAdmin(exchange)) {
+            return forbidden();
+        }
+        String token = loginManager.issuePasswordResetToken(required(readBody(exchange), "username"));
+        if (token == null) {
+            return new Response(404, "{\"result\":\"No such user\"}");
+        }
+        return new Response(200, "{\"token\":" + Json.quote(token) + "}");
+    }
+
+    private Response resetWithToken(HttpExchange exchange) throws Exception {
+        Map<String, String> body = readBody(exchange);
+        String password = required(body, "password");
+        String passwordError = PasswordEvaluator.evaluatePassword(password);
+        if (!passwordError.isEmpty()) {
+            throw new IllegalArgumentException(passwordError);
+        }
+        String result = loginManager.resetPasswordWithToken(required(body, "token"), password);
+        int status = result.equals("Database error") ? 500 : (result.startsWith("Password reset successful") ? 200 : 404);
+        return new Response(status, "{\"result\":" + Json.quote(result) + "}");
+    }
+
+    private Response loginWithOtp(HttpExchange exchange) throws Exception {
+        Map<String, String> body = readBody(exchange);
+        String username = required(body, "username");
+        String password = required(body, "password");
+        String passwordError = PasswordEvaluator.evaluatePassword(password);
+        if (!passwordError.isEmpty()) {
+            throw new IllegalArgumentException(passwordError);
+        }
+
+        // Only a valid, unexpired one-time password lets the user choose a new password
+        String result = loginManager.login(username, required(body, "oneTimePassword"), required(body, "role"));
+        if (!result.equals("OTP login successful, please reset your password.")) {
+            int status = result.equals("Database error") ? 500 : 401;
+            return new Response(status, "{\"result\":" + Json.quote(result) + "}");
+        }
+        result = loginManager.resetPassword(username, password);
+        return new Response(result.equals("Database error") ? 500 : 200, "{\"result\":" + Json.quote(result) + "}");
+    }
+
+    private Response exportUsers(HttpExchange exchange) throws Exception {
+        if (!isAdmin(exchange)) {
+            return forbidden();
+        }
+        String rawQuery = exchange.getRequestURI().getRawQuery();
+        UserQuery query = userQuery(rawQuery);
+        Map<String, String> params = queryParams(rawQuery);
+
+        RosterExporter exporter = new RosterExporter().gzip(Boolean.parseBoolean(params.get("gzip")));
+        try {
+            exporter.format(RosterExporter.Format.valueOf(params.getOrDefault("format", "csv").toUpperCase(Locale.ROOT)));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown format: " + params.get("format"));
+        }
+        if (params.get("columns") != null) {
+            String[] names = params.get("columns").split(",");
+            RosterExporter.Column[] columns = new RosterExporter.Column[names.length];
+            for (int i = 0; i < names.length; i++) {
+                columns[i] = RosterExporter.Column.fromName(names[i].trim());
+                if (columns[i] == null) {
+                    throw new IllegalArgumentException("Unknown column: " + names[i]);
+                }
+            }
+            exporter.columns(columns);
+        }
+
+        // Stream the rows as they are read, with chunked transfer encoding
+        boolean csv = exporter.getFormat() == RosterExporter.Format.CSV;
+        exchange.getResponseHeaders().set("Content-Type", csv ? "text/csv; charset=utf-8" : "application/x-ndjson; charset=utf-8");
+        exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"users." + (csv ? "csv" : "jsonl")
+                + (exporter.isGzip() ? ".gz" : "") + "\"");
+        exchange.sendResponseHeaders(200, 0);
+
+        // Not closed on failure: closing would end the chunked body cleanly and hide the error from the client
+        OutputStream out = exchange.getResponseBody();
+        store.exportUsers(query, exporter, out);
+        out.close();
+        return null;
+    }
+
+    private Response metrics(HttpExchange exchange) {
+        if (!isAdmin(exchange)) {
+            return forbidden();
+        }
+        return new Response(200, metricsJson());
+    }
+
+    private Response backup(HttpExchange exchange) throws Exception {
+        if (!isAdmin(exchange)) {
+            return forbidden();
+        }
+        if (!(store instanceof DatabaseHelper)) {
+            return new Response(501, "{\"result\":\"Backups need an H2 store\"}");
+        }
+        String name = "users-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".bak.gz";
+        BackupManager.Result result = ((DatabaseHelper) store).backup(Paths.get(System.getProperty("docop.backupDir", "backups"), name));
+        return new Response(200, "{\"file\":" + Json.quote(result.getFile().toString())
+                + ",\"users\":" + result.getRows()
+                + ",\"bytes\":" + result.getBytes()
+                + ",\"millis\":" + result.getMillis() + "}");
+    }
+
+    private Response listUsers(HttpExchange exchange) throws Exception {
+        if (!isAdmin(exchange)) {
+            return forbidden();
+        }
+        UserQuery query = userQuery(exchange.getRequestURI().getRawQuery());
+        exchange.getResponseHeaders().set("X-Total-Count", Integer.toString(store.countUserAccounts(query)));
+        StringBuilder json = new StringBuilder("[");
+        for (String[] account : store.findUserAccounts(query)) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append("{\"username\":").append(Json.quote(account[0]))
+                    .append(",\"firstName\":").append(Json.quote(account[1]))
+                    .append(",\"middleName\":").append(Json.quote(account[2]))
+                    .append(",\"lastName\":").append(Json.quote(account[3]))
+                    .append(",\"roles\":").append(Json.quote(account[4]))
+                    .append('}');
+        }
+        return new Response(200, json.append(']').toString());
+    }
+
+    // Builds a user query from the URL query string of a listing request
+    private static UserQuery userQuery(String rawQuery) {
+        Map<String, String> params = queryParams(rawQuery);
+        String role = params.get("role");
+        if (role != null && Role.fromLabel(role) == null) {
+            throw new IllegalArgumentException("Unknown role: " + role);
+        }
+        UserQuery.SortColumn sortBy;
+        try {
+            sortBy = UserQuery.SortColumn.valueOf(params.getOrDefault("sort", "username").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown sort column: " + params.get("sort"));
+        }
+        return new UserQuery()
+                .usernamePrefix(params.get("username"))
+                .namePrefix(params.get("name"))
+                .emailPrefix(params.get("email"))
+                .role(Role.fromLabel(role))
+                .sortBy(sortBy, !"desc".equalsIgnoreCase(params.get("order")))
+                .page(intParam(params, "offset", 0), Math.min(intParam(params, "limit", UserQuery.DEFAULT_LIMIT), 1000));
+    }
+
+    private static Map<String, String> queryParams(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery != null) {
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+                params.put(key, eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    private static int intParam(Map<String, String> params, String name, int defaultValue) {
+        String value = params.get(name);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    // Checks the bearer token of the request against the session registry
+    private boolean isAdmin(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.startsWith("Bearer ")) {
+            return false;
+        }
+        return sessions.hasRole(header.substring("Bearer ".length()).trim(), Role.ADMIN);
+    }
+
+    private static Response forbidden() {
+        return new Response(403, "{\"error\":\"Admin session required\"}");
+    }
+
+    // Reads a JSON body of at most MAX_BODY_BYTES, without buffering more than that of a larger one
+    private static Map<String, String> readBody(HttpExchange exchange) throws IOException {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength != null) {
+            try {
+                if (Long.parseLong(contentLength.trim()) > MAX_BODY_BYTES) {
+                    throw new BodyTooLargeException();
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid Content-Length: " + contentLength);
+            }
+        }
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] bytes = in.readNBytes(MAX_BODY_BYTES + 1);
+            if (bytes.length > MAX_BODY_BYTES) {
+                throw new BodyTooLargeException();
+            }
+            return Json.parseObject(new String(bytes, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String required(Map<String, String> body, String field) {
+        String value = body.get(field);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing field: " + field);
+        }
+        return value;
+    }
+
+    // Responds with an error, or aborts the exchange if the response has already started
+    private static void fail(HttpExchange exchange, int status, String body, Exception cause) throws IOException {
+        if (exchange.getResponseCode() != -1) {
+
+            // The server closes the connection when a handler throws, without ending the response
+            throw new IOException("Request failed after its response started", cause);
+        }
+        respond(exchange, status, body);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // Builds the metrics document: rejected requests, in-flight permits and per-endpoint counts and mean latency
+    private String metricsJson() {
+        StringBuilder json = new StringBuilder("{\"rejected\":").append(rejected.sum())
+                .append(",\"availablePermits\":").append(inFlight.availablePermits())
+                .append(",\"sessions\":").append(sessions.size())
+                .append(",\"endpoints\":{");
+        boolean first = true;
+        for (Map.Entry<String, EndpointStats> entry : stats.entrySet()) {
+            EndpointStats endpointStats = entry.getValue();
+            long requests = endpointStats.requests.sum();
+            double meanMillis = requests == 0 ? 0 : endpointStats.totalNanos.sum() / 1e6 / requests;
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append(Json.quote(entry.getKey()))
+                    .append(":{\"requests\":").append(requests)
+                    .append(",\"errors\":").append(endpointStats.errors.sum())
+                    .append(",\"meanMillis\":").append(String.format(Locale.ROOT, "%.3f", meanMillis))
+                    .append('}');
+        }
+        json.append('}');
+
+        // Connections borrowed from the store's pool, and how often requests had to wait for one
+        ConnectionPool pool = store instanceof DatabaseHelper ? ((DatabaseHelper) store).getConnectionPool() : null;
+        if (pool != null) {
+            json.append(",\"pool\":{\"size\":").append(pool.getSize())
+                    .append(",\"open\":").append(pool.getOpenCount())
+                    .append(",\"borrowed\":").append(pool.getBorrowedCount())
+                    .append(",\"waits\":").append(pool.getWaitCount())
+                    .append('}');
+        }
+
+        // Replication lag of the warm standby, if the store ships changes to one
+        StandbyReplicator standby = store instanceof DatabaseHelper ? ((DatabaseHelper) store).getStandbyReplicator() : null;
+        if (standby != null) {
+            try {
+                json.append(",\"standby\":{\"sequence\":").append(standby.getAppliedSequence())
+                        .append(",\"lagChanges\":").append(standby.getLagChanges())
+                        .append(",\"lagMillis\":").append(standby.getLagMillis())
+                        .append('}');
+            } catch (SQLException e) {
+                json.append(",\"standby\":{\"error\":").append(Json.quote(e.getMessage())).append('}');
+            }
+        }
+
+        // Statements that exceeded the slow query threshold
+        SlowQueryLog slowQueries = store instanceof DatabaseHelper ? ((DatabaseHelper) store).getSlowQueryLog() : null;
+        if (slowQueries != null) {
+            json.append(",\"slowQueries\":{\"slow\":").append(slowQueries.getSlowCount())
+                    .append(",\"written\":").append(slowQueries.getWrittenCount())
+                    .append(",\"dropped\":").append(slowQueries.getDroppedCount())
+                    .append('}');
+        }
+
+        // Space reclaimed by background compaction of the database file
+        MaintenanceScheduler maintenance = store instanceof DatabaseHelper ? ((DatabaseHelper) store).getMaintenance() : null;
+        if (maintenance != null) {
+            json.append(",\"maintenance\":{\"runs\":").append(maintenance.getRunCount())
+                    .append(",\"reclaimedBytes\":").append(maintenance.getReclaimedBytes())
+                    .append(",\"last\":").append(Json.quote(maintenance.getLastResult()))
+                    .append('}');
+        }
+        return json.append('}').toString();
+    }
+
+    // Uses a virtual thread per request on JDK 21+, falling back to a cached pool of daemon threads
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads not available, using a platform thread pool");
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "http-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,959 @@
+package main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * <p>InMemoryUserStore class is a {@link UserStore} kept entirely in concurrent maps.</p>
+ * <p>It mirrors the behaviour of {@link DatabaseHelper}, including invites being stored as user rows without a
+ * username, but never touches the disk or a JDBC driver. It is meant for tests, benchmarks and demos; nothing
+ * survives a restart.</p>
+ */
+public class InMemoryUserStore implements UserStore {
+
+    /** A single row of the users table. Fields are guarded by the record's monitor. */
+    private static final class UserRecord {
+        private final int userId;
+        private String username;
+        private String email;
+        private byte[] passwordHash;
+        private boolean oneTimePassword;
+        private LocalDateTime passwordExpiration;
+        private String role;
+        private String firstName;
+        private String middleName;
+        private String lastName;
+        private String preferredName;
+        private boolean accountSetupComplete;
+        private String inviteCode;
+        private String inviteRole;
+        private final LocalDateTime createdAt = LocalDateTime.now();
+        private long version;
+        private LocalDateTime inviteExpiresAt;
+
+        private UserRecord(int userId) {
+            this.userId = userId;
+        }
+    }
+
+    /** A single row of the password_reset_tokens table. Fields are guarded by the store's monitor. */
+    private static final class ResetToken {
+        private final int userId;
+        private final LocalDateTime expiresAt;
+        private boolean used;
+
+        private ResetToken(int userId, LocalDateTime expiresAt) {
+            this.userId = userId;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /** Every row, keyed by user id. */
+    private final Map<Integer, UserRecord> rows = new ConcurrentHashMap<>();
+
+    /** Rows with a username, keyed by username. */
+    private final Map<String, UserRecord> byUsername = new ConcurrentHashMap<>();
+
+    /** Rows created from an invite, keyed by the normalized invite code. */
+    private final Map<String, UserRecord> byInviteCode = new ConcurrentHashMap<>();
+
+    /** Password reset tokens, keyed by the token hash. */
+    private final Map<String, ResetToken> resetTokens = new ConcurrentHashMap<>();
+
+    /** Passed to updateProfile for writes that do not check the version. */
+    private static final long ANY_VERSION = Long.MIN_VALUE;
+
+    /** Prefix index used for typeahead suggestions. */
+    private final TypeaheadIndex typeaheadIndex = new TypeaheadIndex();
+
+    /** Source of user ids. */
+    private final AtomicInteger nextUserId = new AtomicInteger(1);
+
+    /**
+     * Default constructor creates an empty store.
+     */
+    public InMemoryUserStore() {
+    }
+
+    /**
+     * Starts using the store. There is nothing to open, so this only logs which store is in use.
+     */
+    @Override
+    public void connectToDatabase() {
+        System.out.println("Using in-memory user store");
+    }
+
+    /**
+     * Stops using the store. The data stays in memory until the store is garbage collected.
+     */
+    @Override
+    public void closeConnection() {
+    }
+
+    /**
+     * Checks if a user exists with the given username, password and role.
+     *
+     * @param username The username of the user.
+     * @param password The password of the user.
+     * @param role The role of the user.
+     * @return True if the credentials and role match a user.
+     */
+    @Override
+    public boolean login(String username, String password, String role) {
+        UserRecord record = byUsername.get(username);
+        if (record == null) {
+            return false;
+        }
+        synchronized (record) {
+            try {
+                return record.passwordHash != null && role != null && role.equals(record.role)
+                        && PasswordManager.verifyPassword(password, record.passwordHash);
+            } catch (NoSuchAlgorithmException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Registers a new user, logging an error and keeping the existing user if the username is taken.
+     *
+     * @param username The username of the user.
+     * @param passwordHash The hashed password of the user.
+     * @param role The role of the user.
+     */
+    @Override
+    public synchronized void register(String username, byte[] passwordHash, String role) {
+        if (username == null || byUsername.containsKey(username)) {
+            System.out.println("Error during user registration: username already exists: " + username);
+            return;
+        }
+        UserRecord record = newRecord();
+        record.username = username;
+        record.passwordHash = passwordHash;
+        record.role = role;
+        byUsername.put(username, record);
+        typeaheadIndex.put(username);
+        System.out.println("User registered successfully with username: " + username);
+    }
+
+    /**
+     * Checks if a user exists.
+     *
+     * @param username The username of the user.
+     * @return True if the user exists.
+     */
+    @Override
+    public boolean doesUserExist(String username) {
+        return username != null && byUsername.containsKey(username);
+    }
+
+    /**
+     * Checks if an invite code exists and has not expired, ignoring case and surrounding spaces.
+     *
+     * @param inviteCode The invite code.
+     * @return True if the invite code exists.
+     */
+    @Override
+    public boolean doesInviteExist(String inviteCode) {
+        UserRecord record = invite(inviteCode);
+        return record != null && !inviteExpired(record, LocalDateTime.now());
+    }
+
+    /**
+     * Retrieves the role granted by an invite code, ignoring case and surrounding spaces.
+     *
+     * @param inviteCode The invite code.
+     * @return The role of the invite, or an empty string if there is none.
+     */
+    @Override
+    public String getRoleFromInvite(String inviteCode) {
+        UserRecord record = invite(inviteCode);
+        if (record == null) {
+            return "";
+        }
+        synchronized (record) {
+            return record.inviteRole;
+        }
+    }
+
+    /**
+     * Adds a role to a user if they do not hold it already.
+     *
+     * @param username The username of the user.
+     * @param newRole The role to add.
+     */
+    @Override
+    public void addRoleToUser(String username, String newRole) {
+        UserRecord record = byUsername.get(username);
+        if (record == null) {
+            System.out.println("User " + username + " not found.");
+            return;
+        }
+        synchronized (record) {
+            String currentRoles = record.role;
+            if (currentRoles == null || currentRoles.isEmpty()) {
+                record.role = newRole;
+                record.version++;
+            } else if (!currentRoles.contains(newRole)) {
+                record.role = currentRoles + "," + newRole;
+                record.version++;
+            }
+        }
+    }
+
+    /**
+     * Removes a role from a user.
+     *
+     * @param username The username of the user.
+     * @param roleToRemove The role to remove.
+     */
+    @Override
+    public void removeRoleFromUser(String username, String roleToRemove) {
+        UserRecord record = byUsername.get(username);
+        if (record == null) {
+            return;
+        }
+        synchronized (record) {
+            if (record.role == null || !record.role.contains(roleToRemove)) {
+                return;
+            }
+            StringBuilder updatedRoles = new StringBuilder();
+            for (String role : record.role.split(",")) {
+                if (!role.equals(roleToRemove)) {
+                    if (updatedRoles.length() > 0) {
+                        updatedRoles.append(",");
+                    }
+                    updatedRoles.append(role);
+                }
+            }
+            record.role = updatedRoles.toString();
+            record.version++;
+        }
+    }
+
+    /**
+     * Retrieves the roles of a user.
+     *
+     * @param username The username of the user.
+     * @return The roles of the user, or an empty array if they have none.
+     */
+    @Override
+    public String[] getRolesForUser(String username) {
+        UserRecord record = byUsername.get(username);
+        if (record == null) {
+            return new String[] {};
+        }
+        synchronized (record) {
+            return (record.role != null && !record.role.isEmpty()) ? record.role.split(",") : new String[] {};
+        }
+    }
+
+    /**
+     * Checks if the store holds no users or invites.
+     *
+     * @return True if the store is empty.
+     */
+    @Override
+    public boolean isDatabaseEmpty() {
+        return rows.isEmpty();
+    }
+
+    /**
+     * Checks a password against the stored hash of a user.
+     *
+     * @param username The username of the user.
+     * @param password The password to check.
+     * @return True if the password is correct.
+     * @throws NoSuchAlgorithmException If the password cannot be hashed.
+     */
+    @Override
+    public boolean isPasswordCorrect(String username, String password) throws NoSuchAlgorithmException {
+        byte[] storedHash = getPasswordHash(username);
+        return storedHash != null && PasswordManager.verifyPassword(password, storedHash);
+    }
+
+    /**
+     * Checks if a user's stored role matches the given role.
+     *
+     * @param username The username of the user.
+     * @param role The role to check.
+     * @return True if the role matches.
+     */
+    @Override
+    public boolean isRoleCorrect(String username, String role) {
+        UserRecord record = byUsername.get(username);
+        if (record == null) {
+            return false;
+        }
+        synchronized (record) {
+            return role != null && role.equals(record.role);
+        }
+    }
+
+    /**
+     * Checks if a user has completed account setup.
+     *
+     * @param username The username of the user.
+     * @return True if the account setup is complete.
+     */
+    @Override
+    public boolean isAccountSetupComplete(String username) {
+        UserRecord record = byUsername.get(username);
+        if (record == null) {
+            return false;
+        }
+        synchronized (record) {
+            return record.accountSetupComplete;
+        }
+    }
+
+    /**
+     * Stores a user's profile and marks their account setup as complete. An email that belongs to another user is
+     * rejected, as the UNIQUE constraint of the H2 store would.
+     *
+     * @param username The username of the user.
+     * @param firstName The first name of the user.
+     * @param middleName The middle name of the user.
+     * @param lastName The last name of the user.
+     * @param preferredName The preferred name of the user.
+     * @param email The email of the user.
+     */
+    @Override
+    public void setupUserDetails(String username, String firstName, String middleName, String lastName, String preferredName, String email) {
+        updateProfile(username, firstName, middleName, lastName, preferredName, email, true, ANY_VERSION);
+    }
+
+    /**
+     * Replaces a user's password with a one-time password that expires on the given date.
+     *
+     * @param username The username of the user.
+     * @param password The one-time password in plaintext.
+     * @param expirationDate The expiration date in MM/DD/YYYY format.
+     * @return A message describing the result.
+     */
+    @Override
+    public String resetUser(String username, String password, String expirationDate) {
+        try {
+            LocalDateTime expiration = parseExpiration(expirationDate);
+            byte[] hashedPassword = PasswordManager.hashPassword(password);
+            UserRecord record = byUsername.get(username);
+            if (record != null) {
+                synchronized (record) {
+                    record.passwordHash = hashedPassword;
+                    record.oneTimePassword = true;
+                    record.passwordExpiration = expiration;
+                    record.version++;
+                }
+            }
+            return "Password reset successfully";
+        } catch (DateTimeParseException e) {
+            return "Invalid date format. Please use MM/DD/YYYY.";
+        } catch (NoSuchAlgorithmException e) {
+            return "Error resetting password.";
+        }
+    }
+
+    /**
+     * Deletes every user, invite and reset token.
+     */
+    @Override
+    public synchronized void clearDatabase() {
+        rows.clear();
+        byUsername.clear();
+        byInviteCode.clear();
+        resetTokens.clear();
+        typeaheadIndex.clear();
+    }
+
+    /**
+     * Creates an invite unless the invite code already exists.
+     *
+     * @param inviteCode The invite code.
+     * @param role The role the invite grants.
+     * @return A message describing the result.
+     */
+    @Override
+    public String addUser(String inviteCode, String role) {
+        if (doesInviteExist(inviteCode)) {
+            return "Invite code already exists";
+        }
+        createInvite(inviteCode, role);
+        return "Invite created successfully";
+    }
+
+    /**
+     * Creates an invite, or adds the role to an existing invite with the same code.
+     *
+     * @param inviteCode The invite code.
+     * @param inviteRole The role the invite grants.
+     */
+    @Override
+    public synchronized void createInvite(String inviteCode, String inviteRole) {
+        UserRecord record = invite(inviteCode);
+        if (record != null) {
+            synchronized (record) {
+                if (record.inviteRole != null && record.inviteRole.contains(inviteRole)) {
+                    return;
+                }
+                String updatedRoles = record.inviteRole == null ? inviteRole : record.inviteRole + "," + inviteRole;
+                record.inviteRole = updatedRoles;
+                record.role = updatedRoles;
+                record.version++;
+            }
+            return;
+        }
+        record = newRecord();
+        record.inviteCode = inviteCode;
+        record.inviteRole = inviteRole;
+        record.role = inviteRole;
+        record.inviteExpiresAt = LocalDateTime.now().plusDays(DatabaseHelper.INVITE_TTL_DAYS);
+        byInviteCode.put(normalize(inviteCode), record);
+    }
+
+    /**
+     * Retrieves a user's profile.
+     *
+     * @param currentUsername The username of the user.
+     * @return The first, middle, last and preferred names and the email; entries are null if unknown.
+     */
+    @Override
+    public String[] getUserDetails(String currentUsername) {
+        String[] userDetails = new String[5];
+        UserRecord record = byUsername.get(currentUsername);
+        if (record != null) {
+            synchronized (record) {
+                userDetails[0] = record.firstName;
+                userDetails[1] = record.middleName;
+                userDetails[2] = record.lastName;
+                userDetails[3] = record.preferredName;
+                userDetails[4] = record.email;
+            }
+        }
+        return userDetails;
+    }
+
+    /**
+     * Updates a user's profile only if the user has not changed since a version was read (compare-and-set).
+     *
+     * @param currentUsername The username of the user.
+     * @param firstName The first name of the user.
+     * @param middleName The middle name of the user.
+     * @param lastName The last name of the user.
+     * @param preferredName The preferred name of the user.
+     * @param email The email of the user.
+     * @param expectedVersion The version returned by {@link #getUserVersion(String)} when the profile was loaded.
+     * @return True if the profile was updated, false if the user was changed or deleted in the meantime.
+     */
+    @Override
+    public boolean updateUserDetails(String currentUsername, String firstName, String middleName, String lastName,
+                                     String preferredName, String email, long expectedVersion) {
+        boolean updated = updateProfile(currentUsername, firstName, middleName, lastName, preferredName, email, false, expectedVersion);
+        if (!updated) {
+            System.out.println("User details of " + currentUsername + " were changed by someone else, update rejected");
+        }
+        return updated;
+    }
+
+    /**
+     * Retrieves the version of a user, which changes on every write to the user's row.
+     *
+     * @param username The username of the user.
+     * @return The version, or -1 if the user does not exist.
+     */
+    @Override
+    public long getUserVersion(String username) {
+        UserRecord record = byUsername.get(username);
+        if (record == null) {
+            return -1;
+        }
+        synchronized (record) {
+            return record.version;
+        }
+    }
+
+    /**
+     * Retrieves every user and invite, in the order they were created.
+     *
+     * @return One row per account holding the username, first, middle and last names and roles.
+     */
+    @Override
+    public String[][] getAllUserAccounts() {
+        List<UserRecord> snapshot = new ArrayList<>(rows.values());
+        snapshot.sort(Comparator.comparingInt(record -> record.userId));
+        String[][] userAccounts = new String[snapshot.size()][5];
+        for (int i = 0; i < snapshot.size(); i++) {
+            UserRecord record = snapshot.get(i);
+            synchronized (record) {
+                userAccounts[i][0] = record.username;
+                userAccounts[i][1] = record.firstName;
+                userAccounts[i][2] = record.middleName;
+                userAccounts[i][3] = record.lastName;
+                userAccounts[i][4] = record.role;
+            }
+        }
+        return userAccounts;
+    }
+
+    /**
+     * Retrieves one page of the users matching a query, filtered and sorted as the H2 store does.
+     *
+     * @param query The filters, sort order and page to load.
+     * @return The matching accounts in the same layout as {@link #getAllUserAccounts()}.
+     */
+    @Override
+    public String[][] findUserAccounts(UserQuery query) {
+        return matching(query)
+                .sorted(comparator(query))
+                .skip(query.getOffset())
+                .limit(query.getLimit())
+                .map(record -> new String[] {
+                        record.username, record.firstName, record.middleName, record.lastName, record.role })
+                .toArray(String[][]::new);
+    }
+
+    /**
+     * Retrieves one page of the users matching a query in the compact form shown by the admin table.
+     *
+     * @param query The filters, sort order and page to load.
+     * @return The matching accounts.
+     */
+    @Override
+    public UserSummaryTable findUserSummaries(UserQuery query) {
+        UserSummaryTable.Builder summaries = new UserSummaryTable.Builder(query.getLimit());
+        matching(query)
+                .sorted(comparator(query))
+                .skip(query.getOffset())
+                .limit(query.getLimit())
+                .forEach(record -> summaries.add(record.userId, record.username, record.firstName, record.lastName, record.role));
+        return summaries.build();
+    }
+
+    /**
+     * Counts the users matching a query, ignoring its sort order and page.
+     *
+     * @param query The filters to apply.
+     * @return The number of matching accounts.
+     */
+    @Override
+    public int countUserAccounts(UserQuery query) {
+        return (int) matching(query).count();
+    }
+
+    /**
+     * Streams every account matching a query's filters to CSV or JSON Lines, in the query's sort order, as the H2
+     * store does. Invites that have not been redeemed are skipped.
+     *
+     * @param query The filters and sort order; the page is ignored.
+     * @param exporter The format, columns, compression and progress callback.
+     * @param out The stream to write to; it is not closed.
+     * @return The number of accounts written.
+     * @throws SQLException Never thrown by this store.
+     * @throws IOException If the stream cannot be written.
+     */
+    @Override
+    public long exportUsers(UserQuery query, RosterExporter exporter, OutputStream out) throws SQLException, IOException {
+        List<RosterExporter.Column> columns = exporter.getColumns();
+        Iterator<Object[]> rows = matching(query)
+                .filter(record -> {
+                    synchronized (record) {
+                        return record.username != null;
+                    }
+                })
+                .sorted(comparator(query))
+                .map(record -> exportRow(record, columns))
+                .iterator();
+        long written = exporter.write(rows, out);
+        System.out.println("Exported " + written + " users with " + exporter);
+        return written;
+    }
+
+    /**
+     * Suggests users whose username, preferred name or last name starts with some text, ignoring case.
+     *
+     * @param prefix The text typed so far.
+     * @param limit The maximum number of suggestions.
+     * @return Up to limit usernames.
+     */
+    @Override
+    public List<String> suggestUsernames(String prefix, int limit) {
+        return typeaheadIndex.suggest(prefix, limit);
+    }
+
+    /**
+     * Deletes a user and their reset tokens.
+     *
+     * @param username The username of the user.
+     */
+    @Override
+    public synchronized void deleteUser(String username) {
+        UserRecord record = username == null ? null : byUsername.remove(username);
+        if (record == null) {
+            System.out.println("No user found with username: " + username);
+            return;
+        }
+        rows.remove(record.userId);
+        if (record.inviteCode != null) {
+            byInviteCode.remove(normalize(record.inviteCode), record);
+        }
+        resetTokens.values().removeIf(token -> token.userId == record.userId);
+        typeaheadIndex.remove(username);
+        System.out.println("User deleted successfully: " + username);
+    }
+
+    /**
+     * Redeems an invite nobody has redeemed yet and that has not expired by attaching a username, password and role to it.
+     *
+     * @param inviteCode The invite code, ignoring case and surrounding spaces.
+     * @param username The username of the new user.
+     * @param passwordHash The hashed password of the new user.
+     * @param role The role of the new user.
+     * @return True if the invite was redeemed, false if it is unknown, already redeemed or expired, or the username is taken.
+     */
+    @Override
+    public synchronized boolean updateUserFromInviteCode(String inviteCode, String username, byte[] passwordHash, String role) {
+        UserRecord record = invite(inviteCode);
+        if (record == null || username == null || inviteExpired(record, LocalDateTime.now())) {
+            return false;
+        }
+        if (byUsername.containsKey(username)) {
+            System.out.println("Error redeeming invite: username already exists: " + username);
+            return false;
+        }
+        synchronized (record) {
+            if (record.username != null) {
+                return false;
+            }
+            record.username = username;
+            record.passwordHash = passwordHash;
+            record.role = role;
+            record.version++;
+            typeaheadIndex.put(username, record.preferredName, record.lastName);
+        }
+        byUsername.put(username, record);
+        return true;
+    }
+
+    /**
+     * Retrieves a user's password hash.
+     *
+     * @param username The username of the user.
+     * @return The password hash, or null if the user or password does not exist.
+     */
+    @Override
+    public byte[] getPasswordHash(String username) {
+        UserRecord record = byUsername.get(username);
+        if (record == null) {
+            return null;
+        }
+        synchronized (record) {
+            return record.passwordHash;
+        }
+    }
+
+    /**
+     * Sets a one-time password for a user.
+     *
+     * @param username The username of the user.
+     * @param oneTimePasswordHash The hashed one-time password.
+     * @param expirationDateTime The expiration date in MM/DD/YYYY format.
+     */
+    @Override
+    public void setOneTimePassword(String username, byte[] oneTimePasswordHash, String expirationDateTime) {
+        try {
+            LocalDateTime expiration = parseExpiration(expirationDateTime);
+            UserRecord record = byUsername.get(username);
+            if (record != null) {
+                synchronized (record) {
+                    record.passwordHash = oneTimePasswordHash;
+                    record.oneTimePassword = true;
+                    record.passwordExpiration = expiration;
+                    record.version++;
+                }
+            }
+        } catch (DateTimeParseException e) {
+            System.err.println("Error parsing expiration date: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks if a user's one-time password is set and has not expired.
+     *
+     * @param username The username of the user.
+     * @return True if the one-time password is valid.
+     */
+    @Override
+    public boolean isOneTimePasswordValid(String username) {
+        UserRecord record = byUsername.get(username);
+        if (record == null) {
+            return false;
+        }
+        synchronized (record) {
+            return record.oneTimePassword && record.passwordExpiration != null
+                    && !LocalDateTime.now().isAfter(record.passwordExpiration);
+        }
+    }
+
+    /**
+     * Clears one-time passwords past their expiration, deletes invites nobody redeemed before they expired and drops
+     * expired reset tokens.
+     *
+     * @return The number of one-time passwords, invites and tokens removed.
+     */
+    @Override
+    public synchronized int sweepExpiredCredentials() {
+        LocalDateTime now = LocalDateTime.now();
+        int swept = 0;
+        for (UserRecord record : new ArrayList<>(rows.values())) {
+            synchronized (record) {
+                if (record.oneTimePassword && record.passwordExpiration != null && record.passwordExpiration.isBefore(now)) {
+                    record.passwordHash = null;
+                    record.passwordExpiration = null;
+                    record.version++;
+                    swept++;
+                } else if (record.username == null && inviteExpired(record, now)) {
+                    rows.remove(record.userId);
+                    byInviteCode.remove(normalize(record.inviteCode), record);
+                    swept++;
+                }
+            }
+        }
+        for (Map.Entry<String, ResetToken> entry : new ArrayList<>(resetTokens.entrySet())) {
+            if (entry.getValue().expiresAt.isBefore(now) && resetTokens.remove(entry.getKey(), entry.getValue())) {
+                swept++;
+            }
+        }
+        return swept;
+    }
+
+    /**
+     * Stores a password reset token for a user, marking any unused token the user already has as used.
+     *
+     * @param username The username of the user.
+     * @param tokenHash The hash of the token.
+     * @param ttlMinutes How long the token stays valid, in minutes.
+     * @return True if the token was stored, false if the user does not exist.
+     */
+    @Override
+    public synchronized boolean createPasswordResetToken(String username, String tokenHash, int ttlMinutes) {
+        UserRecord record = username == null ? null : byUsername.get(username);
+        if (record == null) {
+            System.out.println("Cannot create reset token, no user found with username: " + username);
+            return false;
+        }
+        for (ResetToken token : resetTokens.values()) {
+            if (token.userId == record.userId) {
+                token.used = true;
+            }
+        }
+        resetTokens.put(tokenHash, new ResetToken(record.userId, LocalDateTime.now().plusMinutes(ttlMinutes)));
+        return true;
+    }
+
+    /**
+     * Consumes a password reset token and sets the user's new password.
+     *
+     * @param tokenHash The hash of the token.
+     * @param newPasswordHash The hashed new password.
+     * @return The username whose password was reset, or null if the token is unknown, used or expired.
+     */
+    @Override
+    public synchronized String consumePasswordResetToken(String tokenHash, byte[] newPasswordHash) {
+        ResetToken token = resetTokens.get(tokenHash);
+        if (token == null || token.used || token.expiresAt.isBefore(LocalDateTime.now())) {
+            return null;
+        }
+        token.used = true;
+        UserRecord record = rows.get(token.userId);
+        if (record == null || record.username == null) {
+            return null;
+        }
+        updatePasswordAfterOtp(record.username, newPasswordHash);
+        return record.username;
+    }
+
+    /**
+     * Replaces a one-time password with the user's new password.
+     *
+     * @param username The username of the user.
+     * @param newPasswordHash The hashed new password.
+     */
+    @Override
+    public void updatePasswordAfterOtp(String username, byte[] newPasswordHash) {
+        UserRecord record = byUsername.get(username);
+        if (record == null) {
+            return;
+        }
+        synchronized (record) {
+            record.passwordHash = newPasswordHash;
+            record.oneTimePassword = false;
+            record.passwordExpiration = null;
+            record.version++;
+        }
+    }
+
+    /**
+     * Checks if a user's password is a one-time password.
+     *
+     * @param username The username of the user.
+     * @return True if a one-time password is set.
+     */
+    @Override
+    public boolean isOneTimePasswordSet(String username) {
+        UserRecord record = byUsername.get(username);
+        if (record == null) {
+            return false;
+        }
+        synchronized (record) {
+            return record.oneTimePassword;
+        }
+    }
+
+    // Writes a user's profile, rejecting an email that belongs to someone else as the UNIQUE constraint would.
+    // Unless expectedVersion is ANY_VERSION, the write only happens if the user's version still matches.
+    private synchronized boolean updateProfile(String username, String firstName, String middleName, String lastName,
+                                               String preferredName, String email, boolean completeSetup, long expectedVersion) {
+        UserRecord record = byUsername.get(username);
+        if (record == null) {
+            System.out.println("Failed to update user details for username: " + username);
+            return false;
+        }
+        for (UserRecord other : rows.values()) {
+            if (other != record && email != null && email.equals(other.email)) {
+                System.err.println("Email already in use: " + email);
+                return false;
+            }
+        }
+        synchronized (record) {
+            if (expectedVersion != ANY_VERSION && record.version != expectedVersion) {
+                return false;
+            }
+            record.version++;
+            record.firstName = firstName;
+            record.middleName = middleName;
+            record.lastName = lastName;
+            record.preferredName = preferredName;
+            record.email = email;
+            typeaheadIndex.put(username, preferredName, lastName);
+            if (completeSetup) {
+                record.accountSetupComplete = true;
+            }
+        }
+        return true;
+    }
+
+    // Snapshots the rows and applies the filters of a user query, matching the SQL semantics
+    private Stream<UserRecord> matching(UserQuery query) {
+        String namePrefix = query.getNamePrefix() == null ? null : query.getNamePrefix().toLowerCase(Locale.ROOT);
+        String emailPrefix = query.getEmailPrefix() == null ? null : query.getEmailPrefix().toLowerCase(Locale.ROOT);
+        return new ArrayList<>(rows.values()).stream().filter(record -> {
+            synchronized (record) {
+                if (query.getUsernamePrefix() != null
+                        && (record.username == null || !record.username.startsWith(query.getUsernamePrefix()))) {
+                    return false;
+                }
+                if (namePrefix != null && !startsWithIgnoreCase(record.firstName, namePrefix)
+                        && !startsWithIgnoreCase(record.lastName, namePrefix)
+                        && !startsWithIgnoreCase(record.preferredName, namePrefix)) {
+                    return false;
+                }
+                if (emailPrefix != null && !startsWithIgnoreCase(record.email, emailPrefix)) {
+                    return false;
+                }
+                if (query.getRole() != null && !Role.setOf(record.role == null ? null : record.role.split(","))
+                        .contains(query.getRole())) {
+                    return false;
+                }
+                if (query.getCreatedFrom() != null && record.createdAt.isBefore(query.getCreatedFrom())) {
+                    return false;
+                }
+                return query.getCreatedTo() == null || record.createdAt.isBefore(query.getCreatedTo());
+            }
+        });
+    }
+
+    // Orders rows by the query's sort column with the user id as tie-break, nulls first as H2 does
+    private static Comparator<UserRecord> comparator(UserQuery query) {
+        Comparator<String> nullsFirst = Comparator.nullsFirst(Comparator.naturalOrder());
+        Comparator<UserRecord> order;
+        switch (query.getSortBy()) {
+            case FIRST_NAME: order = Comparator.comparing(record -> lower(record.firstName), nullsFirst); break;
+            case LAST_NAME: order = Comparator.comparing(record -> lower(record.lastName), nullsFirst); break;
+            case EMAIL: order = Comparator.comparing(record -> lower(record.email), nullsFirst); break;
+            case CREATED_AT: order = Comparator.comparing(record -> record.createdAt); break;
+            default: order = Comparator.comparing(record -> record.username, nullsFirst);
+        }
+        order = order.thenComparingInt(record -> record.userId);
+        return query.isAscending() ? order : order.reversed();
+    }
+
+    // Reads the exported columns of a row, as the values the H2 store's result set would hold
+    private static Object[] exportRow(UserRecord record, List<RosterExporter.Column> columns) {
+        Object[] row = new Object[columns.size()];
+        synchronized (record) {
+            for (int i = 0; i < row.length; i++) {
+                switch (columns.get(i)) {
+                    case USERNAME: row[i] = record.username; break;
+                    case FIRST_NAME: row[i] = record.firstName; break;
+                    case MIDDLE_NAME: row[i] = record.middleName; break;
+                    case LAST_NAME: row[i] = record.lastName; break;
+                    case PREFERRED_NAME: row[i] = record.preferredName; break;
+                    case EMAIL: row[i] = record.email; break;
+                    case ROLES: row[i] = record.role; break;
+                    case SETUP_COMPLETE: row[i] = record.accountSetupComplete; break;
+                    default: row[i] = record.createdAt;
+                }
+            }
+        }
+        return row;
+    }
+
+    private static boolean startsWithIgnoreCase(String value, String lowerPrefix) {
+        return value != null && value.toLowerCase(Locale.ROOT).startsWith(lowerPrefix);
+    }
+
+    private static String lower(String value) {
+        return value == null ? null : value.toLowerCase(Locale.ROOT);
+    }
+
+    // Creates and registers an empty row with a fresh user id
+    private UserRecord newRecord() {
+        UserRecord record = new UserRecord(nextUserId.getAndIncrement());
+        rows.put(record.userId, record);
+        return record;
+    }
+
+    // Finds the invite row whose code matches ignoring case and surrounding spaces, as the SQL invite_code_norm lookups do
+    private UserRecord invite(String inviteCode) {
+        return inviteCode == null ? null : byInviteCode.get(normalize(inviteCode));
+    }
+
+    // Checks whether an invite has passed its expiry
+    private static boolean inviteExpired(UserRecord record, LocalDateTime now) {
+        return record.inviteExpiresAt != null && record.inviteExpiresAt.isBefore(now);
+    }
+
+    // Normalizes an invite code the same way as LOWER(TRIM(...)) in SQL, which trims spaces only
+    private static String normalize(String inviteCode) {
+        return DatabaseHelper.normalizeInviteCode(inviteCode);
+    }
+
+    // Parses an MM/DD/YYYY expiration date into the start of that day
+    private static LocalDateTime parseExpiration(String expirationDate) {
+        return LocalDate.parse(expirationDate, DateTimeFormatter.ofPattern("MM/dd/yyyy")).atStartOfDay();
+    }
+}
@@ -1,26 +1,52 @@
 package main;
 
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.sql.SQLException;
+import java.time.Instant;
 import java.util.Arrays;
+import java.util.Base64;
 
 /**
  * <p>LoginManager class handles the logic for user authentication and account management.</p>
  * <p>This class includes methods for login, password reset, user registration, and invite-based registration.</p>
- * <p>It interacts with the {@link DatabaseHelper} class to execute database operations.</p>
+ * <p>It interacts with a {@link UserStore}, normally the {@link DatabaseHelper}, to execute database operations.</p>
  */
 public class LoginManager {
 
-    /** The DatabaseHelper object to handle database operations. */
-    private DatabaseHelper dbHelper;
+    /** How long a password reset token stays valid, in minutes (system property docop.resetTokenTtlMinutes). */
+    private static final int RESET_TOKEN_TTL_MINUTES = Integer.getInteger("docop.resetTokenTtlMinutes", 60);
+
+    /** Random bytes in a password reset token. */
+    private static final int RESET_TOKEN_BYTES = 32;
+
+    /** Source of password reset tokens. */
+    private static final SecureRandom TOKEN_RANDOM = new SecureRandom();
+
+    /** The UserStore object to handle database operations. */
+    private UserStore dbHelper;
+
+    /** Whether each login and registration step is traced on standard output. */
+    private final boolean verbose;
+
+    /**
+     * Constructor for LoginManager that traces each step on standard output.
+     *
+     * @param dbHelper The UserStore instance used for database operations.
+     */
+    public LoginManager(UserStore dbHelper) {
+        this(dbHelper, true);
+    }
 
     /**
      * Constructor for LoginManager.
      *
-     * @param dbHelper The DatabaseHelper instance used for database operations.
+     * @param dbHelper The UserStore instance used for database operations.
+     * @param verbose Whether to trace each step on standard output; a server handling many requests turns it off.
      */
-    public LoginManager(DatabaseHelper dbHelper) {
+    public LoginManager(UserStore dbHelper, boolean verbose) {
         this.dbHelper = dbHelper;
+        this.verbose = verbose;
     }
 
     /**
@@ -29,12 +55,17 @@ public class LoginManager {
      * @param username The username of the user attempting to log in.
      * @param password The password or OTP provided by the user.
      * @param role The role the user is attempting to log in with.
-     * @param currentDateTime The current date and time for OTP validation.
      * @return A message indicating the login result: success, failure, or specific errors.
      */
-    public String login(String username, String password, String role, String currentDateTime) {
+    public String login(String username, String password, String role) {
         try {
-            System.out.println("Login attempt for username: " + username + " with role: " + role);
+            log("Login attempt for username: " + username + " with role: " + role);
+
+            // Authenticate from the off-heap index without touching the database when it is enabled
+            AuthIndex authIndex = dbHelper.getAuthIndex();
+            if (authIndex != null) {
+                return loginFromIndex(authIndex, username, password, role);
+            }
 
             // Check if the user exists
             if (!dbHelper.doesUserExist(username)) {
@@ -44,6 +75,12 @@ public class LoginManager {
             // Fetch stored hash for password validation
             byte[] storedHash = dbHelper.getPasswordHash(username);
             if (storedHash == null) {
+
+                // The expiry sweeper clears the hash of an expired one-time password but leaves its flag set
+                if (dbHelper.isOneTimePasswordSet(username)) {
+                    log("One-time password expired for user: " + username);
+                    return "One-time password has expired, please contact the admin.";
+                }
                 return "User does not exist or no password found";
             }
 
@@ -55,31 +92,31 @@ public class LoginManager {
             // Check if the one-time password (OTP) is set
             boolean isOtpSet = dbHelper.isOneTimePasswordSet(username);
             if (isOtpSet) {
-                System.out.println("One-time password is set for user: " + username);
+                log("One-time password is set for user: " + username);
 
                 // Validate OTP expiration
-                if (dbHelper.isOneTimePasswordValid(username, currentDateTime)) {
-                    System.out.println("One-time password is valid for user: " + username);
+                if (dbHelper.isOneTimePasswordValid(username)) {
+                    log("One-time password is valid for user: " + username);
 
                     // Verify the password (OTP)
                     if (!PasswordManager.verifyPassword(password, storedHash)) {
-                        System.out.println("Incorrect one-time password for user: " + username);
+                        log("Incorrect one-time password for user: " + username);
                         return "Incorrect one-time password";
                     }
 
                     // OTP login successful, allow password reset
-                    System.out.println("OTP login successful, redirecting user to reset password page.");
+                    log("OTP login successful, redirecting user to reset password page.");
                     return "OTP login successful, please reset your password.";
                 } else {
                     // If the OTP has expired, deny login
-                    System.out.println("One-time password expired for user: " + username);
+                    log("One-time password expired for user: " + username);
                     return "One-time password has expired, please contact the admin.";
                 }
             }
 
             // Standard password verification if OTP is not set
             if (!PasswordManager.verifyPassword(password, storedHash)) {
-                System.out.println("Incorrect password for user: " + username);
+                log("Incorrect password for user: " + username);
                 return "Incorrect password";
             }
 
@@ -89,7 +126,7 @@ public class LoginManager {
                 return "You do not have the role '" + role + "' assigned.";
             }
 
-            System.out.println("Login successful for user: " + username);
+            log("Login successful for user: " + username);
             return "Login successful";
 
         } catch (Exception e) {
@@ -98,6 +135,44 @@ public class LoginManager {
         }
     }
 
+    /**
+     * Handles user login using the off-heap authentication index, returning the same messages as the database path.
+     *
+     * @param authIndex The index holding the users' credentials.
+     * @param username The username of the user attempting to log in.
+     * @param password The password or OTP provided by the user.
+     * @param role The role the user is attempting to log in with.
+     * @return A message indicating the login result.
+     * @throws NoSuchAlgorithmException If there is an issue hashing the password.
+     */
+    private String loginFromIndex(AuthIndex authIndex, String username, String password, String role)
+            throws NoSuchAlgorithmException {
+        long now = Instant.now().getEpochSecond();
+        byte[] enteredHash = PasswordManager.hashPassword(password);
+
+        switch (authIndex.check(username, enteredHash, role, now)) {
+            case UNKNOWN_USER:
+                return "User does not exist";
+            case NO_PASSWORD:
+                return "User does not exist or no password found";
+            case SETUP_INCOMPLETE:
+                return "Account setup incomplete";
+            case OTP_ACCEPTED:
+                return "OTP login successful, please reset your password.";
+            case OTP_MISMATCH:
+                return "Incorrect one-time password";
+            case OTP_EXPIRED:
+                return "One-time password has expired, please contact the admin.";
+            case PASSWORD_MISMATCH:
+                return "Incorrect password";
+            case ROLE_MISSING:
+                return "You do not have the role '" + role + "' assigned.";
+            default:
+                log("Login successful for user: " + username);
+                return "Login successful";
+        }
+    }
+
     /**
      * Resets the user's password after successful OTP validation.
      *
@@ -107,10 +182,57 @@ public class LoginManager {
      */
     public String resetPassword(String username, String newPassword) {
         try {
-            System.out.println("Resetting password for username: " + username);
+            log("Resetting password for username: " + username);
             byte[] hashedPassword = PasswordManager.hashPassword(newPassword); // Hash the new password
             dbHelper.updatePasswordAfterOtp(username, hashedPassword); // Update the password and clear the OTP flag
-            System.out.println("Password reset successful for user: " + username);
+            log("Password reset successful for user: " + username);
+            return "Password reset successful, please log in again.";
+        } catch (Exception e) {
+            e.printStackTrace();
+            return "Database error";
+        }
+    }
+
+    /**
+     * Issues a password reset token for a user. Only the token's hash is stored, and the user's account is left
+     * untouched until the token is redeemed; any earlier unused token of the user stops working.
+     *
+     * @param username The username of the user.
+     * @return The token to hand to the user, or null if the user does not exist or the token could not be stored.
+     */
+    public String issuePasswordResetToken(String username) {
+        try {
+            byte[] bytes = new byte[RESET_TOKEN_BYTES];
+            TOKEN_RANDOM.nextBytes(bytes);
+            String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+            if (!dbHelper.createPasswordResetToken(username, PasswordManager.hashToken(token), RESET_TOKEN_TTL_MINUTES)) {
+                return null;
+            }
+            return token;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Resets a user's password with a token from {@link #issuePasswordResetToken(String)}. The token can be used once.
+     *
+     * @param token The token provided by the user.
+     * @param newPassword The new password provided by the user.
+     * @return A message indicating the result of the password reset.
+     */
+    public String resetPasswordWithToken(String token, String newPassword) {
+        try {
+            if (token == null || token.isBlank()) {
+                return "Invalid or expired reset token";
+            }
+            byte[] hashedPassword = PasswordManager.hashPassword(newPassword);
+            String username = dbHelper.consumePasswordResetToken(PasswordManager.hashToken(token.strip()), hashedPassword);
+            if (username == null) {
+                return "Invalid or expired reset token";
+            }
+            log("Password reset with token successful for user: " + username);
             return "Password reset successful, please log in again.";
         } catch (Exception e) {
             e.printStackTrace();
@@ -129,11 +251,10 @@ public class LoginManager {
     public String register(String username, String password, String role) {
         try {
             if (dbHelper.doesUserExist(username)) {
-                System.out.println("User already exists for username: " + username);
+                log("User already exists for username: " + username);
                 return "User already exists";
             }
             byte[] hashedPassword = PasswordManager.hashPassword(password);  // Hash password to byte[]
-            System.out.println("Hashed password for user " + username + ": " + Arrays.toString(hashedPassword));
             dbHelper.register(username, hashedPassword, role);
             return "Registration successful";
         } catch (Exception e) {
@@ -148,7 +269,8 @@ public class LoginManager {
      * @param inviteCode The invite code used for registration.
      * @param username The username for the new user.
      * @param password The plaintext password for the new user.
-     * @return A message indicating the result of the invite-based registration.
+     * @return A message indicating the result of the invite-based registration: "Registration successful",
+     *         "Invalid invite code", "Invite already used or username taken" or "Database error".
      */
     public String registerInvite(String inviteCode, String username, String password) {
         try {
@@ -158,7 +280,12 @@ public class LoginManager {
 
             byte[] hashedPassword = PasswordManager.hashPassword(password);  // Hash password to byte[]
             String role = dbHelper.getRoleFromInvite(inviteCode);
-            dbHelper.updateUserFromInviteCode(inviteCode, username, hashedPassword, role);
+
+            // The store only redeems an invite nobody has redeemed yet
+            if (!dbHelper.updateUserFromInviteCode(inviteCode, username, hashedPassword, role)) {
+                log("Invite could not be redeemed by username: " + username);
+                return "Invite already used or username taken";
+            }
             return "Registration successful";
         } catch (Exception e) {
             e.printStackTrace();
@@ -179,11 +306,18 @@ public class LoginManager {
         try {
             byte[] otpHash = PasswordManager.hashPassword(oneTimePassword); // Hash the OTP
             dbHelper.setOneTimePassword(username, otpHash, expirationDateTime); // Set OTP and expiration
-            System.out.println("One-time password set for user: " + username); // Debugging statement
+            log("One-time password set for user: " + username);
             return "One-time password set successfully";
         } catch (SQLException e) {
             e.printStackTrace();
             return "Database error";
         }
     }
+
+    // Prints a trace of a login or registration step unless tracing is off
+    private void log(String message) {
+        if (verbose) {
+            System.out.println(message);
+        }
+    }
 }
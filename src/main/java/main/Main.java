@@ -1,18 +1,38 @@
 package main;
 
 
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import javafx.application.Application;
-import javafx.beans.property.SimpleStringProperty;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.geometry.Insets;
+import javafx.geometry.Side;
+import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Pane;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
 /*******
@@ -37,8 +57,8 @@ public class Main extends Application {
     public Main() {
     }
 
-    //Create a DatabaseHelper object to interact with the database
-    private DatabaseHelper dbHelper = new DatabaseHelper();
+    //Create the UserStore selected by the docop.store system property to interact with the database
+    private UserStore dbHelper = UserStores.fromSystemProperties();
 
     // Create LoginManager and SessionManager objects to handle login and session management
     private LoginManager loginManager;
@@ -46,66 +66,286 @@ public class Main extends Application {
     // Create a SessionManager object to manage the user session
     private SessionManager sessionManager;
 
-    @Override
-    public void start(Stage primaryStage) {
-        try {
+    // Registry of every live session, shared by the session managers of this process
+    private final SessionRegistry sessionRegistry = new SessionRegistry();
 
-            //Connect to the database
-            dbHelper.connectToDatabase();
+    // The filters, sort order and page of the admin user table, evaluated by the database
+    private UserQuery userQuery = new UserQuery();
 
-            //Create a LoginManager object to handle login
-            loginManager = new LoginManager(dbHelper);
+    // The page of users shown in the admin table, indexed by the table's row items
+    private UserSummaryTable userSummaries = new UserSummaryTable.Builder(0).build();
 
-            //Create a SessionManager object to manage the user session
-            this.sessionManager = new SessionManager();
+    // Number of users matching the current query, and the label showing the visible range
+    private int userMatchCount;
+    private Label userPageLabel;
 
-            // If no users exist in the database, redirect to Admin creation
-            if (dbHelper.isDatabaseEmpty()) {
+    // Number of typeahead suggestions shown under the user search box
+    private static final int TYPEAHEAD_SUGGESTIONS = 8;
 
-                //Create a new Admin
-                GridPane adminCreationLayout = createAdminCreationLayout(primaryStage);
+    // Set while the user table's items are replaced, so the sort policy does not reload again
+    private boolean reloadingUserTable;
 
-                //Create a new scene for the Admin
-                Scene adminScene = new Scene(adminCreationLayout, 800, 450);
+    // Completed with whether the database is empty once it is connected and warmed up, or with the startup error
+    private final CompletableFuture<Boolean> backendReady = new CompletableFuture<>();
 
-                //Add the css file to the scene
-//                adminScene.getStylesheets().add(getClass().getResource("application.css").toExternalForm());
+    // Screens built once and rebound to new data when shown again; the dashboard is built once per login
+    private final ScreenCache screens = new ScreenCache();
 
-                //Set the title of the stage
-                primaryStage.setTitle("Create Admin");
+    // The scenes the screens are shown in: the styled login window and the larger dashboard window
+    private Scene loginScene;
+    private Scene dashboardScene;
 
-                //Set the scene for the stage
-                primaryStage.setScene(adminScene);
+    // The user, details and roles the dashboard was last bound to, so switching role does not load them again
+    private String dashboardUsername;
+    private String[] dashboardUserDetails;
+    private String[] dashboardRoles;
 
-            } else {
+    // Set while the dashboard is rebound, so setting the role box does not switch role again
+    private boolean bindingDashboard;
+
+    // The change log sequence the user table was loaded at (-1 without a change log), and whether a change made
+    // from this window has not been loaded yet
+    private long userTableSequence = -1;
+    private boolean userTableStale = true;
+
+    @Override
+    public void start(Stage primaryStage) {
+        long startNanos = System.nanoTime();
+
+        //Create a LoginManager object to handle login
+        loginManager = new LoginManager(dbHelper);
+
+        //Create a SessionManager object to manage the user session
+        this.sessionManager = new SessionManager(sessionRegistry);
+
+        // Connect, check the schema and warm up in the background while the login window is shown
+        startBackend(startNanos);
+
+        //Create the scenes once; screens are swapped in as their roots, so the stylesheet is parsed only once
+        loginScene = new Scene(new GridPane(), 800, 450);
+        dashboardScene = new Scene(new GridPane(), 900, 600);
+
+        //Add the css file to the scene
+        loginScene.getStylesheets().add(getClass().getResource("application.css").toExternalForm());
+
+        // Report the time to the first frame once the scene has been laid out for the first time
+        CompletableFuture<Long> firstFrameShown = new CompletableFuture<>();
+        Runnable[] firstFrame = {null};
+        firstFrame[0] = () -> {
+            if (firstFrame[0] != null) {
+                Runnable listener = firstFrame[0];
+                firstFrame[0] = null;
+                Platform.runLater(() -> loginScene.removePostLayoutPulseListener(listener));
+                firstFrameShown.complete(millisSince(startNanos));
+                System.out.println("First frame after " + millisSince(startNanos) + " ms" + sinceProcessStart());
+            }
+        };
+        loginScene.addPostLayoutPulseListener(firstFrame[0]);
+
+        //Set the title of the stage
+        primaryStage.setTitle("Login");
+
+        //Show the login screen; its buttons stay disabled until the backend is ready
+        showLogin(primaryStage);
+        primaryStage.show();
+
+        // Launched to record the class-data-sharing archive or to time startup: script a session, report and exit
+        boolean trainingRun = getParameters().getRaw().contains("--training-run");
+        if (trainingRun || getParameters().getRaw().contains("--exit-when-ready")) {
+            firstFrameShown.thenCombine(backendReady, (frameMillis, empty) -> frameMillis)
+                    .whenComplete((frameMillis, error) -> Platform.runLater(() -> {
+                        if (error == null) {
+                            if (trainingRun) {
+                                runTrainingSession(primaryStage);
+                            }
+                            System.out.println(StartupBenchmark.STARTUP_LINE + "firstFrameMs=" + frameMillis
+                                    + " readyMs=" + millisSince(startNanos) + " vmHwmKb=" + StartupBenchmark.peakRssKb());
+                        }
+                        Platform.exit();
+                    }));
+            return;
+        }
 
-                //Create a new login layout
-                GridPane loginLayout = createLoginLayout(primaryStage);
+        // If no users exist in the database, redirect to Admin creation once that is known
+        backendReady.thenAccept(empty -> {
+            if (empty) {
+                Platform.runLater(() -> {
 
-                //Create a new scene for the login
-                Scene loginScene = new Scene(loginLayout, 800, 450);
+                    //Create a new scene for the Admin
+                    Scene adminScene = new Scene(new GridPane(), 800, 450);
 
-                //Add the css file to the scene
-                loginScene.getStylesheets().add(getClass().getResource("application.css").toExternalForm());
+                    //Add the css file to the scene
+//                    adminScene.getStylesheets().add(getClass().getResource("application.css").toExternalForm());
 
-                //Set the title of the stage
-                primaryStage.setTitle("Login");
+                    //Set the title of the stage
+                    primaryStage.setTitle("Create Admin");
 
-                //Set the scene for the stage
-                primaryStage.setScene(loginScene);
+                    //Create a new Admin
+                    showScreen(primaryStage, adminScene, "adminCreation", () -> createAdminCreationLayout(primaryStage), null);
+                });
             }
+        });
+    }
 
-            primaryStage.show();
+    // Runs the startup work on background threads and completes backendReady with whether the database is empty.
+    // Connecting and checking the schema run in sequence; warming up hashing runs beside them, and warming up the
+    // login statements follows the connection.
+    private void startBackend(long startNanos) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService startup = Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "startup-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
 
-        } catch (Exception e) {
+        CompletableFuture<Void> hashing = CompletableFuture.runAsync(Main::warmUpHashing, startup);
+        CompletableFuture<Boolean> schema = CompletableFuture.supplyAsync(() -> {
+            try {
+                dbHelper.connectToDatabase();
+                System.out.println("Database connected after " + millisSince(startNanos) + " ms");
+                return dbHelper.isDatabaseEmpty();
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, startup);
+        CompletableFuture<Boolean> statements = schema.thenApplyAsync(empty -> {
+            warmUpStatements();
+            return empty;
+        }, startup);
+
+        statements.thenCombine(hashing, (empty, ignored) -> empty).whenComplete((empty, error) -> {
+            startup.shutdown();
+            if (error != null) {
+                System.err.println("Startup failed after " + millisSince(startNanos) + " ms: " + error.getMessage());
+                backendReady.completeExceptionally(error);
+            } else {
+                System.out.println("Backend ready after " + millisSince(startNanos) + " ms" + sinceProcessStart());
+                backendReady.complete(empty);
+            }
+        });
+    }
+
+    // Creates an admin, logs in and lays out the admin dashboard, so the classes of a typical session are loaded
+    // while the class-data-sharing archive is recorded
+    private void runTrainingSession(Stage stage) {
+        String username = "training-admin";
+        String password = "Training-run1!";
+        try {
+            loginManager.register(username, password, "Admin");
+            dbHelper.setupUserDetails(username, "Training", "", "Admin", "", "training-admin@example.com");
+            loginManager.login(username, password, "Admin");
+            sessionManager.begin(username, "Admin", dbHelper.getRolesForUser(username));
+            showDashboard(stage, "Admin");
+            stage.getScene().getRoot().applyCss();
+            stage.getScene().getRoot().layout();
+        } catch (SQLException e) {
+            System.err.println("Training session failed: " + e.getMessage());
+        }
+    }
 
-            //Print the stack
+    // Loads the digest provider and compiles the hashing and password rules used by the first login
+    private static void warmUpHashing() {
+        try {
+            for (int i = 0; i < 200; i++) {
+                PasswordManager.verifyPassword("startup-warm-up", PasswordManager.hashPassword("startup-warm-up" + i));
+                PasswordEvaluator.evaluatePassword("Startup-warm-up" + i);
+            }
+        } catch (NoSuchAlgorithmException e) {
+            System.err.println("Hashing warm-up failed: " + e.getMessage());
+        }
+    }
+
+    // Prepares the statements of the login path once, so the first real login does not pay for parsing and planning
+    private void warmUpStatements() {
+        String username = "startup-warm-up";
+        try {
+            dbHelper.getPasswordHash(username);
+            dbHelper.isAccountSetupComplete(username);
+            dbHelper.isOneTimePasswordSet(username);
+            dbHelper.getRolesForUser(username);
+        } catch (SQLException e) {
+            System.err.println("Statement warm-up failed: " + e.getMessage());
+        }
+    }
+
+    private static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    // Describes the time since the JVM process started, if the platform reports it
+    private static String sinceProcessStart() {
+        return ProcessHandle.current().info().startInstant()
+                .map(started -> " (" + Duration.between(started, Instant.now()).toMillis() + " ms since process start)")
+                .orElse("");
+    }
+
+    // Shows a cached screen whose binder does not load anything from the database
+    private <T> void showScreen(Stage stage, Scene scene, String name, Supplier<ScreenCache.Screen<T>> factory, T data) {
+        try {
+            screens.show(stage, scene, name, factory, data);
+        } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
+    // Navigation: each screen is built the first time it is shown and only rebound to its data afterwards
+    private void showLogin(Stage stage) {
+        showScreen(stage, loginScene, "login", () -> createLoginLayout(stage), null);
+    }
+
+    private void showRegister(Stage stage) {
+        showScreen(stage, loginScene, "register", () -> createRegisterLayout(stage), null);
+    }
+
+    private void showTokenReset(Stage stage) {
+        showScreen(stage, loginScene, "tokenReset", () -> createTokenResetLayout(stage), null);
+    }
+
+    private void showPasswordReset(Stage stage, String username) {
+        showScreen(stage, loginScene, "passwordReset", () -> createPasswordResetLayout(stage), username);
+    }
+
+    private void showSetup(Stage stage) {
+        showScreen(stage, loginScene, "setup", () -> createSetupLayout(stage), null);
+    }
+
+    private void showDashboard(Stage stage, String role) throws SQLException {
+        screens.show(stage, dashboardScene, "dashboard", () -> createUserDashboard(stage), role);
+    }
+
+    private void showAddUser(Stage stage) {
+        showScreen(stage, dashboardScene, "addUser", () -> createAddUserLayout(stage), null);
+    }
+
+    private void showResetUser(Stage stage, String username) {
+        showScreen(stage, dashboardScene, "resetUser", () -> createResetUserLayout(stage), username);
+    }
+
+    private void showDeleteConfirmation(Stage stage, String username) {
+        showScreen(stage, dashboardScene, "deleteConfirmation", () -> createDeleteConfirmationLayout(stage), username);
+    }
+
+    // Ends the session and drops the dashboard, so the next user does not see this user's details, search or page
+    private void logout(Stage stage) {
+        sessionManager.logout();
+        showLogin(stage);
+        screens.evict("dashboard");
+        dashboardUsername = null;
+        dashboardUserDetails = null;
+        dashboardRoles = null;
+    }
+
+    // Empties the fields and the message of a cached form, as they were when the form was built
+    private static void clearForm(Label messageLabel, TextInputControl... fields) {
+        for (TextInputControl field : fields) {
+            field.clear();
+        }
+        messageLabel.setText("");
+        messageLabel.setStyle("-fx-text-fill: red;");
+    }
+
     // Admin creation page layout that allows creating the first admin user
-    private GridPane createAdminCreationLayout(Stage stage) {
+    private ScreenCache.Screen<Void> createAdminCreationLayout(Stage stage) {
 
         //Create a new GridPane layout
         GridPane layout = new GridPane();
@@ -167,9 +407,9 @@ public class Main extends Application {
                 messageLabel.setStyle("-fx-text-fill: green;");
                 messageLabel.setText("Admin created successfully!");
 
-                // Redirect to login after creation
-                GridPane loginLayout = createLoginLayout(stage);
-                stage.getScene().setRoot(loginLayout);
+                // Redirect to login after creation; the first admin is only created once
+                showLogin(stage);
+                screens.evict("adminCreation");
 
             } catch (Exception ex) {
 
@@ -183,9 +423,8 @@ public class Main extends Application {
         Button backButton = new Button("Back");
         backButton.setOnAction(e -> {
 
-            //Create a new layout for the login
-            GridPane loginLayout = createLoginLayout(stage);
-            stage.getScene().setRoot(loginLayout);
+            //Show the login layout
+            showLogin(stage);
         });
 
         //setting grid positions for the elements
@@ -203,12 +442,12 @@ public class Main extends Application {
         layout.getChildren().addAll(usernameLabel, usernameField, passwordLabel, passwordField,
                 confirmPasswordLabel, confirmPasswordField, messageLabel, createAdminButton, backButton);
 
-        return layout;
+        return new ScreenCache.Screen<>(layout, ignored -> clearForm(messageLabel, usernameField, passwordField, confirmPasswordField));
     }
 
 
     /* Method to create the login layout */
-    private GridPane createLoginLayout(Stage stage) {
+    private ScreenCache.Screen<Void> createLoginLayout(Stage stage) {
 
         //Create a new GridPane layout
         GridPane layout = new GridPane();
@@ -239,6 +478,7 @@ public class Main extends Application {
         //Create a new button for the
         Button loginButton = new Button("Login");
         Button registerButton = new Button("Register");
+        Button resetWithTokenButton = new Button("Reset with token");
 
         // Login button action
         loginButton.setOnAction(e -> {
@@ -247,34 +487,39 @@ public class Main extends Application {
             String username = usernameField.getText();
             String password = passwordField.getText();
             String role = roleBox.getValue();
-            String currentDateTime = getCurrentDateTime(); // Get current date and time
-
-            sessionManager.setRoles(new String[]{role}); // Store the role in session
-            sessionManager.setUsername(username); // Store the username in session
 
             try {
 
                 // Call the login method from the LoginManager class
-                String loginResult = loginManager.login(username, password, role, currentDateTime);
+                String loginResult = loginManager.login(username, password, role);
 
                 // Handle the result based on the login method's output
                 if (loginResult.equals("Login successful")) {
 
+                    // Only an authenticated user gets a session, holding the roles loaded at login
+                    if (!sessionManager.begin(username, role, dbHelper.getRolesForUser(username))) {
+                        messageLabel.setText("Too many active sessions, please try again later.");
+                        return;
+                    }
+
                     // If login is successful, redirect to the user dashboard
-                    GridPane userDashboardLayout = createUserDashboard(stage, role);
-                    stage.getScene().setRoot(userDashboardLayout);
+                    showDashboard(stage, role);
 
                 } else if (loginResult.equals("OTP login successful, please reset your password.")) {
 
                     // If OTP login is successful, prompt the user to reset their password
-                    GridPane passwordResetLayout = createPasswordResetLayout(stage, username);
-                    stage.getScene().setRoot(passwordResetLayout);
+                    showPasswordReset(stage, username);
 
                 } else if (loginResult.equals("Account setup incomplete")) {
 
+                    // Start a session without any roles so the setup page knows which user it is for
+                    if (!sessionManager.begin(username, null, new String[] {})) {
+                        messageLabel.setText("Too many active sessions, please try again later.");
+                        return;
+                    }
+
                     //if the account setup is incomplete, redirect to the setup layout
-                    GridPane setupLayout = createSetupLayout(stage);
-                    stage.getScene().setRoot(setupLayout);
+                    showSetup(stage);
 
                 } else {
 
@@ -289,10 +534,30 @@ public class Main extends Application {
         });
 
         // Register button action
-        registerButton.setOnAction(e -> {
-            GridPane registerLayout = createRegisterLayout(stage);
-            stage.getScene().setRoot(registerLayout);
-        });
+        registerButton.setOnAction(e -> showRegister(stage));
+
+        // Reset with token button action
+        resetWithTokenButton.setOnAction(e -> showTokenReset(stage));
+
+        // Until the backend has started the form can be filled in, but not submitted
+        if (!backendReady.isDone()) {
+            loginButton.setDisable(true);
+            registerButton.setDisable(true);
+            resetWithTokenButton.setDisable(true);
+            messageLabel.setStyle("-fx-text-fill: gray;");
+            messageLabel.setText("Connecting to database...");
+            backendReady.whenComplete((empty, error) -> Platform.runLater(() -> {
+                messageLabel.setStyle("-fx-text-fill: red;");
+                if (error != null) {
+                    messageLabel.setText("Database error, please restart the application.");
+                    return;
+                }
+                messageLabel.setText("");
+                loginButton.setDisable(false);
+                registerButton.setDisable(false);
+                resetWithTokenButton.setDisable(false);
+            }));
+        }
 
 
         // Set grid positions for elements in createLoginLayout
@@ -304,17 +569,26 @@ public class Main extends Application {
         GridPane.setConstraints(passwordField, 1, 2);
         GridPane.setConstraints(loginButton, 1, 3);
         GridPane.setConstraints(registerButton, 1, 4);
-        GridPane.setConstraints(messageLabel, 1, 5);
+        GridPane.setConstraints(resetWithTokenButton, 1, 5);
+        GridPane.setConstraints(messageLabel, 1, 6);
 
         // Add elements to the layout
-        layout.getChildren().addAll(roleLabel, roleBox, usernameLabel, usernameField, passwordLabel, passwordField, loginButton, registerButton, messageLabel);
-
-        return layout;
+        layout.getChildren().addAll(roleLabel, roleBox, usernameLabel, usernameField, passwordLabel, passwordField, loginButton, registerButton, resetWithTokenButton, messageLabel);
+
+        // Each time the login is shown, e.g. after a logout, it starts empty; the startup status stays until it is replaced
+        return new ScreenCache.Screen<>(layout, ignored -> {
+            roleBox.setValue("Student");
+            usernameField.clear();
+            passwordField.clear();
+            if (backendReady.isDone() && !backendReady.isCompletedExceptionally()) {
+                clearForm(messageLabel);
+            }
+        });
     }
 
 
-    // Method to prompt the user to reset their password after OTP login
-    private GridPane createPasswordResetLayout(Stage stage, String username) {
+    // Method to prompt the user to reset their password after OTP login; it is bound to the username each time it is shown
+    private ScreenCache.Screen<String> createPasswordResetLayout(Stage stage) {
 
         //Create a new GridPane layout
         GridPane layout = new GridPane();
@@ -342,6 +616,7 @@ public class Main extends Application {
         // Reset password button action
         resetPasswordButton.setOnAction(e -> {
 
+            String username = (String) layout.getUserData();					//Get the user the screen is bound to
             String newPassword = newPasswordField.getText();					//Get the new password
             String confirmNewPassword = confirmNewPasswordField.getText();		//Get the confirm new password
 
@@ -361,8 +636,7 @@ public class Main extends Application {
             messageLabel.setText(resetMessage);
 
             // Redirect to login page after password reset
-            GridPane loginLayout = createLoginLayout(stage);
-            stage.getScene().setRoot(loginLayout);
+            showLogin(stage);
         });
 
         // Set grid positions for elements in createPasswordResetLayout
@@ -375,18 +649,91 @@ public class Main extends Application {
 
         // Add elements to the layout
         layout.getChildren().addAll(newPasswordLabel, newPasswordField, confirmNewPasswordLabel, confirmNewPasswordField, resetPasswordButton, messageLabel);
-        return layout;
+        return new ScreenCache.Screen<>(layout, username -> {
+            layout.setUserData(username);
+            clearForm(messageLabel, newPasswordField, confirmNewPasswordField);
+        });
     }
 
-    // Helper method to get the current date and time as a string
-    private String getCurrentDateTime() {
+    // Method to reset a password with a reset token issued by an admin
+    private ScreenCache.Screen<Void> createTokenResetLayout(Stage stage) {
+
+        //Create a new GridPane layout
+        GridPane layout = new GridPane();
+        layout.setHgap(10);
+        layout.setVgap(10);
+        layout.setPadding(new Insets(20, 20, 20, 20));
+
+        //Create a new Label for the reset token
+        Label tokenLabel = new Label("Reset Token:");
+        TextField tokenField = new TextField();
+        tokenField.setPromptText("Enter reset token");
+
+        //Create a new Label for the new password
+        Label newPasswordLabel = new Label("New Password:");
+        PasswordField newPasswordField = new PasswordField();
+        newPasswordField.setPromptText("Enter new password");
+
+        //Create a new Label for the confirm new password
+        Label confirmNewPasswordLabel = new Label("Confirm New Password:");
+        PasswordField confirmNewPasswordField = new PasswordField();
+        confirmNewPasswordField.setPromptText("Confirm new password");
+
+        //Create a new Label for the message
+        Label messageLabel = new Label();
+        messageLabel.setStyle("-fx-text-fill: red;");
+
+        Button resetPasswordButton = new Button("Reset Password");
+        Button backButton = new Button("Back");
+
+        // Reset password button action
+        resetPasswordButton.setOnAction(e -> {
+
+            String newPassword = newPasswordField.getText();
+            if (!newPassword.equals(confirmNewPasswordField.getText())) {
+                messageLabel.setText("Passwords do not match!");
+                return;
+            }
 
-        // Implement the logic to return current date and time in the required format (e.g., yyyy-MM-dd HH:mm:ss)
-        return java.time.LocalDateTime.now().toString();
+            // Validate the password with PasswordEvaluator
+            String passwordError = PasswordEvaluator.evaluatePassword(newPassword);
+            if (!passwordError.isEmpty()) {
+                messageLabel.setText(passwordError);
+                return;
+            }
+
+            String resetMessage = loginManager.resetPasswordWithToken(tokenField.getText(), newPassword);
+            if (resetMessage.equals("Password reset successful, please log in again.")) {
+
+                // Redirect to login page after password reset
+                showLogin(stage);
+            } else {
+                messageLabel.setText(resetMessage);
+            }
+        });
+
+        // Back button action
+        backButton.setOnAction(e -> showLogin(stage));
+
+        // Set grid positions for elements in createTokenResetLayout
+        GridPane.setConstraints(tokenLabel, 0, 0);
+        GridPane.setConstraints(tokenField, 1, 0);
+        GridPane.setConstraints(newPasswordLabel, 0, 1);
+        GridPane.setConstraints(newPasswordField, 1, 1);
+        GridPane.setConstraints(confirmNewPasswordLabel, 0, 2);
+        GridPane.setConstraints(confirmNewPasswordField, 1, 2);
+        GridPane.setConstraints(resetPasswordButton, 1, 3);
+        GridPane.setConstraints(messageLabel, 1, 4);
+        GridPane.setConstraints(backButton, 1, 5);
+
+        // Add elements to the layout
+        layout.getChildren().addAll(tokenLabel, tokenField, newPasswordLabel, newPasswordField, confirmNewPasswordLabel,
+                confirmNewPasswordField, resetPasswordButton, messageLabel, backButton);
+        return new ScreenCache.Screen<>(layout, ignored -> clearForm(messageLabel, tokenField, newPasswordField, confirmNewPasswordField));
     }
 
     // Method to generate a random invite code
-    private GridPane createRegisterLayout(Stage stage) {
+    private ScreenCache.Screen<Void> createRegisterLayout(Stage stage) {
 
         //Create a new GridPane layout
         GridPane layout = new GridPane();
@@ -446,12 +793,15 @@ public class Main extends Application {
 
                 //Register the invite code
                 String message = loginManager.registerInvite(inviteCode, username, password);
+                if (!message.equals("Registration successful")) {
+                    messageLabel.setText(message);
+                    return;
+                }
                 messageLabel.setStyle("-fx-text-fill: green;");
                 messageLabel.setText(message);
 
                 // Redirect to login after registration
-                GridPane loginLayout = createLoginLayout(stage);
-                stage.getScene().setRoot(loginLayout);
+                showLogin(stage);
 
             } catch (Exception ex) {
                 ex.printStackTrace();
@@ -462,10 +812,7 @@ public class Main extends Application {
 
         // Create a back button to return to the login page
         Button backButton = new Button("Back");
-        backButton.setOnAction(e -> {
-            GridPane loginLayout = createLoginLayout(stage);
-            stage.getScene().setRoot(loginLayout);
-        });
+        backButton.setOnAction(e -> showLogin(stage));
 
         // Set grid positions for elements in createRegisterLayout
         GridPane.setConstraints(inviteCodeLabel, 0, 0);
@@ -484,12 +831,12 @@ public class Main extends Application {
         layout.getChildren().addAll(inviteCodeLabel, inviteCodeField, usernameLabel, usernameField, passwordLabel,
                 passwordField, confirmPasswordLabel, confirmPasswordField, registerButton, messageLabel, backButton);
 
-        return layout;
+        return new ScreenCache.Screen<>(layout, ignored -> clearForm(messageLabel, inviteCodeField, usernameField, passwordField, confirmPasswordField));
     }
 
 
-    // Method to create the setup layout
-    private GridPane createSetupLayout(Stage stage) {
+    // Method to create the setup layout; it is bound to the user of the current session each time it is shown
+    private ScreenCache.Screen<Void> createSetupLayout(Stage stage) {
 
         //Create a new GridPane layout
         GridPane layout = new GridPane();
@@ -497,18 +844,6 @@ public class Main extends Application {
         layout.setVgap(10); // Vertical gap between elements
         layout.setPadding(new Insets(20, 20, 20, 20)); // Padding around the grid
 
-        // Fetch the current username from the session
-        String currentUsername = sessionManager.getUsername();
-        System.out.println("Current Username during setup: " + currentUsername); 					// Debugging statement
-
-        // Make sure this prints the username correctly
-        if (currentUsername == null) {
-            System.out.println("Username is null, something went wrong with login/session");		// Debugging statement
-        }
-
-        // Proceed with setup
-        String[] currentRoles = sessionManager.getRoles();
-
         //create a new Label for the first name
         Label firstNameLabel = new Label("First Name:");
         TextField firstNameField = new TextField();
@@ -562,13 +897,12 @@ public class Main extends Application {
             try {
 
                 //Setup the user details
-                dbHelper.setupUserDetails(currentUsername, firstName, middleName, lastName, preferredName, email);
+                dbHelper.setupUserDetails((String) layout.getUserData(), firstName, middleName, lastName, preferredName, email);
                 messageLabel.setStyle("-fx-text-fill: green;");
                 messageLabel.setText("Account setup complete!");
 
                 // Redirect to login after setup
-                GridPane loginLayout = createLoginLayout(stage);
-                stage.getScene().setRoot(loginLayout);
+                showLogin(stage);
 
             } catch (Exception ex) {
 
@@ -582,12 +916,7 @@ public class Main extends Application {
         Button backButton = new Button("Back");
 
         // Back button action
-        backButton.setOnAction(e -> {
-
-            //Create a new layout for the login
-            GridPane loginLayout = createLoginLayout(stage);
-            stage.getScene().setRoot(loginLayout);
-        });
+        backButton.setOnAction(e -> showLogin(stage));
 
         // Set grid positions for elements in createSetupLayout
         GridPane.setConstraints(firstNameLabel, 0, 0);
@@ -608,14 +937,23 @@ public class Main extends Application {
         layout.getChildren().addAll(firstNameLabel, firstNameField, middleNameLabel, middleNameField, lastNameLabel,
                 lastNameField, preferredNameLabel, preferredNameField, emailLabel, emailField, setupButton, messageLabel, backButton);
 
-        return layout;
-    }
+        return new ScreenCache.Screen<>(layout, ignored -> {
+
+            // Fetch the current username from the session
+            String currentUsername = sessionManager.getUsername();
+            System.out.println("Current Username during setup: " + currentUsername); 					// Debugging statement
 
-    // Method to create the user dashboard
-    private GridPane createUserDashboard(Stage stage, String currentRole) throws SQLException {
+            // Make sure this prints the username correctly
+            if (currentUsername == null) {
+                System.out.println("Username is null, something went wrong with login/session");		// Debugging statement
+            }
+            layout.setUserData(currentUsername);
+            clearForm(messageLabel, firstNameField, middleNameField, lastNameField, preferredNameField, emailField);
+        });
+    }
 
-        // Create a larger scene size for the dashboard
-        Scene dashboardScene = new Scene(new GridPane(), 900, 600);
+    // Method to create the user dashboard; it is bound to the active role each time it is shown
+    private ScreenCache.Screen<String> createUserDashboard(Stage stage) {
 
         // Create a new GridPane layout for the dashboard
         GridPane layout = new GridPane();
@@ -623,39 +961,32 @@ public class Main extends Application {
         layout.setVgap(20);														// Increased vertical gap between elements
         layout.setPadding(new Insets(30, 30, 30, 30)); 							// More padding for better spacing
 
-        // Fetch the current username from the session
-        String currentUsername = sessionManager.getUsername();
-        Label userDetailsLabel = new Label("Logged-in User: " + currentUsername);
-
-        // Fetch user details and roles from the database
-        String[] userDetails = dbHelper.getUserDetails(currentUsername);
-        String[] userRoles = dbHelper.getRolesForUser(currentUsername);
-
-        // To avoid null pointer exception
-        String rolesString = (userRoles != null) ? String.join(", ", userRoles) : "";
-
-        // Create labels for user details with User Full Name, Email, and Roles
-        Label firstNameLabel = new Label("First Name: " + userDetails[0]);
-        Label middleNameLabel = new Label("Middle Name: " + userDetails[1]);
-        Label lastNameLabel = new Label("Last Name: " + userDetails[2]);
-        Label emailLabel = new Label("Email: " + userDetails[4]);
-        Label rolesLabel = new Label("Roles: " + rolesString);
+        // Create labels for the logged-in user, their Full Name, Email, and Roles; the binder fills them in
+        Label userDetailsLabel = new Label();
+        Label firstNameLabel = new Label();
+        Label middleNameLabel = new Label();
+        Label lastNameLabel = new Label();
+        Label emailLabel = new Label();
+        Label rolesLabel = new Label();
 
         // Create a ChoiceBox for changing roles
         ChoiceBox<String> roleBox = new ChoiceBox<>();
-        roleBox.getItems().addAll(userRoles);
-        roleBox.setValue(currentRole);
 
         // Handle role change in the ChoiceBox
         roleBox.setOnAction(e -> {
 
-            //Get the selected role
+            //Ignore the changes made while the dashboard is rebound
+            if (bindingDashboard) {
+                return;
+            }
+
+            //Get the selected role and make it the active role of the session
             String selectedRole = roleBox.getValue();
+            sessionManager.setRole(selectedRole);
             try {
 
-                //create a new scene for the dashboard
-                GridPane newDashboardLayout = createUserDashboard(stage, selectedRole);
-                stage.getScene().setRoot(newDashboardLayout);
+                //rebind the dashboard to the selected role, without building it again
+                showDashboard(stage, selectedRole);
 
             } catch (SQLException ex) {
 
@@ -676,23 +1007,27 @@ public class Main extends Application {
         // Add elements to the layout
         layout.getChildren().addAll(userDetailsLabel, firstNameLabel, middleNameLabel, lastNameLabel, emailLabel, rolesLabel, roleBox);
 
-        if (currentRole.equals("Admin")) {
+        // The controls shown for the Admin role and for the Student and Instructor roles; the binder shows one of them
+        List<Node> adminSection = new ArrayList<>();
+        List<Node> personalSection = new ArrayList<>();
+
+        // Table for all users, loaded by the binder when it is shown; label to show selected user; message
+        TableView<Integer> userTable = createUserTable();
+        Label selectedUserLabel = new Label("Selected User: None");
+        Label messageLabel = new Label();
+        messageLabel.setStyle("-fx-text-fill: red;");
 
-            // Table for all users
-            TableView<String[]> userTable = createUserTable();
-            layout.getChildren().add(userTable);
+        // The Admin controls are only built for a user holding the Admin role
+        if (sessionManager.hasRole(Role.ADMIN)) {
 
-            // Label to show selected user
-            Label selectedUserLabel = new Label("Selected User: None");
+            HBox userFilterBar = createUserFilterBar(userTable);
 
-            // Handle user selection in table
+            // Handle user selection in table; reloading the table clears the selection
             userTable.getSelectionModel().selectedItemProperty().addListener((obs, oldSelection, newSelection) -> {
 
                 //Get the selected user
-                if (newSelection != null) {
-                    String selectedUsername = newSelection[0];
-                    selectedUserLabel.setText("Selected User: " + selectedUsername);
-                }
+                String selectedUsername = newSelection != null ? userSummaries.getUsername(newSelection) : "None";
+                selectedUserLabel.setText("Selected User: " + selectedUsername);
 
             });
 
@@ -707,6 +1042,7 @@ public class Main extends Application {
             Button resetUserButton = new Button("Reset User");
             Button deleteUserButton = new Button("Delete User");
             Button addUserButton = new Button("Add User");
+            Button exportButton = new Button("Export");
             Button logoutButton = new Button("Logout");
 
             // Apply button CSS style for consistency
@@ -716,36 +1052,36 @@ public class Main extends Application {
             resetUserButton.setStyle(buttonStyle);
             deleteUserButton.setStyle(buttonStyle);
             addUserButton.setStyle(buttonStyle);
+            exportButton.setStyle(buttonStyle);
             logoutButton.setStyle(buttonStyle);
 
-            //message
-            Label messageLabel = new Label();
-            messageLabel.setStyle("-fx-text-fill: red;");
-
             // Add role action
             addRoleButton.setOnAction(e -> {
 
                 //get the selected role
                 String selectedRole = roleChoiceBox.getValue();
-                String[] selectedUser = userTable.getSelectionModel().getSelectedItem();
+                Integer selectedUser = userTable.getSelectionModel().getSelectedItem();
 
                 //if a user is selected
                 if (selectedUser != null) {
 
                     //get the username of the user
-                    String username = selectedUser[0];
+                    String username = userSummaries.getUsername(selectedUser);
                     try {
 
                         //call the addRoleToUser function to add a role to the user if not already exists
                         dbHelper.addRoleToUser(username, selectedRole);
+                        sessionManager.refreshRoles(username, dbHelper.getRolesForUser(username));
                         messageLabel.setText("Role added successfully!");
                         messageLabel.setStyle("-fx-text-fill: green;");
-                        userTable.setItems(FXCollections.observableArrayList(dbHelper.getAllUserAccounts()));
+                        reloadUserTable(userTable);
 
                     } catch (SQLException ex) {
 
                         ex.printStackTrace();
-                        messageLabel.setText("Error adding role.");
+                        messageLabel.setText("40001".equals(ex.getSQLState())
+                                ? "User was changed by another admin, please try again."
+                                : "Error adding role.");
 
                     }
 
@@ -759,26 +1095,29 @@ public class Main extends Application {
 
                 //get the selected role of from the choice box input
                 String selectedRole = roleChoiceBox.getValue();
-                String[] selectedUser = userTable.getSelectionModel().getSelectedItem();
+                Integer selectedUser = userTable.getSelectionModel().getSelectedItem();
 
                 //if the user os selected
                 if (selectedUser != null) {
 
-                    String username = selectedUser[0];
+                    String username = userSummaries.getUsername(selectedUser);
 
                     try {
 
                         //call the removeRoleFrom user function to remove a role to the function if doesn't exist already
                         dbHelper.removeRoleFromUser(username, selectedRole);
+                        sessionManager.refreshRoles(username, dbHelper.getRolesForUser(username));
                         messageLabel.setText("Role removed successfully!");
                         messageLabel.setStyle("-fx-text-fill: green;");
-                        userTable.setItems(FXCollections.observableArrayList(dbHelper.getAllUserAccounts()));
+                        reloadUserTable(userTable);
 
                     } catch (SQLException ex) {
 
                         //print the error stack
                         ex.printStackTrace();
-                        messageLabel.setText("Error removing role.");
+                        messageLabel.setText("40001".equals(ex.getSQLState())
+                                ? "User was changed by another admin, please try again."
+                                : "Error removing role.");
 
                     }
 
@@ -794,15 +1133,14 @@ public class Main extends Application {
             resetUserButton.setOnAction(e -> {
 
                 //get the selected user
-                String[] selectedUser = userTable.getSelectionModel().getSelectedItem();
+                Integer selectedUser = userTable.getSelectionModel().getSelectedItem();
 
                 //if a user is selected
                 if (selectedUser != null) {
 
-                    //Get the username and create the reset user page to reset the user
-                    String username = selectedUser[0];
-                    GridPane resetUserLayout = createResetUserLayout(stage, username);
-                    stage.getScene().setRoot(resetUserLayout);
+                    //Get the username and show the reset user page to reset the user
+                    String username = userSummaries.getUsername(selectedUser);
+                    showResetUser(stage, username);
 
                 } else {
 
@@ -815,15 +1153,14 @@ public class Main extends Application {
             deleteUserButton.setOnAction(e -> {
 
                 //get the current user selected
-                String[] selectedUser = userTable.getSelectionModel().getSelectedItem();
+                Integer selectedUser = userTable.getSelectionModel().getSelectedItem();
 
                 //if a user is selected
                 if (selectedUser != null) {
 
                     //get the user and go to the delete confirmation page to ask for confirmation from the admin
-                    String username = selectedUser[0];
-                    GridPane deleteConfirmationLayout = createDeleteConfirmationLayout(stage, username, userDetails);
-                    stage.getScene().setRoot(deleteConfirmationLayout);
+                    String username = userSummaries.getUsername(selectedUser);
+                    showDeleteConfirmation(stage, username);
 
                 } else {
 
@@ -833,96 +1170,340 @@ public class Main extends Application {
             });
 
             // Add user action
-            addUserButton.setOnAction(e -> {
-                GridPane addUserLayout = createAddUserLayout(stage);
-                stage.getScene().setRoot(addUserLayout);
+            addUserButton.setOnAction(e -> showAddUser(stage));
+
+            // Export action: write the users matching the current filters to a CSV or JSON Lines file
+            exportButton.setOnAction(e -> {
+                FileChooser fileChooser = new FileChooser();
+                fileChooser.setTitle("Export Users");
+                fileChooser.setInitialFileName("users.csv");
+                fileChooser.getExtensionFilters().addAll(
+                        new FileChooser.ExtensionFilter("CSV", "*.csv", "*.csv.gz"),
+                        new FileChooser.ExtensionFilter("JSON Lines", "*.jsonl", "*.jsonl.gz"));
+                File file = fileChooser.showSaveDialog(stage);
+                if (file == null) {
+                    return;
+                }
+
+                // The format and compression follow the file name
+                String name = file.getName().toLowerCase();
+                RosterExporter exporter = new RosterExporter()
+                        .format(name.endsWith(".jsonl") || name.endsWith(".jsonl.gz") ? RosterExporter.Format.JSONL : RosterExporter.Format.CSV)
+                        .gzip(name.endsWith(".gz"))
+                        .onProgress(rows -> Platform.runLater(() -> messageLabel.setText("Exported " + rows + " users...")), 10_000);
+
+                // Run the export off the UI thread so the screen stays responsive
+                exportButton.setDisable(true);
+                messageLabel.setStyle("-fx-text-fill: green;");
+                Thread exportThread = new Thread(() -> {
+                    String result;
+                    try {
+                        long rows = dbHelper.exportUsers(userQuery, exporter, file.toPath());
+                        result = "Exported " + rows + " users to " + file.getName();
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        result = "Export failed: " + ex.getMessage();
+                    }
+                    String message = result;
+                    Platform.runLater(() -> {
+                        messageLabel.setText(message);
+                        exportButton.setDisable(false);
+                    });
+                }, "roster-export");
+                exportThread.setDaemon(true);
+                exportThread.start();
             });
 
             // Logout action
-            logoutButton.setOnAction(e -> {
-                sessionManager.logout();
-                GridPane loginLayout = createLoginLayout(stage);
-                stage.getScene().setRoot(loginLayout);
-            });
+            logoutButton.setOnAction(e -> logout(stage));
 
             // Initialize the action buttons layout (use HBox for horizontal layout)
             HBox actionButtonsLayout = new HBox(15); // Increased spacing between buttons for better layout
-            actionButtonsLayout.getChildren().addAll(roleChoiceBox, addRoleButton, removeRoleButton, resetUserButton, deleteUserButton, addUserButton);
+            actionButtonsLayout.getChildren().addAll(roleChoiceBox, addRoleButton, removeRoleButton, resetUserButton, deleteUserButton, addUserButton, exportButton);
 
             // Set grid constraints for Admin elements
-            GridPane.setConstraints(userTable, 0, 6, 2, 1);
-            GridPane.setConstraints(selectedUserLabel, 0, 7);
-            GridPane.setConstraints(actionButtonsLayout, 0, 8, 2, 1);
-            GridPane.setConstraints(logoutButton, 1, 9);
+            GridPane.setConstraints(userFilterBar, 0, 6, 2, 1);
+            GridPane.setConstraints(userTable, 0, 7, 2, 1);
+            GridPane.setConstraints(selectedUserLabel, 0, 8);
+            GridPane.setConstraints(actionButtonsLayout, 0, 9, 2, 1);
+            GridPane.setConstraints(messageLabel, 0, 10);
+            GridPane.setConstraints(logoutButton, 1, 10);
 
             // Add Admin-specific elements to layout
-            layout.getChildren().addAll(selectedUserLabel, actionButtonsLayout, logoutButton);
+            adminSection.addAll(Arrays.asList(userFilterBar, userTable, selectedUserLabel, actionButtonsLayout, messageLabel, logoutButton));
+            layout.getChildren().addAll(adminSection);
+        }
 
-        } else if (currentRole.equals("Student") || currentRole.equals("Instructor")) {
+        // Create a new Label for the personal details
+        Label personalDetailsLabel = new Label("Personal Details");
 
-            // Create a new Label for the personal details
-            Label personalDetailsLabel = new Label("Personal Details");
-            layout.getChildren().add(personalDetailsLabel);
+        // Set grid constraints for Student/Instructor elements
+        Button logoutButton = new Button("Logout");
 
-            // Set grid constraints for Student/Instructor elements
-            Button logoutButton = new Button("Logout");
+        //logout the user
+        logoutButton.setOnAction(e -> logout(stage));
 
-            logoutButton.setOnAction(e -> {
+        GridPane.setConstraints(logoutButton, 6, 0);
 
-                //logout the user
-                sessionManager.logout();
-                GridPane loginLayout = createLoginLayout(stage);
-                stage.getScene().setRoot(loginLayout);
+        personalSection.addAll(Arrays.asList(personalDetailsLabel, logoutButton));
+        layout.getChildren().addAll(personalSection);
 
-            });
+        return new ScreenCache.Screen<>(layout, currentRole -> {
 
-            GridPane.setConstraints(logoutButton, 6, 0);
+            // Fetch user details from the database only when the dashboard is shown for another user
+            String currentUsername = sessionManager.getUsername();
+            if (dashboardUserDetails == null || currentUsername == null || !currentUsername.equals(dashboardUsername)) {
+                String[] userDetails = dbHelper.getUserDetails(currentUsername);
+                dashboardUsername = currentUsername;
+                dashboardUserDetails = userDetails;
+                userDetailsLabel.setText("Logged-in User: " + currentUsername);
+                firstNameLabel.setText("First Name: " + userDetails[0]);
+                middleNameLabel.setText("Middle Name: " + userDetails[1]);
+                lastNameLabel.setText("Last Name: " + userDetails[2]);
+                emailLabel.setText("Email: " + userDetails[4]);
+            }
 
-            layout.getChildren().add(logoutButton);
-        }
+            // The roles come from the session; the role box is only refilled when they changed
+            String[] userRoles = sessionManager.getRoles();
+            if (userRoles == null) {
+                userRoles = new String[] {};
+            }
+            bindingDashboard = true;
+            try {
+                if (!Arrays.equals(userRoles, dashboardRoles)) {
+                    dashboardRoles = userRoles;
+                    rolesLabel.setText("Roles: " + String.join(", ", userRoles));
+                    roleBox.getItems().setAll(userRoles);
+                }
+                roleBox.setValue(currentRole);
+            } finally {
+                bindingDashboard = false;
+            }
 
-        // Set the new scene size specifically for the dashboard for better visibility
-        stage.setScene(new Scene(layout, 900, 600));
+            // Show the part of the dashboard for the role, reloading the user table only if users have changed
+            boolean admin = currentRole.equals("Admin") && sessionManager.hasRole(Role.ADMIN) && !adminSection.isEmpty();
+            if (admin) {
+                refreshUserTable(userTable);
+            }
+            clearForm(messageLabel);
+            setShown(adminSection, admin);
+            setShown(personalSection, currentRole.equals("Student") || currentRole.equals("Instructor"));
+        });
+    }
 
-        return layout;
+    // Shows or hides a part of a cached screen; hidden nodes take no space in the layout
+    private static void setShown(List<Node> nodes, boolean shown) {
+        for (Node node : nodes) {
+            node.setVisible(shown);
+            node.setManaged(shown);
+        }
     }
 
 
 
     // Method to display all users in a TableView
-    private TableView<String[]> createUserTable() throws SQLException {
-        TableView<String[]> tableView = new TableView<>();
+    private TableView<Integer> createUserTable() {
+        TableView<Integer> tableView = new TableView<>();
+
+        // Each table item is a row index into userSummaries; the cells only look up precomputed values
+        TableColumn<Integer, String> usernameCol = new TableColumn<>("Username");
+        usernameCol.setCellValueFactory(data -> new ReadOnlyObjectWrapper<>(userSummaries.getUsername(data.getValue())));
 
-        // Define columns for Username, Name, and Roles
-        TableColumn<String[], String> usernameCol = new TableColumn<>("Username");
-        usernameCol.setCellValueFactory(data -> new SimpleStringProperty(data.getValue()[0]));
+        // First and last name, joined once when the page was loaded
+        TableColumn<Integer, String> nameCol = new TableColumn<>("Name");
+        nameCol.setCellValueFactory(data -> new ReadOnlyObjectWrapper<>(userSummaries.getDisplayName(data.getValue())));
 
-        // Combine first name and last name into a single column
-        TableColumn<String[], String> nameCol = new TableColumn<>("Name");
-        nameCol.setCellValueFactory(data -> new SimpleStringProperty(data.getValue()[1] + " " + data.getValue()[2]));
+        // Roles as a comma-separated list, shared by every row with the same roles
+        TableColumn<Integer, String> rolesCol = new TableColumn<>("Roles");
+        rolesCol.setCellValueFactory(data -> new ReadOnlyObjectWrapper<>(userSummaries.getRolesLabel(data.getValue())));
 
-        // Display roles as a comma-separated list
-        TableColumn<String[], String> rolesCol = new TableColumn<>("Roles");
-        rolesCol.setCellValueFactory(data -> new SimpleStringProperty(String.join(", ", data.getValue()[4].split(","))));
+        // Roles are stored as a list, so the database cannot sort on them
+        rolesCol.setSortable(false);
 
         // Add columns to the TableView
         tableView.getColumns().add(usernameCol);
         tableView.getColumns().add(nameCol);
         tableView.getColumns().add(rolesCol);
 
-        // Get user data from the database using the helper method getAllUserAccounts and convert to ObservableList
-        String[][] allUsers = dbHelper.getAllUserAccounts();
-        ObservableList<String[]> usersData = FXCollections.observableArrayList(allUsers);
+        // Sorting is done by the database: clicking a column header reloads the first page in the new order
+        tableView.setSortPolicy(table -> {
+            if (reloadingUserTable) {
+                return true;
+            }
+            UserQuery.SortColumn sortBy = UserQuery.SortColumn.USERNAME;
+            boolean ascending = true;
+            if (!table.getSortOrder().isEmpty()) {
+                TableColumn<Integer, ?> column = table.getSortOrder().get(0);
+                sortBy = column == nameCol ? UserQuery.SortColumn.FIRST_NAME : UserQuery.SortColumn.USERNAME;
+                ascending = column.getSortType() == TableColumn.SortType.ASCENDING;
+            }
+            userQuery.sortBy(sortBy, ascending).page(0, userQuery.getLimit());
+            try {
+                reloadUserTable(table);
+            } catch (SQLException ex) {
+                ex.printStackTrace();
+                return false;
+            }
+            return true;
+        });
 
-        // Set data to the table
-        tableView.setItems(usersData);
+        // Start from the first page of all users every time the dashboard is built; it is loaded when first shown
+        userQuery = new UserQuery();
+        userTableStale = true;
 
         return tableView;
     }
 
+    // Method to create the search, role filter and paging controls for the user table
+    private HBox createUserFilterBar(TableView<Integer> userTable) {
+
+        // Search box with a choice of which field the text is a prefix of
+        ChoiceBox<String> searchByBox = new ChoiceBox<>();
+        searchByBox.getItems().addAll("Username", "Name", "Email");
+        searchByBox.setValue("Username");
+        TextField searchField = new TextField();
+        searchField.setPromptText("Search");
+
+        // Role filter
+        ChoiceBox<String> roleFilterBox = new ChoiceBox<>();
+        roleFilterBox.getItems().add("All roles");
+        for (Role role : Role.values()) {
+            roleFilterBox.getItems().add(role.getLabel());
+        }
+        roleFilterBox.setValue("All roles");
+
+        Button searchButton = new Button("Search");
+        Button previousButton = new Button("Prev");
+        Button nextButton = new Button("Next");
+        userPageLabel = new Label();
+        updateUserPageLabel();
+
+        // Apply the filters and go back to the first page
+        searchButton.setOnAction(e -> {
+            String text = searchField.getText();
+            userQuery.usernamePrefix(searchByBox.getValue().equals("Username") ? text : null)
+                    .namePrefix(searchByBox.getValue().equals("Name") ? text : null)
+                    .emailPrefix(searchByBox.getValue().equals("Email") ? text : null)
+                    .role(Role.fromLabel(roleFilterBox.getValue()))
+                    .page(0, userQuery.getLimit());
+            loadUserPage(userTable);
+        });
+        searchField.setOnAction(searchButton.getOnAction());
+
+        // Typeahead: suggest matching users from memory as the admin types, without querying the database
+        ContextMenu suggestionsMenu = new ContextMenu();
+        searchField.textProperty().addListener((obs, oldText, newText) -> {
+            suggestionsMenu.getItems().clear();
+            if (searchByBox.getValue().equals("Email")) {
+                suggestionsMenu.hide();
+                return;
+            }
+            for (String username : dbHelper.suggestUsernames(newText, TYPEAHEAD_SUGGESTIONS)) {
+                MenuItem item = new MenuItem(username);
+
+                // Picking a suggestion shows just that user and selects them for the action buttons
+                item.setOnAction(e -> {
+                    searchByBox.setValue("Username");
+                    searchField.setText(username);
+                    suggestionsMenu.hide();
+                    userQuery.usernamePrefix(username).namePrefix(null).emailPrefix(null)
+                            .role(Role.fromLabel(roleFilterBox.getValue())).page(0, userQuery.getLimit());
+                    loadUserPage(userTable);
+                    int row = userSummaries.indexOf(username);
+                    if (row >= 0) {
+                        userTable.getSelectionModel().select(row);
+                    }
+                });
+                suggestionsMenu.getItems().add(item);
+            }
+            if (suggestionsMenu.getItems().isEmpty()) {
+                suggestionsMenu.hide();
+            } else if (!suggestionsMenu.isShowing()) {
+                suggestionsMenu.show(searchField, Side.BOTTOM, 0, 0);
+            }
+        });
+
+        previousButton.setOnAction(e -> {
+            if (userQuery.getOffset() > 0) {
+                userQuery.page(userQuery.getOffset() - userQuery.getLimit(), userQuery.getLimit());
+                loadUserPage(userTable);
+            }
+        });
+
+        nextButton.setOnAction(e -> {
+            if (userQuery.getOffset() + userQuery.getLimit() < userMatchCount) {
+                userQuery.page(userQuery.getOffset() + userQuery.getLimit(), userQuery.getLimit());
+                loadUserPage(userTable);
+            }
+        });
+
+        HBox filterBar = new HBox(10);
+        filterBar.getChildren().addAll(searchByBox, searchField, roleFilterBox, searchButton, previousButton, nextButton, userPageLabel);
+        return filterBar;
+    }
+
+    // Loads the current page of the user table, reporting errors on the console
+    private void loadUserPage(TableView<Integer> userTable) {
+        try {
+            reloadUserTable(userTable);
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    // Reloads the user table when the dashboard is shown, if users were changed since it was loaded: from this
+    // window, or by anyone writing to the same H2 database, which the change log shows
+    private void refreshUserTable(TableView<Integer> userTable) throws SQLException {
+        if (userTableStale || latestChangeSequence() != userTableSequence) {
+            reloadUserTable(userTable);
+        }
+    }
+
+    // The newest change log sequence of an H2 store, or -1 if the store keeps no change log
+    private long latestChangeSequence() throws SQLException {
+        ChangeLog changeLog = dbHelper instanceof DatabaseHelper ? ((DatabaseHelper) dbHelper).getChangeLog() : null;
+        return changeLog != null ? changeLog.getLatestSequence() : -1;
+    }
+
+    // Method to load the current page of the user query into the table
+    private void reloadUserTable(TableView<Integer> userTable) throws SQLException {
+
+        // The sequence is read first, so a change made while the page loads is picked up the next time
+        userTableSequence = latestChangeSequence();
+
+        // Only the requested page is fetched; the count drives the paging controls
+        userMatchCount = dbHelper.countUserAccounts(userQuery);
+        UserSummaryTable summaries = dbHelper.findUserSummaries(userQuery);
+        ObservableList<Integer> usersData = FXCollections.observableArrayList();
+        for (int row = 0; row < summaries.size(); row++) {
+            usersData.add(row);
+        }
+
+        // Setting the items asks the table to sort again, which must not trigger another reload
+        reloadingUserTable = true;
+        try {
+            userSummaries = summaries;
+            userTable.setItems(usersData);
+        } finally {
+            reloadingUserTable = false;
+        }
+        userTableStale = false;
+        updateUserPageLabel();
+    }
+
+    // Shows which rows of the matching users are on screen
+    private void updateUserPageLabel() {
+        if (userPageLabel == null) {
+            return;
+        }
+        int first = userMatchCount == 0 ? 0 : userQuery.getOffset() + 1;
+        int last = Math.min(userQuery.getOffset() + userQuery.getLimit(), userMatchCount);
+        userPageLabel.setText(first + "-" + last + " of " + userMatchCount);
+    }
+
 
     // Method to create the delete confirmation layout
-    private GridPane createAddUserLayout(Stage stage) {
+    private ScreenCache.Screen<Void> createAddUserLayout(Stage stage) {
 
         //Create a new GridPane layout
         GridPane layout = new GridPane();
@@ -970,6 +1551,7 @@ public class Main extends Application {
 
                 //call the addUser function to add the user with the invite code and role
                 String message = dbHelper.addUser(inviteCode, role);
+                userTableStale = true;
                 messageLabel.setStyle("-fx-text-fill: green;");
                 messageLabel.setText(message);
 
@@ -989,8 +1571,8 @@ public class Main extends Application {
 
             try {
 
-                //create a new user dashboard for the admin
-                stage.getScene().setRoot(createUserDashboard(stage, "Admin"));
+                //show the user dashboard for the admin
+                showDashboard(stage, "Admin");
 
             } catch (SQLException e1) {
 
@@ -1011,7 +1593,10 @@ public class Main extends Application {
         // Add elements to the layout
         layout.getChildren().addAll(inviteCodeLabel, inviteCodeField, roleLabel, roleBox, generateInviteCodeButton, addUserButton, messageLabel, backButton);
 
-        return layout;
+        return new ScreenCache.Screen<>(layout, ignored -> {
+            roleBox.setValue("Student");
+            clearForm(messageLabel, inviteCodeField);
+        });
     }
 
     // Helper method to generate invite code
@@ -1036,8 +1621,8 @@ public class Main extends Application {
         return code.toString();
     }
 
-    // Method to create the reset user
-    private GridPane createResetUserLayout(Stage stage, String username) {
+    // Method to create the reset user; it is bound to the user to reset each time it is shown
+    private ScreenCache.Screen<String> createResetUserLayout(Stage stage) {
 
         //Create a new GridPane layout
         GridPane layout = new GridPane();
@@ -1046,7 +1631,7 @@ public class Main extends Application {
         layout.setPadding(new Insets(20, 20, 20, 20));
 
         //Create a new Label for the username
-        Label usernameLabel = new Label("Username: " + username);
+        Label usernameLabel = new Label();
 
         //Create a new Label for the one time
         Label oneTimePasswordLabel = new Label("One Time Password:");
@@ -1085,7 +1670,7 @@ public class Main extends Application {
             try {
 
                 //call the resetUser function to reset the user
-                String message = dbHelper.resetUser(username, oneTimePassword, expirationDateTime);
+                String message = dbHelper.resetUser((String) layout.getUserData(), oneTimePassword, expirationDateTime);
 
                 //if the message is password reset successfully
                 if (message.equals("Password reset successfully")) {
@@ -1109,17 +1694,35 @@ public class Main extends Application {
             }
         });
 
+        // Create a button to issue a reset token instead of a one-time password
+        Button resetTokenButton = new Button("Generate Reset Token");
+        TextField resetTokenField = new TextField();
+        resetTokenField.setEditable(false);
+        resetTokenField.setPromptText("Reset token to send to the user");
+
+        resetTokenButton.setOnAction(e -> {
+            String token = loginManager.issuePasswordResetToken((String) layout.getUserData());
+            if (token == null) {
+                messageLabel.setStyle("-fx-text-fill: red;");
+                messageLabel.setText("Could not create a reset token");
+                return;
+            }
+            resetTokenField.setText(token);
+            messageLabel.setStyle("-fx-text-fill: green;");
+            messageLabel.setText("Reset token created, it can be used once");
+        });
+
         // Create a back button to return to the user dashboard
         Button backButton = new Button("Back");
 
         // Back button action
         backButton.setOnAction(e -> {
 
-            //create a new user dashboard for the admin
+            //show the user dashboard for the admin
             try {
 
-                //create a new user dashboard for the admin
-                stage.getScene().setRoot(createUserDashboard(stage, "Admin"));
+                //show the user dashboard for the admin
+                showDashboard(stage, "Admin");
 
             } catch (SQLException e1) {
                 e1.printStackTrace();
@@ -1133,17 +1736,24 @@ public class Main extends Application {
         GridPane.setConstraints(expirationDateTimeLabel, 0, 2);
         GridPane.setConstraints(expirationDateTimeField, 1, 2);
         GridPane.setConstraints(resetUserButton, 1, 3);
-        GridPane.setConstraints(messageLabel, 1, 4);
-        GridPane.setConstraints(backButton, 1, 5);
+        GridPane.setConstraints(resetTokenButton, 0, 4);
+        GridPane.setConstraints(resetTokenField, 1, 4);
+        GridPane.setConstraints(messageLabel, 1, 5);
+        GridPane.setConstraints(backButton, 1, 6);
 
         // Add elements to the layout
-        layout.getChildren().addAll(usernameLabel, oneTimePasswordLabel, oneTimePasswordField, expirationDateTimeLabel, expirationDateTimeField, resetUserButton, messageLabel, backButton);
+        layout.getChildren().addAll(usernameLabel, oneTimePasswordLabel, oneTimePasswordField, expirationDateTimeLabel, expirationDateTimeField, resetUserButton,
+                resetTokenButton, resetTokenField, messageLabel, backButton);
 
-        return layout;
+        return new ScreenCache.Screen<>(layout, username -> {
+            layout.setUserData(username);
+            usernameLabel.setText("Username: " + username);
+            clearForm(messageLabel, oneTimePasswordField, expirationDateTimeField, resetTokenField);
+        });
     }
 
-    // Method to create the delete confirmation
-    private GridPane createDeleteConfirmationLayout(Stage stage, String username, String[] userDetails) {
+    // Method to create the delete confirmation; it is bound to the user to delete each time it is shown
+    private ScreenCache.Screen<String> createDeleteConfirmationLayout(Stage stage) {
 
         GridPane layout = new GridPane();
         layout.setHgap(10);
@@ -1152,8 +1762,8 @@ public class Main extends Application {
 
         //Create a new Label for the confirmation
         Label confirmationLabel = new Label("Are you sure you want to delete the user?");
-        Label usernameLabel = new Label("Username: " + username);
-        Label rolesLabel = new Label("Roles: " + userDetails[4]);
+        Label usernameLabel = new Label();
+        Label rolesLabel = new Label();
 
         //Create a new Label for the message
         Label messageLabel = new Label();
@@ -1169,13 +1779,15 @@ public class Main extends Application {
             try {
 
                 //call the deleteUser function to delete the user
+                String username = (String) layout.getUserData();
                 dbHelper.deleteUser(username);
+                sessionManager.endSessionsOf(username);
+                userTableStale = true;
                 messageLabel.setStyle("-fx-text-fill: green;");
                 messageLabel.setText("User deleted successfully!");
 
                 // Redirect to user dashboard after deletion
-                GridPane userDashboardLayout = createUserDashboard(stage, "Admin");
-                stage.getScene().setRoot(userDashboardLayout);
+                showDashboard(stage, "Admin");
 
             } catch (SQLException ex) {
 
@@ -1192,9 +1804,8 @@ public class Main extends Application {
         noButton.setOnAction(e -> {
             try {
 
-                //create a new user dashboard for the admin
-                GridPane userDashboardLayout = createUserDashboard(stage, "Admin");
-                stage.getScene().setRoot(userDashboardLayout);
+                //show the user dashboard for the admin
+                showDashboard(stage, "Admin");
 
             } catch (SQLException ex) {
 
@@ -1208,11 +1819,10 @@ public class Main extends Application {
         // Back button action
         backButton.setOnAction(e -> {
 
-            //create a new user dashboard for the  admin
+            //show the user dashboard for the  admin
             try {
 
-                GridPane userDashboardLayout = createUserDashboard(stage, "Admin");
-                stage.getScene().setRoot(userDashboardLayout);
+                showDashboard(stage, "Admin");
 
             } catch (SQLException ex) {
 
@@ -1232,15 +1842,70 @@ public class Main extends Application {
         // Add elements to the layout
         layout.getChildren().addAll(confirmationLabel, usernameLabel, rolesLabel, yesButton, noButton, messageLabel, backButton);
 
-        return layout;
+        return new ScreenCache.Screen<>(layout, username -> {
+            layout.setUserData(username);
+            usernameLabel.setText("Username: " + username);
+            rolesLabel.setText("Roles: " + dashboardUserDetails[4]);
+            clearForm(messageLabel);
+        });
     }
 
     /**
-     * The main entry point for the application.
+     * The main entry point for the application. Pass {@code --headless} to start the HTTP service instead of the UI.
      *
      * @param args command-line arguments
+     * @throws Exception If the headless service cannot start
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+
+        // Run as a headless HTTP service instead of the JavaFX UI when asked to
+        if (Arrays.asList(args).contains("--headless")) {
+            HttpService.launch(args);
+            return;
+        }
+
+        // Promote a warm standby after the primary was lost, then exit; restart with docop.dbPath set to the standby
+        for (String arg : args) {
+            if (arg.startsWith("--promote-standby=")) {
+                System.out.println(StandbyReplicator.promote(StandbyReplicator.fileUrl(arg.substring("--promote-standby=".length()))));
+                return;
+            }
+
+            // Move the users of a sharded store onto a new number of shards, then exit; restart with docop.shards set to it
+            if (arg.startsWith("--rebalance-shards=")) {
+                UserStore store = UserStores.fromSystemProperties();
+                if (!(store instanceof ShardedUserStore)) {
+                    System.err.println("Rebalancing needs a sharded store, not docop.store=" + System.getProperty("docop.store"));
+                    return;
+                }
+                ShardedUserStore shardedStore = (ShardedUserStore) store;
+                shardedStore.connectToDatabase();
+                try {
+                    System.out.println(shardedStore.rebalance(Integer.parseInt(arg.substring("--rebalance-shards=".length()))));
+                } finally {
+                    shardedStore.closeConnection();
+                }
+                return;
+            }
+
+            // Back up or restore the configured store, then exit
+            if (arg.startsWith("--backup=") || arg.startsWith("--restore=")) {
+                UserStore store = UserStores.fromSystemProperties();
+                if (!(store instanceof DatabaseHelper)) {
+                    System.err.println("Backup and restore need an H2 store, not docop.store=" + System.getProperty("docop.store"));
+                    return;
+                }
+                DatabaseHelper database = (DatabaseHelper) store;
+                database.connectToDatabase();
+                try {
+                    Path file = Paths.get(arg.substring(arg.indexOf('=') + 1));
+                    System.out.println(arg.startsWith("--backup=") ? database.backup(file) : database.restore(file));
+                } finally {
+                    database.closeConnection();
+                }
+                return;
+            }
+        }
         launch(args);
     }
 
@@ -1250,7 +1915,13 @@ public class Main extends Application {
     @Override
     public void stop() {
 
-        //close the database connection
+        //end every session and close the database connection, letting a startup still in progress finish first
+        sessionRegistry.close();
+        try {
+            backendReady.get(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            System.err.println("Closing before startup finished: " + e.getMessage());
+        }
         dbHelper.closeConnection();
     }
 }
\ No newline at end of file
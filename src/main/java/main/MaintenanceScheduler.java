@@ -0,0 +1,254 @@
+package main;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>MaintenanceScheduler class keeps the H2 database file compact while the application runs.</p>
+ * <p>H2's MVStore never overwrites data in place: every update writes new pages and leaves the old ones behind, so
+ * the file fills with dead space as invites are redeemed, one-time passwords rewritten and users deleted. At a fixed
+ * interval the scheduler reads the store's fill rate from {@code INFORMATION_SCHEMA.SETTINGS}. When it has dropped
+ * below a threshold and there has been no write for a while, the scheduler compacts the store in small steps:
+ * each step rewrites at most a fixed number of bytes of live data out of sparse chunks, and steps are spaced so the
+ * I/O rate and the total time stay within their limits. The bytes reclaimed are reported after every run.</p>
+ * <p>H2 has no SQL command for online compaction, so the store is reached through H2's internal API by reflection.
+ * If that fails (e.g. a different H2 version), the scheduler instead asks for {@code SHUTDOWN COMPACT} when the
+ * application closes the database.</p>
+ */
+public class MaintenanceScheduler implements AutoCloseable {
+
+    /** The fill rate (percentage of live data) compaction aims for. */
+    private static final int TARGET_FILL_RATE = 90;
+
+    /** Bytes of live data rewritten per compaction step. */
+    private static final int STEP_BYTES = 1024 * 1024;
+
+    private final Connection connection;
+    private final LongSupplier lastWriteNanos;
+    private final long intervalSeconds;
+    private final int minFillRate;
+    private final long idleNanos;
+    private final long maxMillis;
+    private final long maxBytesPerSecond;
+
+    private ScheduledExecutorService executor;
+
+    /** Set when online compaction is unavailable and the file should be compacted on shutdown instead. */
+    private volatile boolean compactOnClose;
+
+    // Metrics
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private volatile String lastResult = "not run";
+
+    /**
+     * Constructor for MaintenanceScheduler.
+     *
+     * @param connection The connection to the database to maintain.
+     * @param lastWriteNanos Supplies the {@link System#nanoTime()} of the last write, to detect idle windows.
+     * @param intervalSeconds How often to check the fill rate.
+     * @param minFillRate The fill rate, in percent, below which the store is compacted.
+     * @param idleSeconds How long there must have been no write before compacting.
+     * @param maxMillis The maximum time one compaction run may take.
+     * @param maxBytesPerSecond The maximum rate live data is rewritten at.
+     */
+    public MaintenanceScheduler(Connection connection, LongSupplier lastWriteNanos, long intervalSeconds, int minFillRate,
+                                long idleSeconds, long maxMillis, long maxBytesPerSecond) {
+        this.connection = connection;
+        this.lastWriteNanos = lastWriteNanos;
+        this.intervalSeconds = intervalSeconds;
+        this.minFillRate = minFillRate;
+        this.idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+        this.maxMillis = maxMillis;
+        this.maxBytesPerSecond = Math.max(STEP_BYTES, maxBytesPerSecond);
+    }
+
+    /**
+     * Starts checking the fill rate on a daemon thread.
+     */
+    public synchronized void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "db-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                runIfNeeded();
+            } catch (Exception e) {
+                System.err.println("Database maintenance failed: " + e.getMessage());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reads the store statistics H2 reports, e.g. {@code info.FILL_RATE}, {@code info.CHUNKS_FILL_RATE} and
+     * {@code info.FILE_SIZE}.
+     *
+     * @return The statistics by name, without the {@code info.} prefix.
+     * @throws SQLException If the statistics cannot be read.
+     */
+    public Map<String, String> readStoreInfo() throws SQLException {
+        Map<String, String> info = new HashMap<>();
+        try (Statement stmt = connection.createStatement();
+             ResultSet resultSet = stmt.executeQuery("SELECT SETTING_NAME, SETTING_VALUE FROM INFORMATION_SCHEMA.SETTINGS "
+                     + "WHERE SETTING_NAME LIKE 'info.%'")) {
+            while (resultSet.next()) {
+                info.put(resultSet.getString(1).substring("info.".length()), resultSet.getString(2));
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Compacts the store if its fill rate is below the threshold and the database is idle.
+     *
+     * @return A message describing what was done.
+     * @throws SQLException If the statistics cannot be read.
+     */
+    public String runIfNeeded() throws SQLException {
+        int fillRate = fillRate(readStoreInfo());
+        if (fillRate < 0 || fillRate >= minFillRate) {
+            return "Fill rate " + fillRate + "%, no compaction needed";
+        }
+        if (System.nanoTime() - lastWriteNanos.getAsLong() < idleNanos) {
+            return "Fill rate " + fillRate + "%, waiting for an idle window";
+        }
+        return compact();
+    }
+
+    /**
+     * Compacts the store now, within the time and I/O limits.
+     *
+     * @return A message with the bytes reclaimed.
+     */
+    public synchronized String compact() {
+        Object store = mvStore();
+        if (store == null) {
+            compactOnClose = true;
+            lastResult = "Online compaction unavailable, the file will be compacted on shutdown";
+            System.out.println(lastResult);
+            return lastResult;
+        }
+
+        try {
+            Method compactStep = store.getClass().getMethod("compact", int.class, int.class);
+            long sizeBefore = fileSize(store);
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+            long stepNanos = TimeUnit.SECONDS.toNanos(1) * STEP_BYTES / maxBytesPerSecond;
+            int steps = 0;
+
+            // Each step rewrites a bounded amount of live data; stop when nothing is left to move or time runs out
+            while (System.nanoTime() < deadline && (Boolean) compactStep.invoke(store, TARGET_FILL_RATE, STEP_BYTES)) {
+                steps++;
+                long sleepNanos = start + steps * stepNanos - System.nanoTime();
+                if (sleepNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(Math.min(sleepNanos, Math.max(0, deadline - System.nanoTime())));
+                }
+            }
+            store.getClass().getMethod("commit").invoke(store);
+
+            long reclaimed = Math.max(0, sizeBefore - fileSize(store));
+            runs.incrementAndGet();
+            reclaimedBytes.addAndGet(reclaimed);
+            lastResult = "Compacted in " + steps + " steps and " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                    + " ms, reclaimed " + reclaimed + " bytes";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            lastResult = "Compaction interrupted";
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            compactOnClose = true;
+            lastResult = "Online compaction failed, the file will be compacted on shutdown: " + e;
+        }
+        System.out.println(lastResult);
+        return lastResult;
+    }
+
+    /**
+     * Checks whether the file should be compacted when the database is closed, because online compaction was
+     * unavailable.
+     *
+     * @return True to close the database with {@code SHUTDOWN COMPACT}.
+     */
+    public boolean isCompactOnClose() {
+        return compactOnClose;
+    }
+
+    /** @return The number of compaction runs. */
+    public long getRunCount() {
+        return runs.get();
+    }
+
+    /** @return The total number of bytes reclaimed. */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    /** @return The outcome of the last run. */
+    public String getLastResult() {
+        return lastResult;
+    }
+
+    /**
+     * Stops the scheduler, waiting for a running compaction step to finish.
+     */
+    @Override
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MaintenanceScheduler{runs=" + runs.get() + ", reclaimed=" + reclaimedBytes.get() + ", last=" + lastResult + "}";
+    }
+
+    // The lower of the page and chunk fill rates, or -1 if H2 does not report them
+    private static int fillRate(Map<String, String> info) {
+        int fillRate = -1;
+        for (String key : new String[] {"FILL_RATE", "CHUNKS_FILL_RATE"}) {
+            String value = info.get(key);
+            if (value != null) {
+                try {
+                    int rate = Integer.parseInt(value.trim());
+                    fillRate = fillRate < 0 ? rate : Math.min(fillRate, rate);
+                } catch (NumberFormatException e) {
+                    // Not reported as a number by this H2 version
+                }
+            }
+        }
+        return fillRate;
+    }
+
+    // Reaches the MVStore behind the connection: JdbcConnection -> SessionLocal -> Database -> Store -> MVStore
+    private Object mvStore() {
+        try {
+            Object jdbcConnection = connection.unwrap(Class.forName("org.h2.jdbc.JdbcConnection"));
+            Object session = jdbcConnection.getClass().getMethod("getSession").invoke(jdbcConnection);
+            Object database = session.getClass().getMethod("getDatabase").invoke(session);
+            Object store = database.getClass().getMethod("getStore").invoke(database);
+            return store == null ? null : store.getClass().getMethod("getMvStore").invoke(store);
+        } catch (ReflectiveOperationException | SQLException | RuntimeException e) {
+            System.err.println("Cannot reach the H2 store for compaction: " + e);
+            return null;
+        }
+    }
+
+    private static long fileSize(Object mvStore) throws ReflectiveOperationException {
+        Object fileStore = mvStore.getClass().getMethod("getFileStore").invoke(mvStore);
+        return fileStore == null ? 0 : (Long) fileStore.getClass().getMethod("size").invoke(fileStore);
+    }
+}
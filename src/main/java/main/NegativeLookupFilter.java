@@ -0,0 +1,141 @@
+package main;
+
+/**
+ * <p>NegativeLookupFilter class is an in-memory counting Bloom filter over a set of strings.</p>
+ * <p>It answers "definitely not present" or "might be present". The {@link DatabaseHelper} keeps one filter
+ * for usernames and one for invite codes so that lookups for unknown values can be rejected without a
+ * database query. Counters are used instead of single bits so that values can also be removed when a user
+ * is deleted.</p>
+ */
+public class NegativeLookupFilter {
+
+    /** Target false-positive rate used to size the filter. */
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    /** The counters, one per slot. Saturated counters are never decremented. */
+    private final byte[] counters;
+
+    /** The number of hash functions applied to each value. */
+    private final int hashCount;
+
+    /** The number of values the filter was sized for. */
+    private final int capacity;
+
+    /** The number of values currently in the filter. */
+    private int size;
+
+    /**
+     * Constructor for NegativeLookupFilter.
+     *
+     * @param expectedValues The number of values the filter should hold at a 1% false-positive rate.
+     */
+    public NegativeLookupFilter(int expectedValues) {
+        this.capacity = Math.max(expectedValues, 1024);
+        double ln2 = Math.log(2);
+        int slots = (int) Math.ceil(-capacity * Math.log(FALSE_POSITIVE_RATE) / (ln2 * ln2));
+        this.counters = new byte[slots];
+        this.hashCount = Math.max(1, (int) Math.round((double) slots / capacity * ln2));
+    }
+
+    /**
+     * Adds a value to the filter.
+     *
+     * @param value The value to add; null is ignored.
+     */
+    public synchronized void add(String value) {
+        if (value == null) {
+            return;
+        }
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            int slot = slot(h1 + i * h2);
+            if (counters[slot] != (byte) 0xFF) {
+                counters[slot]++;
+            }
+        }
+        size++;
+    }
+
+    /**
+     * Removes a value that was previously added to the filter.
+     *
+     * @param value The value to remove; null is ignored.
+     */
+    public synchronized void remove(String value) {
+        if (value == null || !mightContain(value)) {
+            return;
+        }
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            int slot = slot(h1 + i * h2);
+            if (counters[slot] != (byte) 0xFF) {
+                counters[slot]--;
+            }
+        }
+        size--;
+    }
+
+    /**
+     * Checks whether a value might be in the filter.
+     *
+     * @param value The value to check.
+     * @return False if the value is definitely absent, true if it might be present.
+     */
+    public synchronized boolean mightContain(String value) {
+        if (value == null) {
+            return false;
+        }
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            if (counters[slot(h1 + i * h2)] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the filter holds so many more values than it was sized for that its
+     * false-positive rate has degraded and it should be rebuilt.
+     *
+     * @return True if the filter should be rebuilt.
+     */
+    public synchronized boolean needsRebuild() {
+        return size > capacity * 2;
+    }
+
+    /**
+     * Retrieves the number of values in the filter.
+     *
+     * @return The number of values.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    // Maps a combined hash to a counter slot
+    private int slot(int combinedHash) {
+        return (combinedHash & Integer.MAX_VALUE) % counters.length;
+    }
+
+    // 64-bit FNV-1a over the characters followed by the MurmurHash3 finalizer
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,8 +1,8 @@
 package main;
 
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
 /**
  * <p>PasswordManager class handles the hashing and verification of passwords using the SHA-256 algorithm.</p>
@@ -24,9 +24,24 @@ public class PasswordManager {
      */
     public static byte[] hashPassword(String password) throws NoSuchAlgorithmException {
         MessageDigest md = MessageDigest.getInstance("SHA-256");
-        byte[] hashedPassword = md.digest(password.getBytes());
-        System.out.println("Hashed password: " + Arrays.toString(hashedPassword));
-        return hashedPassword;  // Return hashed password as byte array
+        return md.digest(password.getBytes());  // Return hashed password as byte array
+    }
+
+    /**
+     * Hashes a password reset token using SHA-256, so only the hash is ever stored.
+     *
+     * @param token The token handed to the user.
+     * @return The hash as a lower-case hex string.
+     * @throws NoSuchAlgorithmException If the SHA-256 algorithm is not available in the environment.
+     */
+    public static String hashToken(String token) throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        byte[] hash = md.digest(token.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
     }
 
     /**
@@ -38,11 +53,8 @@ public class PasswordManager {
      * @throws NoSuchAlgorithmException If the SHA-256 algorithm is not available in the environment.
      */
     public static boolean verifyPassword(String enteredPassword, byte[] storedHash) throws NoSuchAlgorithmException {
+        // Hashes are credential material, so neither is ever printed
         byte[] hashedEnteredPassword = hashPassword(enteredPassword);  // Hash the entered password
-        System.out.println("Entered password hash: " + Arrays.toString(hashedEnteredPassword));
-        System.out.println("Stored hash to compare: " + Arrays.toString(storedHash));
-        boolean isEqual = MessageDigest.isEqual(hashedEnteredPassword, storedHash);  // Compare the hashes
-        System.out.println("Password match result: " + isEqual);
-        return isEqual;
+        return MessageDigest.isEqual(hashedEnteredPassword, storedHash);  // Compare the hashes
     }
 }
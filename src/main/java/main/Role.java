@@ -0,0 +1,102 @@
+package main;
+
+import java.util.EnumSet;
+
+/**
+ * <p>Role enum lists the roles a user can hold in the Help System.</p>
+ * <p>Roles are stored in the database as a comma-separated list of their labels (e.g. "Admin,Student").
+ * Each role also has a single bit so that a set of roles can be held compactly as a bitmask.</p>
+ */
+public enum Role {
+
+    /** An administrator who manages users and invites. */
+    ADMIN("Admin"),
+
+    /** A student. */
+    STUDENT("Student"),
+
+    /** An instructor. */
+    INSTRUCTOR("Instructor");
+
+    /** The label used for this role in the database and the UI. */
+    private final String label;
+
+    Role(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Retrieves the label used for this role in the database and the UI.
+     *
+     * @return The label of the role.
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Retrieves the bit representing this role in a roles bitmask.
+     *
+     * @return The bit of the role.
+     */
+    public int bit() {
+        return 1 << ordinal();
+    }
+
+    /**
+     * Finds the role with the given label.
+     *
+     * @param label The label of the role, e.g. "Admin".
+     * @return The matching role, or null if there is none.
+     */
+    public static Role fromLabel(String label) {
+        if (label == null) {
+            return null;
+        }
+        for (Role role : values()) {
+            if (role.label.equals(label.trim())) {
+                return role;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Converts a comma-separated list of role labels, as stored in the database, into a bitmask.
+     *
+     * @param roles The comma-separated role labels; may be null or empty.
+     * @return The bitmask of the recognised roles.
+     */
+    public static int maskOf(String roles) {
+        int mask = 0;
+        if (roles == null || roles.isEmpty()) {
+            return mask;
+        }
+        for (String label : roles.split(",")) {
+            Role role = fromLabel(label);
+            if (role != null) {
+                mask |= role.bit();
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Converts role labels into a set of roles, ignoring labels that are not recognised.
+     *
+     * @param labels The role labels, e.g. as returned by {@link UserStore#getRolesForUser(String)}; may be null.
+     * @return The set of recognised roles.
+     */
+    public static EnumSet<Role> setOf(String[] labels) {
+        EnumSet<Role> roles = EnumSet.noneOf(Role.class);
+        if (labels != null) {
+            for (String label : labels) {
+                Role role = fromLabel(label);
+                if (role != null) {
+                    roles.add(role);
+                }
+            }
+        }
+        return roles;
+    }
+}
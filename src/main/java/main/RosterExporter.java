@@ -0,0 +1,363 @@
+package main;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>RosterExporter class writes the user roster to CSV or JSON Lines as it is read.</p>
+ * <p>The exporter describes what to write: the format, the columns, whether to gzip the output, and a callback told
+ * how many rows have been written so far. {@link DatabaseHelper#exportUsers(UserQuery, RosterExporter, OutputStream)}
+ * runs the query on a forward-only cursor and hands the result set to {@link #write(ResultSet, OutputStream)}, which
+ * formats each row straight into a buffered writer. No row is kept after it has been written, so memory use is the
+ * same for ten users or ten million. Stores without a JDBC cursor pass their rows to
+ * {@link #write(Iterator, OutputStream)} instead.</p>
+ */
+public class RosterExporter {
+
+    /** The output formats. */
+    public enum Format {
+        /** Comma-separated values with a header row (RFC 4180 quoting). */
+        CSV,
+        /** One JSON object per line. */
+        JSONL
+    }
+
+    /** The columns that can be exported. */
+    public enum Column {
+        /** The username. */
+        USERNAME("username", "username"),
+        /** The first name. */
+        FIRST_NAME("first_name", "firstName"),
+        /** The middle name. */
+        MIDDLE_NAME("middle_name", "middleName"),
+        /** The last name. */
+        LAST_NAME("last_name", "lastName"),
+        /** The preferred name. */
+        PREFERRED_NAME("preferred_name", "preferredName"),
+        /** The email address. */
+        EMAIL("email", "email"),
+        /** The roles, comma-separated. */
+        ROLES("role", "roles"),
+        /** Whether the user has finished setting up the account. */
+        SETUP_COMPLETE("account_setup_complete", "setupComplete"),
+        /** When the account was created. */
+        CREATED_AT("created_at", "createdAt");
+
+        private final String sqlColumn;
+        private final String key;
+
+        Column(String sqlColumn, String key) {
+            this.sqlColumn = sqlColumn;
+            this.key = key;
+        }
+
+        /** @return The column of the users table. */
+        String getSqlColumn() {
+            return sqlColumn;
+        }
+
+        /** @return The name used in the CSV header and as the JSON key. */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Finds a column by its key or enum name, ignoring case.
+         *
+         * @param name The key (e.g. "firstName") or enum name (e.g. "FIRST_NAME").
+         * @return The column, or null if there is none with that name.
+         */
+        public static Column fromName(String name) {
+            for (Column column : values()) {
+                if (column.key.equalsIgnoreCase(name) || column.name().equalsIgnoreCase(name)) {
+                    return column;
+                }
+            }
+            return null;
+        }
+    }
+
+    /** Size of the output buffer. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // The rows being written, read one at a time: a result set or rows held in memory
+    private interface RowSource {
+        boolean next() throws SQLException;
+
+        Object get(int index) throws SQLException;
+    }
+
+    private Format format = Format.CSV;
+    private List<Column> columns = Arrays.asList(Column.USERNAME, Column.FIRST_NAME, Column.MIDDLE_NAME,
+            Column.LAST_NAME, Column.EMAIL, Column.ROLES);
+    private boolean gzip;
+    private LongConsumer progress;
+    private int progressInterval = 10_000;
+
+    /**
+     * Default constructor creates an exporter writing uncompressed CSV with the username, names, email and roles.
+     */
+    public RosterExporter() {
+    }
+
+    /**
+     * Sets the output format.
+     *
+     * @param format The format.
+     * @return This exporter.
+     */
+    public RosterExporter format(Format format) {
+        this.format = format == null ? Format.CSV : format;
+        return this;
+    }
+
+    /**
+     * Sets the columns to write, in order.
+     *
+     * @param columns The columns; at least one.
+     * @return This exporter.
+     */
+    public RosterExporter columns(Column... columns) {
+        if (columns == null || columns.length == 0) {
+            throw new IllegalArgumentException("At least one column must be exported");
+        }
+        this.columns = new ArrayList<>(Arrays.asList(columns));
+        return this;
+    }
+
+    /**
+     * Sets whether to gzip the output.
+     *
+     * @param gzip True to compress.
+     * @return This exporter.
+     */
+    public RosterExporter gzip(boolean gzip) {
+        this.gzip = gzip;
+        return this;
+    }
+
+    /**
+     * Sets a callback told how many rows have been written, every interval rows and once at the end.
+     *
+     * @param progress The callback, called on the exporting thread; null for none.
+     * @param interval The number of rows between calls.
+     * @return This exporter.
+     */
+    public RosterExporter onProgress(LongConsumer progress, int interval) {
+        this.progress = progress;
+        this.progressInterval = Math.max(1, interval);
+        return this;
+    }
+
+    /** @return The columns written, in order. */
+    public List<Column> getColumns() {
+        return Collections.unmodifiableList(columns);
+    }
+
+    /** @return The output format. */
+    public Format getFormat() {
+        return format;
+    }
+
+    /** @return True if the output is gzipped. */
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * Builds the select list reading the exported columns, in order.
+     *
+     * @return The comma-separated columns of the users table.
+     */
+    String selectList() {
+        StringBuilder select = new StringBuilder();
+        for (Column column : columns) {
+            if (select.length() > 0) {
+                select.append(", ");
+            }
+            select.append(column.getSqlColumn());
+        }
+        return select.toString();
+    }
+
+    /**
+     * Writes every row of a result set selecting {@link #selectList()} to a stream. The stream is not closed, but a
+     * gzip stream wrapped around it is finished.
+     *
+     * @param resultSet The rows, positioned before the first.
+     * @param out The stream to write to.
+     * @return The number of rows written.
+     * @throws SQLException If the rows cannot be read.
+     * @throws IOException If the stream cannot be written.
+     */
+    public long write(ResultSet resultSet, OutputStream out) throws SQLException, IOException {
+        return write(new RowSource() {
+            @Override
+            public boolean next() throws SQLException {
+                return resultSet.next();
+            }
+
+            @Override
+            public Object get(int index) throws SQLException {
+                return resultSet.getObject(index);
+            }
+        }, out);
+    }
+
+    /**
+     * Writes rows held in memory to a stream, as {@link #write(ResultSet, OutputStream)} does. Each row holds the
+     * values of {@link #getColumns()} in order, of the types a result set would return.
+     *
+     * @param rows The rows; each is read once.
+     * @param out The stream to write to.
+     * @return The number of rows written.
+     * @throws SQLException Never thrown for rows held in memory; declared for symmetry with the result set variant.
+     * @throws IOException If the stream cannot be written.
+     */
+    public long write(Iterator<Object[]> rows, OutputStream out) throws SQLException, IOException {
+        return write(new RowSource() {
+            private Object[] row;
+
+            @Override
+            public boolean next() {
+                row = rows.hasNext() ? rows.next() : null;
+                return row != null;
+            }
+
+            @Override
+            public Object get(int index) {
+                return row[index - 1];
+            }
+        }, out);
+    }
+
+    private long write(RowSource source, OutputStream out) throws SQLException, IOException {
+        GZIPOutputStream compressed = gzip ? new GZIPOutputStream(out, BUFFER_SIZE) : null;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(compressed != null ? compressed : out, StandardCharsets.UTF_8), BUFFER_SIZE);
+
+        if (format == Format.CSV) {
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writer.write(columns.get(i).getKey());
+            }
+            writer.write("\r\n");
+        }
+
+        long rows = 0;
+        while (source.next()) {
+            if (format == Format.CSV) {
+                writeCsvRow(writer, source);
+            } else {
+                writeJsonRow(writer, source);
+            }
+            if (++rows % progressInterval == 0 && progress != null) {
+                progress.accept(rows);
+            }
+        }
+
+        writer.flush();
+        if (compressed != null) {
+            compressed.finish();
+        }
+        if (progress != null && (rows == 0 || rows % progressInterval != 0)) {
+            progress.accept(rows);
+        }
+        return rows;
+    }
+
+    /**
+     * Opens a file for an export through a file channel, creating or truncating it.
+     *
+     * @param file The file.
+     * @return A stream writing to the file.
+     * @throws IOException If the file cannot be opened.
+     */
+    static OutputStream openFile(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        return Channels.newOutputStream(channel);
+    }
+
+    private void writeCsvRow(Writer writer, RowSource source) throws SQLException, IOException {
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            String value = text(source.get(i + 1));
+            if (value != null) {
+                writeCsvValue(writer, value);
+            }
+        }
+        writer.write("\r\n");
+    }
+
+    private void writeJsonRow(Writer writer, RowSource source) throws SQLException, IOException {
+        writer.write('{');
+        for (int i = 0; i < columns.size(); i++) {
+            Column column = columns.get(i);
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write('"');
+            writer.write(column.getKey());
+            writer.write("\":");
+            if (column == Column.SETUP_COMPLETE) {
+                writer.write(Boolean.toString(Boolean.TRUE.equals(source.get(i + 1))));
+            } else {
+                writer.write(Json.quote(text(source.get(i + 1))));
+            }
+        }
+        writer.write("}\n");
+    }
+
+    // Reads a column as text; timestamps are written in ISO-8601
+    private static String text(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Timestamp) {
+            return ((Timestamp) value).toLocalDateTime().toString();
+        }
+        return value.toString();
+    }
+
+    // Quotes a value when needed, and defuses values a spreadsheet would run as a formula
+    private static void writeCsvValue(Writer writer, String value) throws IOException {
+        if (!value.isEmpty() && "=+-@".indexOf(value.charAt(0)) >= 0) {
+            value = "'" + value;
+        }
+        boolean quote = value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0;
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    @Override
+    public String toString() {
+        return "RosterExporter{" + format.name().toLowerCase(Locale.ROOT) + (gzip ? ".gz" : "") + ", columns=" + columns + "}";
+    }
+}
@@ -0,0 +1,111 @@
+package main;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import javafx.scene.Parent;
+import javafx.scene.Scene;
+import javafx.stage.Stage;
+
+/**
+ * <p>ScreenCache class keeps the screens of the application once they have been built, so navigating to a screen
+ * again rebinds its existing controls to the data it should show instead of building, and styling, a new layout.</p>
+ * <p>A screen is a root node together with a binder. The binder runs every time the screen is shown and is
+ * responsible for making the screen look as if it had just been built for the given data: it sets labels, clears
+ * form fields and messages, and refreshes whatever data may have changed since the screen was last shown. Controls
+ * that stay attached to a scene keep their skins and computed styles, so showing a cached screen only restyles
+ * the nodes whose state actually changed.</p>
+ * <p>A node can be the root of only one scene, so each screen must always be shown in the same scene. Screens
+ * holding data of the logged-in user should be evicted when the user logs out.</p>
+ */
+public class ScreenCache {
+
+    /**
+     * <p>Binder interface updates a cached screen for the data it shows next.</p>
+     *
+     * @param <T> The type of the data, e.g. a username.
+     */
+    @FunctionalInterface
+    public interface Binder<T> {
+
+        /**
+         * Updates the screen before it is shown.
+         *
+         * @param data The data to show; may be null for screens that need none.
+         * @throws SQLException If the data cannot be loaded.
+         */
+        void bind(T data) throws SQLException;
+    }
+
+    /**
+     * <p>Screen class is a built screen and the binder that updates it.</p>
+     *
+     * @param <T> The type of the data the screen is bound to.
+     */
+    public static final class Screen<T> {
+        private final Parent root;
+        private final Binder<T> binder;
+
+        /**
+         * Constructor for Screen.
+         *
+         * @param root The root node of the screen.
+         * @param binder Updates the screen each time it is shown.
+         */
+        public Screen(Parent root, Binder<T> binder) {
+            this.root = root;
+            this.binder = binder;
+        }
+
+        /** @return The root node of the screen. */
+        public Parent getRoot() {
+            return root;
+        }
+    }
+
+    private final Map<String, Screen<?>> screens = new HashMap<>();
+
+    /**
+     * Default constructor creates an empty cache.
+     */
+    public ScreenCache() {
+    }
+
+    /**
+     * Shows a screen, building it the first time. The screen is bound to the data before it is attached, so a
+     * binding error leaves the current screen on display.
+     *
+     * @param stage The stage to show the screen on.
+     * @param scene The scene the screen belongs to; the stage is switched to it if needed.
+     * @param name The name the screen is cached under.
+     * @param factory Builds the screen if it is not cached.
+     * @param data The data to bind the screen to.
+     * @param <T> The type of the data.
+     * @throws SQLException If the binder cannot load the data.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void show(Stage stage, Scene scene, String name, Supplier<Screen<T>> factory, T data) throws SQLException {
+        Screen<T> screen = (Screen<T>) screens.get(name);
+        if (screen == null) {
+            screen = factory.get();
+            screens.put(name, screen);
+        }
+        screen.binder.bind(data);
+        if (scene.getRoot() != screen.root) {
+            scene.setRoot(screen.root);
+        }
+        if (stage.getScene() != scene) {
+            stage.setScene(scene);
+        }
+    }
+
+    /**
+     * Drops a screen, so it is built again the next time it is shown.
+     *
+     * @param name The name the screen is cached under.
+     */
+    public void evict(String name) {
+        screens.remove(name);
+    }
+}
@@ -0,0 +1,130 @@
+package main;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * <p>Session class is an immutable record of one logged-in user held by the {@link SessionRegistry}.</p>
+ * <p>It holds the opaque session token, the username, the role the user is currently acting as, the full set
+ * of roles the user holds and the time at which the session expires. Changes such as switching role or
+ * extending the expiry produce a new Session, which the registry swaps in atomically.</p>
+ */
+public final class Session {
+
+    /** The opaque token identifying the session. */
+    private final String token;
+
+    /** The username of the logged-in user. */
+    private final String username;
+
+    /** The role the user is acting as, or null before a role is chosen. */
+    private final Role activeRole;
+
+    /** The roles the user holds. */
+    private final Set<Role> roles;
+
+    /** The time the session expires, in epoch milliseconds. */
+    private final long expiresAtMillis;
+
+    /**
+     * Constructor for Session.
+     *
+     * @param token The opaque token identifying the session.
+     * @param username The username of the logged-in user.
+     * @param activeRole The role the user is acting as, or null.
+     * @param roles The roles the user holds.
+     * @param expiresAtMillis The time the session expires, in epoch milliseconds.
+     */
+    public Session(String token, String username, Role activeRole, EnumSet<Role> roles, long expiresAtMillis) {
+        this.token = token;
+        this.username = username;
+        this.activeRole = activeRole;
+        this.roles = Collections.unmodifiableSet(EnumSet.copyOf(roles));
+        this.expiresAtMillis = expiresAtMillis;
+    }
+
+    /**
+     * Retrieves the session token.
+     *
+     * @return The token.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Retrieves the username of the logged-in user.
+     *
+     * @return The username.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Retrieves the role the user is acting as.
+     *
+     * @return The active role, or null if none has been chosen.
+     */
+    public Role getActiveRole() {
+        return activeRole;
+    }
+
+    /**
+     * Retrieves the roles the user holds.
+     *
+     * @return An unmodifiable set of roles.
+     */
+    public Set<Role> getRoles() {
+        return roles;
+    }
+
+    /**
+     * Retrieves the time the session expires.
+     *
+     * @return The expiry in epoch milliseconds.
+     */
+    public long getExpiresAtMillis() {
+        return expiresAtMillis;
+    }
+
+    /**
+     * Checks whether the user holds a role.
+     *
+     * @param role The role to check.
+     * @return True if the user holds the role.
+     */
+    public boolean hasRole(Role role) {
+        return roles.contains(role);
+    }
+
+    /**
+     * Checks whether the session has expired.
+     *
+     * @param nowMillis The current time in epoch milliseconds.
+     * @return True if the session has expired.
+     */
+    public boolean isExpired(long nowMillis) {
+        return nowMillis >= expiresAtMillis;
+    }
+
+    // Copies of the session with one field changed
+
+    Session withActiveRole(Role newActiveRole) {
+        return new Session(token, username, newActiveRole, copyRoles(), expiresAtMillis);
+    }
+
+    Session withRoles(EnumSet<Role> newRoles) {
+        Role active = activeRole != null && newRoles.contains(activeRole) ? activeRole : null;
+        return new Session(token, username, active, newRoles, expiresAtMillis);
+    }
+
+    Session withExpiresAt(long newExpiresAtMillis) {
+        return new Session(token, username, activeRole, copyRoles(), newExpiresAtMillis);
+    }
+
+    private EnumSet<Role> copyRoles() {
+        return roles.isEmpty() ? EnumSet.noneOf(Role.class) : EnumSet.copyOf(roles);
+    }
+}
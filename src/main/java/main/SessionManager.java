@@ -4,42 +4,69 @@ package main;
  * <p>SessionManager class handles the management of the current user session, including storing and retrieving
  * the user's username, roles, and other session-related functions.</p>
  * <p>This class is used to manage session information for users including roles (e.g., admin, student, instructor) and username.</p>
+ * <p>The session itself lives in a shared {@link SessionRegistry}; this class only remembers the token of the session
+ * belonging to one window, so many users can be logged in to the same process at once.</p>
  */
 public class SessionManager {
 
-    /** The username of the current user in the session. */
-    private String username;
+    /** The registry holding every live session. */
+    private final SessionRegistry registry;
 
-    /** The roles of the current user (admin, student, instructor). */
-    private String[] roles;
-
-    /** The current role of the user. */
-    private String role;
+    /** The token of the current session, or null if nobody is logged in. */
+    private String token;
 
     /**
-     * Default constructor initializes the session with no user or roles.
+     * Default constructor initializes the session with no user or roles, backed by its own registry.
      */
     public SessionManager() {
-        this.username = null;
-        this.roles = null;
+        this(new SessionRegistry());
     }
 
     /**
-     * Retrieves the current user's username.
+     * Constructor for SessionManager backed by a shared registry.
      *
-     * @return The username of the current user, or null if not set.
+     * @param registry The registry holding every live session.
      */
-    public String getUsername() {
-        return username;
+    public SessionManager(SessionRegistry registry) {
+        this.registry = registry;
+        this.token = null;
+    }
+
+    /**
+     * Starts a session for a user, replacing any current session.
+     *
+     * @param username The username of the user.
+     * @param role The role the user is acting as, or null if none has been chosen yet.
+     * @param roles The roles assigned to the user.
+     * @return True if the session was started, false if the registry is full.
+     */
+    public boolean begin(String username, String role, String[] roles) {
+        logout();
+        Session session = registry.create(username, Role.fromLabel(role), Role.setOf(roles));
+        if (session == null) {
+            return false;
+        }
+        this.token = session.getToken();
+        return true;
+    }
+
+    /**
+     * Retrieves the token of the current session.
+     *
+     * @return The session token, or null if nobody is logged in.
+     */
+    public String getToken() {
+        return token;
     }
 
     /**
-     * Sets the current user's username.
+     * Retrieves the current user's username.
      *
-     * @param username The username of the current user.
+     * @return The username of the current user, or null if not set.
      */
-    public void setUsername(String username) {
-        this.username = username;
+    public String getUsername() {
+        Session session = registry.get(token);
+        return session == null ? null : session.getUsername();
     }
 
     /**
@@ -48,33 +75,68 @@ public class SessionManager {
      * @return An array of roles assigned to the current user, or null if not set.
      */
     public String[] getRoles() {
-        return roles;
+        Session session = registry.get(token);
+        if (session == null) {
+            return null;
+        }
+        return session.getRoles().stream().map(Role::getLabel).toArray(String[]::new);
     }
 
     /**
-     * Sets the roles for the current user.
+     * Retrieves the role the current user is acting as.
      *
-     * @param roles An array of roles to be assigned to the current user.
+     * @return The current role, or null if not set.
      */
-    public void setRoles(String[] roles) {
-        this.roles = roles;
+    public String getRole() {
+        Session session = registry.get(token);
+        return session == null || session.getActiveRole() == null ? null : session.getActiveRole().getLabel();
     }
 
     /**
      * Sets the current role for the user.
      *
      * @param role The role to assign to the current user.
+     * @return True if the user holds the role and it is now active.
+     */
+    public boolean setRole(String role) {
+        Role parsed = Role.fromLabel(role);
+        return parsed != null && registry.setActiveRole(token, parsed) != null;
+    }
+
+    /**
+     * Checks whether the current user holds a role, without querying the database.
+     *
+     * @param role The role to check.
+     * @return True if a session is live and the user holds the role.
+     */
+    public boolean hasRole(Role role) {
+        return registry.hasRole(token, role);
+    }
+
+    /**
+     * Replaces the roles of every live session of a user after they have been changed.
+     *
+     * @param username The username of the user.
+     * @param roles The user's new roles.
+     */
+    public void refreshRoles(String username, String[] roles) {
+        registry.refreshRoles(username, Role.setOf(roles));
+    }
+
+    /**
+     * Ends every live session of a user after they have been deleted.
+     *
+     * @param username The username of the user.
      */
-    public void setRole(String role) {
-        this.role = role;
+    public void endSessionsOf(String username) {
+        registry.invalidateUser(username);
     }
 
     /**
      * Logs out the current user by clearing the username, role, and roles.
      */
     public void logout() {
-        this.username = null;
-        this.role = null;
-        this.roles = null;
+        registry.invalidate(token);
+        this.token = null;
     }
 }
@@ -0,0 +1,250 @@
+package main;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>SessionRegistry class keeps track of every logged-in user.</p>
+ * <p>Sessions are stored as immutable {@link Session} records in a concurrent map keyed by an opaque random
+ * token. Lookups are lock-free; changes such as switching role or extending the expiry replace the record
+ * with compare-and-set. Sessions expire after a period of inactivity (sliding expiration), expired sessions are
+ * evicted by a background thread, and the number of live sessions is bounded.</p>
+ * <p>Authorization checks are answered from the role set captured at login, so they do not need to query
+ * the database.</p>
+ */
+public class SessionRegistry implements AutoCloseable {
+
+    /** Default time a session stays alive without being used. */
+    public static final long DEFAULT_TTL_MILLIS = 30 * 60 * 1000;
+
+    /** Default maximum number of live sessions. */
+    public static final int DEFAULT_MAX_SESSIONS = 10_000;
+
+    /** The sessions keyed by token. */
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    /** The number of sessions, kept separately so the bound can be enforced exactly. */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /** The time a session stays alive without being used. */
+    private final long ttlMillis;
+
+    /** The maximum number of live sessions. */
+    private final int maxSessions;
+
+    /** Lookups only extend the expiry once it has run down by this much, to avoid replacing the record every time. */
+    private final long renewAfterMillis;
+
+    /** Source of session tokens. */
+    private final SecureRandom random = new SecureRandom();
+
+    /** Background thread removing expired sessions. */
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * Default constructor uses a 30 minute timeout and allows 10,000 sessions.
+     */
+    public SessionRegistry() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_SESSIONS);
+    }
+
+    /**
+     * Constructor for SessionRegistry.
+     *
+     * @param ttlMillis The time in milliseconds a session stays alive without being used.
+     * @param maxSessions The maximum number of live sessions.
+     */
+    public SessionRegistry(long ttlMillis, int maxSessions) {
+        this.ttlMillis = ttlMillis;
+        this.maxSessions = maxSessions;
+        this.renewAfterMillis = Math.max(1, ttlMillis / 10);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, Math.min(ttlMillis / 2, 30_000));
+        evictor.scheduleAtFixedRate(this::evictExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a session for a user who has just been authenticated.
+     *
+     * @param username The username of the user.
+     * @param activeRole The role the user logged in as, or null if none.
+     * @param roles The roles the user holds.
+     * @return The new session, or null if the maximum number of sessions has been reached.
+     */
+    public Session create(String username, Role activeRole, EnumSet<Role> roles) {
+        if (!reserveSlot()) {
+            evictExpired();
+            if (!reserveSlot()) {
+                System.out.println("Session limit reached, rejecting session for " + username);
+                return null;
+            }
+        }
+        Session session = new Session(newToken(), username, activeRole, roles, System.currentTimeMillis() + ttlMillis);
+        sessions.put(session.getToken(), session);
+        return session;
+    }
+
+    /**
+     * Looks up a live session and extends its expiry.
+     *
+     * @param token The session token.
+     * @return The session, or null if the token is unknown or the session has expired.
+     */
+    public Session get(String token) {
+        if (token == null) {
+            return null;
+        }
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (session.isExpired(now)) {
+            remove(token, session);
+            return null;
+        }
+        if (session.getExpiresAtMillis() - now < ttlMillis - renewAfterMillis) {
+            Session renewed = session.withExpiresAt(now + ttlMillis);
+            if (sessions.replace(token, session, renewed)) {
+                return renewed;
+            }
+            return sessions.get(token);
+        }
+        return session;
+    }
+
+    /**
+     * Checks whether a session is live and its user holds a role.
+     *
+     * @param token The session token.
+     * @param role The role to check.
+     * @return True if the session is live and the user holds the role.
+     */
+    public boolean hasRole(String token, Role role) {
+        Session session = get(token);
+        return session != null && session.hasRole(role);
+    }
+
+    /**
+     * Switches the role a session is acting as.
+     *
+     * @param token The session token.
+     * @param role The role to act as; must be one the user holds.
+     * @return The updated session, or null if the session is not live or the user does not hold the role.
+     */
+    public Session setActiveRole(String token, Role role) {
+        while (true) {
+            Session session = get(token);
+            if (session == null || !session.hasRole(role)) {
+                return null;
+            }
+            Session updated = session.withActiveRole(role);
+            if (sessions.replace(token, session, updated)) {
+                return updated;
+            }
+        }
+    }
+
+    /**
+     * Replaces the roles of every live session of a user, e.g. after an admin has changed them.
+     *
+     * @param username The username of the user.
+     * @param roles The user's new roles.
+     */
+    public void refreshRoles(String username, EnumSet<Role> roles) {
+        for (Session session : sessions.values()) {
+            if (session.getUsername().equals(username)) {
+                sessions.computeIfPresent(session.getToken(), (token, current) -> current.withRoles(roles));
+            }
+        }
+    }
+
+    /**
+     * Ends a session.
+     *
+     * @param token The session token.
+     */
+    public void invalidate(String token) {
+        if (token != null && sessions.remove(token) != null) {
+            count.decrementAndGet();
+        }
+    }
+
+    /**
+     * Ends every session of a user, e.g. after the user has been deleted.
+     *
+     * @param username The username of the user.
+     */
+    public void invalidateUser(String username) {
+        for (Session session : sessions.values()) {
+            if (session.getUsername().equals(username)) {
+                invalidate(session.getToken());
+            }
+        }
+    }
+
+    /**
+     * Retrieves the number of live sessions.
+     *
+     * @return The number of sessions.
+     */
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * Stops the background eviction thread.
+     */
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+    }
+
+    // Removes every expired session
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        for (Session session : sessions.values()) {
+            if (session.isExpired(now)) {
+                remove(session.getToken(), session);
+            }
+        }
+    }
+
+    // Removes a session if it is still the current record for its token
+    private void remove(String token, Session session) {
+        if (sessions.remove(token, session)) {
+            count.decrementAndGet();
+        }
+    }
+
+    // Claims one of the bounded session slots
+    private boolean reserveSlot() {
+        while (true) {
+            int current = count.get();
+            if (current >= maxSessions) {
+                return false;
+            }
+            if (count.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // Generates a random 256-bit URL-safe token
+    private String newToken() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
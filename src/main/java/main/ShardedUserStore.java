@@ -0,0 +1,747 @@
+package main;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * <p>ShardedUserStore class partitions the users over several H2 databases, the shards, so writes to different
+ * users go to different database files, each with its own write queue, page cache and, when the shards are placed
+ * on different disks, its own disk.</p>
+ * <p>A user lives on the shard picked by a jump consistent hash of the username; an invite nobody has redeemed yet
+ * lives on the shard picked by its normalized code. Operations on one user or invite (login, profile, roles,
+ * passwords, reset tokens) go to that one shard. Listings, counts, exports and sweeps run on every shard in
+ * parallel and merge the results: a page of a listing is merged from the first offset + limit rows of each shard in
+ * the query's sort order, and an export merges the sorted streams of the shards as they are read. Redeeming an
+ * invite that lives on another shard than the new user first inserts the new user on the user's shard, which fails
+ * if the username is taken there, and only then deletes the invite. A crash in between leaves the invite
+ * redeemable once more, but never loses the user.</p>
+ * <p>Usernames are unique because a username always maps to the same shard. Email addresses are unique across the
+ * shards: profile writes are serialized by the store and first look for the email on every shard, so the store
+ * must be the only process using its shards. Each shard assigns its own user ids; the ids the store returns
+ * combine a shard's id with the shard's index, so they are unique, but they change when a user moves to another
+ * shard. created_by_admin_id refers to a user of the same shard and is cleared when a row moves.</p>
+ * <p>{@link #rebalance(int)} changes the number of shards, moving only the rows whose shard changes. It runs
+ * offline, from {@code --rebalance-shards=N}, while nothing else uses the shards.</p>
+ */
+public class ShardedUserStore implements UserStore {
+
+    // A call made on one shard
+    @FunctionalInterface
+    interface ShardCall<T> {
+        T call(DatabaseHelper shard) throws SQLException;
+    }
+
+    // Marks the end of the rows of one shard in an export
+    private static final Object[] END_OF_ROWS = new Object[0];
+
+    // Rows buffered per shard while an export is merged
+    private static final int EXPORT_QUEUE_ROWS = 1000;
+
+    private final IntFunction<DatabaseHelper> shardFactory;
+    private final List<DatabaseHelper> shards = new ArrayList<>();
+    private final ExecutorService executor;
+
+    // Serializes profile writes, so an email found free on every shard cannot be taken by another write meanwhile
+    private final Object emailLock = new Object();
+
+    /**
+     * Creates the user store configured by the system properties: {@code docop.shards} shards (default 4) named
+     * after {@code docop.dbPath} with the suffixes {@code -shard0}, {@code -shard1} and so on. If
+     * {@code docop.shardDirs} is set to a comma-separated list of directories, shard i is placed in directory
+     * i modulo the number of directories. Each shard logs slow statements to its own file and, if a standby is
+     * configured, keeps its own standby.
+     *
+     * @return A new, not yet connected, user store.
+     */
+    public static ShardedUserStore fromSystemProperties() {
+        return new ShardedUserStore(Integer.getInteger("docop.shards", 4), ShardedUserStore::shardFromSystemProperties);
+    }
+
+    /**
+     * Constructor for ShardedUserStore.
+     *
+     * @param shardCount The number of shards.
+     * @param shardFactory Creates the not yet connected store of a shard from its index.
+     */
+    public ShardedUserStore(int shardCount, IntFunction<DatabaseHelper> shardFactory) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("A sharded store needs at least one shard, not " + shardCount);
+        }
+        this.shardFactory = shardFactory;
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(shardFactory.apply(i));
+        }
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "shard-" + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Retrieves the number of shards.
+     *
+     * @return The number of shards.
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Picks the shard of a key with Lamping and Veach's jump consistent hash over a 64-bit FNV-1a hash of the key.
+     * When the number of shards grows from n to m, only about (m - n) / m of the keys move, all to the new shards.
+     *
+     * @param key The username or normalized invite code.
+     * @param shardCount The number of shards.
+     * @return The index of the shard.
+     */
+    static int shardIndex(String key, int shardCount) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        long bucket = -1;
+        long next = 0;
+        while (next < shardCount) {
+            bucket = next;
+            hash = hash * 2862933555777941757L + 1;
+            next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((hash >>> 33) + 1)));
+        }
+        return (int) bucket;
+    }
+
+    private DatabaseHelper shardFor(String username) {
+        return shards.get(shardIndex(username == null ? "" : username, shards.size()));
+    }
+
+    private DatabaseHelper shardForInvite(String inviteCode) {
+        String code = DatabaseHelper.normalizeInviteCode(inviteCode);
+        return shards.get(shardIndex(code == null ? "" : code, shards.size()));
+    }
+
+    // Runs a call on every shard in parallel and returns the results in shard order
+    private <T> List<T> scatter(ShardCall<T> call) throws SQLException {
+        List<Future<T>> futures = new ArrayList<>();
+        for (DatabaseHelper shard : shards) {
+            futures.add(executor.submit(() -> call.call(shard)));
+        }
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            results.add(await(future));
+        }
+        return results;
+    }
+
+    // Waits for a shard call, rethrowing what it threw
+    private static <T> T await(Future<T> future) throws SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a shard", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException("Shard call failed", cause);
+        }
+    }
+
+    @Override
+    public void connectToDatabase() throws SQLException {
+        try {
+            scatter(shard -> {
+                shard.connectToDatabase();
+                return null;
+            });
+        } catch (SQLException | RuntimeException e) {
+            closeConnection();
+            throw e;
+        }
+        System.out.println("Connected to " + shards.size() + " shards");
+    }
+
+    @Override
+    public void closeConnection() {
+        for (DatabaseHelper shard : shards) {
+            shard.closeConnection();
+        }
+        executor.shutdown();
+    }
+
+    @Override
+    public boolean login(String username, String password, String role) throws SQLException {
+        return shardFor(username).login(username, password, role);
+    }
+
+    @Override
+    public void register(String username, byte[] passwordHash, String role) throws SQLException {
+        shardFor(username).register(username, passwordHash, role);
+    }
+
+    @Override
+    public boolean doesUserExist(String username) throws SQLException {
+        return shardFor(username).doesUserExist(username);
+    }
+
+    @Override
+    public boolean doesInviteExist(String inviteCode) throws SQLException {
+        return shardForInvite(inviteCode).doesInviteExist(inviteCode);
+    }
+
+    @Override
+    public String getRoleFromInvite(String inviteCode) throws SQLException {
+        return shardForInvite(inviteCode).getRoleFromInvite(inviteCode);
+    }
+
+    @Override
+    public void addRoleToUser(String username, String newRole) throws SQLException {
+        shardFor(username).addRoleToUser(username, newRole);
+    }
+
+    @Override
+    public void removeRoleFromUser(String username, String roleToRemove) throws SQLException {
+        shardFor(username).removeRoleFromUser(username, roleToRemove);
+    }
+
+    @Override
+    public String[] getRolesForUser(String username) throws SQLException {
+        return shardFor(username).getRolesForUser(username);
+    }
+
+    @Override
+    public boolean isDatabaseEmpty() throws SQLException {
+        return !scatter(DatabaseHelper::isDatabaseEmpty).contains(Boolean.FALSE);
+    }
+
+    @Override
+    public boolean isPasswordCorrect(String username, String password) throws SQLException, NoSuchAlgorithmException {
+        return shardFor(username).isPasswordCorrect(username, password);
+    }
+
+    @Override
+    public boolean isRoleCorrect(String username, String role) throws SQLException {
+        return shardFor(username).isRoleCorrect(username, role);
+    }
+
+    @Override
+    public boolean isAccountSetupComplete(String username) throws SQLException {
+        return shardFor(username).isAccountSetupComplete(username);
+    }
+
+    @Override
+    public void setupUserDetails(String username, String firstName, String middleName, String lastName, String preferredName, String email) throws SQLException {
+        synchronized (emailLock) {
+            if (isEmailTaken(username, email)) {
+                return;
+            }
+            shardFor(username).setupUserDetails(username, firstName, middleName, lastName, preferredName, email);
+        }
+    }
+
+    @Override
+    public String resetUser(String username, String password, String expirationDate) throws SQLException {
+        return shardFor(username).resetUser(username, password, expirationDate);
+    }
+
+    @Override
+    public void clearDatabase() throws SQLException {
+        scatter(shard -> {
+            shard.clearDatabase();
+            return null;
+        });
+    }
+
+    @Override
+    public String addUser(String inviteCode, String role) {
+        return shardForInvite(inviteCode).addUser(inviteCode, role);
+    }
+
+    @Override
+    public void createInvite(String inviteCode, String inviteRole) throws SQLException {
+        shardForInvite(inviteCode).createInvite(inviteCode, inviteRole);
+    }
+
+    @Override
+    public String[] getUserDetails(String currentUsername) {
+        return shardFor(currentUsername).getUserDetails(currentUsername);
+    }
+
+    @Override
+    public boolean updateUserDetails(String currentUsername, String firstName, String middleName, String lastName,
+                                     String preferredName, String email, long expectedVersion) throws SQLException {
+        synchronized (emailLock) {
+            if (isEmailTaken(currentUsername, email)) {
+                return false;
+            }
+            return shardFor(currentUsername).updateUserDetails(currentUsername, firstName, middleName, lastName,
+                    preferredName, email, expectedVersion);
+        }
+    }
+
+    // Checks every shard for another user with the email, as the UNIQUE constraint only covers one shard
+    private boolean isEmailTaken(String username, String email) throws SQLException {
+        if (email == null) {
+            return false;
+        }
+        for (String owner : scatter(shard -> shard.findUsernameByEmail(email))) {
+            if (owner != null && !owner.equals(username)) {
+                System.err.println("Email already in use: " + email);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long getUserVersion(String username) throws SQLException {
+        return shardFor(username).getUserVersion(username);
+    }
+
+    @Override
+    public String[][] getAllUserAccounts() throws SQLException {
+        List<String[]> accounts = new ArrayList<>();
+        for (String[][] shardAccounts : scatter(DatabaseHelper::getAllUserAccounts)) {
+            accounts.addAll(Arrays.asList(shardAccounts));
+        }
+        return accounts.toArray(new String[0][]);
+    }
+
+    @Override
+    public String[][] findUserAccounts(UserQuery query) throws SQLException {
+        List<Object[]> rows = findPage(query);
+        String[][] accounts = new String[rows.size()][];
+        for (int i = 0; i < accounts.length; i++) {
+            Object[] row = rows.get(i);
+            accounts[i] = new String[] {(String) row[2], (String) row[3], (String) row[4], (String) row[5], (String) row[6]};
+        }
+        return accounts;
+    }
+
+    @Override
+    public int countUserAccounts(UserQuery query) throws SQLException {
+        int count = 0;
+        for (int shardCount : scatter(shard -> shard.countUserAccounts(query))) {
+            count += shardCount;
+        }
+        return count;
+    }
+
+    @Override
+    public UserSummaryTable findUserSummaries(UserQuery query) throws SQLException {
+        List<Object[]> rows = findPage(query);
+        UserSummaryTable.Builder summaries = new UserSummaryTable.Builder(rows.size());
+        for (Object[] row : rows) {
+            summaries.add(((Number) row[1]).intValue(), (String) row[2], (String) row[3], (String) row[5], (String) row[6]);
+        }
+        return summaries.build();
+    }
+
+    // Merges one page of a query from the first offset + limit rows of every shard
+    private List<Object[]> findPage(UserQuery query) throws SQLException {
+        int wanted = (int) Math.min(Integer.MAX_VALUE, (long) query.getOffset() + query.getLimit());
+        UserQuery shardQuery = new UserQuery()
+                .usernamePrefix(query.getUsernamePrefix())
+                .namePrefix(query.getNamePrefix())
+                .emailPrefix(query.getEmailPrefix())
+                .role(query.getRole())
+                .createdBetween(query.getCreatedFrom(), query.getCreatedTo())
+                .sortBy(query.getSortBy(), query.isAscending())
+                .page(0, wanted);
+        List<List<Object[]>> shardRows = scatter(shard -> shard.findUserRowsWithSortValue(shardQuery));
+
+        // Each shard's rows are sorted, so a k-way merge on (sort value, user_id, shard) yields the global order
+        Comparator<int[]> order = Comparator.comparing((int[] cursor) -> shardRows.get(cursor[0]).get(cursor[1]),
+                rowOrder(query.isAscending())).thenComparingInt(cursor -> cursor[0]);
+        PriorityQueue<int[]> heads = new PriorityQueue<>(Math.max(1, shardRows.size()), order);
+        for (int i = 0; i < shardRows.size(); i++) {
+            if (!shardRows.get(i).isEmpty()) {
+                heads.add(new int[] {i, 0});
+            }
+        }
+        List<Object[]> page = new ArrayList<>();
+        int position = 0;
+        while (!heads.isEmpty() && position < wanted) {
+            int[] head = heads.poll();
+            if (position++ >= query.getOffset()) {
+                Object[] row = shardRows.get(head[0]).get(head[1]).clone();
+                row[1] = storeUserId(((Number) row[1]).intValue(), head[0]);
+                page.add(row);
+            }
+            if (++head[1] < shardRows.get(head[0]).size()) {
+                heads.add(head);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Makes a shard's user id unique in the store by interleaving the ids of the shards.
+     *
+     * @param shardUserId The id the shard assigned.
+     * @param shardIndex The index of the shard.
+     * @return The id returned by the store.
+     */
+    int storeUserId(int shardUserId, int shardIndex) {
+        return shardUserId * shards.size() + shardIndex;
+    }
+
+    // Orders rows starting with the sort value and user_id the way H2 orders them: nulls sort low
+    private static Comparator<Object[]> rowOrder(boolean ascending) {
+        Comparator<Object[]> order = (a, b) -> {
+            int bySortValue = compareValues(a[0], b[0]);
+            return bySortValue != 0 ? bySortValue : compareValues(a[1], b[1]);
+        };
+        return ascending ? order : order.reversed();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compareValues(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        return ((Comparable) a).compareTo(b);
+    }
+
+    @Override
+    public List<String> suggestUsernames(String prefix, int limit) {
+        TreeSet<String> usernames = new TreeSet<>(String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder()));
+        for (DatabaseHelper shard : shards) {
+            usernames.addAll(shard.suggestUsernames(prefix, limit));
+        }
+        List<String> suggestions = new ArrayList<>();
+        for (String username : usernames) {
+            if (suggestions.size() >= limit) {
+                break;
+            }
+            suggestions.add(username);
+        }
+        return suggestions;
+    }
+
+    @Override
+    public void deleteUser(String username) {
+        shardFor(username).deleteUser(username);
+    }
+
+    /**
+     * Redeems an invite. If the invite lives on another shard than the new user, the invite's row is copied to the
+     * user's shard as the new user, which fails if the username is taken there, and the invite is deleted only
+     * after that. If the invite was redeemed by someone else in between, the copy is deleted again.
+     *
+     * @param inviteCode The invite code.
+     * @param username The username of the new user.
+     * @param passwordHash The hashed password of the new user.
+     * @param role The role of the new user.
+     * @return True if the invite was redeemed.
+     * @throws SQLException If a shard cannot be written.
+     */
+    @Override
+    public boolean updateUserFromInviteCode(String inviteCode, String username, byte[] passwordHash, String role) throws SQLException {
+        DatabaseHelper inviteShard = shardForInvite(inviteCode);
+        DatabaseHelper userShard = shardFor(username);
+        if (inviteShard == userShard) {
+            return inviteShard.updateUserFromInviteCode(inviteCode, username, passwordHash, role);
+        }
+
+        Map<String, Object> row = inviteShard.readInvite(inviteCode);
+        if (row == null) {
+            return false;
+        }
+        row.put("username", username);
+        row.put("password_hash", passwordHash);
+        row.put("role", role);
+        row.put("version", ((Number) row.get("version")).longValue() + 1);
+        row.put("created_by_admin_id", null);
+        if (!userShard.insertUserRow(row)) {
+            return false;
+        }
+        if (!inviteShard.consumeInvite(inviteCode)) {
+            userShard.deleteUser(username);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public byte[] getPasswordHash(String username) throws SQLException {
+        return shardFor(username).getPasswordHash(username);
+    }
+
+    @Override
+    public void setOneTimePassword(String username, byte[] oneTimePasswordHash, String expirationDateTime) throws SQLException {
+        shardFor(username).setOneTimePassword(username, oneTimePasswordHash, expirationDateTime);
+    }
+
+    @Override
+    public boolean isOneTimePasswordValid(String username) throws SQLException {
+        return shardFor(username).isOneTimePasswordValid(username);
+    }
+
+    @Override
+    public int sweepExpiredCredentials() throws SQLException {
+        int removed = 0;
+        for (int shardRemoved : scatter(DatabaseHelper::sweepExpiredCredentials)) {
+            removed += shardRemoved;
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean createPasswordResetToken(String username, String tokenHash, int ttlMinutes) throws SQLException {
+        return shardFor(username).createPasswordResetToken(username, tokenHash, ttlMinutes);
+    }
+
+    /**
+     * Consumes a password reset token. The token does not name its user, so every shard is asked; only the shard
+     * holding the token can consume it.
+     *
+     * @param tokenHash The hash of the token.
+     * @param newPasswordHash The hashed new password.
+     * @return The username whose password was reset, or null if the token is unknown, used or expired.
+     * @throws SQLException If a shard cannot be written.
+     */
+    @Override
+    public String consumePasswordResetToken(String tokenHash, byte[] newPasswordHash) throws SQLException {
+        for (String username : scatter(shard -> shard.consumePasswordResetToken(tokenHash, newPasswordHash))) {
+            if (username != null) {
+                return username;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void updatePasswordAfterOtp(String username, byte[] newPasswordHash) throws SQLException {
+        shardFor(username).updatePasswordAfterOtp(username, newPasswordHash);
+    }
+
+    @Override
+    public boolean isOneTimePasswordSet(String username) throws SQLException {
+        return shardFor(username).isOneTimePasswordSet(username);
+    }
+
+    /**
+     * Streams every account matching a query's filters, merged from all shards in the query's sort order. Each
+     * shard is read on its own thread into a bounded queue, so memory use does not grow with the number of users.
+     *
+     * @param query The filters and sort order; the page is ignored.
+     * @param exporter The format, columns, compression and progress callback.
+     * @param out The stream to write to; it is not closed.
+     * @return The number of accounts written.
+     * @throws SQLException If a shard cannot be read.
+     * @throws IOException If the stream cannot be written.
+     */
+    @Override
+    public long exportUsers(UserQuery query, RosterExporter exporter, OutputStream out) throws SQLException, IOException {
+        List<BlockingQueue<Object[]>> queues = new ArrayList<>();
+        List<Future<Void>> readers = new ArrayList<>();
+        for (DatabaseHelper shard : shards) {
+            BlockingQueue<Object[]> queue = new ArrayBlockingQueue<>(EXPORT_QUEUE_ROWS);
+            queues.add(queue);
+            readers.add(executor.submit(() -> {
+                try {
+                    return shard.readExportRows(query, exporter, resultSet -> {
+                        int columns = resultSet.getMetaData().getColumnCount();
+                        while (resultSet.next()) {
+                            Object[] row = new Object[columns];
+                            for (int i = 0; i < columns; i++) {
+                                row[i] = resultSet.getObject(i + 1);
+                            }
+                            put(queue, row);
+                        }
+                        return null;
+                    });
+                } finally {
+                    put(queue, END_OF_ROWS);
+                }
+            }));
+        }
+        try {
+            long rows = exporter.write(mergedRows(queues, readers, query.isAscending()), out);
+            System.out.println("Exported " + rows + " users from " + shards.size() + " shards with " + exporter);
+            return rows;
+        } finally {
+            for (Future<Void> reader : readers) {
+                reader.cancel(true);
+            }
+        }
+    }
+
+    private static void put(BlockingQueue<Object[]> queue, Object[] row) throws InterruptedIOException {
+        try {
+            queue.put(row);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Export cancelled");
+        }
+    }
+
+    // Presents the merged rows of the shards as the forward-only result set RosterExporter reads. The sort value is
+    // the last column of each row, after the exported columns.
+    private static ResultSet mergedRows(List<BlockingQueue<Object[]>> queues, List<Future<Void>> readers, boolean ascending) {
+        Comparator<Object> values = ascending ? ShardedUserStore::compareValues : (a, b) -> compareValues(b, a);
+        PriorityQueue<Object[]> heads = new PriorityQueue<>(Math.max(1, queues.size()), (a, b) -> {
+            int bySortValue = values.compare(a[a.length - 2], b[b.length - 2]);
+            return bySortValue != 0 ? bySortValue : Integer.compare((Integer) a[a.length - 1], (Integer) b[b.length - 1]);
+        });
+        Object[][] current = {null};
+
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "next":
+                    if (current[0] == END_OF_ROWS) {
+                        return false;
+                    }
+                    if (current[0] == null) {
+                        for (int i = 0; i < queues.size(); i++) {
+                            offerNext(heads, queues, readers, i);
+                        }
+                    } else {
+                        offerNext(heads, queues, readers, (Integer) current[0][current[0].length - 1]);
+                    }
+                    current[0] = heads.poll();
+                    if (current[0] == null) {
+                        current[0] = END_OF_ROWS;
+                        return false;
+                    }
+                    return true;
+                case "getObject":
+                    return current[0][(Integer) args[0] - 1];
+                case "close":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException("Merged export rows do not support " + method.getName());
+            }
+        });
+    }
+
+    // Takes the next row of a shard into the merge, tagged with the shard index, unless the shard has no more rows
+    private static void offerNext(PriorityQueue<Object[]> heads, List<BlockingQueue<Object[]>> queues,
+                                  List<Future<Void>> readers, int index) throws SQLException {
+        Object[] row;
+        try {
+            row = queues.get(index).take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while merging the export", e);
+        }
+        if (row == END_OF_ROWS) {
+            await(readers.get(index));
+            return;
+        }
+        Object[] tagged = Arrays.copyOf(row, row.length + 1);
+        tagged[row.length] = index;
+        heads.add(tagged);
+    }
+
+    /**
+     * Changes the number of shards, moving every user and invite whose shard changes. Jump hashing moves only the
+     * rows that must move: growing from n to m shards moves about (m - n) / m of the rows, all to the new shards.
+     * Each shard is drained on its own thread. A move copies the row before deleting it, so a rebalance that is
+     * interrupted can simply be run again. Shards that are no longer needed are closed and left empty on disk.
+     * Nothing else may use the store while it runs, and the store must be started with the new number of shards
+     * afterwards.
+     *
+     * @param newCount The new number of shards.
+     * @return A message describing the result.
+     * @throws SQLException If a shard cannot be read or written.
+     */
+    public String rebalance(int newCount) throws SQLException {
+        if (newCount < 1) {
+            throw new IllegalArgumentException("A sharded store needs at least one shard, not " + newCount);
+        }
+        int oldCount = shards.size();
+        for (int i = oldCount; i < newCount; i++) {
+            DatabaseHelper shard = shardFactory.apply(i);
+            shard.connectToDatabase();
+            shards.add(shard);
+        }
+
+        long start = System.nanoTime();
+        AtomicLong moved = new AtomicLong();
+        List<DatabaseHelper> sources = new ArrayList<>(shards.subList(0, oldCount));
+        List<Future<Void>> drains = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            int index = i;
+            DatabaseHelper source = sources.get(i);
+            drains.add(executor.submit(() -> {
+                for (String[] key : source.listRowKeys()) {
+                    String placement = key[0].equals("invite_code") ? DatabaseHelper.normalizeInviteCode(key[1]) : key[1];
+                    int target = shardIndex(placement, newCount);
+                    if (target != index && source.moveUserRow(key[0], key[1], shards.get(target))) {
+                        moved.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<Void> drain : drains) {
+            await(drain);
+        }
+
+        while (shards.size() > newCount) {
+            shards.remove(shards.size() - 1).closeConnection();
+        }
+        List<Integer> sizes = scatter(shard -> shard.countUserAccounts(new UserQuery()));
+        return String.format(Locale.ROOT, "Rebalanced %d shards into %d: moved %d rows in %d ms; rows per shard %s",
+                oldCount, newCount, moved.get(), (System.nanoTime() - start) / 1_000_000, sizes);
+    }
+
+    // Creates the store of one shard from the system properties, see fromSystemProperties
+    private static DatabaseHelper shardFromSystemProperties(int index) {
+        String base = System.getProperty("docop.dbPath", "./cse360database");
+        String path = base + "-shard" + index;
+        String dirs = System.getProperty("docop.shardDirs");
+        if (dirs != null && !dirs.trim().isEmpty()) {
+            String[] dirList = dirs.split(",");
+            path = Paths.get(dirList[index % dirList.length].trim(), Paths.get(base).getFileName() + "-shard" + index).toString();
+        }
+        DatabaseHelper shard = DatabaseHelper.fileBacked(path, Integer.getInteger("docop.cacheSizeKb", 0));
+
+        Path slowQueryFile = Paths.get(DatabaseHelper.SLOW_QUERY_FILE);
+        String fileName = slowQueryFile.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        String shardFileName = dot > 0 ? fileName.substring(0, dot) + "-shard" + index + fileName.substring(dot) : fileName + "-shard" + index;
+        shard.setSlowQueryFile(slowQueryFile.resolveSibling(shardFileName));
+
+        String standbyUrl = DatabaseHelper.STANDBY_URL;
+        if (standbyUrl != null) {
+            int options = standbyUrl.indexOf(';');
+            shard.setStandbyUrl(options < 0 ? standbyUrl + "-shard" + index
+                    : standbyUrl.substring(0, options) + "-shard" + index + standbyUrl.substring(options));
+        }
+        return shard;
+    }
+}
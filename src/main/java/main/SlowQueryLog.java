@@ -0,0 +1,389 @@
+package main;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>SlowQueryLog class records the statements that take longer than a threshold.</p>
+ * <p>{@link #wrap(Connection)} returns a connection that times every statement run on it, using a
+ * {@link StatementRecorder}. For a query the time is
+ * the execution plus the time spent fetching rows, and it is judged when the result set or statement is closed or
+ * the statement runs again. A slow statement is logged with:</p>
+ * <ul>
+ *     <li>an id derived from its text, so repeated executions can be grouped;</li>
+ *     <li>its duration and the number of rows read or changed;</li>
+ *     <li>the shape of its parameters, i.e. their types and lengths but never their values;</li>
+ *     <li>its {@code EXPLAIN} plan.</li>
+ * </ul>
+ * <p>The calling thread only hands the record to a bounded queue. A daemon thread explains the statement on its own
+ * connection and appends the record as a JSON line to a file that is rotated when it grows too large. A per-minute
+ * rate limit keeps a burst of slow statements from flooding the file; records dropped by the limit or by a full
+ * queue are counted, and the count is written with the next record.</p>
+ */
+public class SlowQueryLog implements AutoCloseable {
+
+    /** Records waiting to be written. */
+    private static final int QUEUE_CAPACITY = 1000;
+
+    /** How long an explained plan is reused for statements with the same id. */
+    private static final long PLAN_CACHE_MILLIS = 10 * 60 * 1000;
+
+    /** A slow execution waiting to be written. */
+    private static final class Entry {
+        private final LocalDateTime at = LocalDateTime.now();
+        private final String thread = Thread.currentThread().getName();
+        private final String sql;
+        private final Map<Integer, Object> parameters;
+        private final long nanos;
+        private final long rows;
+        private long suppressed;
+
+        Entry(String sql, Map<Integer, Object> parameters, long nanos, long rows) {
+            this.sql = sql;
+            this.parameters = parameters;
+            this.nanos = nanos;
+            this.rows = rows;
+        }
+    }
+
+    /** A plan explained for a statement id, and when. */
+    private static final class CachedPlan {
+        private final String plan;
+        private final long explainedAt = System.currentTimeMillis();
+
+        CachedPlan(String plan) {
+            this.plan = plan;
+        }
+    }
+
+    /** One execution of a statement being timed; it may be finished by a thread other than the one fetching rows. */
+    private final class Execution implements StatementRecorder.Execution {
+        private final String sql;
+        private final Map<Integer, Object> parameters;
+        private long nanos;
+        private long rows;
+        private boolean finished;
+
+        Execution(String sql, Map<Integer, Object> parameters) {
+            this.sql = sql;
+            this.parameters = parameters;
+        }
+
+        @Override
+        public synchronized void add(long elapsedNanos, long rowCount) {
+            nanos += elapsedNanos;
+            rows += rowCount;
+        }
+
+        @Override
+        public void finish() {
+            Entry entry;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                entry = nanos >= thresholdNanos ? new Entry(sql, parameters, nanos, rows) : null;
+            }
+            if (entry != null) {
+                submit(entry);
+            }
+        }
+    }
+
+    private final String dbUrl;
+    private final Path file;
+    private final long thresholdNanos;
+    private final int maxPerMinute;
+    private final long maxFileBytes;
+    private final int maxFiles;
+
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private Thread writerThread;
+    private volatile boolean running;
+
+    // Rate limit window; guarded by this
+    private long windowStartMillis;
+    private int windowCount;
+    private long suppressed;
+
+    // Writer state, used only by the writer thread
+    private Connection explainConnection;
+    private BufferedWriter writer;
+    private long fileBytes;
+    private final Map<String, CachedPlan> plans = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedPlan> eldest) {
+            return size() > 256;
+        }
+    };
+
+    // Metrics
+    private final AtomicLong slowCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * Constructor for SlowQueryLog.
+     *
+     * @param dbUrl The URL of the database, used to open the connection statements are explained on.
+     * @param file The log file; rotated files get the suffixes .1, .2 and so on.
+     * @param thresholdMillis Statements taking at least this long are logged.
+     * @param maxPerMinute The maximum number of records written per minute.
+     * @param maxFileBytes The size at which the file is rotated.
+     * @param maxFiles The number of rotated files kept.
+     */
+    public SlowQueryLog(String dbUrl, Path file, long thresholdMillis, int maxPerMinute, long maxFileBytes, int maxFiles) {
+        this.dbUrl = dbUrl;
+        this.file = file;
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.maxPerMinute = maxPerMinute;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = Math.max(1, maxFiles);
+    }
+
+    /**
+     * Starts the thread writing the records.
+     */
+    public synchronized void start() {
+        running = true;
+        writerThread = new Thread(this::writeLoop, "slow-query-log");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Wraps a connection so that the statements created from it are timed.
+     *
+     * @param connection The connection.
+     * @return A connection delegating to the given one.
+     */
+    public Connection wrap(Connection connection) {
+        return StatementRecorder.wrap(connection, Execution::new);
+    }
+
+    /** @return The number of statements that exceeded the threshold. */
+    public long getSlowCount() {
+        return slowCount.get();
+    }
+
+    /** @return The number of records written to the file. */
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /** @return The number of records dropped by the rate limit or a full queue. */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Stops the writer after it has written the records already queued.
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        if (writerThread != null) {
+
+            // Not interrupted: an interrupt would close the file channel under a write in progress
+            try {
+                writerThread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writerThread = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SlowQueryLog{slow=" + slowCount.get() + ", written=" + writtenCount.get() + ", dropped=" + droppedCount.get() + "}";
+    }
+
+    // Applies the rate limit and queues a record for the writer
+    private void submit(Entry entry) {
+        slowCount.incrementAndGet();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - windowStartMillis >= TimeUnit.MINUTES.toMillis(1)) {
+                windowStartMillis = now;
+                windowCount = 0;
+            }
+            if (windowCount >= maxPerMinute) {
+                suppressed++;
+                droppedCount.incrementAndGet();
+                return;
+            }
+            entry.suppressed = suppressed;
+            if (!queue.offer(entry)) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            windowCount++;
+            suppressed = 0;
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (running || !queue.isEmpty()) {
+                Entry entry;
+                try {
+                    entry = running ? queue.poll(1, TimeUnit.SECONDS) : queue.poll();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (entry != null) {
+                    write(entry);
+                }
+            }
+        } finally {
+            try {
+                if (writer != null) writer.close();
+                if (explainConnection != null) explainConnection.close();
+            } catch (IOException | SQLException e) {
+                System.err.println("Error closing slow query log: " + e.getMessage());
+            }
+        }
+    }
+
+    private void write(Entry entry) {
+        String sqlId = sqlId(entry.sql);
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"at\":").append(Json.quote(entry.at.toString()))
+                .append(",\"sqlId\":").append(Json.quote(sqlId))
+                .append(",\"millis\":").append(String.format(Locale.ROOT, "%.3f", entry.nanos / 1e6))
+                .append(",\"rows\":").append(entry.rows)
+                .append(",\"thread\":").append(Json.quote(entry.thread))
+                .append(",\"sql\":").append(Json.quote(entry.sql))
+                .append(",\"params\":[");
+        int i = 0;
+        for (Object value : entry.parameters.values()) {
+            json.append(i++ > 0 ? "," : "").append(Json.quote(shape(value)));
+        }
+        json.append("],\"plan\":").append(Json.quote(plan(sqlId, entry)))
+                .append(",\"suppressed\":").append(entry.suppressed)
+                .append("}\n");
+
+        try {
+            if (writer == null || fileBytes >= maxFileBytes) {
+                rotate();
+            }
+            String line = json.toString();
+            writer.write(line);
+            writer.flush();
+            fileBytes += line.getBytes(StandardCharsets.UTF_8).length;
+            writtenCount.incrementAndGet();
+        } catch (IOException e) {
+            droppedCount.incrementAndGet();
+            System.err.println("Error writing slow query log: " + e.getMessage());
+        }
+    }
+
+    // Explains a statement with the parameters it ran with, reusing a recent plan for the same statement
+    private String plan(String sqlId, Entry entry) {
+        if (!StatementRecorder.isExplainable(entry.sql)) {
+            return null;
+        }
+        CachedPlan cached = plans.get(sqlId);
+        if (cached != null && System.currentTimeMillis() - cached.explainedAt < PLAN_CACHE_MILLIS) {
+            return cached.plan;
+        }
+        String plan;
+        try {
+            if (explainConnection == null || explainConnection.isClosed()) {
+                explainConnection = DriverManager.getConnection(dbUrl, DatabaseHelper.USER, DatabaseHelper.PASS);
+            }
+            plan = StatementRecorder.explain(explainConnection, entry.sql, entry.parameters);
+        } catch (SQLException e) {
+            plan = "EXPLAIN failed: " + e.getMessage();
+        }
+        plans.put(sqlId, new CachedPlan(plan));
+        return plan;
+    }
+
+    // Shifts file to file.1, file.1 to file.2 and so on, dropping the oldest, and opens a new file
+    private void rotate() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+            Files.deleteIfExists(rotated(maxFiles));
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                if (Files.exists(rotated(i))) {
+                    Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        fileBytes = Files.size(file);
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    /**
+     * Derives a stable id from a statement's text, ignoring the length of parameter lists.
+     *
+     * @param sql The statement.
+     * @return Eight hex digits.
+     */
+    static String sqlId(String sql) {
+        return String.format("%08x", StatementRecorder.normalize(sql).hashCode());
+    }
+
+    /**
+     * Describes a parameter value by its type and length, without revealing the value.
+     *
+     * @param value The bound value.
+     * @return The shape, e.g. "VARCHAR(8)" or "BINARY(32)".
+     */
+    static String shape(Object value) {
+        if (value == null || value instanceof StatementRecorder.NullParameter) {
+            return "NULL";
+        }
+        if (value instanceof String) {
+            return "VARCHAR(" + ((String) value).length() + ")";
+        }
+        if (value instanceof byte[]) {
+            return "BINARY(" + ((byte[]) value).length + ")";
+        }
+        if (value instanceof Integer || value instanceof Short) {
+            return "INT";
+        }
+        if (value instanceof Long) {
+            return "BIGINT";
+        }
+        if (value instanceof Boolean) {
+            return "BOOLEAN";
+        }
+        if (value instanceof java.sql.Timestamp || value instanceof LocalDateTime) {
+            return "TIMESTAMP";
+        }
+        if (value instanceof java.sql.Date) {
+            return "DATE";
+        }
+        return value.getClass().getSimpleName().toUpperCase(Locale.ROOT);
+    }
+}
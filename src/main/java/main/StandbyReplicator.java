@@ -0,0 +1,418 @@
+package main;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>StandbyReplicator class keeps a second H2 database, the standby, up to date with the primary by shipping the
+ * primary's {@link ChangeLog} to it asynchronously.</p>
+ * <p>For every batch of changes the replicator copies the current state of each changed user row from the primary
+ * into the standby with {@code MERGE} (or deletes it there), and records the last applied sequence number in the
+ * standby's {@code replication_state} table in the same transaction. Replaying a change is therefore harmless, and
+ * a restarted replicator resumes exactly where it stopped. A standby that has never been synchronized is first
+ * filled with a full copy of the users table, and so is one whose position has a gap: the changes after it were
+ * pruned from the primary's log, e.g. while the replicator was stopped, or the position is beyond the end of the
+ * log. A running replicator that falls behind the pruning copies everything again the same way.</p>
+ * <p>If the primary is lost, {@link #promote()} (or {@code --promote-standby=<path>} on the command line when the
+ * primary process is gone) applies whatever it can still read, makes the standby writable as a primary, and the
+ * application is restarted on the standby's path. Password reset tokens and the change log itself are not
+ * replicated; the promoted database starts a new change log.</p>
+ */
+public class StandbyReplicator implements AutoCloseable {
+
+    /** The users columns copied to the standby; the generated lower-case columns are computed there. */
+    private static final String COLUMNS = DatabaseHelper.USER_COLUMNS;
+
+    /** The number of columns in {@link #COLUMNS}. */
+    private static final int COLUMN_COUNT = COLUMNS.split(",").length;
+
+    /** Maximum number of changes applied in one standby transaction. */
+    private static final int BATCH_SIZE = 500;
+
+    private final ChangeLog changeLog;
+    private final String primaryUrl;
+    private final String standbyUrl;
+
+    /** Connection to the primary, used to read the current state of changed rows. */
+    private Connection primary;
+
+    /** Connection to the standby; auto-commit is off. */
+    private Connection standby;
+
+    private ChangeLog.Subscription subscription;
+
+    // Metrics
+    private final AtomicLong appliedChanges = new AtomicLong();
+    private final AtomicLong appliedBatches = new AtomicLong();
+    private volatile long appliedSequence;
+    private volatile LocalDateTime lastAppliedAt;
+
+    /**
+     * Constructor for StandbyReplicator.
+     *
+     * @param changeLog The primary's change log.
+     * @param primaryUrl The JDBC URL of the primary.
+     * @param standbyUrl The JDBC URL of the standby, e.g. a file database in another directory.
+     */
+    public StandbyReplicator(ChangeLog changeLog, String primaryUrl, String standbyUrl) {
+        this.changeLog = changeLog;
+        this.primaryUrl = primaryUrl;
+        this.standbyUrl = standbyUrl;
+    }
+
+    /**
+     * Creates the JDBC URL of a file-backed standby.
+     *
+     * @param path The path of the standby database file, without the .mv.db extension.
+     * @return The URL.
+     */
+    public static String fileUrl(String path) {
+        return "jdbc:h2:file:" + path;
+    }
+
+    /**
+     * Opens the standby, copies the users table to it if it has never been synchronized, and starts shipping changes.
+     *
+     * @throws SQLException If either database cannot be opened, or the standby has already been promoted.
+     */
+    public synchronized void start() throws SQLException {
+        primary = DriverManager.getConnection(primaryUrl, DatabaseHelper.USER, DatabaseHelper.PASS);
+        standby = DriverManager.getConnection(standbyUrl, DatabaseHelper.USER, DatabaseHelper.PASS);
+        try (Statement stmt = standby.createStatement()) {
+            DatabaseHelper.createTables(stmt);
+            createStateTable(stmt);
+        }
+        standby.setAutoCommit(false);
+
+        long position = readPosition(standby);
+        ChangeLog.GapException gap = position < 0 ? null : changeLog.findGap(position);
+        if (gap != null) {
+            System.out.println("Standby missed changes, copying all users again: " + gap.getMessage());
+        }
+        if (position < 0 || gap != null) {
+            position = copyAll();
+        }
+        appliedSequence = position;
+        subscription = changeLog.subscribe(position, BATCH_SIZE, new ChangeLog.Listener() {
+            @Override
+            public void onChanges(List<ChangeLog.Change> changes) throws SQLException {
+                apply(changes);
+            }
+
+            @Override
+            public long onGap(ChangeLog.GapException gap) throws SQLException {
+                return resynchronize(gap);
+            }
+        });
+        System.out.println("Standby replication started at sequence " + position + " to " + standbyUrl);
+    }
+
+    /**
+     * Retrieves the sequence number of the last change applied to the standby.
+     *
+     * @return The sequence number.
+     */
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * Retrieves the number of changes applied since the replicator started.
+     *
+     * @return The number of changes.
+     */
+    public long getAppliedChangeCount() {
+        return appliedChanges.get();
+    }
+
+    /**
+     * Retrieves the number of batches applied since the replicator started.
+     *
+     * @return The number of batches.
+     */
+    public long getAppliedBatchCount() {
+        return appliedBatches.get();
+    }
+
+    /**
+     * Retrieves how many committed changes the standby is behind the primary.
+     *
+     * @return The number of changes not yet applied.
+     * @throws SQLException If the primary's change log cannot be read.
+     */
+    public long getLagChanges() throws SQLException {
+        return Math.max(0, changeLog.getLatestSequence() - appliedSequence);
+    }
+
+    /**
+     * Retrieves how far the standby is behind the primary in time: the age of the oldest change not yet applied.
+     *
+     * @return The lag in milliseconds; 0 if the standby is up to date.
+     * @throws SQLException If the primary's change log cannot be read.
+     */
+    public long getLagMillis() throws SQLException {
+        List<ChangeLog.Change> next = changeLog.read(appliedSequence, 1);
+        if (next.isEmpty() || next.get(0).getChangedAt() == null) {
+            return 0;
+        }
+        return Math.max(0, Duration.between(next.get(0).getChangedAt(), LocalDateTime.now()).toMillis());
+    }
+
+    /**
+     * Retrieves the time the last batch was applied.
+     *
+     * @return The time, or null if nothing has been applied yet.
+     */
+    public LocalDateTime getLastAppliedAt() {
+        return lastAppliedAt;
+    }
+
+    /**
+     * Stops shipping changes, applies the changes still readable from the primary, and promotes the standby so the
+     * application can be restarted on it.
+     *
+     * @return A message with the sequence number the standby was promoted at.
+     * @throws SQLException If the standby cannot be promoted.
+     */
+    public synchronized String promote() throws SQLException {
+        if (subscription != null) {
+            subscription.close();
+            subscription = null;
+        }
+
+        // Catch up with whatever the primary can still tell us
+        try {
+            List<ChangeLog.Change> changes;
+            while (!(changes = changeLog.read(appliedSequence, BATCH_SIZE)).isEmpty()) {
+                apply(changes);
+            }
+        } catch (Exception e) {
+            System.err.println("Primary unavailable while promoting, promoting at sequence " + appliedSequence + ": " + e.getMessage());
+        }
+
+        markPromoted(standby);
+        String message = "Standby promoted at sequence " + appliedSequence + ", restart the application on " + standbyUrl;
+        close();
+        System.out.println(message);
+        return message;
+    }
+
+    /**
+     * Promotes a standby without a running replicator, e.g. after the primary process has died.
+     *
+     * @param standbyUrl The JDBC URL of the standby.
+     * @return A message with the sequence number the standby was promoted at.
+     * @throws SQLException If the standby cannot be opened or was never synchronized.
+     */
+    public static String promote(String standbyUrl) throws SQLException {
+        try (Connection standby = DriverManager.getConnection(standbyUrl, DatabaseHelper.USER, DatabaseHelper.PASS)) {
+            standby.setAutoCommit(false);
+            try (Statement stmt = standby.createStatement()) {
+                createStateTable(stmt);
+            }
+            long position = readPosition(standby);
+            if (position < 0) {
+                throw new SQLException("Standby at " + standbyUrl + " was never synchronized");
+            }
+            markPromoted(standby);
+            return "Standby promoted at sequence " + position + ", restart the application on " + standbyUrl;
+        }
+    }
+
+    /**
+     * Stops shipping changes and closes both connections. The standby stays a standby.
+     */
+    @Override
+    public synchronized void close() {
+        if (subscription != null) {
+            subscription.close();
+            subscription = null;
+        }
+        closeQuietly(standby);
+        closeQuietly(primary);
+        standby = null;
+        primary = null;
+    }
+
+    @Override
+    public String toString() {
+        return "StandbyReplicator{standby=" + standbyUrl + ", sequence=" + appliedSequence
+                + ", changes=" + appliedChanges.get() + ", batches=" + appliedBatches.get() + "}";
+    }
+
+    // Applies a batch of changes to the standby in one transaction, together with the new position
+    private synchronized void apply(List<ChangeLog.Change> changes) throws SQLException {
+        if (standby == null) {
+            throw new SQLException("Standby replicator is closed");
+        }
+        try {
+            for (ChangeLog.Change change : changes) {
+                if (change.getOp() == ChangeLog.Op.CLEAR) {
+                    try (Statement stmt = standby.createStatement()) {
+                        stmt.executeUpdate("DELETE FROM users");
+                    }
+                } else if (change.getOp() == ChangeLog.Op.DELETE || !copyRow(change.getUserId())) {
+                    deleteRow(change.getUserId());
+                }
+            }
+            long sequence = changes.get(changes.size() - 1).getSequence();
+            writePosition(standby, sequence);
+            standby.commit();
+            appliedSequence = sequence;
+        } catch (SQLException | RuntimeException e) {
+            standby.rollback();
+            throw e;
+        }
+        appliedChanges.addAndGet(changes.size());
+        appliedBatches.incrementAndGet();
+        lastAppliedAt = LocalDateTime.now();
+    }
+
+    // Copies everything again after the replicator fell behind the pruning of the primary's change log
+    private synchronized long resynchronize(ChangeLog.GapException gap) throws SQLException {
+        if (standby == null) {
+            throw new SQLException("Standby replicator is closed");
+        }
+        System.out.println("Standby fell behind the change log, copying all users again: " + gap.getMessage());
+        try {
+            appliedSequence = copyAll();
+        } catch (SQLException | RuntimeException e) {
+            standby.rollback();
+            throw e;
+        }
+        return appliedSequence;
+    }
+
+    // Copies the primary's current row of a user to the standby; returns false if the primary no longer has it
+    private boolean copyRow(int userId) throws SQLException {
+        try (PreparedStatement select = primary.prepareStatement("SELECT " + COLUMNS + " FROM users WHERE user_id = ?")) {
+            select.setInt(1, userId);
+            ResultSet resultSet = select.executeQuery();
+            if (!resultSet.next()) {
+                return false;
+            }
+            try (PreparedStatement merge = standby.prepareStatement(mergeSql())) {
+                bindRow(merge, resultSet);
+                merge.executeUpdate();
+            }
+            return true;
+        }
+    }
+
+    private void deleteRow(int userId) throws SQLException {
+        try (PreparedStatement pstmt = standby.prepareStatement("DELETE FROM users WHERE user_id = ?")) {
+            pstmt.setInt(1, userId);
+            pstmt.executeUpdate();
+        }
+    }
+
+    // Replaces the standby's users with a full copy of the primary's; returns the sequence the copy starts from
+    private long copyAll() throws SQLException {
+
+        // Changes committed while copying are replayed afterwards, which is harmless
+        long position = changeLog.getLatestSequence();
+        int copied = 0;
+        try (Statement stmt = standby.createStatement()) {
+            stmt.executeUpdate("DELETE FROM users");
+        }
+        String select = "SELECT " + COLUMNS + " FROM users WHERE user_id > ? ORDER BY user_id FETCH FIRST ? ROWS ONLY";
+        try (PreparedStatement read = primary.prepareStatement(select);
+             PreparedStatement merge = standby.prepareStatement(mergeSql())) {
+            int lastUserId = Integer.MIN_VALUE;
+            while (true) {
+                read.setInt(1, lastUserId);
+                read.setInt(2, BATCH_SIZE);
+                ResultSet resultSet = read.executeQuery();
+                int rows = 0;
+                while (resultSet.next()) {
+                    bindRow(merge, resultSet);
+                    merge.addBatch();
+                    lastUserId = resultSet.getInt("user_id");
+                    rows++;
+                }
+                if (rows == 0) {
+                    break;
+                }
+                merge.executeBatch();
+                copied += rows;
+            }
+        }
+        writePosition(standby, position);
+        standby.commit();
+        System.out.println("Standby initialized with " + copied + " users at sequence " + position);
+        return position;
+    }
+
+    private static String mergeSql() {
+        StringBuilder sql = new StringBuilder("MERGE INTO users (").append(COLUMNS).append(") KEY (user_id) VALUES (");
+        for (int i = 0; i < COLUMN_COUNT; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(')').toString();
+    }
+
+    private static void bindRow(PreparedStatement pstmt, ResultSet row) throws SQLException {
+        for (int i = 1; i <= COLUMN_COUNT; i++) {
+            pstmt.setObject(i, row.getObject(i));
+        }
+    }
+
+    // The standby's replication position; a row exists once the first full copy has been committed
+    private static void createStateTable(Statement stmt) throws SQLException {
+        stmt.execute("CREATE TABLE IF NOT EXISTS replication_state ("
+                + "id INT PRIMARY KEY, "
+                + "last_seq BIGINT NOT NULL, "
+                + "promoted BOOLEAN DEFAULT FALSE NOT NULL, "
+                + "updated_at TIMESTAMP DEFAULT LOCALTIMESTAMP"
+                + ")");
+    }
+
+    // Returns the standby's position, or -1 if it was never synchronized; refuses a promoted standby
+    private static long readPosition(Connection standby) throws SQLException {
+        try (Statement stmt = standby.createStatement()) {
+            ResultSet resultSet = stmt.executeQuery("SELECT last_seq, promoted FROM replication_state WHERE id = 1");
+            if (!resultSet.next()) {
+                return -1;
+            }
+            if (resultSet.getBoolean("promoted")) {
+                throw new SQLException("Database was promoted from standby and can no longer replicate");
+            }
+            return resultSet.getLong("last_seq");
+        }
+    }
+
+    private static void writePosition(Connection standby, long sequence) throws SQLException {
+        String merge = "MERGE INTO replication_state (id, last_seq, updated_at) KEY (id) VALUES (1, ?, LOCALTIMESTAMP)";
+        try (PreparedStatement pstmt = standby.prepareStatement(merge)) {
+            pstmt.setLong(1, sequence);
+            pstmt.executeUpdate();
+        }
+    }
+
+    // Makes the standby usable as a primary: new users get ids above the replicated ones
+    private static void markPromoted(Connection standby) throws SQLException {
+        try (Statement stmt = standby.createStatement()) {
+            DatabaseHelper.restartUserIds(stmt);
+            stmt.executeUpdate("UPDATE replication_state SET promoted = TRUE, updated_at = LOCALTIMESTAMP WHERE id = 1");
+        }
+        standby.commit();
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            System.err.println("Error closing replication connection: " + e.getMessage());
+        }
+    }
+}
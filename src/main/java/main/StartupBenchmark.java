@@ -0,0 +1,215 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>StartupBenchmark class compares how fast the application starts, and how much memory it peaks at, when it is
+ * launched on the full JDK, on the trimmed runtime image, and on the runtime image with the class-data-sharing
+ * archive.</p>
+ * <p>Each launch runs the application with {@code --exit-when-ready} against an in-memory database. The application
+ * prints one line with the time to its first frame, the time until the backend was ready, and its peak resident set
+ * size ({@code VmHWM} from {@code /proc/self/status}), then exits. The benchmark also times the launch from the outside,
+ * from spawning the process to that line and to the process exit, and reports the median of each over the runs.</p>
+ * <p>Usage: {@code gradle startupBenchmark}, which builds the image and archive first. Options:</p>
+ * <ul>
+ *     <li>{@code --runs=N} - launches per variant (default 5).</li>
+ *     <li>{@code --module-path=PATH} - the application, H2 and JavaFX jars, for the full JDK.</li>
+ *     <li>{@code --app-module-path=PATH} - the application and H2 jars, for the runtime image.</li>
+ *     <li>{@code --image=DIR} - the runtime image built by {@code jlinkRuntime}.</li>
+ *     <li>{@code --archive=FILE} - the archive recorded by {@code cdsArchive}.</li>
+ * </ul>
+ * <p>JavaFX needs a display, so run it in a desktop session or under a virtual frame buffer.</p>
+ */
+public class StartupBenchmark {
+
+    /** Prefix of the line the application prints when launched with --exit-when-ready. */
+    static final String STARTUP_LINE = "STARTUP ";
+
+    /** Settings shared by every launch: an in-memory store and no background file writers. */
+    private static final List<String> LAUNCH_PROPERTIES = Arrays.asList("-Ddocop.store=h2mem",
+            "-Ddocop.slowQuery.thresholdMillis=-1", "-Ddocop.maintenance=false");
+
+    /** How long one launch may take. */
+    private static final long LAUNCH_TIMEOUT_SECONDS = 120;
+
+    /** One way of launching the application. */
+    static final class Variant {
+        private final String name;
+        private final List<String> command;
+
+        Variant(String name, List<String> command) {
+            this.name = name;
+            this.command = command;
+        }
+    }
+
+    /** The medians measured for a variant. */
+    static final class Result {
+        private final Variant variant;
+        private final long[] launchToReadyMillis;
+        private final long[] launchToExitMillis;
+        private final long[] firstFrameMillis;
+        private final long[] peakRssKb;
+
+        Result(Variant variant, int runs) {
+            this.variant = variant;
+            this.launchToReadyMillis = new long[runs];
+            this.launchToExitMillis = new long[runs];
+            this.firstFrameMillis = new long[runs];
+            this.peakRssKb = new long[runs];
+        }
+    }
+
+    // Only run from the command line
+    private StartupBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark from the command line.
+     *
+     * @param args The options described on the class.
+     * @throws Exception If a launch fails.
+     */
+    public static void main(String[] args) throws Exception {
+        int runs = 5;
+        String modulePath = null;
+        String appModulePath = null;
+        Path image = null;
+        Path archive = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--runs=")) {
+                runs = Integer.parseInt(value);
+            } else if (arg.startsWith("--module-path=")) {
+                modulePath = value;
+            } else if (arg.startsWith("--app-module-path=")) {
+                appModulePath = value;
+            } else if (arg.startsWith("--image=")) {
+                image = Paths.get(value);
+            } else if (arg.startsWith("--archive=")) {
+                archive = Paths.get(value);
+            } else {
+                System.err.println("Unknown option: " + arg);
+                System.exit(2);
+            }
+        }
+        if (modulePath == null) {
+            System.err.println("--module-path is required");
+            System.exit(2);
+        }
+
+        List<Variant> variants = new ArrayList<>();
+        Path jdkJava = Paths.get(System.getProperty("java.home"), "bin", "java");
+        variants.add(new Variant("full JDK", command(jdkJava, null, modulePath)));
+        if (image != null && appModulePath != null && Files.isDirectory(image)) {
+            Path imageJava = image.resolve("bin").resolve("java");
+            variants.add(new Variant("jlink image", command(imageJava, null, appModulePath)));
+            if (archive != null && Files.isRegularFile(archive)) {
+                variants.add(new Variant("jlink + AppCDS", command(imageJava, archive, appModulePath)));
+            }
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (Variant variant : variants) {
+            System.out.println("Launching with " + variant.name + " " + runs + " times...");
+            results.add(measure(variant, runs));
+        }
+        printReport(results);
+    }
+
+    /**
+     * Reads the peak resident set size of this process.
+     *
+     * @return The peak in kilobytes, or -1 if the platform does not report it.
+     */
+    static long peakRssKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not Linux
+        }
+        return -1;
+    }
+
+    private static List<String> command(Path java, Path archive, String modulePath) {
+        List<String> command = new ArrayList<>();
+        command.add(java.toString());
+        if (archive != null) {
+            command.add("-XX:SharedArchiveFile=" + archive);
+        }
+        command.addAll(LAUNCH_PROPERTIES);
+        command.addAll(Arrays.asList("--module-path", modulePath, "--add-modules", "com.h2database",
+                "-m", "main/main.Main", "--exit-when-ready"));
+        return command;
+    }
+
+    private static Result measure(Variant variant, int runs) throws IOException, InterruptedException {
+        Result result = new Result(variant, runs);
+        for (int run = 0; run < runs; run++) {
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(variant.command).redirectErrorStream(true).start();
+            Map<String, Long> reported = new HashMap<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(STARTUP_LINE) && reported.isEmpty()) {
+                        result.launchToReadyMillis[run] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                        for (String field : line.substring(STARTUP_LINE.length()).trim().split(" ")) {
+                            String[] pair = field.split("=", 2);
+                            reported.put(pair[0], Long.parseLong(pair[1]));
+                        }
+                    }
+                }
+            }
+            if (!process.waitFor(LAUNCH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                throw new IOException(variant.name + " did not exit within " + LAUNCH_TIMEOUT_SECONDS + " s");
+            }
+            if (reported.isEmpty()) {
+                throw new IOException(variant.name + " exited with status " + process.exitValue() + " without reporting startup");
+            }
+            result.launchToExitMillis[run] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            result.firstFrameMillis[run] = reported.getOrDefault("firstFrameMs", -1L);
+            result.peakRssKb[run] = reported.getOrDefault("vmHwmKb", -1L);
+        }
+        return result;
+    }
+
+    private static void printReport(List<Result> results) {
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-16s %14s %14s %16s %14s %10s%n", "variant", "to ready ms", "to exit ms",
+                "first frame ms", "peak RSS MB", "vs JDK");
+        long baseline = results.isEmpty() ? 0 : median(results.get(0).launchToReadyMillis);
+        for (Result result : results) {
+            long ready = median(result.launchToReadyMillis);
+            long rss = median(result.peakRssKb);
+            System.out.printf(Locale.ROOT, "%-16s %14d %14d %16d %14s %9.0f%%%n", result.variant.name, ready,
+                    median(result.launchToExitMillis), median(result.firstFrameMillis),
+                    rss < 0 ? "n/a" : String.format(Locale.ROOT, "%.1f", rss / 1024.0),
+                    baseline == 0 ? 0 : 100.0 * ready / baseline);
+        }
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted.length == 0 ? 0 : sorted[sorted.length / 2];
+    }
+}
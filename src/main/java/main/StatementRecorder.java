@@ -0,0 +1,265 @@
+package main;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+/**
+ * <p>StatementRecorder class wraps a JDBC connection so that every statement run on it is reported to a listener.</p>
+ * <p>The statements created from the wrapped connection remember the parameters bound to them, so the listener
+ * sees each execution's text together with its parameters, e.g. to {@link #explain explain} it later. A listener
+ * that also wants to time an execution returns an {@link Execution}. The recorder then reports the time spent
+ * running the statement and, for a query, fetching the rows of its result set, and finishes the execution when the
+ * result set or statement is closed or the statement runs again.</p>
+ */
+public final class StatementRecorder {
+
+    private static final Pattern EXPLAINABLE = Pattern.compile("^\\s*(SELECT|INSERT|UPDATE|DELETE|MERGE|WITH)\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern PARAMETER_LIST = Pattern.compile("\\?(\\s*,\\s*\\?)+");
+
+    /**
+     * <p>Listener interface is told about each statement execution on a wrapped connection.</p>
+     */
+    @FunctionalInterface
+    public interface Listener {
+
+        /**
+         * Called when a statement is about to run.
+         *
+         * @param sql The statement.
+         * @param parameters The parameters bound for this execution by index, as a copy the listener may keep.
+         * @return The execution to report the statement's time and rows to, or null to record nothing more.
+         */
+        Execution executing(String sql, Map<Integer, Object> parameters);
+    }
+
+    /**
+     * <p>Execution interface receives the time and rows of one statement execution. The time may be reported in
+     * several parts, and the execution may be finished by a thread other than the one fetching its rows.</p>
+     */
+    public interface Execution {
+
+        /**
+         * Adds time spent running the statement or fetching its rows.
+         *
+         * @param elapsedNanos The time spent.
+         * @param rows The rows read or changed in that time, or -1 if unknown.
+         */
+        void add(long elapsedNanos, long rows);
+
+        /**
+         * Called when the execution's result is no longer read; it may be called more than once.
+         */
+        void finish();
+    }
+
+    /** Marks a parameter bound with setNull. */
+    public static final class NullParameter {
+        private final int sqlType;
+
+        NullParameter(int sqlType) {
+            this.sqlType = sqlType;
+        }
+
+        /** @return The SQL type the parameter was bound with. */
+        public int getSqlType() {
+            return sqlType;
+        }
+    }
+
+    private StatementRecorder() {
+    }
+
+    /**
+     * Wraps a connection so that the statements created from it report their executions.
+     *
+     * @param connection The connection.
+     * @param listener Told about every execution.
+     * @return A connection delegating to the given one.
+     */
+    public static Connection wrap(Connection connection, Listener listener) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+                (proxy, method, args) -> {
+                    Object result = invoke(connection, method, args);
+                    String name = method.getName();
+                    if (result instanceof Statement && (name.startsWith("prepare") || name.equals("createStatement"))) {
+                        String preparedSql = name.startsWith("prepare") ? (String) args[0] : null;
+                        return recordingStatement((Statement) result, method.getReturnType(), preparedSql, listener);
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * Runs {@code EXPLAIN} on a statement with the parameters it ran with.
+     *
+     * @param conn The connection to explain on.
+     * @param sql The statement.
+     * @param parameters Its parameters by index, as reported to a listener.
+     * @return The plan.
+     * @throws SQLException If the statement cannot be explained.
+     */
+    public static String explain(Connection conn, String sql, Map<Integer, Object> parameters) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement("EXPLAIN " + sql)) {
+            for (Map.Entry<Integer, Object> parameter : parameters.entrySet()) {
+                if (parameter.getValue() instanceof NullParameter) {
+                    pstmt.setNull(parameter.getKey(), ((NullParameter) parameter.getValue()).sqlType);
+                } else {
+                    pstmt.setObject(parameter.getKey(), parameter.getValue());
+                }
+            }
+            StringBuilder plan = new StringBuilder();
+            try (ResultSet resultSet = pstmt.executeQuery()) {
+                while (resultSet.next()) {
+                    plan.append(resultSet.getString(1));
+                }
+            }
+            return plan.toString();
+        }
+    }
+
+    /**
+     * Tells whether a statement can be explained, i.e. is a query or a data change rather than DDL or a command.
+     *
+     * @param sql The statement.
+     * @return True if {@code EXPLAIN} accepts it.
+     */
+    public static boolean isExplainable(String sql) {
+        return EXPLAINABLE.matcher(sql).find();
+    }
+
+    /**
+     * Normalizes a statement's text so that executions with parameter lists of different lengths compare equal.
+     *
+     * @param sql The statement.
+     * @return The trimmed text with every list of two or more parameters written as {@code ?, ...}.
+     */
+    public static String normalize(String sql) {
+        return PARAMETER_LIST.matcher(sql.trim()).replaceAll("?, ...");
+    }
+
+    // Wraps a statement so that each execution is reported; preparedSql is null for a plain statement. The bound
+    // parameters and the current execution are guarded by the parameter map, so a statement shared between threads
+    // cannot corrupt them, though JDBC itself still expects one thread per statement.
+    private static Statement recordingStatement(Statement statement, Class<?> type, String preparedSql, Listener listener) {
+        Map<Integer, Object> parameters = new TreeMap<>();
+        AtomicReference<Execution> current = new AtomicReference<>();
+        InvocationHandler handler = (proxy, method, args) -> {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                synchronized (parameters) {
+                    parameters.put((Integer) args[0], name.equals("setNull") ? new NullParameter((Integer) args[1]) : args[1]);
+                }
+                return invoke(statement, method, args);
+            }
+            if (name.equals("clearParameters")) {
+                synchronized (parameters) {
+                    parameters.clear();
+                }
+                return invoke(statement, method, args);
+            }
+            if (name.equals("close")) {
+                finish(current);
+                return invoke(statement, method, args);
+            }
+            if (!name.startsWith("execute")) {
+                return invoke(statement, method, args);
+            }
+
+            // A new execution closes the result set of the previous one
+            finish(current);
+            boolean hasSql = args != null && args.length > 0 && args[0] instanceof String;
+            String sql = hasSql ? (String) args[0] : preparedSql;
+            if (sql == null) {
+                return invoke(statement, method, args);
+            }
+            Map<Integer, Object> bound;
+            synchronized (parameters) {
+                bound = hasSql ? Map.of() : new TreeMap<>(parameters);
+            }
+            Execution execution = listener.executing(sql, bound);
+            if (execution == null) {
+                return invoke(statement, method, args);
+            }
+            long start = System.nanoTime();
+            Object result = invoke(statement, method, args);
+            long elapsed = System.nanoTime() - start;
+
+            if (result instanceof ResultSet) {
+                execution.add(elapsed, 0);
+                Execution previous = current.getAndSet(execution);
+                if (previous != null) {
+                    previous.finish();
+                }
+                return recordingResultSet((ResultSet) result, execution);
+            }
+            execution.add(elapsed, rows(result));
+            execution.finish();
+            return result;
+        };
+        return (Statement) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    // Wraps a result set so that the time spent fetching rows counts towards the execution
+    private static ResultSet recordingResultSet(ResultSet resultSet, Execution execution) {
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+                (proxy, method, args) -> {
+                    String name = method.getName();
+                    if (name.equals("next")) {
+                        long start = System.nanoTime();
+                        Object result = invoke(resultSet, method, args);
+                        execution.add(System.nanoTime() - start, Boolean.TRUE.equals(result) ? 1 : 0);
+                        return result;
+                    }
+                    if (name.equals("close")) {
+                        execution.finish();
+                    }
+                    return invoke(resultSet, method, args);
+                });
+    }
+
+    // The rows changed according to an update count or batch of counts, or -1 if the result does not say
+    private static long rows(Object result) {
+        if (result instanceof Integer || result instanceof Long) {
+            return ((Number) result).longValue();
+        }
+        long rows = 0;
+        if (result instanceof int[]) {
+            for (int count : (int[]) result) {
+                rows += Math.max(0, count);
+            }
+        } else if (result instanceof long[]) {
+            for (long count : (long[]) result) {
+                rows += Math.max(0, count);
+            }
+        } else {
+            rows = -1;
+        }
+        return rows;
+    }
+
+    private static void finish(AtomicReference<Execution> current) {
+        Execution execution = current.getAndSet(null);
+        if (execution != null) {
+            execution.finish();
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
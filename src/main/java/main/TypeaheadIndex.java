@@ -0,0 +1,145 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * <p>TypeaheadIndex class suggests users as an admin types part of a username or name.</p>
+ * <p>Every searchable term (the username, and each word of the preferred and last names) is stored lower-cased
+ * in a sorted set as {@code term + '\0' + username}. All entries starting with a prefix are therefore
+ * contiguous, and a suggestion is a binary search to the first of them followed by a short forward scan,
+ * without touching the database. The index is kept up to date by the user store on every write.</p>
+ */
+public class TypeaheadIndex {
+
+    /** Separates the term from the username inside an entry; sorts before every other character. */
+    private static final char SEPARATOR = '\u0000';
+
+    /** The entries, sorted so that all terms sharing a prefix are adjacent. */
+    private final ConcurrentSkipListSet<String> entries = new ConcurrentSkipListSet<>();
+
+    /** The entries currently stored for each user, so they can be replaced when the user changes. */
+    private final Map<String, List<String>> entriesByUser = new ConcurrentHashMap<>();
+
+    /**
+     * Default constructor creates an empty index.
+     */
+    public TypeaheadIndex() {
+    }
+
+    /**
+     * Adds a user, or replaces the terms stored for them.
+     *
+     * @param username The username of the user.
+     * @param names The user's names to index (e.g. preferred and last name); null values are ignored.
+     */
+    public void put(String username, String... names) {
+        if (username == null) {
+            return;
+        }
+        List<String> newEntries = new ArrayList<>();
+        addTerms(newEntries, username, username);
+        for (String name : names) {
+            addTerms(newEntries, name, username);
+        }
+
+        // Replace the user's entries while holding their map slot, so concurrent updates cannot interleave
+        entriesByUser.compute(username, (user, oldEntries) -> {
+            if (oldEntries != null) {
+                entries.removeAll(oldEntries);
+            }
+            entries.addAll(newEntries);
+            return newEntries;
+        });
+    }
+
+    /**
+     * Removes a user.
+     *
+     * @param username The username of the user.
+     */
+    public void remove(String username) {
+        if (username == null) {
+            return;
+        }
+        entriesByUser.computeIfPresent(username, (user, oldEntries) -> {
+            entries.removeAll(oldEntries);
+            return null;
+        });
+    }
+
+    /**
+     * Removes every user.
+     */
+    public void clear() {
+        for (String username : entriesByUser.keySet()) {
+            remove(username);
+        }
+    }
+
+    /**
+     * Suggests users with a username or name starting with a prefix, ignoring case.
+     *
+     * @param prefix The text typed so far.
+     * @param limit The maximum number of suggestions.
+     * @return Up to limit distinct usernames, ordered by the matching term; empty for a blank prefix.
+     */
+    public List<String> suggest(String prefix, int limit) {
+        String term = normalize(prefix);
+        if (term == null || limit <= 0) {
+            return new ArrayList<>();
+        }
+        Set<String> usernames = new LinkedHashSet<>();
+        for (String entry : entries.tailSet(term)) {
+            if (!entry.startsWith(term)) {
+                break;
+            }
+            usernames.add(entry.substring(entry.indexOf(SEPARATOR) + 1));
+            if (usernames.size() >= limit) {
+                break;
+            }
+        }
+        return new ArrayList<>(usernames);
+    }
+
+    /**
+     * Retrieves the number of indexed users.
+     *
+     * @return The number of users.
+     */
+    public int size() {
+        return entriesByUser.size();
+    }
+
+    // Adds an entry for the whole value and for each word in it
+    private static void addTerms(List<String> target, String value, String username) {
+        String term = normalize(value);
+        if (term == null) {
+            return;
+        }
+        target.add(term + SEPARATOR + username);
+        String[] words = term.split("\\s+");
+        if (words.length > 1) {
+            for (String word : words) {
+                if (!word.isEmpty()) {
+                    target.add(word + SEPARATOR + username);
+                }
+            }
+        }
+    }
+
+    // Lower-cases and trims a term, dropping separators; returns null if nothing is left
+    private static String normalize(String value) {
+        if (value == null) {
+            return null;
+        }
+        String term = value.replace(String.valueOf(SEPARATOR), "").strip().toLowerCase(Locale.ROOT);
+        return term.isEmpty() ? null : term;
+    }
+}
@@ -0,0 +1,249 @@
+package main;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>UserCache class is a bounded, read-through cache of user profile and role data keyed by username.</p>
+ * <p>Entries are evicted in least-recently-used order once the cache is full and expire after a fixed
+ * time-to-live. The {@link DatabaseHelper} fills the cache on reads and invalidates entries on every write
+ * that touches a user's profile or roles, so repeat dashboard loads do not need to query the database.</p>
+ * <p>A reader takes the user's {@link #generation(String)} before it queries the database and passes it to the
+ * put. Invalidating a user bumps the generation, so a put of data read before a concurrent write committed is
+ * dropped instead of being served until the entry expires. Generations are kept in a fixed number of stripes
+ * indexed by the username's hash; two users sharing a stripe only cost each other an occasional dropped put.</p>
+ */
+public class UserCache {
+
+    /** A cached entry holding the profile and roles of a single user. Either half may be absent. */
+    private static final class Entry {
+        private String[] details;
+        private long detailsLoadedAt;
+        private String[] roles;
+        private long rolesLoadedAt;
+    }
+
+    /** The number of generation stripes; a power of two. */
+    private static final int GENERATION_STRIPES = 1024;
+
+    /** The maximum number of users held in the cache. */
+    private final int maxEntries;
+
+    /** The time-to-live of an entry in milliseconds. */
+    private final long ttlMillis;
+
+    /** The entries in access order, oldest first. */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /** The generation of each stripe of usernames, bumped whenever a user in the stripe is invalidated. */
+    private final long[] generations = new long[GENERATION_STRIPES];
+
+    /** Cache statistics. */
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Constructor for UserCache.
+     *
+     * @param maxEntries The maximum number of users held before the least recently used one is evicted.
+     * @param ttlMillis The time in milliseconds after which a cached entry is reloaded from the database.
+     */
+    public UserCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > UserCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Retrieves the cached profile details of a user.
+     *
+     * @param username The username of the user.
+     * @return A copy of the cached details, or null if they are not cached or have expired.
+     */
+    public synchronized String[] getDetails(String username) {
+        Entry entry = entries.get(username);
+        if (entry == null || !isLive(entry.details, entry.detailsLoadedAt)) {
+            dropIfExpired(username, entry);
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.details.clone();
+    }
+
+    /**
+     * Stores the profile details of a user, unless the user was invalidated since the details were read.
+     *
+     * @param username The username of the user.
+     * @param details The details as returned by {@link DatabaseHelper#getUserDetails(String)}.
+     * @param generation The generation of the user taken before the details were read.
+     * @return True if the details were stored.
+     */
+    public synchronized boolean putDetails(String username, String[] details, long generation) {
+        if (generation != generation(username)) {
+            return false;
+        }
+        Entry entry = entryFor(username);
+        entry.details = details.clone();
+        entry.detailsLoadedAt = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Retrieves the cached roles of a user.
+     *
+     * @param username The username of the user.
+     * @return A copy of the cached roles, or null if they are not cached or have expired.
+     */
+    public synchronized String[] getRoles(String username) {
+        Entry entry = entries.get(username);
+        if (entry == null || !isLive(entry.roles, entry.rolesLoadedAt)) {
+            dropIfExpired(username, entry);
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.roles.clone();
+    }
+
+    /**
+     * Stores the roles of a user, unless the user was invalidated since the roles were read.
+     *
+     * @param username The username of the user.
+     * @param roles The roles as returned by {@link DatabaseHelper#getRolesForUser(String)}.
+     * @param generation The generation of the user taken before the roles were read.
+     * @return True if the roles were stored.
+     */
+    public synchronized boolean putRoles(String username, String[] roles, long generation) {
+        if (generation != generation(username)) {
+            return false;
+        }
+        Entry entry = entryFor(username);
+        entry.roles = roles.clone();
+        entry.rolesLoadedAt = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Retrieves the generation of a user, to be taken before reading the data that is put into the cache.
+     *
+     * @param username The username of the user.
+     * @return The generation, which changes whenever the user is invalidated.
+     */
+    public synchronized long generation(String username) {
+        return generations[stripe(username)];
+    }
+
+    /**
+     * Removes a user from the cache and drops any put of data read before this call. Called after any write to
+     * the user's row has committed.
+     *
+     * @param username The username of the user.
+     */
+    public synchronized void invalidate(String username) {
+        if (username != null) {
+            entries.remove(username);
+            generations[stripe(username)]++;
+        }
+    }
+
+    /**
+     * Removes every user from the cache and drops any put of data read before this call.
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        for (int i = 0; i < generations.length; i++) {
+            generations[i]++;
+        }
+    }
+
+    /**
+     * Retrieves the number of users currently cached.
+     *
+     * @return The number of cached users.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Retrieves the number of lookups served from the cache.
+     *
+     * @return The hit count.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Retrieves the number of lookups that had to go to the database.
+     *
+     * @return The miss count.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Retrieves the number of entries evicted because the cache was full.
+     *
+     * @return The eviction count.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Retrieves the fraction of lookups served from the cache.
+     *
+     * @return The hit rate between 0 and 1, or 0 if there have been no lookups.
+     */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("UserCache[size=%d, hits=%d, misses=%d, evictions=%d, hitRate=%.2f]",
+                entries.size(), hits, misses, evictions, getHitRate());
+    }
+
+    // Checks if one half of an entry is present and has not expired
+    private boolean isLive(String[] value, long loadedAt) {
+        return value != null && System.currentTimeMillis() - loadedAt <= ttlMillis;
+    }
+
+    // Drops an entry once neither half of it is live any more
+    private void dropIfExpired(String username, Entry entry) {
+        if (entry != null && !isLive(entry.details, entry.detailsLoadedAt) && !isLive(entry.roles, entry.rolesLoadedAt)) {
+            entries.remove(username);
+        }
+    }
+
+    // Returns the entry for the user, creating an empty one if needed
+    private Entry entryFor(String username) {
+        Entry entry = entries.get(username);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(username, entry);
+        }
+        return entry;
+    }
+
+    // Maps a username to its generation stripe
+    private static int stripe(String username) {
+        int hash = username == null ? 0 : username.hashCode();
+        return (hash ^ (hash >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+}
@@ -0,0 +1,184 @@
+package main;
+
+import java.time.LocalDateTime;
+
+/**
+ * <p>UserQuery class describes a filtered, sorted page of the user list for the admin screens.</p>
+ * <p>Filters are optional and combined with AND. Text filters are prefix matches; the name and email filters
+ * ignore case. The query is passed to {@link UserStore#findUserAccounts(UserQuery)}, which evaluates it in the
+ * database so only the requested page is loaded.</p>
+ */
+public class UserQuery {
+
+    /** The columns the user list can be sorted by. */
+    public enum SortColumn {
+        /** Sort by username. */
+        USERNAME,
+        /** Sort by first name. */
+        FIRST_NAME,
+        /** Sort by last name. */
+        LAST_NAME,
+        /** Sort by email. */
+        EMAIL,
+        /** Sort by account creation time. */
+        CREATED_AT
+    }
+
+    /** Default number of rows per page. */
+    public static final int DEFAULT_LIMIT = 50;
+
+    private String usernamePrefix;
+    private String namePrefix;
+    private String emailPrefix;
+    private Role role;
+    private LocalDateTime createdFrom;
+    private LocalDateTime createdTo;
+    private SortColumn sortBy = SortColumn.USERNAME;
+    private boolean ascending = true;
+    private int offset = 0;
+    private int limit = DEFAULT_LIMIT;
+
+    /**
+     * Default constructor creates a query for the first page of all users, sorted by username.
+     */
+    public UserQuery() {
+    }
+
+    /**
+     * Restricts the query to usernames starting with a prefix (case-sensitive, as usernames are).
+     *
+     * @param usernamePrefix The prefix, or null for no restriction.
+     * @return This query.
+     */
+    public UserQuery usernamePrefix(String usernamePrefix) {
+        this.usernamePrefix = blankToNull(usernamePrefix);
+        return this;
+    }
+
+    /**
+     * Restricts the query to users whose first, last or preferred name starts with a prefix, ignoring case.
+     *
+     * @param namePrefix The prefix, or null for no restriction.
+     * @return This query.
+     */
+    public UserQuery namePrefix(String namePrefix) {
+        this.namePrefix = blankToNull(namePrefix);
+        return this;
+    }
+
+    /**
+     * Restricts the query to users whose email starts with a prefix, ignoring case.
+     *
+     * @param emailPrefix The prefix, or null for no restriction.
+     * @return This query.
+     */
+    public UserQuery emailPrefix(String emailPrefix) {
+        this.emailPrefix = blankToNull(emailPrefix);
+        return this;
+    }
+
+    /**
+     * Restricts the query to users holding a role.
+     *
+     * @param role The role, or null for no restriction.
+     * @return This query.
+     */
+    public UserQuery role(Role role) {
+        this.role = role;
+        return this;
+    }
+
+    /**
+     * Restricts the query to users created within a time range.
+     *
+     * @param from The earliest creation time (inclusive), or null for no lower bound.
+     * @param to The latest creation time (exclusive), or null for no upper bound.
+     * @return This query.
+     */
+    public UserQuery createdBetween(LocalDateTime from, LocalDateTime to) {
+        this.createdFrom = from;
+        this.createdTo = to;
+        return this;
+    }
+
+    /**
+     * Sets the sort order.
+     *
+     * @param sortBy The column to sort by.
+     * @param ascending True for ascending order.
+     * @return This query.
+     */
+    public UserQuery sortBy(SortColumn sortBy, boolean ascending) {
+        this.sortBy = sortBy == null ? SortColumn.USERNAME : sortBy;
+        this.ascending = ascending;
+        return this;
+    }
+
+    /**
+     * Sets the page to load.
+     *
+     * @param offset The number of matching rows to skip.
+     * @param limit The maximum number of rows to return.
+     * @return This query.
+     */
+    public UserQuery page(int offset, int limit) {
+        this.offset = Math.max(0, offset);
+        this.limit = Math.max(1, limit);
+        return this;
+    }
+
+    /** @return The username prefix, or null. */
+    public String getUsernamePrefix() {
+        return usernamePrefix;
+    }
+
+    /** @return The name prefix, or null. */
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    /** @return The email prefix, or null. */
+    public String getEmailPrefix() {
+        return emailPrefix;
+    }
+
+    /** @return The role filter, or null. */
+    public Role getRole() {
+        return role;
+    }
+
+    /** @return The earliest creation time, or null. */
+    public LocalDateTime getCreatedFrom() {
+        return createdFrom;
+    }
+
+    /** @return The latest creation time (exclusive), or null. */
+    public LocalDateTime getCreatedTo() {
+        return createdTo;
+    }
+
+    /** @return The sort column. */
+    public SortColumn getSortBy() {
+        return sortBy;
+    }
+
+    /** @return True if sorting in ascending order. */
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    /** @return The number of matching rows to skip. */
+    public int getOffset() {
+        return offset;
+    }
+
+    /** @return The maximum number of rows to return. */
+    public int getLimit() {
+        return limit;
+    }
+
+    // Treats empty or whitespace-only filter text as no filter
+    private static String blankToNull(String value) {
+        return value == null || value.isBlank() ? null : value.trim();
+    }
+}
@@ -0,0 +1,410 @@
+package main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * <p>UserStore interface describes the storage operations the application needs for users, invites and passwords.</p>
+ * <p>{@link DatabaseHelper} implements it on top of H2, either file-backed or in-memory, and
+ * {@link InMemoryUserStore} implements it with concurrent maps for tests and benchmarks that should not touch
+ * the disk. {@link ShardedUserStore} partitions the users over several H2 databases. {@link UserStores} picks an
+ * implementation from system properties.</p>
+ * <p>Every implementation keeps usernames and email addresses unique across the whole store, and the user ids it
+ * returns identify one user in the store. An id is only stable while the user stays where it is stored:
+ * {@link ShardedUserStore} gives a user a new id when it moves the user to another shard.</p>
+ */
+public interface UserStore {
+
+    /**
+     * Opens the store and creates its schema if needed.
+     *
+     * @throws SQLException If the store cannot be opened.
+     */
+    void connectToDatabase() throws SQLException;
+
+    /**
+     * Closes the store.
+     */
+    void closeConnection();
+
+    /**
+     * Checks if a user exists with the given username, password and role.
+     *
+     * @param username The username of the user.
+     * @param password The password of the user.
+     * @param role The role of the user.
+     * @return True if the credentials and role match a user.
+     * @throws SQLException If the store cannot be read.
+     */
+    boolean login(String username, String password, String role) throws SQLException;
+
+    /**
+     * Registers a new user.
+     *
+     * @param username The username of the user.
+     * @param passwordHash The hashed password of the user.
+     * @param role The role of the user.
+     * @throws SQLException If the store cannot be written.
+     */
+    void register(String username, byte[] passwordHash, String role) throws SQLException;
+
+    /**
+     * Checks if a user exists.
+     *
+     * @param username The username of the user.
+     * @return True if the user exists.
+     * @throws SQLException If the store cannot be read.
+     */
+    boolean doesUserExist(String username) throws SQLException;
+
+    /**
+     * Checks if an invite code exists, ignoring case and surrounding spaces.
+     *
+     * @param inviteCode The invite code.
+     * @return True if the invite code exists.
+     * @throws SQLException If the store cannot be read.
+     */
+    boolean doesInviteExist(String inviteCode) throws SQLException;
+
+    /**
+     * Retrieves the role granted by an invite code, ignoring case and surrounding spaces.
+     *
+     * @param inviteCode The invite code.
+     * @return The role of the invite, or an empty string if there is none.
+     * @throws SQLException If the store cannot be read.
+     */
+    String getRoleFromInvite(String inviteCode) throws SQLException;
+
+    /**
+     * Adds a role to a user if they do not hold it already.
+     *
+     * @param username The username of the user.
+     * @param newRole The role to add.
+     * @throws SQLException If the store cannot be written.
+     */
+    void addRoleToUser(String username, String newRole) throws SQLException;
+
+    /**
+     * Removes a role from a user.
+     *
+     * @param username The username of the user.
+     * @param roleToRemove The role to remove.
+     * @throws SQLException If the store cannot be written.
+     */
+    void removeRoleFromUser(String username, String roleToRemove) throws SQLException;
+
+    /**
+     * Retrieves the roles of a user.
+     *
+     * @param username The username of the user.
+     * @return The roles of the user, or an empty array if they have none.
+     * @throws SQLException If the store cannot be read.
+     */
+    String[] getRolesForUser(String username) throws SQLException;
+
+    /**
+     * Checks if the store holds no users or invites.
+     *
+     * @return True if the store is empty.
+     * @throws SQLException If the store cannot be read.
+     */
+    boolean isDatabaseEmpty() throws SQLException;
+
+    /**
+     * Checks a password against the stored hash of a user.
+     *
+     * @param username The username of the user.
+     * @param password The password to check.
+     * @return True if the password is correct.
+     * @throws SQLException If the store cannot be read.
+     * @throws NoSuchAlgorithmException If the password cannot be hashed.
+     */
+    boolean isPasswordCorrect(String username, String password) throws SQLException, NoSuchAlgorithmException;
+
+    /**
+     * Checks if a user's stored role matches the given role.
+     *
+     * @param username The username of the user.
+     * @param role The role to check.
+     * @return True if the role matches.
+     * @throws SQLException If the store cannot be read.
+     */
+    boolean isRoleCorrect(String username, String role) throws SQLException;
+
+    /**
+     * Checks if a user has completed account setup.
+     *
+     * @param username The username of the user.
+     * @return True if the account setup is complete.
+     * @throws SQLException If the store cannot be read.
+     */
+    boolean isAccountSetupComplete(String username) throws SQLException;
+
+    /**
+     * Stores a user's profile and marks their account setup as complete. An email that belongs to another user
+     * is rejected.
+     *
+     * @param username The username of the user.
+     * @param firstName The first name of the user.
+     * @param middleName The middle name of the user.
+     * @param lastName The last name of the user.
+     * @param preferredName The preferred name of the user.
+     * @param email The email of the user.
+     * @throws SQLException If the store cannot be written.
+     */
+    void setupUserDetails(String username, String firstName, String middleName, String lastName, String preferredName, String email) throws SQLException;
+
+    /**
+     * Replaces a user's password with a one-time password that expires on the given date.
+     *
+     * @param username The username of the user.
+     * @param password The one-time password in plaintext.
+     * @param expirationDate The expiration date in MM/DD/YYYY format.
+     * @return A message describing the result.
+     * @throws SQLException If the store cannot be written.
+     */
+    String resetUser(String username, String password, String expirationDate) throws SQLException;
+
+    /**
+     * Deletes every user and invite.
+     *
+     * @throws SQLException If the store cannot be written.
+     */
+    void clearDatabase() throws SQLException;
+
+    /**
+     * Creates an invite unless the invite code already exists.
+     *
+     * @param inviteCode The invite code.
+     * @param role The role the invite grants.
+     * @return A message describing the result.
+     */
+    String addUser(String inviteCode, String role);
+
+    /**
+     * Creates an invite, or adds the role to an existing invite with the same code.
+     *
+     * @param inviteCode The invite code.
+     * @param inviteRole The role the invite grants.
+     * @throws SQLException If the store cannot be written.
+     */
+    void createInvite(String inviteCode, String inviteRole) throws SQLException;
+
+    /**
+     * Retrieves a user's profile.
+     *
+     * @param currentUsername The username of the user.
+     * @return The first, middle, last and preferred names and the email; entries are null if unknown.
+     */
+    String[] getUserDetails(String currentUsername);
+
+    /**
+     * Updates a user's profile only if the user has not changed since a version was read (compare-and-set).
+     * There is no unconditional variant: a caller that gets false reloads the profile and its version and either
+     * retries or reports the conflict, so a concurrent edit is never silently overwritten. An email that belongs
+     * to another user is rejected.
+     *
+     * @param currentUsername The username of the user.
+     * @param firstName The first name of the user.
+     * @param middleName The middle name of the user.
+     * @param lastName The last name of the user.
+     * @param preferredName The preferred name of the user.
+     * @param email The email of the user.
+     * @param expectedVersion The version returned by {@link #getUserVersion(String)} when the profile was loaded.
+     * @return True if the profile was updated, false if the user was changed or deleted in the meantime.
+     */
+    boolean updateUserDetails(String currentUsername, String firstName, String middleName, String lastName,
+                              String preferredName, String email, long expectedVersion) throws SQLException;
+
+    /**
+     * Retrieves the version of a user, which changes on every write to the user's row: roles, profile or password.
+     *
+     * @param username The username of the user.
+     * @return The version, or -1 if the user does not exist.
+     */
+    long getUserVersion(String username) throws SQLException;
+
+    /**
+     * Retrieves every user and invite.
+     *
+     * @return One row per account holding the username, first, middle and last names and roles.
+     * @throws SQLException If the store cannot be read.
+     */
+    String[][] getAllUserAccounts() throws SQLException;
+
+    /**
+     * Retrieves one page of the users matching a query, filtered and sorted by the store.
+     *
+     * @param query The filters, sort order and page to load.
+     * @return The matching accounts in the same layout as {@link #getAllUserAccounts()}.
+     */
+    String[][] findUserAccounts(UserQuery query) throws SQLException;
+
+    /**
+     * Counts the users matching a query, ignoring its sort order and page.
+     *
+     * @param query The filters to apply.
+     * @return The number of matching accounts.
+     */
+    int countUserAccounts(UserQuery query) throws SQLException;
+
+    /**
+     * Retrieves one page of the users matching a query in the compact form shown by the admin table.
+     *
+     * @param query The filters, sort order and page to load.
+     * @return The matching accounts.
+     */
+    UserSummaryTable findUserSummaries(UserQuery query) throws SQLException;
+
+    /**
+     * Suggests users whose username, preferred name or last name starts with some text, ignoring case.
+     * Answered from memory, so it is cheap enough to call on every keystroke.
+     *
+     * @param prefix The text typed so far.
+     * @param limit The maximum number of suggestions.
+     * @return Up to limit usernames.
+     */
+    List<String> suggestUsernames(String prefix, int limit);
+
+    /**
+     * Deletes a user.
+     *
+     * @param username The username of the user.
+     */
+    void deleteUser(String username);
+
+    /**
+     * Redeems an invite by attaching a username, password and role to it. An invite can be redeemed once; the code
+     * of a redeemed invite never changes the account created with it.
+     *
+     * @param inviteCode The invite code, ignoring case and surrounding spaces.
+     * @param username The username of the new user.
+     * @param passwordHash The hashed password of the new user.
+     * @param role The role of the new user.
+     * @return True if the invite was redeemed, false if it is unknown, already redeemed or expired, or the username is taken.
+     * @throws SQLException If the store cannot be written.
+     */
+    boolean updateUserFromInviteCode(String inviteCode, String username, byte[] passwordHash, String role) throws SQLException;
+
+    /**
+     * Retrieves a user's password hash.
+     *
+     * @param username The username of the user.
+     * @return The password hash, or null if the user or password does not exist.
+     * @throws SQLException If the store cannot be read.
+     */
+    byte[] getPasswordHash(String username) throws SQLException;
+
+    /**
+     * Sets a one-time password for a user.
+     *
+     * @param username The username of the user.
+     * @param oneTimePasswordHash The hashed one-time password.
+     * @param expirationDateTime The expiration date in MM/DD/YYYY format.
+     * @throws SQLException If the store cannot be written.
+     */
+    void setOneTimePassword(String username, byte[] oneTimePasswordHash, String expirationDateTime) throws SQLException;
+
+    /**
+     * Checks if a user's one-time password is set and has not expired.
+     *
+     * @param username The username of the user.
+     * @return True if the one-time password is valid.
+     * @throws SQLException If the store cannot be read.
+     */
+    boolean isOneTimePasswordValid(String username) throws SQLException;
+
+    /**
+     * Clears one-time passwords past their expiration, deletes invites nobody redeemed before they expired and
+     * drops expired password reset tokens. A cleared one-time password keeps its flag, so logging in reports that
+     * it has expired.
+     *
+     * @return The number of one-time passwords, invites and reset tokens removed.
+     * @throws SQLException If the store cannot be written.
+     */
+    int sweepExpiredCredentials() throws SQLException;
+
+    /**
+     * Stores a password reset token for a user, replacing any unused token the user already has.
+     * The user's own row is not modified.
+     *
+     * @param username The username of the user.
+     * @param tokenHash The hash of the token, from {@link PasswordManager#hashToken(String)}.
+     * @param ttlMinutes How long the token stays valid, in minutes.
+     * @return True if the token was stored, false if the user does not exist.
+     * @throws SQLException If the store cannot be written.
+     */
+    boolean createPasswordResetToken(String username, String tokenHash, int ttlMinutes) throws SQLException;
+
+    /**
+     * Consumes a password reset token and sets the user's new password. A token can be consumed only once,
+     * even by concurrent callers, and only before it expires.
+     *
+     * @param tokenHash The hash of the token, from {@link PasswordManager#hashToken(String)}.
+     * @param newPasswordHash The hashed new password.
+     * @return The username whose password was reset, or null if the token is unknown, used or expired.
+     * @throws SQLException If the store cannot be written.
+     */
+    String consumePasswordResetToken(String tokenHash, byte[] newPasswordHash) throws SQLException;
+
+    /**
+     * Replaces a one-time password with the user's new password.
+     *
+     * @param username The username of the user.
+     * @param newPasswordHash The hashed new password.
+     * @throws SQLException If the store cannot be written.
+     */
+    void updatePasswordAfterOtp(String username, byte[] newPasswordHash) throws SQLException;
+
+    /**
+     * Checks if a user's password is a one-time password.
+     *
+     * @param username The username of the user.
+     * @return True if a one-time password is set.
+     * @throws SQLException If the store cannot be read.
+     */
+    boolean isOneTimePasswordSet(String username) throws SQLException;
+
+    /**
+     * Streams every account matching a query's filters to CSV or JSON Lines, in the query's sort order. Invites that
+     * have not been redeemed are skipped.
+     *
+     * @param query The filters and sort order; the page is ignored.
+     * @param exporter The format, columns, compression and progress callback.
+     * @param out The stream to write to; it is not closed.
+     * @return The number of accounts written.
+     * @throws SQLException If the store cannot be read.
+     * @throws IOException If the stream cannot be written.
+     */
+    long exportUsers(UserQuery query, RosterExporter exporter, OutputStream out) throws SQLException, IOException;
+
+    /**
+     * Streams every account matching a query's filters to a file, see
+     * {@link #exportUsers(UserQuery, RosterExporter, OutputStream)}.
+     *
+     * @param query The filters and sort order; the page is ignored.
+     * @param exporter The format, columns, compression and progress callback.
+     * @param file The file to create or replace.
+     * @return The number of accounts written.
+     * @throws SQLException If the store cannot be read.
+     * @throws IOException If the file cannot be written.
+     */
+    default long exportUsers(UserQuery query, RosterExporter exporter, Path file) throws SQLException, IOException {
+        try (OutputStream out = RosterExporter.openFile(file)) {
+            return exportUsers(query, exporter, out);
+        }
+    }
+
+    /**
+     * Retrieves the off-heap authentication index, if the store maintains one.
+     *
+     * @return The index, or null if the store does not maintain one.
+     */
+    default AuthIndex getAuthIndex() {
+        return null;
+    }
+}
@@ -0,0 +1,47 @@
+package main;
+
+/**
+ * <p>UserStores class creates the {@link UserStore} the application runs on.</p>
+ * <p>The store is chosen with the {@code docop.store} system property:</p>
+ * <ul>
+ *     <li>{@code file} (default): file-backed H2 at {@code docop.dbPath} (default {@code ./cse360database}),
+ *     with the H2 page cache size taken from {@code docop.cacheSizeKb}.</li>
+ *     <li>{@code h2mem}: an in-memory H2 database, for runs that should not touch the disk but keep SQL semantics.</li>
+ *     <li>{@code memory}: the concurrent-map {@link InMemoryUserStore}.</li>
+ *     <li>{@code sharded}: {@link ShardedUserStore} over {@code docop.shards} file-backed H2 databases (default 4)
+ *     named after {@code docop.dbPath}, optionally spread over the directories in {@code docop.shardDirs}.</li>
+ * </ul>
+ * <p>Setting {@code docop.dbUrl} overrides the H2 URL entirely.</p>
+ * <p>Setting {@code docop.standbyPath} (or {@code docop.standbyUrl}) on an H2 store keeps a warm standby copy of the
+ * users table in another database, see {@link StandbyReplicator}.</p>
+ */
+public final class UserStores {
+
+    private UserStores() {
+    }
+
+    /**
+     * Creates the user store selected by the system properties.
+     *
+     * @return A new, not yet connected, user store.
+     */
+    public static UserStore fromSystemProperties() {
+        String kind = System.getProperty("docop.store", "file");
+        switch (kind) {
+            case "memory":
+                return new InMemoryUserStore();
+            case "h2mem":
+                return DatabaseHelper.inMemory("cse360database");
+            case "file":
+                if (System.getProperty("docop.dbUrl") != null) {
+                    return new DatabaseHelper();
+                }
+                return DatabaseHelper.fileBacked(System.getProperty("docop.dbPath", "./cse360database"),
+                        Integer.getInteger("docop.cacheSizeKb", 0));
+            case "sharded":
+                return ShardedUserStore.fromSystemProperties();
+            default:
+                throw new IllegalArgumentException("Unknown docop.store: " + kind);
+        }
+    }
+}
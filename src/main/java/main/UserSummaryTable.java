@@ -0,0 +1,200 @@
+package main;
+
+import java.util.Arrays;
+
+/**
+ * <p>UserSummaryTable class holds the rows shown in the admin user table in a compact, column-oriented form.</p>
+ * <p>Each column is a single array indexed by row: primitive user ids, usernames, display names built once when
+ * the row is loaded, and each user's roles as a bitmask. There are only eight possible role sets, so the text shown
+ * for a set of roles is built once per set and shared by every row holding it. Rendering a cell is therefore an
+ * array lookup and never builds a string.</p>
+ */
+public final class UserSummaryTable {
+
+    /** The display text for every possible roles bitmask, shared by all tables. */
+    private static final String[] ROLE_LABELS = buildRoleLabels();
+
+    /** The number of rows. */
+    private final int size;
+
+    /** The database id of the user in each row. */
+    private final int[] userIds;
+
+    /** The username in each row; null for an unredeemed invite. */
+    private final String[] usernames;
+
+    /** The name shown for each row, built when the row was loaded. */
+    private final String[] displayNames;
+
+    /** The roles of each row as a bitmask of {@link Role#bit()}. */
+    private final byte[] roleMasks;
+
+    private UserSummaryTable(Builder builder) {
+        this.size = builder.size;
+        this.userIds = Arrays.copyOf(builder.userIds, builder.size);
+        this.usernames = Arrays.copyOf(builder.usernames, builder.size);
+        this.displayNames = Arrays.copyOf(builder.displayNames, builder.size);
+        this.roleMasks = Arrays.copyOf(builder.roleMasks, builder.size);
+    }
+
+    /**
+     * Retrieves the number of rows.
+     *
+     * @return The number of rows.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Retrieves the database id of the user in a row.
+     *
+     * @param row The row index.
+     * @return The user id.
+     */
+    public int getUserId(int row) {
+        return userIds[row];
+    }
+
+    /**
+     * Retrieves the username in a row.
+     *
+     * @param row The row index.
+     * @return The username, or null for an unredeemed invite.
+     */
+    public String getUsername(int row) {
+        return usernames[row];
+    }
+
+    /**
+     * Retrieves the name shown for a row: the first and last name separated by a space, skipping missing parts.
+     *
+     * @param row The row index.
+     * @return The display name; empty if the user has not entered a name.
+     */
+    public String getDisplayName(int row) {
+        return displayNames[row];
+    }
+
+    /**
+     * Retrieves the roles of a row as a bitmask.
+     *
+     * @param row The row index.
+     * @return The roles bitmask.
+     */
+    public int getRoleMask(int row) {
+        return roleMasks[row];
+    }
+
+    /**
+     * Retrieves the roles of a row as display text, e.g. "Admin, Student".
+     *
+     * @param row The row index.
+     * @return The shared display text for the row's roles.
+     */
+    public String getRolesLabel(int row) {
+        return ROLE_LABELS[roleMasks[row]];
+    }
+
+    /**
+     * Finds the row of a username.
+     *
+     * @param username The username to look for.
+     * @return The row index, or -1 if the username is not in the table.
+     */
+    public int indexOf(String username) {
+        for (int row = 0; row < size; row++) {
+            if (usernames[row] != null && usernames[row].equals(username)) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    // Builds the display text of every roles bitmask, listing the roles in declaration order
+    private static String[] buildRoleLabels() {
+        Role[] roles = Role.values();
+        String[] labels = new String[1 << roles.length];
+        for (int mask = 0; mask < labels.length; mask++) {
+            StringBuilder label = new StringBuilder();
+            for (Role role : roles) {
+                if ((mask & role.bit()) != 0) {
+                    if (label.length() > 0) {
+                        label.append(", ");
+                    }
+                    label.append(role.getLabel());
+                }
+            }
+            labels[mask] = label.toString();
+        }
+        return labels;
+    }
+
+    /**
+     * <p>Builder collects rows one at a time, e.g. while reading a result set, and grows its arrays as needed.</p>
+     */
+    public static final class Builder {
+        private int size;
+        private int[] userIds;
+        private String[] usernames;
+        private String[] displayNames;
+        private byte[] roleMasks;
+
+        /**
+         * Constructor for Builder.
+         *
+         * @param expectedRows The expected number of rows, used to size the columns.
+         */
+        public Builder(int expectedRows) {
+            int capacity = Math.max(4, expectedRows);
+            userIds = new int[capacity];
+            usernames = new String[capacity];
+            displayNames = new String[capacity];
+            roleMasks = new byte[capacity];
+        }
+
+        /**
+         * Adds a row.
+         *
+         * @param userId The database id of the user.
+         * @param username The username, or null for an unredeemed invite.
+         * @param firstName The first name, or null.
+         * @param lastName The last name, or null.
+         * @param roles The roles as stored in the database, a comma-separated list of labels; may be null.
+         * @return This builder.
+         */
+        public Builder add(int userId, String username, String firstName, String lastName, String roles) {
+            if (size == userIds.length) {
+                int capacity = size * 2;
+                userIds = Arrays.copyOf(userIds, capacity);
+                usernames = Arrays.copyOf(usernames, capacity);
+                displayNames = Arrays.copyOf(displayNames, capacity);
+                roleMasks = Arrays.copyOf(roleMasks, capacity);
+            }
+            userIds[size] = userId;
+            usernames[size] = username;
+            displayNames[size] = displayName(firstName, lastName);
+            roleMasks[size] = (byte) Role.maskOf(roles);
+            size++;
+            return this;
+        }
+
+        /**
+         * Creates the table from the rows added so far.
+         *
+         * @return The table.
+         */
+        public UserSummaryTable build() {
+            return new UserSummaryTable(this);
+        }
+
+        private static String displayName(String firstName, String lastName) {
+            boolean hasFirst = firstName != null && !firstName.isEmpty();
+            boolean hasLast = lastName != null && !lastName.isEmpty();
+            if (hasFirst && hasLast) {
+                return firstName + " " + lastName;
+            }
+            return hasFirst ? firstName : (hasLast ? lastName : "");
+        }
+    }
+}
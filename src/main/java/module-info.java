@@ -1,12 +1,9 @@
 module main {
     requires javafx.controls;
-    requires javafx.fxml;
-    requires javafx.graphics;
-    requires javafx.web;
-    requires javafx.media;
-    requires javafx.swing;
+    requires transitive javafx.graphics;
 
-    requires java.sql;
+    requires transitive java.sql;
+    requires jdk.httpserver;
 
     exports main;
-}
\ No newline at end of file
+}
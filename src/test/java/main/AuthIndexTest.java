@@ -0,0 +1,142 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.NoSuchAlgorithmException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AuthIndexTest {
+
+    private static final long NOW = 1_800_000_000L;
+    private static final int STUDENT = Role.STUDENT.bit();
+
+    private final byte[] password = hash("Secret1!");
+    private final byte[] wrong = hash("Wrong1!");
+
+    @Test
+    void checksPasswordAndRole() {
+        AuthIndex index = new AuthIndex(10);
+        index.put("ada", password, true, false, Long.MIN_VALUE, STUDENT);
+
+        assertEquals(AuthIndex.Result.SUCCESS, index.check("ada", password, "Student", NOW));
+        assertEquals(AuthIndex.Result.PASSWORD_MISMATCH, index.check("ada", wrong, "Student", NOW));
+        assertEquals(AuthIndex.Result.ROLE_MISSING, index.check("ada", password, "Admin", NOW));
+        assertEquals(AuthIndex.Result.ROLE_MISSING, index.check("ada", password, "no such role", NOW));
+        assertEquals(AuthIndex.Result.UNKNOWN_USER, index.check("grace", password, "Student", NOW));
+    }
+
+    @Test
+    void reportsIncompleteAccounts() {
+        AuthIndex index = new AuthIndex(10);
+        index.put("nohash", null, true, false, Long.MIN_VALUE, STUDENT);
+        index.put("newbie", password, false, false, Long.MIN_VALUE, STUDENT);
+
+        assertEquals(AuthIndex.Result.NO_PASSWORD, index.check("nohash", password, "Student", NOW));
+        assertEquals(AuthIndex.Result.SETUP_INCOMPLETE, index.check("newbie", password, "Student", NOW));
+    }
+
+    @Test
+    void checksOneTimePasswordsAndTheirExpiry() {
+        AuthIndex index = new AuthIndex(10);
+        index.put("ada", password, true, true, NOW + 60, STUDENT);
+        index.put("late", password, true, true, NOW - 60, STUDENT);
+        index.put("swept", null, true, true, NOW - 60, STUDENT);
+
+        assertEquals(AuthIndex.Result.OTP_ACCEPTED, index.check("ada", password, "Student", NOW));
+        assertEquals(AuthIndex.Result.OTP_MISMATCH, index.check("ada", wrong, "Student", NOW));
+        assertEquals(AuthIndex.Result.OTP_EXPIRED, index.check("late", password, "Student", NOW));
+        assertEquals(AuthIndex.Result.OTP_EXPIRED, index.check("swept", password, "Student", NOW));
+    }
+
+    @Test
+    void replacesAndRemovesUsers() {
+        AuthIndex index = new AuthIndex(10);
+        index.put("ada", password, true, false, Long.MIN_VALUE, STUDENT);
+        index.put("ada", wrong, true, false, Long.MIN_VALUE, STUDENT | Role.ADMIN.bit());
+
+        assertEquals(1, index.size());
+        assertEquals(AuthIndex.Result.SUCCESS, index.check("ada", wrong, "Admin", NOW));
+
+        index.remove("ada");
+        assertEquals(0, index.size());
+        assertEquals(AuthIndex.Result.UNKNOWN_USER, index.check("ada", wrong, "Admin", NOW));
+
+        index.put("ada", password, true, false, Long.MIN_VALUE, STUDENT);
+        assertEquals(AuthIndex.Result.SUCCESS, index.check("ada", password, "Student", NOW));
+    }
+
+    @Test
+    void growsBeyondItsInitialSize() {
+        AuthIndex index = new AuthIndex(10);
+        for (int i = 0; i < 5000; i++) {
+            index.put("user" + i, password, true, false, Long.MIN_VALUE, STUDENT);
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            index.remove("user" + i);
+        }
+
+        assertEquals(2500, index.size());
+        for (int i = 0; i < 5000; i++) {
+            AuthIndex.Result expected = i % 2 == 0 ? AuthIndex.Result.UNKNOWN_USER : AuthIndex.Result.SUCCESS;
+            assertEquals(expected, index.check("user" + i, password, "Student", NOW), "user" + i);
+        }
+
+        index.clear();
+        assertEquals(0, index.size());
+        assertEquals(AuthIndex.Result.UNKNOWN_USER, index.check("user1", password, "Student", NOW));
+    }
+
+    @Test
+    void dropsARefreshOvertakenByALaterOne() {
+        AuthIndex index = new AuthIndex(10);
+        index.put("ada", password, true, false, Long.MIN_VALUE, STUDENT);
+
+        // The refresh after the first write read the old hash; the refresh after the second write finishes first
+        long first = index.beginRefresh("ada");
+        long second = index.beginRefresh("ada");
+        assertTrue(index.put("ada", wrong, true, false, Long.MIN_VALUE, STUDENT, second));
+        assertFalse(index.put("ada", password, true, false, Long.MIN_VALUE, STUDENT, first));
+        assertFalse(index.remove("ada", first));
+
+        assertEquals(AuthIndex.Result.SUCCESS, index.check("ada", wrong, "Student", NOW));
+        assertEquals(AuthIndex.Result.PASSWORD_MISMATCH, index.check("ada", password, "Student", NOW));
+
+        long third = index.beginRefresh("ada");
+        assertTrue(index.remove("ada", third));
+        assertEquals(AuthIndex.Result.UNKNOWN_USER, index.check("ada", wrong, "Student", NOW));
+    }
+
+    @Test
+    void followsWritesToTheDatabase() throws Exception {
+        DatabaseHelper store = DatabaseHelper.inMemory("authindex");
+        store.connectToDatabase();
+        try {
+            store.register("ada", password, "Student");
+            store.setupUserDetails("ada", "Ada", "", "Lovelace", "", "ada@example.com");
+            store.rebuildAuthIndex();
+            AuthIndex index = store.getAuthIndex();
+            assertEquals(AuthIndex.Result.SUCCESS, index.check("ada", password, "Student", NOW));
+
+            store.updatePasswordAfterOtp("ada", wrong);
+            store.addRoleToUser("ada", "Instructor");
+            assertEquals(AuthIndex.Result.PASSWORD_MISMATCH, index.check("ada", password, "Student", NOW));
+            assertEquals(AuthIndex.Result.SUCCESS, index.check("ada", wrong, "Instructor", NOW));
+
+            store.deleteUser("ada");
+            assertEquals(AuthIndex.Result.UNKNOWN_USER, index.check("ada", wrong, "Student", NOW));
+        } finally {
+            store.closeConnection();
+        }
+    }
+
+    private static byte[] hash(String password) {
+        try {
+            return PasswordManager.hashPassword(password);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
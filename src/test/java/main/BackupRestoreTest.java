@@ -0,0 +1,143 @@
+package main;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BackupRestoreTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    @TempDir
+    Path directory;
+
+    private String url;
+    private DatabaseHelper db;
+
+    @BeforeEach
+    void connect() throws Exception {
+        String name = "backup" + DATABASES.incrementAndGet();
+        url = "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1";
+        db = DatabaseHelper.inMemory(name);
+        db.connectToDatabase();
+
+        // Rows using every stored type: text, bytes, booleans, timestamps and nulls
+        db.register("ada", PasswordManager.hashPassword("Secret1!"), "Student");
+        db.addRoleToUser("ada", "Admin");
+        db.setupUserDetails("ada", "Ada", "", "Lovelace", "Countess", "ada@example.com");
+        db.register("grace", PasswordManager.hashPassword("Secret1!"), "Instructor");
+        db.resetUser("grace", "Temp1!ab", LocalDate.now().plusDays(3).format(DateTimeFormatter.ofPattern("MM/dd/yyyy")));
+        db.createInvite("WELCOME1", "Student");
+    }
+
+    @AfterEach
+    void close() {
+        db.closeConnection();
+    }
+
+    @Test
+    void restoresExactlyWhatWasBackedUp() throws Exception {
+        Path file = directory.resolve("users.bak");
+        List<List<Object>> before = rows(url);
+
+        BackupManager.Result backup = db.backup(file);
+        assertEquals(3, backup.getRows());
+        assertTrue(Files.size(file) > 0);
+        assertFalse(Files.exists(directory.resolve("users.bak.partial")));
+
+        // Restore into a fresh database as well as over the changed original
+        String otherName = "backup" + DATABASES.incrementAndGet();
+        DatabaseHelper other = DatabaseHelper.inMemory(otherName);
+        other.connectToDatabase();
+        try {
+            assertEquals(3, other.restore(file).getRows());
+            assertRowsEqual(before, rows("jdbc:h2:mem:" + otherName));
+        } finally {
+            other.closeConnection();
+        }
+
+        db.deleteUser("ada");
+        db.register("linus", PasswordManager.hashPassword("Secret1!"), "Student");
+        assertEquals(3, db.restore(file).getRows());
+        assertRowsEqual(before, rows(url));
+
+        // What is kept in memory follows the restored table
+        assertTrue(db.doesUserExist("ada"));
+        assertFalse(db.doesUserExist("linus"));
+        assertTrue(db.doesInviteExist("welcome1"));
+        assertEquals(List.of("ada"), db.suggestUsernames("love", 10));
+
+        // New users get ids above the restored ones
+        db.register("linus", PasswordManager.hashPassword("Secret1!"), "Student");
+        assertEquals(4, db.countUserAccounts(new UserQuery()));
+    }
+
+    @Test
+    void rejectsAFileThatIsNotABackupAndKeepsTheUsers() throws Exception {
+        Path file = directory.resolve("notes.txt");
+        Files.writeString(file, "not a backup");
+
+        assertThrows(IOException.class, () -> db.restore(file));
+        assertEquals(3, db.countUserAccounts(new UserQuery()));
+    }
+
+    @Test
+    void rejectsATruncatedBackupAndKeepsTheUsers() throws Exception {
+        Path file = directory.resolve("users.bak");
+        db.backup(file);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+        db.deleteUser("ada");
+
+        assertThrows(IOException.class, () -> db.restore(file));
+        assertEquals(2, db.countUserAccounts(new UserQuery()));
+        assertTrue(db.doesUserExist("grace"));
+    }
+
+    // Reads the stored columns of every row, in user id order
+    private static List<List<Object>> rows(String url) throws SQLException {
+        List<List<Object>> rows = new ArrayList<>();
+        try (Connection conn = DriverManager.getConnection(url, "sa", "");
+             Statement stmt = conn.createStatement();
+             ResultSet resultSet = stmt.executeQuery("SELECT " + DatabaseHelper.USER_COLUMNS + " FROM users ORDER BY user_id")) {
+            int columns = resultSet.getMetaData().getColumnCount();
+            while (resultSet.next()) {
+                List<Object> row = new ArrayList<>();
+                for (int i = 1; i <= columns; i++) {
+                    Object value = resultSet.getObject(i);
+                    row.add(value instanceof byte[] ? Arrays.toString((byte[]) value) : value);
+                }
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    private static void assertRowsEqual(List<List<Object>> expected, List<List<Object>> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), actual.get(i), "row " + i);
+        }
+    }
+}
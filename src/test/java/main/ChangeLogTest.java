@@ -0,0 +1,168 @@
+package main;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChangeLogTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private DatabaseHelper db;
+    private ChangeLog changeLog;
+    private byte[] hash;
+
+    @BeforeEach
+    void connect() throws Exception {
+        db = DatabaseHelper.inMemory("changelog" + DATABASES.incrementAndGet());
+        db.connectToDatabase();
+        changeLog = db.getChangeLog();
+        hash = PasswordManager.hashPassword("Secret1!");
+    }
+
+    @AfterEach
+    void close() {
+        db.closeConnection();
+    }
+
+    @Test
+    void readsTheChangesAfterAPositionInOrder() throws Exception {
+        db.register("a", hash, "Student");
+        db.register("b", hash, "Student");
+        db.addRoleToUser("a", "Admin");
+
+        List<ChangeLog.Change> changes = changeLog.read(0, 100);
+        assertEquals(List.of("a", "b", "a"), usernames(changes));
+        assertEquals(ChangeLog.Op.INSERT, changes.get(0).getOp());
+        assertEquals(ChangeLog.Op.UPDATE, changes.get(2).getOp());
+        assertTrue(changes.get(2).changed(ChangeLog.ROLES));
+        assertEquals(changes.get(2).getSequence(), changeLog.getLatestSequence());
+
+        assertEquals(List.of("b", "a"), usernames(changeLog.read(changes.get(0).getSequence(), 100)));
+        assertEquals(List.of("b"), usernames(changeLog.read(changes.get(0).getSequence(), 1)));
+    }
+
+    @Test
+    void aSubscriptionResumesFromItsPosition() throws Exception {
+        BlockingQueue<ChangeLog.Change> delivered = new LinkedBlockingQueue<>();
+        db.register("a", hash, "Student");
+        ChangeLog.Subscription first = changeLog.subscribe(0, 10, delivered::addAll);
+        assertEquals(List.of("a"), take(delivered, 1));
+        awaitPosition(first, changeLog.getLatestSequence());
+        first.close();
+        long position = first.getPosition();
+
+        // Changes committed while nobody is subscribed are delivered on resubscribing, and nothing twice
+        db.register("b", hash, "Student");
+        db.register("c", hash, "Student");
+        try (ChangeLog.Subscription second = changeLog.subscribe(position, 10, delivered::addAll)) {
+            assertEquals(List.of("b", "c"), take(delivered, 2));
+            db.register("d", hash, "Student");
+            assertEquals(List.of("d"), take(delivered, 1));
+            assertNull(delivered.poll(200, TimeUnit.MILLISECONDS));
+            awaitPosition(second, changeLog.getLatestSequence());
+        }
+    }
+
+    @Test
+    void subscribingBehindThePrunedChangesReportsAGap() throws Exception {
+        db.register("a", hash, "Student");
+        db.register("b", hash, "Student");
+        long latest = changeLog.getLatestSequence();
+        Thread.sleep(20);
+
+        assertEquals(2, db.pruneChangeLog(0));
+
+        // Pruning keeps the position of the newest change
+        assertEquals(latest, changeLog.getLatestSequence());
+        assertEquals(latest, changeLog.getPrunedSequence());
+        assertNull(changeLog.findGap(latest));
+        ChangeLog.GapException gap = assertThrows(ChangeLog.GapException.class, () -> changeLog.subscribe(0, 10, changes -> { }));
+        assertEquals(0, gap.getAfterSequence());
+        assertEquals(latest, gap.getPrunedThrough());
+
+        // A position taken from another database is beyond the end of this log
+        assertNotNull(changeLog.findGap(latest + 5));
+        assertThrows(ChangeLog.GapException.class, () -> changeLog.subscribe(latest + 5, 10, changes -> { }));
+    }
+
+    @Test
+    void aRunningSubscriptionReloadsAfterAGap() throws Exception {
+        db.register("a", hash, "Student");
+        long start = changeLog.getLatestSequence();
+        AtomicBoolean accepting = new AtomicBoolean();
+        BlockingQueue<ChangeLog.Change> delivered = new LinkedBlockingQueue<>();
+        BlockingQueue<ChangeLog.GapException> gaps = new LinkedBlockingQueue<>();
+        ChangeLog.Listener listener = new ChangeLog.Listener() {
+            @Override
+            public void onChanges(List<ChangeLog.Change> changes) {
+                if (!accepting.get()) {
+                    throw new IllegalStateException("not ready");
+                }
+                delivered.addAll(changes);
+            }
+
+            @Override
+            public long onGap(ChangeLog.GapException gap) {
+                gaps.add(gap);
+                return gap.getLatestSequence();
+            }
+        };
+
+        try (ChangeLog.Subscription subscription = changeLog.subscribe(start, 10, listener)) {
+
+            // The listener keeps failing on b, so b is pruned before it is delivered
+            db.register("b", hash, "Student");
+            Thread.sleep(20);
+            db.pruneChangeLog(0);
+            ChangeLog.GapException gap = gaps.poll(10, TimeUnit.SECONDS);
+            assertNotNull(gap);
+            assertEquals(start, gap.getAfterSequence());
+
+            accepting.set(true);
+            awaitPosition(subscription, gap.getLatestSequence());
+            db.register("c", hash, "Student");
+            assertEquals(List.of("c"), take(delivered, 1));
+        }
+    }
+
+    private static List<String> usernames(List<ChangeLog.Change> changes) {
+        List<String> usernames = new ArrayList<>();
+        for (ChangeLog.Change change : changes) {
+            usernames.add(change.getUsername());
+        }
+        return usernames;
+    }
+
+    private static List<String> take(BlockingQueue<ChangeLog.Change> delivered, int count) throws InterruptedException {
+        List<ChangeLog.Change> changes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ChangeLog.Change change = delivered.poll(10, TimeUnit.SECONDS);
+            assertNotNull(change, "change " + (i + 1) + " of " + count + " was not delivered");
+            changes.add(change);
+        }
+        return usernames(changes);
+    }
+
+    private static void awaitPosition(ChangeLog.Subscription subscription, long position) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (subscription.getPosition() < position && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(position, subscription.getPosition());
+    }
+}
@@ -0,0 +1,116 @@
+package main;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the compare-and-set profile update and the retried role updates of the H2 and in-memory stores.
+ */
+class CompareAndSetTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private static UserStore open(String kind) throws Exception {
+        UserStore store = kind.equals("h2")
+                ? DatabaseHelper.inMemory("compareandset" + DATABASES.incrementAndGet())
+                : new InMemoryUserStore();
+        store.connectToDatabase();
+        return store;
+    }
+
+    private static void addUser(UserStore store, String username) throws Exception {
+        store.register(username, PasswordManager.hashPassword("Secret1!"), "Student");
+        store.setupUserDetails(username, "First", "", "Last", "", username + "@example.com");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory"})
+    void rejectsAProfileUpdateFromAStaleVersion(String kind) throws Exception {
+        UserStore store = open(kind);
+        try {
+            addUser(store, "ada");
+            long loaded = store.getUserVersion("ada");
+
+            // Someone else saves first
+            assertTrue(store.updateUserDetails("ada", "Ada", "", "Lovelace", "", "ada@example.com", loaded));
+            assertFalse(store.updateUserDetails("ada", "Augusta", "", "King", "", "ada@example.com", loaded));
+
+            assertEquals("Ada", store.getUserDetails("ada")[0]);
+            assertTrue(store.updateUserDetails("ada", "Augusta", "", "King", "", "ada@example.com", store.getUserVersion("ada")));
+            assertEquals("Augusta", store.getUserDetails("ada")[0]);
+        } finally {
+            store.closeConnection();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory"})
+    void everyWriteToTheRowAdvancesTheVersion(String kind) throws Exception {
+        UserStore store = open(kind);
+        try {
+            addUser(store, "ada");
+            long loaded = store.getUserVersion("ada");
+
+            store.addRoleToUser("ada", "Instructor");
+
+            assertTrue(store.getUserVersion("ada") > loaded);
+            assertFalse(store.updateUserDetails("ada", "Ada", "", "Lovelace", "", "ada@example.com", loaded));
+            assertEquals(-1, store.getUserVersion("nobody"));
+            assertFalse(store.updateUserDetails("nobody", "No", "", "Body", "", "nobody@example.com", 0));
+        } finally {
+            store.closeConnection();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory"})
+    void concurrentRoleChangesAreNotLost(String kind) throws Exception {
+        UserStore store = open(kind);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<String> usernames = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                usernames.add("user" + i);
+                addUser(store, "user" + i);
+            }
+
+            // Two writers add different roles to each user at the same time; a lost update would drop one
+            List<Future<?>> writes = new ArrayList<>();
+            for (String username : usernames) {
+                writes.add(executor.submit(() -> {
+                    store.addRoleToUser(username, "Instructor");
+                    return null;
+                }));
+                writes.add(executor.submit(() -> {
+                    store.addRoleToUser(username, "Admin");
+                    return null;
+                }));
+            }
+            for (Future<?> write : writes) {
+                write.get();
+            }
+
+            for (String username : usernames) {
+                String[] roles = store.getRolesForUser(username);
+                Arrays.sort(roles);
+                assertArrayEquals(new String[] {"Admin", "Instructor", "Student"}, roles, username);
+            }
+        } finally {
+            executor.shutdownNow();
+            store.closeConnection();
+        }
+    }
+}
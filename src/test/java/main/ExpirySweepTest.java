@@ -0,0 +1,110 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the expiry sweep removes expired credentials and nothing else.
+ */
+class ExpirySweepTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("MM/dd/yyyy");
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory"})
+    void clearsExpiredOneTimePasswordsAndResetTokens(String kind) throws Exception {
+        UserStore store = kind.equals("h2")
+                ? DatabaseHelper.inMemory("sweep" + DATABASES.incrementAndGet())
+                : new InMemoryUserStore();
+        store.connectToDatabase();
+        try {
+            for (String username : new String[] {"ada", "grace", "linus"}) {
+                store.register(username, PasswordManager.hashPassword("Secret1!"), "Student");
+            }
+            store.resetUser("ada", "Temp1!ab", LocalDate.now().minusDays(1).format(DATE));
+            store.resetUser("grace", "Temp1!ab", LocalDate.now().plusDays(1).format(DATE));
+            assertTrue(store.createPasswordResetToken("linus", PasswordManager.hashToken("stale"), -1));
+            assertTrue(store.createPasswordResetToken("grace", PasswordManager.hashToken("fresh"), 60));
+
+            assertEquals(2, store.sweepExpiredCredentials());
+
+            // The expired one-time password is gone but still flagged, so logging in reports it expired
+            assertNull(store.getPasswordHash("ada"));
+            assertTrue(store.isOneTimePasswordSet("ada"));
+            assertFalse(store.isOneTimePasswordValid("ada"));
+            assertNotNull(store.getPasswordHash("grace"));
+            assertNotNull(store.getPasswordHash("linus"));
+            assertNotNull(store.consumePasswordResetToken(PasswordManager.hashToken("fresh"), PasswordManager.hashPassword("New1!pass")));
+
+            // Nothing is left to sweep
+            assertEquals(0, store.sweepExpiredCredentials());
+        } finally {
+            store.closeConnection();
+        }
+    }
+
+    @Test
+    void deletesExpiredInvitesButNotRedeemedOnes() throws Exception {
+        String name = "sweep" + DATABASES.incrementAndGet();
+        DatabaseHelper store = DatabaseHelper.inMemory(name);
+        store.connectToDatabase();
+        try {
+            store.createInvite("STALE", "Student");
+            store.createInvite("USED", "Student");
+            store.createInvite("FRESH", "Student");
+            assertTrue(store.updateUserFromInviteCode("USED", "ada", PasswordManager.hashPassword("Secret1!"), "Student"));
+
+            // Backdate two invites, one of them already redeemed
+            try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:" + name, "sa", "");
+                 PreparedStatement pstmt = conn.prepareStatement("UPDATE users SET invite_expires_at = DATEADD(DAY, -1, LOCALTIMESTAMP) "
+                         + "WHERE invite_code IN ('STALE', 'USED')")) {
+                assertEquals(2, pstmt.executeUpdate());
+            }
+
+            assertEquals(1, store.sweepExpiredCredentials());
+
+            assertFalse(store.doesInviteExist("STALE"));
+            assertTrue(store.doesInviteExist("FRESH"));
+            assertTrue(store.doesUserExist("ada"));
+            assertEquals(2, store.countUserAccounts(new UserQuery()));
+        } finally {
+            store.closeConnection();
+        }
+    }
+
+    @Test
+    void sweepsInBatches() throws Exception {
+        DatabaseHelper store = DatabaseHelper.inMemory("sweep" + DATABASES.incrementAndGet());
+        store.connectToDatabase();
+        try {
+            int users = DatabaseHelper.SWEEP_BATCH_SIZE * 2 + 5;
+            String yesterday = LocalDate.now().minusDays(1).format(DATE);
+            for (int i = 0; i < users; i++) {
+                store.register("user" + i, new byte[] {1}, "Student");
+                store.resetUser("user" + i, "Temp1!ab", yesterday);
+            }
+
+            assertEquals(users, store.sweepExpiredCredentials());
+            for (int i = 0; i < users; i += 97) {
+                assertNull(store.getPasswordHash("user" + i), "user" + i);
+            }
+        } finally {
+            store.closeConnection();
+        }
+    }
+}
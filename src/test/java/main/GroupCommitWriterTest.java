@@ -0,0 +1,165 @@
+package main;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GroupCommitWriterTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private String url;
+    private Connection reader;
+
+    @BeforeEach
+    void createTable() throws SQLException {
+        url = "jdbc:h2:mem:groupcommit" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+        reader = DriverManager.getConnection(url, "sa", "");
+        try (Statement statement = reader.createStatement()) {
+            statement.execute("CREATE TABLE names (name VARCHAR(50) PRIMARY KEY)");
+        }
+    }
+
+    @AfterEach
+    void dropDatabase() throws SQLException {
+        try (Statement statement = reader.createStatement()) {
+            statement.execute("DROP ALL OBJECTS");
+        }
+        reader.close();
+    }
+
+    @Test
+    void commitsConcurrentWritesInOneGroup() throws Exception {
+        // A long delay and a small batch, so the writes are grouped by size
+        try (GroupCommitWriter writer = new GroupCommitWriter(DriverManager.getConnection(url, "sa", ""), 5_000_000, 4, true)) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(writer.submit(insert("name" + i)));
+            }
+            for (CompletableFuture<Void> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+
+            assertEquals(4, count());
+            assertEquals(1, writer.getGroupCount());
+            assertEquals(4, writer.getCommittedWriteCount());
+            assertEquals(0, writer.getUnsyncedGroupCount());
+        }
+    }
+
+    @Test
+    void rollsBackOnlyTheWriteThatFailed() throws Exception {
+        try (GroupCommitWriter writer = new GroupCommitWriter(DriverManager.getConnection(url, "sa", ""), 5_000_000, 4, false)) {
+            CompletableFuture<Void> first = writer.submit(insert("ada"));
+
+            // The second write inserts a row and then fails; its row must not be committed with the group
+            CompletableFuture<Void> failing = writer.submit(connection -> {
+                insert("grace").apply(connection);
+                insert("ada").apply(connection);
+            });
+            CompletableFuture<Void> thrower = writer.submit(connection -> {
+                insert("linus").apply(connection);
+                throw new IllegalStateException("bug in a write");
+            });
+            CompletableFuture<Void> last = writer.submit(insert("alan"));
+
+            first.get(10, TimeUnit.SECONDS);
+            last.get(10, TimeUnit.SECONDS);
+            ExecutionException duplicate = assertThrows(ExecutionException.class, () -> failing.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(SQLException.class, duplicate.getCause());
+            ExecutionException bug = assertThrows(ExecutionException.class, () -> thrower.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalStateException.class, bug.getCause());
+
+            assertEquals(List.of("ada", "alan"), names());
+            assertEquals(1, writer.getGroupCount());
+            assertEquals(2, writer.getCommittedWriteCount());
+            assertEquals(2, writer.getFailedWriteCount());
+        }
+    }
+
+    @Test
+    void completesCommittedWritesWhenTheSyncFails() throws Exception {
+        Connection connection = DriverManager.getConnection(url, "sa", "");
+        try (GroupCommitWriter writer = new GroupCommitWriter(withoutStatements(connection), 0, 1, true)) {
+            writer.submit(insert("ada")).get(10, TimeUnit.SECONDS);
+
+            assertEquals(List.of("ada"), names());
+            assertEquals(1, writer.getCommittedWriteCount());
+            assertEquals(0, writer.getFailedWriteCount());
+            assertEquals(1, writer.getUnsyncedGroupCount());
+        }
+    }
+
+    @Test
+    void rejectsWritesOnceClosed() throws Exception {
+        GroupCommitWriter writer = new GroupCommitWriter(DriverManager.getConnection(url, "sa", ""), 0, 4, false);
+        CompletableFuture<Void> queued = writer.submit(insert("ada"));
+        writer.close();
+
+        // Writes queued before the close are still committed
+        queued.get(10, TimeUnit.SECONDS);
+        assertEquals(List.of("ada"), names());
+
+        CompletableFuture<Void> late = writer.submit(insert("grace"));
+        assertTrue(late.isCompletedExceptionally());
+    }
+
+    private static GroupCommitWriter.Work insert(String name) {
+        return connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("INSERT INTO names (name) VALUES (?)")) {
+                statement.setString(1, name);
+                statement.executeUpdate();
+            }
+        };
+    }
+
+    // Wraps a connection so createStatement, which the writer only uses for CHECKPOINT SYNC, always fails
+    private static Connection withoutStatements(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("createStatement")) {
+                        throw new SQLException("Disk unavailable");
+                    }
+                    try {
+                        return method.invoke(connection, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    private int count() throws SQLException {
+        return names().size();
+    }
+
+    private List<String> names() throws SQLException {
+        List<String> names = new ArrayList<>();
+        try (Statement statement = reader.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT name FROM names ORDER BY name")) {
+            while (resultSet.next()) {
+                names.add(resultSet.getString(1));
+            }
+        }
+        return names;
+    }
+}
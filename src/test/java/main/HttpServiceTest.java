@@ -0,0 +1,196 @@
+package main;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives the headless service over HTTP against an in-memory H2 store, which is emptied before each test.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class HttpServiceTest {
+
+    private static final String PASSWORD = "Secret1!";
+
+    private DatabaseHelper store;
+    private HttpService service;
+
+    // The status and body of one response
+    private static final class Reply {
+        private final int status;
+        private final String body;
+
+        private Reply(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    @BeforeAll
+    void start() throws Exception {
+        store = DatabaseHelper.inMemory("http");
+        store.connectToDatabase();
+        service = new HttpService(store, 0, 16);
+        service.start();
+    }
+
+    @BeforeEach
+    void clear() throws Exception {
+        store.clearDatabase();
+    }
+
+    @AfterAll
+    void stop() {
+        service.stop();
+    }
+
+    @Test
+    void onlyTheFirstAdminRegistersWithoutAToken() throws Exception {
+        assertEquals(200, post("/api/register", "{\"username\":\"root\",\"password\":\"" + PASSWORD + "\",\"role\":\"Admin\"}", null).status);
+        assertEquals(403, post("/api/register", "{\"username\":\"eve\",\"password\":\"" + PASSWORD + "\",\"role\":\"Admin\"}", null).status);
+        assertFalse(store.doesUserExist("eve"));
+
+        String token = login("root");
+        assertEquals(200, post("/api/register", "{\"username\":\"bob\",\"password\":\"" + PASSWORD + "\",\"role\":\"Student\"}", token).status);
+        assertEquals(409, post("/api/register", "{\"username\":\"bob\",\"password\":\"" + PASSWORD + "\",\"role\":\"Student\"}", token).status);
+    }
+
+    @Test
+    void adminEndpointsNeedAnAdminSession() throws Exception {
+        String token = adminToken();
+        store.register("student", PasswordManager.hashPassword(PASSWORD), "Student");
+        store.setupUserDetails("student", "Stu", "", "Dent", "", "student@example.com");
+        String studentToken = Json.parseObject(post("/api/login",
+                "{\"username\":\"student\",\"password\":\"" + PASSWORD + "\",\"role\":\"Student\"}", null).body).get("token");
+        assertNotNull(studentToken);
+
+        for (String path : new String[] {"/api/admin/users", "/metrics", "/api/admin/export"}) {
+            assertEquals(403, get(path, null).status, path);
+            assertEquals(403, get(path, studentToken).status, path);
+            assertEquals(403, get(path, "not-a-token").status, path);
+            assertEquals(200, get(path, token).status, path);
+        }
+        Reply users = get("/api/admin/users?role=Student", token);
+        assertTrue(users.body.contains("\"username\":\"student\""), users.body);
+        assertFalse(users.body.contains("\"username\":\"root\""), users.body);
+    }
+
+    @Test
+    void rejectsBadLogins() throws Exception {
+        adminToken();
+        assertEquals(401, post("/api/login", "{\"username\":\"root\",\"password\":\"Wrong1!x\",\"role\":\"Admin\"}", null).status);
+        assertEquals(401, post("/api/login", "{\"username\":\"nobody\",\"password\":\"" + PASSWORD + "\",\"role\":\"Admin\"}", null).status);
+        assertEquals(401, post("/api/login", "{\"username\":\"root\",\"password\":\"" + PASSWORD + "\",\"role\":\"Student\"}", null).status);
+        assertEquals(400, post("/api/login", "{\"username\":\"root\"}", null).status);
+        assertEquals(405, get("/api/login", null).status);
+    }
+
+    @Test
+    void redeemsAnInviteOnce() throws Exception {
+        store.createInvite("WELCOME1", "Admin");
+
+        assertEquals(200, post("/api/invites/redeem", "{\"inviteCode\":\"WELCOME1\",\"username\":\"alice\",\"password\":\"" + PASSWORD + "\"}", null).status);
+        assertEquals(409, post("/api/invites/redeem", "{\"inviteCode\":\"WELCOME1\",\"username\":\"mallory\",\"password\":\"Other1!x\"}", null).status);
+        assertEquals(404, post("/api/invites/redeem", "{\"inviteCode\":\"NOSUCH\",\"username\":\"mallory\",\"password\":\"Other1!x\"}", null).status);
+
+        // The account created with the invite is untouched
+        assertFalse(store.doesUserExist("mallory"));
+        assertTrue(PasswordManager.verifyPassword(PASSWORD, store.getPasswordHash("alice")));
+    }
+
+    @Test
+    void matchesInviteCodesIgnoringCaseAndSpaces() throws Exception {
+        store.createInvite("Welcome2", "Student");
+
+        assertEquals(200, post("/api/invites/redeem", "{\"inviteCode\":\" welcome2 \",\"username\":\"carol\",\"password\":\"" + PASSWORD + "\"}", null).status);
+        assertTrue(store.doesUserExist("carol"));
+        assertEquals("Student", store.getRolesForUser("carol")[0]);
+    }
+
+    @Test
+    void rejectsOversizedBodies() throws Exception {
+        StringBuilder body = new StringBuilder("{\"username\":\"");
+        while (body.length() <= HttpService.MAX_BODY_BYTES) {
+            body.append("xxxxxxxxxxxxxxxx");
+        }
+        body.append("\"}");
+
+        assertEquals(413, post("/api/login", body.toString(), null).status);
+        assertEquals(413, post("/api/login", body.toString(), null, true).status);
+    }
+
+    // Registers the first admin and logs them in
+    private String adminToken() throws Exception {
+        assertEquals(200, post("/api/register", "{\"username\":\"root\",\"password\":\"" + PASSWORD + "\",\"role\":\"Admin\"}", null).status);
+        return login("root");
+    }
+
+    // Completes an admin's profile and logs them in
+    private String login(String username) throws Exception {
+        store.setupUserDetails(username, "Root", "", "Admin", "", username + "@example.com");
+        Reply login = post("/api/login", "{\"username\":\"" + username + "\",\"password\":\"" + PASSWORD + "\",\"role\":\"Admin\"}", null);
+        assertEquals(200, login.status, login.body);
+        Map<String, String> body = Json.parseObject(login.body);
+        return body.get("token");
+    }
+
+    private Reply post(String path, String body, String token) throws IOException {
+        return post(path, body, token, false);
+    }
+
+    // Posts a body, with a Content-Length header or, if chunked, without one
+    private Reply post(String path, String body, String token, boolean chunked) throws IOException {
+        HttpURLConnection connection = open(path, token);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        if (chunked) {
+            connection.setChunkedStreamingMode(4096);
+        } else {
+            connection.setFixedLengthStreamingMode(bytes.length);
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(bytes);
+        } catch (IOException e) {
+
+            // The server may answer and close before the whole body is sent
+            return reply(connection);
+        }
+        return reply(connection);
+    }
+
+    private Reply get(String path, String token) throws IOException {
+        return reply(open(path, token));
+    }
+
+    private HttpURLConnection open(String path, String token) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + service.getPort() + path).openConnection();
+        if (token != null) {
+            connection.setRequestProperty("Authorization", "Bearer " + token);
+        }
+        return connection;
+    }
+
+    private static Reply reply(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        String body = in == null ? "" : new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        connection.disconnect();
+        return new Reply(status, body);
+    }
+}
@@ -0,0 +1,93 @@
+package main;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks invite redemption through LoginManager against each store.
+ */
+class LoginManagerTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private static UserStore open(String kind) throws Exception {
+        int database = DATABASES.incrementAndGet();
+        UserStore store;
+        switch (kind) {
+            case "h2":
+                store = DatabaseHelper.inMemory("loginmanager" + database);
+                break;
+            case "sharded":
+                store = new ShardedUserStore(3, index -> DatabaseHelper.inMemory("loginmanager" + database + "-" + index));
+                break;
+            default:
+                store = new InMemoryUserStore();
+        }
+        store.connectToDatabase();
+        return store;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory", "sharded"})
+    void aRedeemedInviteCannotTakeOverItsAccount(String kind) throws Exception {
+        UserStore store = open(kind);
+        try {
+            LoginManager loginManager = new LoginManager(store, false);
+            store.createInvite("WELCOME1", "Admin");
+
+            assertEquals("Registration successful", loginManager.registerInvite("WELCOME1", "alice", "Secret1!"));
+            for (String intruder : new String[] {"mallory", "trent", "victor", "walter", "oscar"}) {
+                // A sharded store deletes an invite redeemed on another shard, so the code may also be unknown now
+                assertNotEquals("Registration successful", loginManager.registerInvite("WELCOME1", intruder, "Other1!x"));
+                assertFalse(store.doesUserExist(intruder), intruder);
+            }
+            assertTrue(store.doesUserExist("alice"));
+            assertTrue(PasswordManager.verifyPassword("Secret1!", store.getPasswordHash("alice")));
+            assertEquals("Admin", store.getRolesForUser("alice")[0]);
+        } finally {
+            store.closeConnection();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory", "sharded"})
+    void matchesInviteCodesTheSameWayEverywhere(String kind) throws Exception {
+        UserStore store = open(kind);
+        try {
+            LoginManager loginManager = new LoginManager(store, false);
+            store.createInvite("Welcome2", "Instructor");
+
+            assertTrue(store.doesInviteExist("  WELCOME2 "));
+            assertEquals("Instructor", store.getRoleFromInvite("  WELCOME2 "));
+            assertEquals("Registration successful", loginManager.registerInvite("  WELCOME2 ", "bob", "Secret1!"));
+            assertEquals("Instructor", store.getRolesForUser("bob")[0]);
+            assertEquals("Invalid invite code", loginManager.registerInvite("welcome3", "carol", "Secret1!"));
+        } finally {
+            store.closeConnection();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory", "sharded"})
+    void keepsAnInviteWhenTheUsernameIsTaken(String kind) throws Exception {
+        UserStore store = open(kind);
+        try {
+            LoginManager loginManager = new LoginManager(store, false);
+            assertEquals("Registration successful", loginManager.register("dave", "Secret1!", "Student"));
+            store.createInvite("WELCOME4", "Instructor");
+
+            assertEquals("Invite already used or username taken", loginManager.registerInvite("WELCOME4", "dave", "Other1!x"));
+            assertTrue(PasswordManager.verifyPassword("Secret1!", store.getPasswordHash("dave")));
+            assertEquals("Registration successful", loginManager.registerInvite("WELCOME4", "erin", "Secret1!"));
+        } finally {
+            store.closeConnection();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package main;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * H2 writes dead pages out in the background, so the fill rate after churn varies from run to run. The tests use
+ * thresholds of 0 and 101 percent, which never and always compact, rather than asserting on a measured rate.
+ */
+class MaintenanceSchedulerTest {
+
+    @TempDir
+    Path directory;
+
+    private Connection connection;
+
+    @BeforeEach
+    void connect() throws Exception {
+        connection = DriverManager.getConnection("jdbc:h2:" + directory.resolve("maintenance").toAbsolutePath(), "sa", "");
+        // Let compaction reuse old chunks at once instead of keeping them for the default 45 seconds
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SET RETENTION_TIME 0");
+        }
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        connection.close();
+    }
+
+    @Test
+    void readsTheFillRateH2Reports() throws Exception {
+        Map<String, String> info = new MaintenanceScheduler(connection, () -> 0, 60, 60, 0, 1000, 1 << 20).readStoreInfo();
+        assertTrue(info.containsKey("FILL_RATE"), info.toString());
+        assertTrue(info.containsKey("FILE_SIZE"), info.toString());
+    }
+
+    @Test
+    void leavesAFullStoreAlone() throws Exception {
+        try (MaintenanceScheduler scheduler = new MaintenanceScheduler(connection, () -> 0, 60, 0, 0, 1000, 1 << 20)) {
+            assertTrue(scheduler.runIfNeeded().contains("no compaction needed"));
+            assertEquals(0, scheduler.getRunCount());
+        }
+    }
+
+    @Test
+    void waitsForAnIdleWindow() throws Exception {
+        churn();
+        try (MaintenanceScheduler scheduler = new MaintenanceScheduler(connection, System::nanoTime, 60, 101, 60, 1000, 1 << 20)) {
+            assertTrue(scheduler.runIfNeeded().contains("waiting for an idle window"));
+            assertEquals(0, scheduler.getRunCount());
+        }
+    }
+
+    @Test
+    void compactsAnIdleSparseStore() throws Exception {
+        churn();
+        long idleSince = System.nanoTime() - 120_000_000_000L;
+        try (MaintenanceScheduler scheduler = new MaintenanceScheduler(connection, () -> idleSince, 60, 101, 1, 5000, 64L << 20)) {
+            String result = scheduler.runIfNeeded();
+
+            assertTrue(result.startsWith("Compacted in"), result);
+            assertEquals(1, scheduler.getRunCount());
+            assertEquals(result, scheduler.getLastResult());
+            assertTrue(scheduler.getReclaimedBytes() >= 0);
+            assertFalse(scheduler.isCompactOnClose());
+        }
+
+        // The live rows survive compaction
+        try (Statement stmt = connection.createStatement();
+             ResultSet resultSet = stmt.executeQuery("SELECT COUNT(*) FROM churn")) {
+            resultSet.next();
+            assertEquals(50, resultSet.getInt(1));
+        }
+    }
+
+    @Test
+    void fallsBackToCompactingOnShutdownWithoutTheStore() throws Exception {
+        // A connection that cannot be unwrapped to H2's own leaves no way to reach the store
+        Connection wrapped = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("unwrap")) {
+                        throw new SQLException("Not a wrapper");
+                    }
+                    return method.invoke(connection, args);
+                });
+        try (MaintenanceScheduler scheduler = new MaintenanceScheduler(wrapped, () -> 0, 60, 60, 0, 1000, 1 << 20)) {
+            String result = scheduler.compact();
+
+            assertTrue(scheduler.isCompactOnClose(), result);
+            assertEquals(0, scheduler.getRunCount());
+        }
+    }
+
+    // Writes and deletes rows, then checkpoints so the store reports the dead pages
+    private void churn() throws Exception {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE churn (id INT PRIMARY KEY, payload VARBINARY(4096))");
+        }
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO churn VALUES (?, ?)")) {
+            for (int i = 0; i < 2000; i++) {
+                insert.setInt(1, i);
+                insert.setBytes(2, new byte[4096]);
+                insert.executeUpdate();
+            }
+        }
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("DELETE FROM churn WHERE id >= 50");
+            stmt.execute("CHECKPOINT");
+        }
+    }
+}
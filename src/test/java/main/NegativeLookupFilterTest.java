@@ -0,0 +1,177 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NegativeLookupFilterTest {
+
+    @Test
+    void neverRejectsAnAddedValue() {
+        NegativeLookupFilter filter = new NegativeLookupFilter(5000);
+        for (int i = 0; i < 5000; i++) {
+            filter.add("user" + i);
+        }
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(filter.mightContain("user" + i), "user" + i);
+        }
+        assertEquals(5000, filter.size());
+    }
+
+    @Test
+    void rejectsMostUnknownValues() {
+        NegativeLookupFilter filter = new NegativeLookupFilter(5000);
+        for (int i = 0; i < 5000; i++) {
+            filter.add("user" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain("stranger" + i)) {
+                falsePositives++;
+            }
+        }
+
+        // Sized for a 1% rate; allow for variance
+        assertTrue(falsePositives < 300, falsePositives + " false positives in 10000");
+    }
+
+    @Test
+    void forgetsARemovedValueButKeepsTheOthers() {
+        NegativeLookupFilter filter = new NegativeLookupFilter(100);
+        filter.add("ada");
+        filter.add("grace");
+
+        filter.remove("ada");
+
+        assertFalse(filter.mightContain("ada"));
+        assertTrue(filter.mightContain("grace"));
+        assertEquals(1, filter.size());
+    }
+
+    @Test
+    void countsDuplicateAdds() {
+        NegativeLookupFilter filter = new NegativeLookupFilter(100);
+        filter.add("ada");
+        filter.add("ada");
+
+        filter.remove("ada");
+        assertTrue(filter.mightContain("ada"));
+        filter.remove("ada");
+        assertFalse(filter.mightContain("ada"));
+    }
+
+    @Test
+    void ignoresNullAndRemovalsOfAbsentValues() {
+        NegativeLookupFilter filter = new NegativeLookupFilter(100);
+        filter.add(null);
+        filter.add("grace");
+        filter.remove("ada");
+        filter.remove(null);
+
+        assertFalse(filter.mightContain(null));
+        assertTrue(filter.mightContain("grace"));
+        assertEquals(1, filter.size());
+    }
+
+    @Test
+    void asksForARebuildWhenOverfilled() {
+        NegativeLookupFilter filter = new NegativeLookupFilter(1024);
+        for (int i = 0; i < 2048; i++) {
+            filter.add("user" + i);
+        }
+        assertFalse(filter.needsRebuild());
+        filter.add("one too many");
+        assertTrue(filter.needsRebuild());
+    }
+
+    @Test
+    void keepsInvitesAddedByTheWriteThatTriggersARebuild() throws Exception {
+        DatabaseHelper store = DatabaseHelper.inMemory("filter-overflow");
+        store.connectToDatabase();
+        try {
+            // The empty table sizes the filters for 1024 values, so the 2049th invite calls for a rebuild
+            for (int i = 0; i < 2100; i++) {
+                store.createInvite("Code" + i, "Student");
+            }
+            for (int i = 0; i < 2100; i++) {
+                assertTrue(store.doesInviteExist("code" + i), "code" + i);
+            }
+        } finally {
+            store.closeConnection();
+        }
+    }
+
+    @Test
+    void keepsValuesWrittenWhileRebuilding() throws Exception {
+        DatabaseHelper store = DatabaseHelper.inMemory("filter-concurrent");
+        store.connectToDatabase();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (int i = 0; i < 200; i++) {
+                store.createInvite("old" + i, "Student");
+            }
+            AtomicBoolean writing = new AtomicBoolean(true);
+            Future<?> rebuilds = executor.submit(() -> {
+                while (writing.get()) {
+                    store.rebuildLookupFilters();
+                }
+                return null;
+            });
+            List<Future<?>> writers = new ArrayList<>();
+            writers.add(executor.submit(() -> {
+                for (int i = 0; i < 200; i++) {
+                    store.createInvite("new" + i, "Student");
+                }
+                return null;
+            }));
+            writers.add(executor.submit(() -> {
+                for (int i = 0; i < 200; i++) {
+                    store.consumeInvite("old" + i);
+                }
+                return null;
+            }));
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+            writing.set(false);
+            rebuilds.get();
+
+            for (int i = 0; i < 200; i++) {
+                assertTrue(store.doesInviteExist("new" + i), "new" + i);
+                assertFalse(store.doesInviteExist("old" + i), "old" + i);
+            }
+        } finally {
+            executor.shutdownNow();
+            store.closeConnection();
+        }
+    }
+
+    @Test
+    void forgetsOnlyUsersThatWereDeleted() throws Exception {
+        DatabaseHelper store = DatabaseHelper.inMemory("filter-delete");
+        store.connectToDatabase();
+        try {
+            store.register("ada", new byte[] {1}, "Student");
+
+            // Deleting unknown users must not disturb the counters ada's name shares with them
+            for (int i = 0; i < 2000; i++) {
+                store.deleteUser("stranger" + i);
+            }
+            assertTrue(store.doesUserExist("ada"));
+
+            store.deleteUser("ada");
+            assertFalse(store.doesUserExist("ada"));
+        } finally {
+            store.closeConnection();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package main;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that password reset tokens work once, before they expire, against each store.
+ */
+class PasswordResetTokenTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private static UserStore open(String kind) throws Exception {
+        int database = DATABASES.incrementAndGet();
+        UserStore store;
+        switch (kind) {
+            case "h2":
+                store = DatabaseHelper.inMemory("resettoken" + database);
+                break;
+            case "sharded":
+                store = new ShardedUserStore(3, index -> DatabaseHelper.inMemory("resettoken" + database + "-" + index));
+                break;
+            default:
+                store = new InMemoryUserStore();
+        }
+        store.connectToDatabase();
+        store.register("ada", PasswordManager.hashPassword("Secret1!"), "Student");
+        return store;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory", "sharded"})
+    void aTokenResetsThePasswordOnce(String kind) throws Exception {
+        UserStore store = open(kind);
+        try {
+            LoginManager loginManager = new LoginManager(store, false);
+            String token = loginManager.issuePasswordResetToken("ada");
+            assertNotNull(token);
+
+            // Issuing the token leaves the account alone
+            assertTrue(PasswordManager.verifyPassword("Secret1!", store.getPasswordHash("ada")));
+
+            assertEquals("Password reset successful, please log in again.", loginManager.resetPasswordWithToken(" " + token + " ", "New1!pass"));
+            assertTrue(PasswordManager.verifyPassword("New1!pass", store.getPasswordHash("ada")));
+
+            assertEquals("Invalid or expired reset token", loginManager.resetPasswordWithToken(token, "Other1!pass"));
+            assertTrue(PasswordManager.verifyPassword("New1!pass", store.getPasswordHash("ada")));
+        } finally {
+            store.closeConnection();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory", "sharded"})
+    void rejectsExpiredUnknownAndReplacedTokens(String kind) throws Exception {
+        UserStore store = open(kind);
+        try {
+            byte[] newHash = PasswordManager.hashPassword("New1!pass");
+            assertTrue(store.createPasswordResetToken("ada", PasswordManager.hashToken("expired"), -1));
+            assertNull(store.consumePasswordResetToken(PasswordManager.hashToken("expired"), newHash));
+            assertNull(store.consumePasswordResetToken(PasswordManager.hashToken("unknown"), newHash));
+            assertFalse(store.createPasswordResetToken("nobody", PasswordManager.hashToken("orphan"), 60));
+
+            // A new token makes the earlier unused one stop working
+            assertTrue(store.createPasswordResetToken("ada", PasswordManager.hashToken("first"), 60));
+            assertTrue(store.createPasswordResetToken("ada", PasswordManager.hashToken("second"), 60));
+            assertNull(store.consumePasswordResetToken(PasswordManager.hashToken("first"), newHash));
+            assertEquals("ada", store.consumePasswordResetToken(PasswordManager.hashToken("second"), newHash));
+
+            LoginManager loginManager = new LoginManager(store, false);
+            assertNull(loginManager.issuePasswordResetToken("nobody"));
+            assertEquals("Invalid or expired reset token", loginManager.resetPasswordWithToken("  ", "New1!pass"));
+            assertTrue(PasswordManager.verifyPassword("New1!pass", store.getPasswordHash("ada")));
+        } finally {
+            store.closeConnection();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory", "sharded"})
+    void concurrentRedemptionsSucceedOnce(String kind) throws Exception {
+        UserStore store = open(kind);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            String tokenHash = PasswordManager.hashToken("contested");
+            assertTrue(store.createPasswordResetToken("ada", tokenHash, 60));
+
+            List<Callable<String>> redemptions = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                byte[] hash = PasswordManager.hashPassword("Attempt" + i + "!x");
+                redemptions.add(() -> store.consumePasswordResetToken(tokenHash, hash));
+            }
+            int successes = 0;
+            for (Future<String> result : executor.invokeAll(redemptions)) {
+                if (result.get() != null) {
+                    successes++;
+                }
+            }
+            assertEquals(1, successes);
+        } finally {
+            executor.shutdownNow();
+            store.closeConnection();
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package main;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+import org.junit.jupiter.api.TestInstance;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * <p>QueryPlanAuditTest checks the query plan of every SQL statement the data layer issues.</p>
+ * <p>The audit connects a {@link DatabaseHelper} through a recording JDBC driver ({@code jdbc:audit:h2:...}) that
+ * wraps the H2 driver's connections with a {@link StatementRecorder} and notes each statement text together with
+ * the parameters it was first run with. It seeds a database, calls every public operation of the helper, including
+ * the change log, sweeper, export, backup and restore, and then runs {@code EXPLAIN} on each recorded statement
+ * with its recorded parameters, as one test per statement.</p>
+ * <p>A statement fails when its plan reads a table with a full scan ({@code tableScan}) and the statement is not one
+ * of the known bulk statements in {@link #EXPECTED_SCANS}, which read or clear every user by design. Aggregates H2
+ * answers from the table metadata ({@code direct lookup}) pass. The failure message carries the plan.</p>
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class QueryPlanAuditTest {
+
+    /** Prefix of the URLs served by the recording driver. */
+    static final String URL_PREFIX = "jdbc:audit:";
+
+    /** Bulk statements that are expected to scan the table, with the reason. */
+    static final Map<Pattern, String> EXPECTED_SCANS = new LinkedHashMap<>();
+
+    static {
+        EXPECTED_SCANS.put(Pattern.compile("^SELECT username, invite_code FROM users$"), "rebuilds the lookup filters");
+        EXPECTED_SCANS.put(Pattern.compile("FROM users WHERE username IS NOT NULL$"), "rebuilds the auth or typeahead index");
+        EXPECTED_SCANS.put(Pattern.compile("^SELECT username, first_name, middle_name, last_name, role FROM users$"), "lists every user");
+        EXPECTED_SCANS.put(Pattern.compile("FROM users WHERE 1 = 1 (AND username IS NOT NULL )?ORDER BY"), "unfiltered listing or export");
+        EXPECTED_SCANS.put(Pattern.compile("FROM users WHERE 1 = 1 AND \\(',' \\|\\| role \\|\\| ','\\) LIKE"), "role-only filter");
+        EXPECTED_SCANS.put(Pattern.compile("^DELETE FROM users$"), "clears every user");
+        EXPECTED_SCANS.put(Pattern.compile("^SELECT COUNT\\(\\*\\) AS count FROM users WHERE 1 = 1$"), "counts every user");
+        EXPECTED_SCANS.put(Pattern.compile("^INSERT INTO user_changes \\(user_id, username, op, fields\\) SELECT user_id, username, '\\w+', \\d+ "
+                + "FROM users ORDER BY user_id$"), "records a restore");
+    }
+
+    private static final Pattern TABLE_SCAN = Pattern.compile("\\.tableScan\\s*\\*/");
+
+    private static final String DATABASE_NAME = "queryplanaudit";
+    private static final int USERS = 2000;
+    private static final String PASSWORD = "Audit1!";
+    private static final String ROLE = "student";
+
+    /** A recorded statement: its text, the parameters of its first execution and how often it ran. */
+    static final class Recorded {
+        private final String sql;
+        private final Map<Integer, Object> parameters;
+        private int executions;
+
+        Recorded(String sql, Map<Integer, Object> parameters) {
+            this.sql = sql;
+            this.parameters = parameters;
+        }
+    }
+
+    // Statements by their text with parameter lists collapsed, in order of first execution
+    private final Map<String, Recorded> recorded = new LinkedHashMap<>();
+
+    private final String url = "jdbc:h2:mem:" + DATABASE_NAME + ";DB_CLOSE_DELAY=-1";
+    private Driver driver;
+    private Connection explain;
+
+    // Seeds the database and runs every operation through the recording driver
+    @BeforeAll
+    void recordStatements() throws Exception {
+        Class.forName(DatabaseHelper.JDBC_DRIVER);
+        driver = new RecordingDriver();
+        DriverManager.registerDriver(driver);
+
+        DatabaseHelper db = new DatabaseHelper(URL_PREFIX + url.substring("jdbc:".length()));
+
+        // The data layer logs every query; keep the test output readable
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            db.connectToDatabase();
+            seed(db);
+            exercise(db);
+        } finally {
+            db.closeConnection();
+            System.setOut(console);
+        }
+        explain = DriverManager.getConnection(url, DatabaseHelper.USER, DatabaseHelper.PASS);
+    }
+
+    @AfterAll
+    void dropDatabase() throws SQLException {
+        try (Statement stmt = explain.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        } finally {
+            explain.close();
+            DriverManager.deregisterDriver(driver);
+        }
+    }
+
+    @TestFactory
+    Stream<DynamicTest> everyStatementAvoidsUnexpectedTableScans() {
+        assertFalse(recorded.isEmpty(), "no statements were recorded");
+        return recorded.values().stream()
+                .filter(statement -> StatementRecorder.isExplainable(statement.sql))
+                .map(statement -> DynamicTest.dynamicTest(statement.sql, () -> {
+                    String plan = StatementRecorder.explain(explain, statement.sql, statement.parameters);
+                    assertNotEquals("SCAN", judge(statement.sql, plan), () -> "Unexpected table scan:\n" + plan);
+                }));
+    }
+
+    @Test
+    void judgeFlagsOnlyUnexpectedTableScans() {
+        String scan = "SELECT * FROM PUBLIC.USERS /* PUBLIC.USERS.tableScan */";
+        assertEquals("SCAN", judge("SELECT * FROM users WHERE first_name = ?", scan));
+        assertEquals("BULK", judge("DELETE FROM users", scan));
+        assertEquals("OK", judge("SELECT * FROM users WHERE username = ?",
+                "SELECT * FROM PUBLIC.USERS /* PUBLIC.CONSTRAINT_INDEX_4: USERNAME = ?1 */"));
+        assertEquals("OK", judge("SELECT COUNT(*) AS count FROM users",
+                "SELECT COUNT(*) FROM PUBLIC.USERS /* PUBLIC.USERS.tableScan */ /* direct lookup */"));
+    }
+
+    // Registers users with completed profiles and a set of open invites, then refreshes the optimizer statistics
+    private void seed(DatabaseHelper db) throws Exception {
+        byte[] hash = PasswordManager.hashPassword(PASSWORD);
+        for (int i = 0; i < USERS; i++) {
+            String username = "user" + i;
+            db.register(username, hash, ROLE);
+            db.setupUserDetails(username, "First" + i, "", "Last" + i, "", username + "@example.com");
+        }
+        for (int i = 0; i < USERS / 10; i++) {
+            db.createInvite("INVITE" + i, "Student");
+        }
+        try (Connection conn = DriverManager.getConnection(url, DatabaseHelper.USER, DatabaseHelper.PASS);
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("ANALYZE");
+        }
+    }
+
+    // Calls every public operation of the helper at least once so that each statement it issues is recorded
+    private void exercise(DatabaseHelper db) throws Exception {
+        String username = "user1";
+        byte[] hash = PasswordManager.hashPassword(PASSWORD);
+
+        // Authentication
+        db.login(username, PASSWORD, ROLE);
+        db.doesUserExist(username);
+        db.isPasswordCorrect(username, PASSWORD);
+        db.isRoleCorrect(username, ROLE);
+        db.isAccountSetupComplete(username);
+        db.getPasswordHash(username);
+        db.isOneTimePasswordSet(username);
+        db.isOneTimePasswordValid(username);
+        db.isDatabaseEmpty();
+
+        // Roles and profiles
+        db.addRoleToUser(username, "instructor");
+        db.removeRoleFromUser(username, "instructor");
+        db.getRolesForUser(username);
+        db.getUserDetails(username);
+        db.updateUserDetails(username, "First1", "", "Last1", "", "user1@example.com", db.getUserVersion(username));
+        db.suggestUsernames("user1", 5);
+
+        // Invites
+        db.doesInviteExist(" invite1 ");
+        db.getRoleFromInvite("INVITE1");
+        db.createInvite("INVITE1", "Instructor");
+        db.addUser("AUDIT-ADDED", "Student");
+        db.updateUserFromInviteCode("INVITE2", "invited2", hash, ROLE);
+        Map<String, Object> invite = db.readInvite("INVITE3");
+        invite.put("username", "invited3");
+        db.insertUserRow(invite);
+        db.consumeInvite("INVITE3");
+        db.findUsernameByEmail("user1@example.com");
+
+        // One-time passwords and reset tokens
+        db.setOneTimePassword("user2", hash, "12/31/2099");
+        db.updatePasswordAfterOtp("user2", hash);
+        db.resetUser("user3", "Temporary1!", "12/31/2099");
+        String tokenHash = PasswordManager.hashToken("audit-token");
+        db.createPasswordResetToken("user4", tokenHash, 60);
+        db.consumePasswordResetToken(tokenHash, hash);
+
+        // Admin user list, one query per filter and sort column
+        List<UserQuery> queries = new ArrayList<>(Arrays.asList(
+                new UserQuery().usernamePrefix("user1"),
+                new UserQuery().namePrefix("first1"),
+                new UserQuery().emailPrefix("user1"),
+                new UserQuery().role(Role.STUDENT),
+                new UserQuery().createdBetween(LocalDateTime.now().minusDays(1), LocalDateTime.now().plusDays(1))));
+        for (UserQuery.SortColumn column : UserQuery.SortColumn.values()) {
+            queries.add(new UserQuery().sortBy(column, true));
+        }
+        for (UserQuery query : queries) {
+            db.findUserAccounts(query);
+            db.countUserAccounts(query);
+            db.findUserSummaries(query);
+        }
+        db.getAllUserAccounts();
+        db.exportUsers(new UserQuery(), new RosterExporter(), OutputStream.nullOutputStream());
+        db.exportUsers(new UserQuery().usernamePrefix("user1"), new RosterExporter(), OutputStream.nullOutputStream());
+
+        // Background work: sweeping, the change log, backup and restore
+        db.sweepExpiredCredentials();
+        db.pruneChangeLog(24);
+        ChangeLog changeLog = db.getChangeLog();
+        changeLog.read(0, 100);
+        changeLog.getLatestSequence();
+        changeLog.getOldestSequence();
+        changeLog.findGap(0);
+        Path backup = Files.createTempFile("query-plan-audit", ".backup");
+        try {
+            db.backup(backup);
+            db.restore(backup);
+        } finally {
+            Files.deleteIfExists(backup);
+        }
+
+        db.deleteUser("user5");
+    }
+
+    /**
+     * Judges a plan: "OK" if it reads no table with a full scan, "BULK" if it does and the statement is expected to,
+     * otherwise "SCAN".
+     *
+     * @param sql The statement.
+     * @param plan Its plan as printed by EXPLAIN.
+     * @return The verdict.
+     */
+    static String judge(String sql, String plan) {
+        if (!TABLE_SCAN.matcher(plan).find() || plan.contains("direct lookup")) {
+            return "OK";
+        }
+        for (Pattern expected : EXPECTED_SCANS.keySet()) {
+            if (expected.matcher(sql).find()) {
+                return "BULK";
+            }
+        }
+        return "SCAN";
+    }
+
+    private synchronized void record(String sql, Map<Integer, Object> parameters) {
+        String key = StatementRecorder.normalize(sql);
+        recorded.computeIfAbsent(key, k -> new Recorded(sql.trim(), parameters)).executions++;
+    }
+
+    /** Wraps the H2 driver, returning connections that record the statements run on them. */
+    private final class RecordingDriver implements Driver {
+
+        @Override
+        public Connection connect(String url, Properties info) throws SQLException {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            Connection connection = DriverManager.getConnection("jdbc:" + url.substring(URL_PREFIX.length()), info);
+            return StatementRecorder.wrap(connection, (sql, parameters) -> {
+                record(sql, parameters);
+                return null;
+            });
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url != null && url.startsWith(URL_PREFIX);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+}
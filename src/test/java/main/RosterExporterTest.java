@@ -0,0 +1,153 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RosterExporterTest {
+
+    private static final RosterExporter.Column[] NAME_COLUMNS = {
+            RosterExporter.Column.USERNAME, RosterExporter.Column.FIRST_NAME, RosterExporter.Column.LAST_NAME};
+
+    @Test
+    void quotesCsvValuesOnlyWhenNeeded() throws Exception {
+        RosterExporter exporter = new RosterExporter().columns(NAME_COLUMNS);
+        String csv = export(exporter, List.of(
+                new Object[] {"ada", "Ada", "Lovelace"},
+                new Object[] {"comma", "Smith, Jr.", "O\"Brien"},
+                new Object[] {"lines", "two\nlines", "carriage\rreturn"},
+                new Object[] {"empty", "", null}));
+
+        assertEquals("username,firstName,lastName\r\n"
+                + "ada,Ada,Lovelace\r\n"
+                + "comma,\"Smith, Jr.\",\"O\"\"Brien\"\r\n"
+                + "lines,\"two\nlines\",\"carriage\rreturn\"\r\n"
+                + "empty,,\r\n", csv);
+    }
+
+    @Test
+    void defusesCsvValuesASpreadsheetWouldRunAsFormulas() throws Exception {
+        RosterExporter exporter = new RosterExporter().columns(NAME_COLUMNS);
+        String csv = export(exporter, List.of(
+                new Object[] {"=cmd", "+1", "-2"},
+                new Object[] {"@sum", "=HYPERLINK(\"x\",\"y\")", "a=b"}));
+
+        assertEquals("username,firstName,lastName\r\n"
+                + "'=cmd,'+1,'-2\r\n"
+                + "'@sum,\"'=HYPERLINK(\"\"x\"\",\"\"y\"\")\",a=b\r\n", csv);
+    }
+
+    @Test
+    void escapesJsonLines() throws Exception {
+        RosterExporter exporter = new RosterExporter().format(RosterExporter.Format.JSONL)
+                .columns(RosterExporter.Column.USERNAME, RosterExporter.Column.FIRST_NAME,
+                        RosterExporter.Column.SETUP_COMPLETE, RosterExporter.Column.CREATED_AT);
+        Timestamp created = Timestamp.valueOf(LocalDateTime.of(2026, 3, 1, 9, 30, 15));
+        String jsonl = export(exporter, List.of(
+                new Object[] {"ada", "Quote \" back\\slash", true, created},
+                new Object[] {"grace", "tab\tnew\nline\u0001", null, null}));
+
+        String[] lines = jsonl.split("\n");
+        assertEquals(2, lines.length);
+        assertEquals("{\"username\":\"ada\",\"firstName\":\"Quote \\\" back\\\\slash\",\"setupComplete\":true,"
+                + "\"createdAt\":\"2026-03-01T09:30:15\"}", lines[0]);
+        assertEquals("{\"username\":\"grace\",\"firstName\":\"tab\\tnew\\nline\\u0001\",\"setupComplete\":false,"
+                + "\"createdAt\":null}", lines[1]);
+
+        // Each line parses back to the original values
+        Map<String, String> first = Json.parseObject(lines[0]);
+        assertEquals("Quote \" back\\slash", first.get("firstName"));
+        Map<String, String> second = Json.parseObject(lines[1]);
+        assertEquals("tab\tnew\nline\u0001", second.get("firstName"));
+        assertNull(second.get("createdAt"));
+    }
+
+    @Test
+    void gzipsTheSameOutput() throws Exception {
+        List<Object[]> rows = List.of(new Object[] {"ada", "Ada", "Lovelace"}, new Object[] {"grace", "Grace", "Hopper"});
+        String plain = export(new RosterExporter().columns(NAME_COLUMNS), rows);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new RosterExporter().columns(NAME_COLUMNS).gzip(true).write(rows.iterator(), out);
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            assertEquals(plain, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void reportsProgressEveryIntervalAndAtTheEnd() throws Exception {
+        List<Long> reported = new ArrayList<>();
+        RosterExporter exporter = new RosterExporter().columns(RosterExporter.Column.USERNAME).onProgress(reported::add, 2);
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            rows.add(new Object[] {"user" + i});
+        }
+
+        assertEquals(5, exporter.write(rows.iterator(), new ByteArrayOutputStream()));
+        assertEquals(List.of(2L, 4L, 5L), reported);
+
+        reported.clear();
+        assertEquals(0, exporter.write(Collections.emptyIterator(), new ByteArrayOutputStream()));
+        assertEquals(List.of(0L), reported);
+    }
+
+    @Test
+    void findsColumnsByName() {
+        assertEquals(RosterExporter.Column.FIRST_NAME, RosterExporter.Column.fromName("firstname"));
+        assertEquals(RosterExporter.Column.FIRST_NAME, RosterExporter.Column.fromName("FIRST_NAME"));
+        assertNull(RosterExporter.Column.fromName("password_hash"));
+        assertThrows(IllegalArgumentException.class, () -> new RosterExporter().columns());
+    }
+
+    @Test
+    void storesExportTheSameRoster() throws Exception {
+        DatabaseHelper h2 = DatabaseHelper.inMemory("rosterexport");
+        InMemoryUserStore memory = new InMemoryUserStore();
+        List<String> exports = new ArrayList<>();
+        for (UserStore store : new UserStore[] {h2, memory}) {
+            store.connectToDatabase();
+            try {
+                store.register("ada", new byte[] {1}, "Student");
+                store.addRoleToUser("ada", "Admin");
+                store.setupUserDetails("ada", "Ada, Countess", "", "=Lovelace", "", "ada@example.com");
+                store.register("grace", new byte[] {1}, "Instructor");
+                store.createInvite("WELCOME1", "Student");
+
+                for (RosterExporter.Format format : RosterExporter.Format.values()) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    assertEquals(2, store.exportUsers(new UserQuery(), new RosterExporter().format(format), out));
+                    exports.add(out.toString(StandardCharsets.UTF_8));
+                }
+            } finally {
+                store.closeConnection();
+            }
+        }
+
+        assertEquals("username,firstName,middleName,lastName,email,roles\r\n"
+                + "ada,\"Ada, Countess\",,'=Lovelace,ada@example.com,\"Student,Admin\"\r\n"
+                + "grace,,,,,Instructor\r\n", exports.get(0));
+        assertEquals(exports.get(0), exports.get(2));
+        assertEquals(exports.get(1), exports.get(3));
+    }
+
+    private static String export(RosterExporter exporter, List<Object[]> rows) throws IOException, SQLException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(rows.size(), exporter.write(rows.iterator(), out));
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,118 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionRegistryTest {
+
+    private static final EnumSet<Role> STUDENT = EnumSet.of(Role.STUDENT);
+
+    @Test
+    void findsLiveSessionsByToken() {
+        try (SessionRegistry registry = new SessionRegistry()) {
+            Session ada = registry.create("ada", Role.STUDENT, STUDENT);
+            Session grace = registry.create("grace", Role.STUDENT, STUDENT);
+
+            assertNotEquals(ada.getToken(), grace.getToken());
+            assertEquals("ada", registry.get(ada.getToken()).getUsername());
+            assertNull(registry.get("no such token"));
+            assertNull(registry.get(null));
+            assertEquals(2, registry.size());
+        }
+    }
+
+    @Test
+    void expiresUnusedSessions() throws InterruptedException {
+        try (SessionRegistry registry = new SessionRegistry(200, 10)) {
+            Session session = registry.create("ada", Role.STUDENT, STUDENT);
+            Thread.sleep(300);
+
+            assertNull(registry.get(session.getToken()));
+            assertFalse(registry.hasRole(session.getToken(), Role.STUDENT));
+            assertEquals(0, registry.size());
+        }
+    }
+
+    @Test
+    void renewsSessionsThatAreUsed() throws InterruptedException {
+        try (SessionRegistry registry = new SessionRegistry(600, 10)) {
+            Session session = registry.create("ada", Role.STUDENT, STUDENT);
+
+            // Each lookup comes before the session runs out and slides its expiry forward
+            for (int i = 0; i < 4; i++) {
+                Thread.sleep(250);
+                Session renewed = registry.get(session.getToken());
+                assertNotNull(renewed, "lookup " + i);
+                assertTrue(renewed.getExpiresAtMillis() > session.getExpiresAtMillis());
+            }
+        }
+    }
+
+    @Test
+    void boundsTheNumberOfSessions() {
+        try (SessionRegistry registry = new SessionRegistry(60_000, 2)) {
+            Session ada = registry.create("ada", Role.STUDENT, STUDENT);
+            assertNotNull(registry.create("grace", Role.STUDENT, STUDENT));
+
+            assertNull(registry.create("linus", Role.STUDENT, STUDENT));
+            assertEquals(2, registry.size());
+
+            registry.invalidate(ada.getToken());
+            assertNull(registry.get(ada.getToken()));
+            assertNotNull(registry.create("linus", Role.STUDENT, STUDENT));
+            assertEquals(2, registry.size());
+        }
+    }
+
+    @Test
+    void makesRoomByEvictingExpiredSessions() throws InterruptedException {
+        try (SessionRegistry registry = new SessionRegistry(200, 2)) {
+            registry.create("ada", Role.STUDENT, STUDENT);
+            registry.create("grace", Role.STUDENT, STUDENT);
+            Thread.sleep(300);
+
+            assertNotNull(registry.create("linus", Role.STUDENT, STUDENT));
+            assertEquals(1, registry.size());
+        }
+    }
+
+    @Test
+    void switchesAndRefreshesRoles() {
+        try (SessionRegistry registry = new SessionRegistry()) {
+            Session session = registry.create("ada", Role.STUDENT, EnumSet.of(Role.STUDENT, Role.INSTRUCTOR));
+            String token = session.getToken();
+
+            assertEquals(Role.INSTRUCTOR, registry.setActiveRole(token, Role.INSTRUCTOR).getActiveRole());
+            assertNull(registry.setActiveRole(token, Role.ADMIN));
+            assertFalse(registry.hasRole(token, Role.ADMIN));
+
+            registry.refreshRoles("ada", EnumSet.of(Role.ADMIN));
+            assertTrue(registry.hasRole(token, Role.ADMIN));
+            assertFalse(registry.hasRole(token, Role.STUDENT));
+        }
+    }
+
+    @Test
+    void endsEverySessionOfADeletedUser() {
+        try (SessionRegistry registry = new SessionRegistry()) {
+            Session first = registry.create("ada", Role.STUDENT, STUDENT);
+            Session second = registry.create("ada", Role.STUDENT, STUDENT);
+            Session other = registry.create("grace", Role.STUDENT, STUDENT);
+
+            registry.invalidateUser("ada");
+
+            assertNull(registry.get(first.getToken()));
+            assertNull(registry.get(second.getToken()));
+            assertNotNull(registry.get(other.getToken()));
+            assertEquals(1, registry.size());
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package main;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedUserStoreTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+    private static final int SHARDS = 3;
+
+    private final List<DatabaseHelper> shards = new ArrayList<>();
+    private ShardedUserStore store;
+    private byte[] hash;
+
+    @BeforeEach
+    void connect() throws Exception {
+        int database = DATABASES.incrementAndGet();
+        store = new ShardedUserStore(SHARDS, index -> {
+            DatabaseHelper shard = DatabaseHelper.inMemory("sharded" + database + "-" + index);
+            shards.add(shard);
+            return shard;
+        });
+        store.connectToDatabase();
+        hash = PasswordManager.hashPassword("Secret1!");
+    }
+
+    @AfterEach
+    void close() {
+        store.closeConnection();
+    }
+
+    @Test
+    void jumpHashIsStableAndMovesKeysOnlyToNewShards() {
+        int[] perShard = new int[5];
+        for (int i = 0; i < 10000; i++) {
+            String key = "user" + i;
+            int before = ShardedUserStore.shardIndex(key, 4);
+            int after = ShardedUserStore.shardIndex(key, 5);
+            assertEquals(before, ShardedUserStore.shardIndex(key, 4));
+            assertTrue(after == before || after == 4, key + " moved from " + before + " to " + after);
+            perShard[after]++;
+        }
+        for (int count : perShard) {
+            assertTrue(count > 1500 && count < 2500, "uneven shards: " + Arrays.toString(perShard));
+        }
+    }
+
+    @Test
+    void routesEachUserToItsShard() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            store.register("user" + i, hash, "Student");
+        }
+        for (int i = 0; i < 30; i++) {
+            String username = "user" + i;
+            int home = ShardedUserStore.shardIndex(username, SHARDS);
+            for (int shard = 0; shard < SHARDS; shard++) {
+                assertEquals(shard == home, shards.get(shard).doesUserExist(username), username + " on shard " + shard);
+            }
+            assertTrue(store.doesUserExist(username));
+        }
+    }
+
+    @Test
+    void mergesListingsInTheQuerysOrder() throws Exception {
+        List<String> usernames = addUsers(40);
+        List<String> descending = new ArrayList<>(usernames);
+        descending.sort((a, b) -> b.compareTo(a));
+
+        assertEquals(40, store.countUserAccounts(new UserQuery()));
+        assertEquals(usernames.subList(5, 15),
+                column(store.findUserAccounts(new UserQuery().sortBy(UserQuery.SortColumn.USERNAME, true).page(5, 10))));
+        assertEquals(descending.subList(30, 40),
+                column(store.findUserAccounts(new UserQuery().sortBy(UserQuery.SortColumn.USERNAME, false).page(30, 20))));
+        assertEquals(List.of("user1", "user10", "user11"),
+                column(store.findUserAccounts(new UserQuery().usernamePrefix("user1").sortBy(UserQuery.SortColumn.USERNAME, true).page(0, 3))));
+    }
+
+    @Test
+    void returnsUserIdsThatAreUniqueAcrossShards() throws Exception {
+        addUsers(40);
+
+        UserSummaryTable summaries = store.findUserSummaries(new UserQuery().page(0, 100));
+        Set<Integer> ids = new HashSet<>();
+        for (int row = 0; row < summaries.size(); row++) {
+            ids.add(summaries.getUserId(row));
+        }
+        assertEquals(40, ids.size());
+    }
+
+    @Test
+    void mergesExportsInTheQuerysOrder() throws Exception {
+        List<String> usernames = addUsers(40);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long rows = store.exportUsers(new UserQuery().sortBy(UserQuery.SortColumn.USERNAME, true),
+                new RosterExporter().columns(RosterExporter.Column.USERNAME), out);
+
+        assertEquals(40, rows);
+        List<String> lines = Arrays.asList(out.toString(StandardCharsets.UTF_8).split("\r?\n"));
+        assertEquals(usernames, lines.subList(1, lines.size()));
+    }
+
+    @Test
+    void redeemsAnInviteFromAnotherShardExactlyOnce() throws Exception {
+        String inviteCode = inviteCodeOnShard(0);
+        String username = usernameOnShard(1, 0);
+        store.createInvite(inviteCode, "Instructor");
+
+        // A taken username leaves the invite in place
+        store.register(username, hash, "Student");
+        assertFalse(store.updateUserFromInviteCode(inviteCode, username, hash, "Instructor"));
+        assertTrue(store.doesInviteExist(inviteCode));
+
+        String newcomer = usernameOnShard(1, 1);
+        assertTrue(store.updateUserFromInviteCode(inviteCode, newcomer, hash, "Instructor"));
+        assertTrue(shards.get(1).doesUserExist(newcomer));
+        assertFalse(store.doesInviteExist(inviteCode));
+        assertFalse(store.updateUserFromInviteCode(inviteCode, usernameOnShard(1, 2), hash, "Instructor"));
+        assertEquals(1, store.countUserAccounts(new UserQuery().usernamePrefix(newcomer)));
+    }
+
+    @Test
+    void keepsEmailsUniqueAcrossShards() throws Exception {
+        String first = usernameOnShard(0, 0);
+        String second = usernameOnShard(1, 0);
+        store.register(first, hash, "Student");
+        store.register(second, hash, "Student");
+        store.setupUserDetails(first, "Ada", "", "Lovelace", "", "shared@example.com");
+
+        store.setupUserDetails(second, "Grace", "", "Hopper", "", "shared@example.com");
+        assertNull(store.getUserDetails(second)[4]);
+        assertFalse(store.updateUserDetails(second, "Grace", "", "Hopper", "", "shared@example.com", store.getUserVersion(second)));
+
+        // The owner can keep their own email
+        assertTrue(store.updateUserDetails(first, "Augusta", "", "King", "", "shared@example.com", store.getUserVersion(first)));
+    }
+
+    // Registers users with completed profiles and returns their usernames in order
+    private List<String> addUsers(int count) throws Exception {
+        List<String> usernames = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String username = "user" + i;
+            store.register(username, hash, "Student");
+            store.setupUserDetails(username, "First" + i, "", "Last" + i, "", username + "@example.com");
+            usernames.add(username);
+        }
+        usernames.sort(null);
+        return usernames;
+    }
+
+    private static List<String> column(String[][] accounts) {
+        List<String> usernames = new ArrayList<>();
+        for (String[] account : accounts) {
+            usernames.add(account[0]);
+        }
+        return usernames;
+    }
+
+    private static String inviteCodeOnShard(int shard) {
+        for (int i = 0; ; i++) {
+            if (ShardedUserStore.shardIndex(DatabaseHelper.normalizeInviteCode("INVITE" + i), SHARDS) == shard) {
+                return "INVITE" + i;
+            }
+        }
+    }
+
+    // The skip-th username that lives on a shard
+    private static String usernameOnShard(int shard, int skip) {
+        for (int i = 0; ; i++) {
+            if (ShardedUserStore.shardIndex("member" + i, SHARDS) == shard && skip-- == 0) {
+                return "member" + i;
+            }
+        }
+    }
+}
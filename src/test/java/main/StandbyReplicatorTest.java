@@ -0,0 +1,164 @@
+package main;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StandbyReplicatorTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private DatabaseHelper db;
+    private String primaryUrl;
+    private String standbyUrl;
+    private byte[] hash;
+
+    @BeforeEach
+    void connect() throws Exception {
+        int database = DATABASES.incrementAndGet();
+        primaryUrl = "jdbc:h2:mem:replication-primary" + database + ";DB_CLOSE_DELAY=-1";
+        standbyUrl = "jdbc:h2:mem:replication-standby" + database + ";DB_CLOSE_DELAY=-1";
+        db = DatabaseHelper.inMemory("replication-primary" + database);
+        db.connectToDatabase();
+        hash = PasswordManager.hashPassword("Secret1!");
+    }
+
+    @AfterEach
+    void close() {
+        db.closeConnection();
+    }
+
+    @Test
+    void copiesExistingUsersThenShipsChanges() throws Exception {
+        db.register("ada", hash, "Student");
+        db.register("grace", hash, "Student");
+
+        try (StandbyReplicator replicator = new StandbyReplicator(db.getChangeLog(), primaryUrl, standbyUrl)) {
+            replicator.start();
+            assertEquals(List.of("ada:Student", "grace:Student"), standbyUsers());
+            assertEquals(0, replicator.getLagChanges());
+
+            db.register("linus", hash, "Student");
+            db.addRoleToUser("ada", "Admin");
+            db.deleteUser("grace");
+            awaitCaughtUp(replicator);
+
+            assertEquals(List.of("ada:Student,Admin", "linus:Student"), standbyUsers());
+            assertEquals(3, replicator.getAppliedChangeCount());
+            assertEquals(0, replicator.getLagMillis());
+
+            db.clearDatabase();
+            awaitCaughtUp(replicator);
+            assertEquals(List.of(), standbyUsers());
+        }
+    }
+
+    @Test
+    void resumesWhereItStopped() throws Exception {
+        db.register("ada", hash, "Student");
+        try (StandbyReplicator replicator = new StandbyReplicator(db.getChangeLog(), primaryUrl, standbyUrl)) {
+            replicator.start();
+        }
+
+        db.register("grace", hash, "Student");
+        db.deleteUser("ada");
+
+        try (StandbyReplicator replicator = new StandbyReplicator(db.getChangeLog(), primaryUrl, standbyUrl)) {
+            replicator.start();
+            awaitCaughtUp(replicator);
+
+            // Only the two changes made while stopped were applied, without copying everything again
+            assertEquals(2, replicator.getAppliedChangeCount());
+            assertEquals(List.of("grace:Student"), standbyUsers());
+        }
+    }
+
+    @Test
+    void copiesEverythingAgainAfterMissingPrunedChanges() throws Exception {
+        db.register("ada", hash, "Student");
+        try (StandbyReplicator replicator = new StandbyReplicator(db.getChangeLog(), primaryUrl, standbyUrl)) {
+            replicator.start();
+        }
+
+        db.register("grace", hash, "Student");
+        db.deleteUser("ada");
+        Thread.sleep(20);
+        db.pruneChangeLog(0);
+
+        try (StandbyReplicator replicator = new StandbyReplicator(db.getChangeLog(), primaryUrl, standbyUrl)) {
+            replicator.start();
+            assertEquals(0, replicator.getAppliedChangeCount());
+            assertEquals(db.getChangeLog().getLatestSequence(), replicator.getAppliedSequence());
+            assertEquals(List.of("grace:Student"), standbyUsers());
+        }
+    }
+
+    @Test
+    void promotesTheStandbyToAPrimary() throws Exception {
+        db.register("ada", hash, "Student");
+        StandbyReplicator replicator = new StandbyReplicator(db.getChangeLog(), primaryUrl, standbyUrl);
+        replicator.start();
+        db.register("grace", hash, "Student");
+        awaitCaughtUp(replicator);
+
+        String message = replicator.promote();
+        assertTrue(message.contains("sequence " + db.getChangeLog().getLatestSequence()), message);
+
+        // A promoted standby no longer replicates, but takes new users with ids above the replicated ones
+        StandbyReplicator again = new StandbyReplicator(db.getChangeLog(), primaryUrl, standbyUrl);
+        assertThrows(SQLException.class, again::start);
+        again.close();
+
+        DatabaseHelper promoted = new DatabaseHelper(standbyUrl);
+        promoted.connectToDatabase();
+        try {
+            promoted.register("linus", hash, "Student");
+            assertTrue(promoted.doesUserExist("ada"));
+            assertTrue(promoted.doesUserExist("grace"));
+            assertEquals(3, promoted.countUserAccounts(new UserQuery()));
+        } finally {
+            promoted.closeConnection();
+        }
+    }
+
+    @Test
+    void refusesToPromoteAStandbyThatWasNeverSynchronized() throws Exception {
+        assertThrows(SQLException.class, () -> StandbyReplicator.promote(standbyUrl));
+    }
+
+    private void awaitCaughtUp(StandbyReplicator replicator) throws Exception {
+        long latest = db.getChangeLog().getLatestSequence();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (replicator.getAppliedSequence() < latest && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(latest, replicator.getAppliedSequence());
+    }
+
+    // The standby's users as "username:roles", by username
+    private List<String> standbyUsers() throws SQLException {
+        List<String> users = new ArrayList<>();
+        try (Connection conn = DriverManager.getConnection(standbyUrl, "sa", "");
+             Statement stmt = conn.createStatement();
+             ResultSet resultSet = stmt.executeQuery("SELECT username, role FROM users ORDER BY username")) {
+            while (resultSet.next()) {
+                users.add(resultSet.getString("username") + ":" + resultSet.getString("role"));
+            }
+        }
+        return users;
+    }
+}
@@ -0,0 +1,448 @@
+package main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * <p>StorageBenchmark class runs a fixed workload against the H2 backend under a matrix of storage settings and
+ * prints a comparative latency and throughput report.</p>
+ * <p>Each configuration gets a fresh database file, is seeded with the same users, warmed up, and then runs the same
+ * mix of operations through {@link LoginManager} and {@link DatabaseHelper}: logins, profile reads, role writes and
+ * invite redemptions, chosen by a seeded random generator so every configuration sees the same sequence. The default
+ * matrix varies the MVStore cache size, the page split size, compression, the file system ({@code file},
+ * {@code nio}, {@code nioMapped}) and the lock timeout; further configurations can be given on the command line.</p>
+ * <p>Each worker thread borrows its own pooled connection for every operation, so the workers run their queries
+ * and transactions concurrently and contend for row locks as the application's request threads do.</p>
+ * <p>The benchmark lives with the tests and runs on the test classpath. Usage:
+ * {@code gradle storageBenchmark -PbenchArgs="--ops=20000 --threads=4"}, or run the class directly with these
+ * options:</p>
+ * <ul>
+ *     <li>{@code --users=N} - users seeded before the run (default 1000).</li>
+ *     <li>{@code --ops=N} - measured operations per configuration (default 20000), after {@code --warmup=N}
+ *     (default 2000).</li>
+ *     <li>{@code --threads=N} - threads running the workload (default 4).</li>
+ *     <li>{@code --dir=PATH} - where the database files are created (default {@code build/storage-benchmark}).</li>
+ *     <li>{@code --only=a,b} - run only the named configurations.</li>
+ *     <li>{@code --config=name=fs:SETTING=value;...} - add a configuration, e.g.
+ *     {@code --config=big=nioMapped:CACHE_SIZE=262144;COMPRESS=TRUE}.</li>
+ *     <li>{@code --csv=FILE} - also write the report as CSV.</li>
+ * </ul>
+ * <p>The application logs every query to standard output, so output is discarded while a configuration runs; only
+ * the report is printed.</p>
+ */
+public class StorageBenchmark {
+
+    /** The operations in the workload, with their share of it in percent. */
+    enum Operation {
+        /** A full login through LoginManager. */
+        LOGIN(50),
+        /** Reading a user's profile. */
+        PROFILE_READ(30),
+        /** Adding or removing a role. */
+        ROLE_WRITE(15),
+        /** Creating an invite and registering with it. */
+        INVITE_REDEMPTION(5);
+
+        private final int weight;
+
+        Operation(int weight) {
+            this.weight = weight;
+        }
+
+        // Picks an operation for a roll in [0, 100)
+        static Operation forRoll(int roll) {
+            for (Operation operation : values()) {
+                roll -= operation.weight;
+                if (roll < 0) {
+                    return operation;
+                }
+            }
+            return LOGIN;
+        }
+    }
+
+    /** One storage configuration: an H2 file system prefix and database settings appended to the URL. */
+    static final class Config {
+        private final String name;
+        private final String fileSystem;
+        private final String settings;
+
+        Config(String name, String fileSystem, String settings) {
+            this.name = name;
+            this.fileSystem = fileSystem;
+            this.settings = settings;
+        }
+
+        // Parses name=fs:SETTING=value;SETTING=value
+        static Config parse(String spec) {
+            int equals = spec.indexOf('=');
+            int colon = spec.indexOf(':', equals + 1);
+            if (equals <= 0 || colon < 0) {
+                throw new IllegalArgumentException("Expected name=fs:settings, got: " + spec);
+            }
+            return new Config(spec.substring(0, equals), spec.substring(equals + 1, colon), spec.substring(colon + 1));
+        }
+
+        // The LOCK_TIMEOUT setting, or -1 if the configuration leaves it at the default
+        long lockTimeoutMillis() {
+            for (String setting : settings.split(";")) {
+                if (setting.regionMatches(true, 0, "LOCK_TIMEOUT=", 0, "LOCK_TIMEOUT=".length())) {
+                    return Long.parseLong(setting.substring("LOCK_TIMEOUT=".length()).trim());
+                }
+            }
+            return -1;
+        }
+
+        String url(Path file) {
+            String url = "jdbc:h2:" + fileSystem + ":" + file.toAbsolutePath();
+            return settings.isEmpty() ? url : url + ";" + settings;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + fileSystem + (settings.isEmpty() ? "" : ", " + settings) + ")";
+        }
+    }
+
+    /** The default matrix; each configuration changes one setting from the first. */
+    static final List<Config> DEFAULT_MATRIX = Arrays.asList(
+            new Config("baseline", "file", ""),
+            new Config("cache-4mb", "file", "CACHE_SIZE=4096"),
+            new Config("cache-256mb", "file", "CACHE_SIZE=262144"),
+            new Config("split-4k", "file", "PAGE_SIZE=4096"),
+            new Config("split-64k", "file", "PAGE_SIZE=65536"),
+            new Config("compress", "file", "COMPRESS=TRUE"),
+            new Config("nio", "nio", ""),
+            new Config("nio-mapped", "nioMapped", ""),
+            new Config("lock-100ms", "file", "LOCK_TIMEOUT=100"),
+            new Config("lock-10s", "file", "LOCK_TIMEOUT=10000"));
+
+    private static final String PASSWORD = "Benchmark1!";
+    private static final String ROLE = "student";
+    private static final long SEED = 360;
+
+    /** Latencies and throughput measured for one configuration. */
+    static final class Result {
+        private final Config config;
+        private final long[][] latencies = new long[Operation.values().length][];
+        private long elapsedNanos;
+        private long operations;
+        private long errors;
+        private long fileBytes;
+
+        Result(Config config) {
+            this.config = config;
+        }
+
+        double opsPerSecond() {
+            return elapsedNanos == 0 ? 0 : operations * 1e9 / elapsedNanos;
+        }
+
+        // The given percentile of an operation's latencies, in microseconds
+        double percentileMicros(Operation operation, double percentile) {
+            long[] sorted = latencies[operation.ordinal()];
+            if (sorted == null || sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile / 100 * sorted.length) - 1);
+            return sorted[Math.max(0, index)] / 1000.0;
+        }
+
+        double meanMicros(Operation operation) {
+            long[] values = latencies[operation.ordinal()];
+            return values == null || values.length == 0 ? 0 : Arrays.stream(values).average().orElse(0) / 1000.0;
+        }
+    }
+
+    private final int users;
+    private final int warmup;
+    private final int operations;
+    private final int threads;
+    private final Path directory;
+
+    /**
+     * Constructor for StorageBenchmark.
+     *
+     * @param users The number of users seeded before the run.
+     * @param warmup The number of unmeasured operations run first.
+     * @param operations The number of measured operations.
+     * @param threads The number of threads running the workload.
+     * @param directory Where the database files are created.
+     */
+    public StorageBenchmark(int users, int warmup, int operations, int threads, Path directory) {
+        this.users = users;
+        this.warmup = warmup;
+        this.operations = operations;
+        this.threads = threads;
+        this.directory = directory;
+    }
+
+    /**
+     * Runs the benchmark from the command line.
+     *
+     * @param args The options described on the class.
+     * @throws Exception If a configuration cannot be set up.
+     */
+    public static void main(String[] args) throws Exception {
+
+        // Keep the background tasks from running during the measurement
+        System.setProperty("docop.maintenance", System.getProperty("docop.maintenance", "false"));
+        System.setProperty("docop.sweepIntervalSeconds", System.getProperty("docop.sweepIntervalSeconds", "0"));
+
+        int users = 1000;
+        int warmup = 2000;
+        int operations = 20_000;
+        int threads = 4;
+        Path directory = Paths.get("build", "storage-benchmark");
+        List<String> only = null;
+        List<Config> matrix = new ArrayList<>(DEFAULT_MATRIX);
+        Path csv = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--users=")) {
+                users = Integer.parseInt(value);
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(value);
+            } else if (arg.startsWith("--ops=")) {
+                operations = Integer.parseInt(value);
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(value);
+            } else if (arg.startsWith("--dir=")) {
+                directory = Paths.get(value);
+            } else if (arg.startsWith("--only=")) {
+                only = Arrays.asList(value.split(","));
+            } else if (arg.startsWith("--config=")) {
+                matrix.add(Config.parse(value));
+            } else if (arg.startsWith("--csv=")) {
+                csv = Paths.get(value);
+            } else {
+                System.err.println("Unknown option: " + arg);
+                System.exit(2);
+            }
+        }
+
+        StorageBenchmark benchmark = new StorageBenchmark(users, warmup, operations, threads, directory);
+        List<Result> results = new ArrayList<>();
+        for (Config config : matrix) {
+            if (only == null || only.contains(config.name)) {
+                System.out.println("Running " + config + "...");
+                results.add(benchmark.run(config));
+            }
+        }
+
+        System.out.println();
+        printReport(results, System.out);
+        if (csv != null) {
+            try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(csv, StandardCharsets.UTF_8))) {
+                writeCsv(results, writer);
+            }
+            System.out.println("Report written to " + csv);
+        }
+    }
+
+    /**
+     * Runs the workload against one configuration on a fresh database.
+     *
+     * @param config The configuration.
+     * @return The measurements.
+     * @throws Exception If the database cannot be set up.
+     */
+    public Result run(Config config) throws Exception {
+        Path dbDirectory = directory.resolve(config.name);
+        deleteRecursively(dbDirectory);
+        Files.createDirectories(dbDirectory);
+        Path file = dbDirectory.resolve("bench");
+
+        Result result = new Result(config);
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        DatabaseHelper db = new DatabaseHelper(config.url(file));
+
+        // One pooled connection per worker, so the workers contend for row locks rather than for a connection;
+        // the pool sets the lock timeout on each connection it opens, which would override the one in the URL
+        db.setPoolSize(threads);
+        if (config.lockTimeoutMillis() >= 0) {
+            db.setLockTimeoutMillis(config.lockTimeoutMillis());
+        }
+        try {
+            db.connectToDatabase();
+            seed(db);
+            LoginManager loginManager = new LoginManager(db);
+            AtomicInteger invites = new AtomicInteger();
+
+            runPhase(db, loginManager, invites, warmup, null, SEED);
+            long[][][] perThread = new long[threads][][];
+            long start = System.nanoTime();
+            result.errors = runPhase(db, loginManager, invites, operations, perThread, SEED + 1);
+            result.elapsedNanos = System.nanoTime() - start;
+            result.operations = operations;
+            mergeLatencies(perThread, result);
+        } finally {
+            db.closeConnection();
+            System.setOut(console);
+        }
+        result.fileBytes = directorySize(dbDirectory);
+        return result;
+    }
+
+    // Registers the users and completes their setup so they can log in
+    private void seed(DatabaseHelper db) throws Exception {
+        byte[] hash = PasswordManager.hashPassword(PASSWORD);
+        for (int i = 0; i < users; i++) {
+            String username = "user" + i;
+            db.register(username, hash, ROLE);
+            db.setupUserDetails(username, "First" + i, "", "Last" + i, "", username + "@example.com");
+        }
+    }
+
+    // Runs count operations split over the threads, recording latencies if perThread is given; returns the errors
+    private long runPhase(DatabaseHelper db, LoginManager loginManager, AtomicInteger invites, int count,
+                          long[][][] perThread, long seed) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicInteger errors = new AtomicInteger();
+        for (int t = 0; t < threads; t++) {
+            int threadIndex = t;
+            int share = count / threads + (t < count % threads ? 1 : 0);
+            Thread thread = new Thread(() -> {
+                Random random = new Random(seed * 31 + threadIndex);
+                long[][] latencies = new long[Operation.values().length][share];
+                int[] recorded = new int[Operation.values().length];
+                try {
+                    for (int i = 0; i < share; i++) {
+                        Operation operation = Operation.forRoll(random.nextInt(100));
+                        String username = "user" + random.nextInt(users);
+                        long begin = System.nanoTime();
+                        try {
+                            if (!perform(operation, db, loginManager, invites, username, random)) {
+                                errors.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                        }
+                        latencies[operation.ordinal()][recorded[operation.ordinal()]++] = System.nanoTime() - begin;
+                    }
+                } finally {
+                    if (perThread != null) {
+                        for (int o = 0; o < latencies.length; o++) {
+                            latencies[o] = Arrays.copyOf(latencies[o], recorded[o]);
+                        }
+                        perThread[threadIndex] = latencies;
+                    }
+                    done.countDown();
+                }
+            }, "storage-benchmark-" + t);
+            thread.start();
+        }
+        done.await();
+        return errors.get();
+    }
+
+    // Performs one operation, returning false if it did not have the expected outcome
+    private boolean perform(Operation operation, DatabaseHelper db, LoginManager loginManager, AtomicInteger invites,
+                            String username, Random random) throws Exception {
+        switch (operation) {
+            case LOGIN:
+                return "Login successful".equals(loginManager.login(username, PASSWORD, ROLE));
+            case PROFILE_READ:
+                return db.getUserDetails(username) != null;
+            case ROLE_WRITE:
+                if (random.nextBoolean()) {
+                    db.addRoleToUser(username, "instructor");
+                } else {
+                    db.removeRoleFromUser(username, "instructor");
+                }
+                return true;
+            default:
+                int invite = invites.incrementAndGet();
+                String inviteCode = "BENCH" + invite;
+                db.createInvite(inviteCode, ROLE);
+                return "Registration successful".equals(loginManager.registerInvite(inviteCode, "invited" + invite, PASSWORD));
+        }
+    }
+
+    private static void mergeLatencies(long[][][] perThread, Result result) {
+        for (Operation operation : Operation.values()) {
+            long[] merged = Arrays.stream(perThread)
+                    .flatMapToLong(latencies -> Arrays.stream(latencies[operation.ordinal()]))
+                    .sorted()
+                    .toArray();
+            result.latencies[operation.ordinal()] = merged;
+        }
+    }
+
+    /**
+     * Prints the report: throughput, errors and file size per configuration, then the mean, median and 99th
+     * percentile latency of each operation.
+     *
+     * @param results The measurements.
+     * @param out Where to print.
+     */
+    static void printReport(List<Result> results, PrintStream out) {
+        double baseline = results.isEmpty() ? 0 : results.get(0).opsPerSecond();
+        out.printf(Locale.ROOT, "%-14s %10s %8s %7s %10s", "config", "ops/s", "vs first", "errors", "file KB");
+        for (Operation operation : Operation.values()) {
+            out.printf(Locale.ROOT, " %26s", operation.name().toLowerCase(Locale.ROOT) + " mean/p50/p99 us");
+        }
+        out.println();
+        for (Result result : results) {
+            out.printf(Locale.ROOT, "%-14s %10.0f %7.0f%% %7d %10d", result.config.name, result.opsPerSecond(),
+                    baseline == 0 ? 0 : 100 * result.opsPerSecond() / baseline, result.errors, result.fileBytes / 1024);
+            for (Operation operation : Operation.values()) {
+                out.printf(Locale.ROOT, " %26s", String.format(Locale.ROOT, "%.0f/%.0f/%.0f", result.meanMicros(operation),
+                        result.percentileMicros(operation, 50), result.percentileMicros(operation, 99)));
+            }
+            out.println();
+        }
+    }
+
+    /**
+     * Writes the report as CSV, one row per configuration and operation.
+     *
+     * @param results The measurements.
+     * @param writer Where to write.
+     */
+    static void writeCsv(List<Result> results, PrintWriter writer) {
+        writer.println("config,url_settings,ops_per_second,errors,file_bytes,operation,count,mean_us,p50_us,p95_us,p99_us");
+        for (Result result : results) {
+            for (Operation operation : Operation.values()) {
+                writer.printf(Locale.ROOT, "%s,\"%s:%s\",%.1f,%d,%d,%s,%d,%.1f,%.1f,%.1f,%.1f%n", result.config.name,
+                        result.config.fileSystem, result.config.settings, result.opsPerSecond(), result.errors,
+                        result.fileBytes, operation.name().toLowerCase(Locale.ROOT), result.latencies[operation.ordinal()].length,
+                        result.meanMicros(operation), result.percentileMicros(operation, 50),
+                        result.percentileMicros(operation, 95), result.percentileMicros(operation, 99));
+            }
+        }
+    }
+
+    private static long directorySize(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
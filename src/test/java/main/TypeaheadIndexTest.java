@@ -0,0 +1,110 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TypeaheadIndexTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    @Test
+    void suggestsByUsernameAndNameWordsIgnoringCase() {
+        TypeaheadIndex index = new TypeaheadIndex();
+        index.put("ada", "Countess", "King Lovelace");
+        index.put("grace", "Amazing Grace", "Hopper");
+        index.put("linus", null, "Torvalds");
+
+        assertEquals(List.of("ada"), index.suggest("LOVE", 10));
+        assertEquals(List.of("ada"), index.suggest("king lo", 10));
+        assertEquals(List.of("grace"), index.suggest("  gr", 10));
+        assertEquals(List.of("linus"), index.suggest("tor", 10));
+        assertEquals(List.of(), index.suggest("x", 10));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    void returnsDistinctUsernamesUpToTheLimit() {
+        TypeaheadIndex index = new TypeaheadIndex();
+        index.put("adam", "Adam", "Adams");
+        index.put("ada", "Ada", "Adair");
+        index.put("adele", null, null);
+
+        // ada matches on her username and both names but is listed once, in the order of her first term
+        assertEquals(List.of("ada", "adam", "adele"), index.suggest("ad", 10));
+        assertEquals(List.of("ada", "adam"), index.suggest("ad", 2));
+        assertEquals(List.of(), index.suggest("ad", 0));
+    }
+
+    @Test
+    void ignoresBlankPrefixesAndSeparators() {
+        TypeaheadIndex index = new TypeaheadIndex();
+        index.put("ada", "Ada");
+        index.put(null, "Nobody");
+
+        assertEquals(List.of(), index.suggest("", 10));
+        assertEquals(List.of(), index.suggest("   ", 10));
+        assertEquals(List.of(), index.suggest(null, 10));
+        assertEquals(List.of("ada"), index.suggest("a\u0000d", 10));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void replacesAndRemovesUsers() {
+        TypeaheadIndex index = new TypeaheadIndex();
+        index.put("ada", "Ada", "Byron");
+        index.put("ada", "Ada", "Lovelace");
+
+        assertEquals(List.of(), index.suggest("byr", 10));
+        assertEquals(List.of("ada"), index.suggest("love", 10));
+
+        index.remove("ada");
+        assertEquals(List.of(), index.suggest("a", 10));
+        assertEquals(0, index.size());
+
+        index.put("grace", "Grace");
+        index.put("linus", "Linus");
+        index.clear();
+        assertEquals(List.of(), index.suggest("g", 10));
+        assertEquals(0, index.size());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory", "sharded"})
+    void followsWritesToTheStore(String kind) throws Exception {
+        int database = DATABASES.incrementAndGet();
+        UserStore store;
+        switch (kind) {
+            case "h2":
+                store = DatabaseHelper.inMemory("typeahead" + database);
+                break;
+            case "sharded":
+                store = new ShardedUserStore(3, index -> DatabaseHelper.inMemory("typeahead" + database + "-" + index));
+                break;
+            default:
+                store = new InMemoryUserStore();
+        }
+        store.connectToDatabase();
+        try {
+            store.register("ada", new byte[] {1}, "Student");
+            store.register("adam", new byte[] {1}, "Student");
+            assertEquals(List.of("ada", "adam"), store.suggestUsernames("ad", 10));
+
+            store.setupUserDetails("ada", "Ada", "", "Lovelace", "Countess", "ada@example.com");
+            assertEquals(List.of("ada"), store.suggestUsernames("lov", 10));
+            assertEquals(List.of("ada"), store.suggestUsernames("count", 10));
+
+            store.deleteUser("ada");
+            assertTrue(store.suggestUsernames("lov", 10).isEmpty());
+            assertEquals(List.of("adam"), store.suggestUsernames("ad", 10));
+        } finally {
+            store.closeConnection();
+        }
+    }
+}
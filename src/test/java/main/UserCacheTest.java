@@ -0,0 +1,94 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserCacheTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final String[] DETAILS = {"Ada", "", "Lovelace", "", "ada@example.com"};
+    private static final String[] ROLES = {"Student", "Instructor"};
+
+    @Test
+    void servesCopiesOfWhatWasPut() {
+        UserCache cache = new UserCache(10, HOUR);
+        assertTrue(cache.putDetails("ada", DETAILS, cache.generation("ada")));
+        assertTrue(cache.putRoles("ada", ROLES, cache.generation("ada")));
+
+        String[] details = cache.getDetails("ada");
+        assertArrayEquals(DETAILS, details);
+        details[0] = "changed";
+        assertArrayEquals(DETAILS, cache.getDetails("ada"));
+        assertArrayEquals(ROLES, cache.getRoles("ada"));
+        assertEquals(3, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    void missesUntilBothHalvesArePut() {
+        UserCache cache = new UserCache(10, HOUR);
+        cache.putDetails("ada", DETAILS, cache.generation("ada"));
+
+        assertNotNull(cache.getDetails("ada"));
+        assertNull(cache.getRoles("ada"));
+        assertEquals(0.5, cache.getHitRate());
+    }
+
+    @Test
+    void dropsPutOfDataReadBeforeAnInvalidation() {
+        UserCache cache = new UserCache(10, HOUR);
+        long generation = cache.generation("ada");
+
+        // A write commits and invalidates the user while the reader is still querying
+        cache.invalidate("ada");
+
+        assertFalse(cache.putDetails("ada", DETAILS, generation));
+        assertFalse(cache.putRoles("ada", ROLES, generation));
+        assertNull(cache.getDetails("ada"));
+        assertTrue(cache.putDetails("ada", DETAILS, cache.generation("ada")));
+    }
+
+    @Test
+    void invalidateAllDropsEveryUserAndEveryEarlierRead() {
+        UserCache cache = new UserCache(10, HOUR);
+        cache.putDetails("ada", DETAILS, cache.generation("ada"));
+        long generation = cache.generation("grace");
+
+        cache.invalidateAll();
+
+        assertEquals(0, cache.size());
+        assertNull(cache.getDetails("ada"));
+        assertFalse(cache.putDetails("grace", DETAILS, generation));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedUser() {
+        UserCache cache = new UserCache(2, HOUR);
+        cache.putDetails("a", DETAILS, cache.generation("a"));
+        cache.putDetails("b", DETAILS, cache.generation("b"));
+        cache.getDetails("a");
+        cache.putDetails("c", DETAILS, cache.generation("c"));
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNotNull(cache.getDetails("a"));
+        assertNull(cache.getDetails("b"));
+        assertNotNull(cache.getDetails("c"));
+    }
+
+    @Test
+    void expiredEntriesAreMissedAndDropped() {
+        UserCache cache = new UserCache(10, -1);
+        cache.putDetails("ada", DETAILS, cache.generation("ada"));
+
+        assertNull(cache.getDetails("ada"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getMisses());
+    }
+}
@@ -0,0 +1,157 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Checks that each store filters, sorts and pages user queries the same way.
+ */
+class UserQueryTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private static UserStore open(String kind) throws Exception {
+        int database = DATABASES.incrementAndGet();
+        UserStore store;
+        switch (kind) {
+            case "h2":
+                store = DatabaseHelper.inMemory("userquery" + database);
+                break;
+            case "sharded":
+                store = new ShardedUserStore(3, index -> DatabaseHelper.inMemory("userquery" + database + "-" + index));
+                break;
+            default:
+                store = new InMemoryUserStore();
+        }
+        store.connectToDatabase();
+
+        // username, first name, last name, preferred name, email, roles
+        String[][] users = {
+                {"ada", "Ada", "Lovelace", "", "ada@example.com", "Student"},
+                {"alan", "Alan", "Turing", "", "ALAN@Bletchley.org", "Student,Instructor"},
+                {"grace", "Grace", "Hopper", "Amazing", "grace@navy.mil", "Instructor"},
+                {"linus", "Linus", "Torvalds", "", "linus@example.com", "Admin"},
+                {"a_b", "Barbara", "Liskov", "", "barbara@mit.edu", "Student"}
+        };
+        for (String[] user : users) {
+            String[] roles = user[5].split(",");
+            store.register(user[0], new byte[] {1}, roles[0]);
+            for (int i = 1; i < roles.length; i++) {
+                store.addRoleToUser(user[0], roles[i]);
+            }
+            store.setupUserDetails(user[0], user[1], "", user[2], user[3], user[4]);
+        }
+        return store;
+    }
+
+    private static List<String> usernames(UserStore store, UserQuery query) throws Exception {
+        List<String> usernames = new ArrayList<>();
+        for (String[] account : store.findUserAccounts(query)) {
+            usernames.add(account[0]);
+        }
+        return usernames;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory", "sharded"})
+    void listsEveryoneByUsernameByDefault(String kind) throws Exception {
+        UserStore store = open(kind);
+        try {
+            assertEquals(List.of("a_b", "ada", "alan", "grace", "linus"), usernames(store, new UserQuery()));
+            assertEquals(5, store.countUserAccounts(new UserQuery()));
+        } finally {
+            store.closeConnection();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory", "sharded"})
+    void filtersByPrefixes(String kind) throws Exception {
+        UserStore store = open(kind);
+        try {
+            assertEquals(List.of("a_b", "ada", "alan"), usernames(store, new UserQuery().usernamePrefix("a")));
+            assertEquals(List.of(), usernames(store, new UserQuery().usernamePrefix("A")));
+
+            // LIKE wildcards in the prefix match themselves only
+            assertEquals(List.of("a_b"), usernames(store, new UserQuery().usernamePrefix("a_")));
+            assertEquals(List.of(), usernames(store, new UserQuery().usernamePrefix("%")));
+
+            // First, last and preferred names, ignoring case
+            assertEquals(List.of("a_b", "linus"), usernames(store, new UserQuery().namePrefix("li")));
+            assertEquals(List.of("a_b", "ada", "linus"), usernames(store, new UserQuery().namePrefix("L")));
+            assertEquals(List.of("grace"), usernames(store, new UserQuery().namePrefix("amaz")));
+
+            assertEquals(List.of("alan"), usernames(store, new UserQuery().emailPrefix("alan@bletchley")));
+            assertEquals(2, store.countUserAccounts(new UserQuery().emailPrefix("  ").namePrefix("l").usernamePrefix("a")));
+        } finally {
+            store.closeConnection();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory", "sharded"})
+    void filtersByRoleAndCreationTime(String kind) throws Exception {
+        UserStore store = open(kind);
+        try {
+            assertEquals(List.of("alan", "grace"), usernames(store, new UserQuery().role(Role.INSTRUCTOR)));
+            assertEquals(List.of("a_b", "ada", "alan"), usernames(store, new UserQuery().role(Role.STUDENT)));
+            assertEquals(List.of("alan"), usernames(store, new UserQuery().role(Role.INSTRUCTOR).usernamePrefix("a")));
+
+            LocalDateTime later = LocalDateTime.now().plusDays(1);
+            assertEquals(5, store.countUserAccounts(new UserQuery().createdBetween(null, later)));
+            assertEquals(0, store.countUserAccounts(new UserQuery().createdBetween(later, null)));
+        } finally {
+            store.closeConnection();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory", "sharded"})
+    void sortsAndPages(String kind) throws Exception {
+        UserStore store = open(kind);
+        try {
+            UserQuery byLastName = new UserQuery().sortBy(UserQuery.SortColumn.LAST_NAME, false);
+            assertEquals(List.of("alan", "linus", "ada", "a_b", "grace"), usernames(store, byLastName));
+
+            List<String> paged = new ArrayList<>();
+            for (int offset = 0; offset < 6; offset += 2) {
+                List<String> page = usernames(store, byLastName.page(offset, 2));
+                assertEquals(offset < 4 ? 2 : 1, page.size(), "page at " + offset);
+                paged.addAll(page);
+            }
+            assertEquals(List.of("alan", "linus", "ada", "a_b", "grace"), paged);
+
+            // The count ignores the page
+            assertEquals(5, store.countUserAccounts(byLastName.page(4, 2)));
+
+            String[] first = store.findUserAccounts(new UserQuery().sortBy(UserQuery.SortColumn.EMAIL, true).page(0, 1))[0];
+            assertEquals("ada", first[0]);
+            assertEquals("Ada", first[1]);
+            assertEquals("Lovelace", first[3]);
+            assertEquals("Student", first[4]);
+        } finally {
+            store.closeConnection();
+        }
+    }
+
+    @Test
+    void normalizesItsArguments() {
+        UserQuery query = new UserQuery().usernamePrefix(" ").namePrefix("").sortBy(null, false).page(-5, 0);
+
+        assertNull(query.getUsernamePrefix());
+        assertNull(query.getNamePrefix());
+        assertEquals(UserQuery.SortColumn.USERNAME, query.getSortBy());
+        assertEquals(0, query.getOffset());
+        assertEquals(1, query.getLimit());
+        assertEquals(UserQuery.DEFAULT_LIMIT, new UserQuery().getLimit());
+    }
+}
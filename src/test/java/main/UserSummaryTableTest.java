@@ -0,0 +1,120 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class UserSummaryTableTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    @Test
+    void holdsTheRowsInTheOrderAdded() {
+        UserSummaryTable table = new UserSummaryTable.Builder(2)
+                .add(7, "ada", "Ada", "Lovelace", "Student")
+                .add(3, null, null, null, "Instructor")
+                .add(9, "grace", "", "Hopper", "Admin,Instructor")
+                .build();
+
+        assertEquals(3, table.size());
+        assertEquals(7, table.getUserId(0));
+        assertEquals("ada", table.getUsername(0));
+        assertNull(table.getUsername(1));
+        assertEquals(9, table.getUserId(2));
+        assertEquals(-1, table.indexOf(null));
+        assertEquals(2, table.indexOf("grace"));
+        assertEquals(-1, table.indexOf("linus"));
+    }
+
+    @Test
+    void growsBeyondItsExpectedSize() {
+        UserSummaryTable.Builder builder = new UserSummaryTable.Builder(0);
+        for (int i = 0; i < 1000; i++) {
+            builder.add(i, "user" + i, "First" + i, null, "Student");
+        }
+        UserSummaryTable table = builder.build();
+
+        assertEquals(1000, table.size());
+        assertEquals(999, table.getUserId(999));
+        assertEquals("First999", table.getDisplayName(999));
+        assertEquals(500, table.indexOf("user500"));
+    }
+
+    @Test
+    void buildsDisplayNamesFromThePartsPresent() {
+        UserSummaryTable table = new UserSummaryTable.Builder(4)
+                .add(1, "a", "Ada", "Lovelace", null)
+                .add(2, "b", "Ada", "", null)
+                .add(3, "c", null, "Lovelace", null)
+                .add(4, "d", "", null, null)
+                .build();
+
+        assertEquals("Ada Lovelace", table.getDisplayName(0));
+        assertEquals("Ada", table.getDisplayName(1));
+        assertEquals("Lovelace", table.getDisplayName(2));
+        assertEquals("", table.getDisplayName(3));
+    }
+
+    @Test
+    void sharesOneLabelPerRoleSet() {
+        UserSummaryTable table = new UserSummaryTable.Builder(4)
+                .add(1, "a", null, null, "Student,Admin")
+                .add(2, "b", null, null, " Admin , Student,Unknown")
+                .add(3, "c", null, null, "")
+                .add(4, "d", null, null, "Instructor")
+                .build();
+
+        // Labels list the roles in declaration order, whatever order they are stored in
+        assertEquals("Admin, Student", table.getRolesLabel(0));
+        assertSame(table.getRolesLabel(0), table.getRolesLabel(1));
+        assertEquals(Role.ADMIN.bit() | Role.STUDENT.bit(), table.getRoleMask(1));
+        assertEquals("", table.getRolesLabel(2));
+        assertEquals(0, table.getRoleMask(2));
+        assertEquals("Instructor", table.getRolesLabel(3));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"h2", "memory", "sharded"})
+    void isLoadedByTheStore(String kind) throws Exception {
+        int database = DATABASES.incrementAndGet();
+        UserStore store;
+        switch (kind) {
+            case "h2":
+                store = DatabaseHelper.inMemory("summaries" + database);
+                break;
+            case "sharded":
+                store = new ShardedUserStore(3, index -> DatabaseHelper.inMemory("summaries" + database + "-" + index));
+                break;
+            default:
+                store = new InMemoryUserStore();
+        }
+        store.connectToDatabase();
+        try {
+            store.register("grace", new byte[] {1}, "Instructor");
+            store.register("ada", new byte[] {1}, "Student");
+            store.addRoleToUser("ada", "Admin");
+            store.setupUserDetails("ada", "Ada", "", "Lovelace", "", "ada@example.com");
+
+            UserSummaryTable table = store.findUserSummaries(new UserQuery().page(0, 10));
+            assertEquals(2, table.size());
+            assertEquals("ada", table.getUsername(0));
+            assertEquals("Ada Lovelace", table.getDisplayName(0));
+            assertEquals("Admin, Student", table.getRolesLabel(0));
+            assertEquals("grace", table.getUsername(1));
+            assertEquals("", table.getDisplayName(1));
+            assertEquals("Instructor", table.getRolesLabel(1));
+
+            UserSummaryTable page = store.findUserSummaries(new UserQuery().page(1, 10));
+            assertEquals(1, page.size());
+            assertEquals(0, page.indexOf("grace"));
+        } finally {
+            store.closeConnection();
+        }
+    }
+}